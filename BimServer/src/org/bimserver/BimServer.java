@@ -51,8 +51,8 @@ import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.Database;
 import org.bimserver.database.DatabaseRestartRequiredException;
 import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.KeyValueStore;
 import org.bimserver.database.Query;
-import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
 import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
 import org.bimserver.database.berkeley.DatabaseInitException;
 import org.bimserver.database.migrations.InconsistentModelsException;
@@ -100,6 +100,10 @@ import org.bimserver.models.store.Type;
 import org.bimserver.models.store.User;
 import org.bimserver.models.store.UserSettings;
 import org.bimserver.models.store.WebModulePluginConfiguration;
+import org.bimserver.nfc.NfcHandler;
+import org.bimserver.nfc.NfcScanLog;
+import org.bimserver.nfc.NfcStore;
+import org.bimserver.nfc.NfcWriteQueue;
 import org.bimserver.notifications.InternalServicesManager;
 import org.bimserver.notifications.NotificationsManager;
 import org.bimserver.openid.OpenIdManager;
@@ -192,6 +196,10 @@ public class BimServer {
 	private SchemaConverterManager schemaConverterManager = new SchemaConverterManager();
 	private WebModuleManager webModuleManager;
 	private MetricsRegistry metricsRegistry;
+	private NfcStore nfcStore;
+	private NfcScanLog nfcScanLog;
+	private NfcWriteQueue nfcWriteQueue;
+	private NfcHandler nfcHandler;
 
 	/**
 	 * Create a new BIMserver
@@ -355,7 +363,7 @@ public class BimServer {
 			templateEngine = new TemplateEngine();
 			templateEngine.init(config.getResourceFetcher().getResource("templates/"));
 			File databaseDir = new File(config.getHomeDir(), "database");
-			BerkeleyKeyValueStore keyValueStore = new BerkeleyKeyValueStore(databaseDir);
+			KeyValueStore keyValueStore = config.getKeyValueStoreType().create(databaseDir);
 			
 			schemaConverterManager.registerConverter(new Ifc2x3tc1ToIfc4SchemaConverterFactory());
 			schemaConverterManager.registerConverter(new Ifc4ToIfc2x3tc1SchemaConverterFactory());
@@ -369,7 +377,7 @@ public class BimServer {
 				bimDatabase.init();
 			} catch (DatabaseRestartRequiredException e) {
 				bimDatabase.close();
-				keyValueStore = new BerkeleyKeyValueStore(databaseDir);
+				keyValueStore = config.getKeyValueStoreType().create(databaseDir);
 				bimDatabase = new Database(this, packages, keyValueStore, metaDataManager);
 				try {
 					bimDatabase.init();
@@ -407,6 +415,14 @@ public class BimServer {
 
 			webModuleManager = new WebModuleManager(this);
 			
+			nfcStore = new NfcStore(bimDatabase);
+			nfcStore.init(new File(config.getHomeDir(), "NfcData"));
+			nfcScanLog = new NfcScanLog(bimDatabase);
+			nfcScanLog.init();
+			nfcWriteQueue = new NfcWriteQueue(bimDatabase, nfcStore, nfcScanLog);
+			nfcWriteQueue.start();
+			nfcHandler = new NfcHandler(this);
+			
 			jsonHandler = new JsonHandler(this);
 			
 			serializerFactory = new SerializerFactory();
@@ -941,6 +957,9 @@ public class BimServer {
 	public void stop() {
 		LOGGER.info("Stopping BIMserver");
 		executorService.shutdown();
+		if (nfcWriteQueue != null) {
+			nfcWriteQueue.close();
+		}
 		if (bimDatabase != null) {
 			bimDatabase.close();
 		}
@@ -1084,4 +1103,20 @@ public class BimServer {
 	public MetricsRegistry getMetricsRegistry() {
 		return metricsRegistry;
 	}
+
+	public NfcStore getNfcStore() {
+		return nfcStore;
+	}
+
+	public NfcScanLog getNfcScanLog() {
+		return nfcScanLog;
+	}
+
+	public NfcWriteQueue getNfcWriteQueue() {
+		return nfcWriteQueue;
+	}
+
+	public NfcHandler getNfcHandler() {
+		return nfcHandler;
+	}
 }
\ No newline at end of file
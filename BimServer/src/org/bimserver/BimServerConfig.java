@@ -19,6 +19,8 @@ package org.bimserver;
 
 import java.io.File;
 
+import org.bimserver.database.KeyValueStoreType;
+import org.bimserver.database.RecordCache;
 import org.bimserver.plugins.ResourceFetcher;
 
 public class BimServerConfig {
@@ -30,6 +32,12 @@ public class BimServerConfig {
 	private boolean startCommandLine = false;
 	private boolean localDev;
 	private boolean autoMigrate = false;
+	private boolean deltaCheckins = false;
+	private KeyValueStoreType keyValueStoreType = KeyValueStoreType.BERKELEY;
+	private long recordCacheSize = RecordCache.DEFAULT_MAX_SIZE_IN_BYTES;
+	private boolean columnarDownloads = false;
+	private boolean streamingDownloads = false;
+	private long streamingCheckinThreshold = 0;
 	
 	public boolean isStartEmbeddedWebServer() {
 		return startEmbeddedWebServer;
@@ -118,4 +126,72 @@ public class BimServerConfig {
 	public void setAutoMigrate(boolean autoMigrate) {
 		this.autoMigrate = autoMigrate;
 	}
-}
\ No newline at end of file
+
+	public boolean isDeltaCheckins() {
+		return deltaCheckins;
+	}
+
+	/**
+	 * @param deltaCheckins When true, a checkin only writes the objects that differ from the previous revision of the project instead of a full copy of the model.
+	 * To compare with, every checkin loads the whole previous revision into memory next to the new model, which about doubles the peak heap use of a checkin.
+	 */
+	public void setDeltaCheckins(boolean deltaCheckins) {
+		this.deltaCheckins = deltaCheckins;
+	}
+
+	public KeyValueStoreType getKeyValueStoreType() {
+		return keyValueStoreType;
+	}
+
+	/**
+	 * @param keyValueStoreType The storage the database is kept in, an existing database can only be opened with the type it was created with (see KeyValueStoreMigrator)
+	 */
+	public void setKeyValueStoreType(KeyValueStoreType keyValueStoreType) {
+		this.keyValueStoreType = keyValueStoreType;
+	}
+
+	public long getRecordCacheSize() {
+		return recordCacheSize;
+	}
+
+	/**
+	 * @param recordCacheSize Maximum number of bytes of records of single objects (projects, users etc.) that are cached for all sessions, 0 disables the cache
+	 */
+	public void setRecordCacheSize(long recordCacheSize) {
+		this.recordCacheSize = recordCacheSize;
+	}
+
+	public boolean isColumnarDownloads() {
+		return columnarDownloads;
+	}
+
+	/**
+	 * @param columnarDownloads Whether downloads of a revision with a single concrete revision are read into a compact read only model (ColumnarIfcModel) instead of a full model, for serializers that do not need geometry.
+	 * Only full revision downloads use it, the other download actions read a selection of objects and follow their references
+	 */
+	public void setColumnarDownloads(boolean columnarDownloads) {
+		this.columnarDownloads = columnarDownloads;
+	}
+
+	public boolean isStreamingDownloads() {
+		return streamingDownloads;
+	}
+
+	/**
+	 * @param streamingDownloads Whether downloads of a revision with a single concrete revision are read from the database while they are being serialized (StreamingIfcModel), for serializers that support it (StreamingSerializerPlugin)
+	 */
+	public void setStreamingDownloads(boolean streamingDownloads) {
+		this.streamingDownloads = streamingDownloads;
+	}
+
+	public long getStreamingCheckinThreshold() {
+		return streamingCheckinThreshold;
+	}
+
+	/**
+	 * @param streamingCheckinThreshold Size in bytes from which uploaded files are checked in without deserializing them into a model first (StreamingCheckinDatabaseAction), for deserializers that support it (StreamingDeserializer), 0 disables streaming checkins
+	 */
+	public void setStreamingCheckinThreshold(long streamingCheckinThreshold) {
+		this.streamingCheckinThreshold = streamingCheckinThreshold;
+	}
+}
@@ -19,6 +19,7 @@ package org.bimserver;
 
 import java.util.Properties;
 
+import org.bimserver.database.BimserverDatabaseException;
 import org.quartz.Job;
 import org.quartz.JobDetail;
 import org.quartz.JobExecutionContext;
@@ -35,6 +36,7 @@ public class JobScheduler {
 	private static final Logger LOGGER = LoggerFactory.getLogger(JobScheduler.class);
 	private static final int COMPARE_RESULT_CLEAN_INTERVAL_MILLIS = 30 * 60 * 1000; // 30 minutes
 	private static final int LONG_ACTION_MANAGER_CLEANUP_INTERVAL_MILLIS = 1 * 60 * 1000; // 1 minute
+	private static final int NFC_SCAN_LOG_CLEANUP_INTERVAL_MILLIS = 60 * 60 * 1000; // 1 hour
 	private SchedulerFactory sf;
 	private Scheduler sched;
 
@@ -62,6 +64,22 @@ public class JobScheduler {
 		}
 	}
 	
+	public static class NfcScanLogCleaner implements Job {
+		@Override
+		public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException {
+			try {
+				BimServer bimServer = (BimServer) (jobExecutionContext.getScheduler().getContext().get("bimserver"));
+				if (bimServer.getNfcScanLog() != null) {
+					bimServer.getNfcScanLog().cleanup();
+				}
+			} catch (SchedulerException e) {
+				LOGGER.error("", e);
+			} catch (BimserverDatabaseException e) {
+				LOGGER.error("", e);
+			}
+		}
+	}
+	
 	public JobScheduler(BimServer bimServer) {
 		try {
 			Properties properties = new Properties();
@@ -81,6 +99,7 @@ public class JobScheduler {
 		try {
 			addRecurringJob(CompareResultCacheCleaner.class, COMPARE_RESULT_CLEAN_INTERVAL_MILLIS);
 			addRecurringJob(LongActionManagerCleaner.class, LONG_ACTION_MANAGER_CLEANUP_INTERVAL_MILLIS);
+			addRecurringJob(NfcScanLogCleaner.class, NFC_SCAN_LOG_CLEANUP_INTERVAL_MILLIS);
 			sched.start();
 		} catch (SchedulerException e) {
 			LOGGER.error("", e);
@@ -23,7 +23,6 @@ import java.io.Writer;
 import javax.servlet.http.HttpServletRequest;
 
 import org.bimserver.models.log.AccessMethod;
-import org.bimserver.nfc.NfcHandler;
 import org.bimserver.shared.exceptions.ServerException;
 import org.bimserver.shared.exceptions.ServiceException;
 import org.bimserver.shared.exceptions.UserException;
@@ -91,8 +90,9 @@ public class JsonHandler {
 		String interfaceName = request.get("interface").getAsString();
 		String methodName = request.get("method").getAsString();
 		if(interfaceName.equals("handleNfcMethods")) {
-			NfcHandler nfcHandler = new NfcHandler(bimServer);
-			nfcHandler.handleNfcMethods(request, jsonToken, httpRequest, writer);
+			Recording recording = bimServer.getMetricsRegistry().startRecording(interfaceName, methodName);
+			bimServer.getNfcHandler().handleNfcMethods(request, jsonToken, httpRequest, writer);
+			recording.finish();
 			return;
 		}
 		SService sService = bimServer.getServicesMap().getByName(interfaceName);
@@ -2,14 +2,15 @@ package org.bimserver;
 
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.bimserver.shared.meta.SMethod;
-import org.bimserver.shared.meta.SService;
-
 public class MethodStats {
 	private final AtomicLong nrCalls = new AtomicLong();
 	private final AtomicLong totalNanoSeconds = new AtomicLong();
+	private final String interfaceName;
+	private final String methodName;
 
-	public MethodStats(SService sService, SMethod sMethod) {
+	public MethodStats(String interfaceName, String methodName) {
+		this.interfaceName = interfaceName;
+		this.methodName = methodName;
 	}
 
 	public void add(Recording recording) {
@@ -18,10 +19,19 @@ public class MethodStats {
 	}
 	
 	public long getAverageNanoSecondsPerCall() {
-		return totalNanoSeconds.get() / nrCalls.get();
+		long calls = nrCalls.get();
+		return calls == 0 ? 0 : totalNanoSeconds.get() / calls;
 	}
 
 	public long getNrCalls() {
 		return nrCalls.get();
 	}
-}
\ No newline at end of file
+
+	public String getInterfaceName() {
+		return interfaceName;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+}
@@ -1,7 +1,7 @@
 package org.bimserver;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.bimserver.interfaces.objects.SInterfaceMetric;
 import org.bimserver.interfaces.objects.SMethodMetric;
@@ -9,46 +9,62 @@ import org.bimserver.interfaces.objects.SMetrics;
 import org.bimserver.shared.meta.SMethod;
 import org.bimserver.shared.meta.SService;
 
+/*
+ * Stats are keyed on interface and method name, so methods that are not part of an SService (the NFC methods of the JsonHandler) can be recorded as well
+ */
 public class MetricsRegistry {
 
-	private final Map<SService, Map<SMethod, MethodStats>> methodStats = new HashMap<>();
+	private final ConcurrentMap<String, ConcurrentMap<String, MethodStats>> methodStats = new ConcurrentHashMap<>();
 	
 	public Recording startRecording(SService sService, SMethod method) {
-		return new Recording(this, sService, method);
+		return startRecording(sService.getSimpleName(), method.getName());
+	}
+
+	public Recording startRecording(String interfaceName, String methodName) {
+		return new Recording(this, interfaceName, methodName);
 	}
 	
 	public MethodStats getMethodStats(SMethod sMethod) {
-		Map<SMethod, MethodStats> map = this.methodStats.get(sMethod.getService());
+		return getMethodStats(sMethod.getService().getSimpleName(), sMethod.getName());
+	}
+
+	public MethodStats getMethodStats(String interfaceName, String methodName) {
+		ConcurrentMap<String, MethodStats> map = this.methodStats.get(interfaceName);
 		if (map == null) {
-			map = new HashMap<SMethod, MethodStats>();
-			this.methodStats.put(sMethod.getService(), map);
+			map = new ConcurrentHashMap<String, MethodStats>();
+			ConcurrentMap<String, MethodStats> existing = this.methodStats.putIfAbsent(interfaceName, map);
+			if (existing != null) {
+				map = existing;
+			}
 		}
-		MethodStats methodStats = map.get(sMethod);
+		MethodStats methodStats = map.get(methodName);
 		if (methodStats == null) {
-			methodStats = new MethodStats(sMethod.getService(), sMethod);
-			map.put(sMethod, methodStats);
+			methodStats = new MethodStats(interfaceName, methodName);
+			MethodStats existing = map.putIfAbsent(methodName, methodStats);
+			if (existing != null) {
+				methodStats = existing;
+			}
 		}
 		return methodStats;
 	}
 	
 	public SMetrics getMetrics() {
 		SMetrics sMetrics = new SMetrics();
-		for (SService sService : methodStats.keySet()) {
+		for (String interfaceName : methodStats.keySet()) {
 			SInterfaceMetric interfaceMetric = new SInterfaceMetric();
-			interfaceMetric.setName(sService.getSimpleName());
+			interfaceMetric.setName(interfaceName);
 			
 			sMetrics.getInterfaces().add(interfaceMetric);
-			for (SMethod sMethod : methodStats.get(sService).keySet()) {
+			for (MethodStats methodStats : this.methodStats.get(interfaceName).values()) {
 				SMethodMetric sMethodMetric = new SMethodMetric();
-				sMethodMetric.setName(sMethod.getName());
+				sMethodMetric.setName(methodStats.getMethodName());
 				
 				interfaceMetric.getMethods().add(sMethodMetric);
 				
-				MethodStats methodStats = getMethodStats(sMethod);
 				sMethodMetric.setNrCalls(methodStats.getNrCalls());
 				sMethodMetric.setAverageMs(methodStats.getAverageNanoSecondsPerCall() / 1000000);
 			}
 		}
 		return sMetrics;
 	}
-}
\ No newline at end of file
+}
@@ -1,23 +1,22 @@
 package org.bimserver;
 
-import org.bimserver.shared.meta.SMethod;
-import org.bimserver.shared.meta.SService;
-
 public class Recording {
 	private long start;
 	private MetricsRegistry metricsRegistry;
 	private long end;
-	private SMethod method;
+	private String interfaceName;
+	private String methodName;
 
-	public Recording(MetricsRegistry metricsRegistry, SService sService, SMethod method) {
+	public Recording(MetricsRegistry metricsRegistry, String interfaceName, String methodName) {
 		this.metricsRegistry = metricsRegistry;
-		this.method = method;
+		this.interfaceName = interfaceName;
+		this.methodName = methodName;
 		start = System.nanoTime();
 	}
 
 	public void finish() {
 		end = System.nanoTime();
-		metricsRegistry.getMethodStats(method).add(this);
+		metricsRegistry.getMethodStats(interfaceName, methodName).add(this);
 	}
 
 	public long getTotalTime() {
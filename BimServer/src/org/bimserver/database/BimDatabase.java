@@ -38,5 +38,7 @@ public interface BimDatabase {
 
 	Registry getRegistry();
 
+	KeyValueStore getKeyValueStore();
+
 	EClass getEClassForOid(long oid) throws BimserverDatabaseException;
 }
\ No newline at end of file
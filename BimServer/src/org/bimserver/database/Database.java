@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -39,6 +40,7 @@ import org.bimserver.database.migrations.InconsistentModelsException;
 import org.bimserver.database.migrations.MigrationException;
 import org.bimserver.database.migrations.Migrator;
 import org.bimserver.emf.MetaDataManager;
+import org.bimserver.emf.PackageMetaData;
 import org.bimserver.models.geometry.GeometryPackage;
 import org.bimserver.models.ifc2x3tc1.Ifc2x3tc1Package;
 import org.bimserver.models.ifc4.Ifc4Package;
@@ -61,8 +63,6 @@ import org.eclipse.emf.ecore.EStructuralFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sleepycat.je.DatabaseNotFoundException;
-
 public class Database implements BimDatabase {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Database.class);
@@ -71,10 +71,17 @@ public class Database implements BimDatabase {
 	public static final int STORE_PROJECT_ID = 1;
 	public static final String SCHEMA_VERSION = "SCHEMA_VERSION";
 	private static final String DATE_CREATED = "DATE_CREATED";
+	public static final String GUID_INDEX_PREFIX = "INT-GuidIndex-";
+	public static final String NAME_INDEX_PREFIX = "INT-NameIndex-";
 	private final Map<String, EPackage> emfPackages = new LinkedHashMap<String, EPackage>();
 	private final KeyValueStore keyValueStore;
 	private final DoubleHashMap<Short, EClass> classifiers = new DoubleHashMap<Short, EClass>();
 	private final List<String> realClasses = new ArrayList<String>();
+	private final Set<String> ifcRootIndexedSchemas = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Map<EClass, String> tableNames = new ConcurrentHashMap<EClass, String>();
+	// Serializes the objects of large commits and scans the tables of full revision loads, see DatabaseSession.commit and DatabaseSession.getMap
+	private final RecordCache recordCache;
+	private final ForkJoinPool serializationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 	private final Map<EClass, AtomicLong> oidCounters = new HashMap<EClass, AtomicLong>();
 	private final AtomicInteger pidCounter = new AtomicInteger(1);
 	private final Registry registry;
@@ -104,6 +111,7 @@ public class Database implements BimDatabase {
 			this.emfPackages.put(ePackage.getName(), ePackage);
 		}
 		this.registry = new Registry(keyValueStore);
+		this.recordCache = new RecordCache(bimServer == null ? RecordCache.DEFAULT_MAX_SIZE_IN_BYTES : bimServer.getConfig().getRecordCacheSize());
 	}
 
 	public int getApplicationSchemaVersion() {
@@ -189,6 +197,8 @@ public class Database implements BimDatabase {
 					realClasses.add(eClass.getName());
 				}
 			}
+			initIfcRootIndexes(Ifc2x3tc1Package.eINSTANCE, databaseSession);
+			initIfcRootIndexes(Ifc4Package.eINSTANCE, databaseSession);
 			databaseSession.commit();
 		} catch (UserException e) {
 			LOGGER.error("", e);
@@ -280,9 +290,8 @@ public class Database implements BimDatabase {
 				for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
 					if (eStructuralFeature.getEAnnotation("singleindex") != null) {
 						String indexTableName = eClass.getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
-						try {
+						if (keyValueStore.containsTable(indexTableName)) {
 							keyValueStore.openIndexTable(indexTableName);
-						} catch (DatabaseNotFoundException e) {
 						}
 					}
 				}
@@ -296,6 +305,77 @@ public class Database implements BimDatabase {
 		}
 	}
 
+	/*
+	 * The guid and name index tables of a schema are created, and filled from the existing IfcRoot objects, the first time a database is opened
+	 * by a version that has them. After that they are maintained by DatabaseSession.commit. The registry flag is committed in the same
+	 * transaction as the index entries, so an interrupted build is redone on the next start.
+	 */
+	private void initIfcRootIndexes(EPackage ePackage, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		String schema = ePackage.getName();
+		for (String indexTableName : new String[] { GUID_INDEX_PREFIX + schema, NAME_INDEX_PREFIX + schema }) {
+			if (keyValueStore.containsTable(indexTableName)) {
+				keyValueStore.openIndexTable(indexTableName);
+			} else {
+				keyValueStore.createIndexTable(indexTableName, databaseSession);
+			}
+		}
+		String registryKey = "IFCROOT_INDEXES_" + schema;
+		if (!registry.readBoolean(registryKey, false, databaseSession)) {
+			LOGGER.info("Building guid and name index for " + schema);
+			PackageMetaData packageMetaData = metaDataManager.getPackageMetaData(schema);
+			long nrIndexed = 0;
+			WriteBatch writeBatch = new WriteBatch();
+			for (EClass eClass : packageMetaData.getAllSubClasses(packageMetaData.getEClass("IfcRoot"))) {
+				String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+				if (!keyValueStore.containsTable(tableName)) {
+					continue;
+				}
+				RecordIterator recordIterator = keyValueStore.getRecordIterator(tableName, databaseSession);
+				try {
+					Record record = recordIterator.next();
+					while (record != null) {
+						// A value of one byte marks a deleted object
+						if (record.getValue().length > 1) {
+							ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+							int pid = keyBuffer.getInt();
+							long oid = keyBuffer.getLong();
+							int rid = -keyBuffer.getInt();
+							databaseSession.indexIfcRoot(eClass, pid, oid, rid, ByteBuffer.wrap(record.getValue()), writeBatch);
+							nrIndexed++;
+							if (writeBatch.isFull()) {
+								keyValueStore.store(writeBatch, databaseSession);
+								writeBatch.clear();
+							}
+						}
+						record = recordIterator.next();
+					}
+				} finally {
+					recordIterator.close();
+				}
+			}
+			keyValueStore.store(writeBatch, databaseSession);
+			registry.save(registryKey, true, databaseSession);
+			LOGGER.info("Indexed " + nrIndexed + " objects for " + schema);
+		}
+		ifcRootIndexedSchemas.add(schema);
+	}
+
+	/*
+	 * Name of the table the objects of an EClass are stored in, package name + "_" + class name
+	 */
+	public String getTableName(EClass eClass) {
+		String tableName = tableNames.get(eClass);
+		if (tableName == null) {
+			tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+			tableNames.put(eClass, tableName);
+		}
+		return tableName;
+	}
+
+	public boolean hasIfcRootIndexes(String schema) {
+		return ifcRootIndexedSchemas.contains(schema);
+	}
+
 	public void initCounters(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
 		for (EClass eClass : classifiers.keyBSet()) {
 			RecordIterator iterator = keyValueStore.getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), databaseSession);
@@ -331,15 +411,25 @@ public class Database implements BimDatabase {
 	}
 
 	public void close() {
+		serializationPool.shutdown();
 		keyValueStore.close();
 	}
 
+	public RecordCache getRecordCache() {
+		return recordCache;
+	}
+
+	public ForkJoinPool getSerializationPool() {
+		return serializationPool;
+	}
+
 	public List<String> getAvailableClasses() {
 		return realClasses;
 	}
 
 	public DatabaseSession createSession() {
-		DatabaseSession databaseSession = new DatabaseSession(this, keyValueStore.startTransaction());
+		long recordCacheVersion = recordCache.getVersion();
+		DatabaseSession databaseSession = new DatabaseSession(this, keyValueStore.startTransaction(), recordCacheVersion);
 		sessions.add(databaseSession);
 		return databaseSession;
 	}
@@ -23,19 +23,26 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.bimserver.ServerIfcModel;
 import org.bimserver.database.actions.BimDatabaseAction;
 import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
+import org.bimserver.database.columnar.ColumnarIfcModel;
+import org.bimserver.database.columnar.ColumnarModelBuilder;
 import org.bimserver.database.query.conditions.Condition;
 import org.bimserver.database.query.conditions.IsOfTypeCondition;
 import org.bimserver.emf.IdEObject;
@@ -90,6 +97,13 @@ import com.sleepycat.je.TransactionTimeoutException;
 
 public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 	public static final int DEFAULT_CONFLICT_RETRIES = 10;
+	// Commits of at least this many objects serialize on the serialization pool of the database
+	public static final int PARALLEL_COMMIT_THRESHOLD = 10000;
+	private static final int COMMIT_PARTITION_SIZE = 2000;
+	// Visible records of one table that getMapParallel decodes together on the pool
+	private static final int DECODE_CHUNK_SIZE = 1024;
+	// Chunks of one table that may be waiting to be decoded while the table is scanned further
+	private static final int MAX_CHUNKS_AHEAD = 2;
 	private static final boolean DEVELOPER_DEBUG = false;
 	private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseSession.class);
 	private final Database database;
@@ -100,6 +114,12 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 	private StackTraceElement[] stackTrace;
 	private final ObjectCache objectCache = new ObjectCache();
 	private final Map<EClass, Long> startOids = new HashMap<EClass, Long>();
+	// The objects this session writes, they are invalidated in the record cache of the database after the commit
+	private final RecordCache.Invalidation recordCacheInvalidation = new RecordCache.Invalidation();
+	// The version of the record cache taken before the transaction started, records read in the transaction are only cached when no commit finished since
+	private long recordCacheVersion;
+	// Records read after this session stored records of its own may not be committed yet, they are not cached
+	private boolean storedRecords;
 	private long reads;
 
 	private enum SessionState {
@@ -108,10 +128,22 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 
 	private SessionState state = SessionState.OPEN;
 	private boolean overwriteEnabled;
+	private boolean parallelCommitEnabled = true;
 
+	/*
+	 * The version of the record cache at the start of the given transaction is not known, this session does not put records in the record cache
+	 */
 	public DatabaseSession(Database database, BimTransaction bimTransaction) {
+		this(database, bimTransaction, RecordCache.NO_VERSION);
+	}
+
+	/**
+	 * @param recordCacheVersion The version of the record cache of the database, taken before bimTransaction was started
+	 */
+	public DatabaseSession(Database database, BimTransaction bimTransaction, long recordCacheVersion) {
 		this.database = database;
 		this.bimTransaction = bimTransaction;
+		this.recordCacheVersion = recordCacheVersion;
 		if (DEVELOPER_DEBUG) {
 			this.stackTrace = Thread.currentThread().getStackTrace();
 			LOGGER.info("");
@@ -126,6 +158,13 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		this.overwriteEnabled = overwriteEnabled;
 	}
 
+	/*
+	 * Large commits are serialized on the serialization pool of the database unless this is disabled, the records are the same either way
+	 */
+	public void setParallelCommitEnabled(boolean parallelCommitEnabled) {
+		this.parallelCommitEnabled = parallelCommitEnabled;
+	}
+
 	public EClass getEClassForName(String packageName, String className) {
 		return database.getEClassForName(packageName, className);
 	}
@@ -172,67 +211,36 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 			int current = 0;
 			long writes = 0;
 			ByteBuffer keyBuffer = ByteBuffer.wrap(new byte[16]);
+			// Records are collected per table and written sorted on key once the batch is full, see WriteBatch
+			WriteBatch writeBatch = new WriteBatch();
 			for (RecordIdentifierPlusType recordIdentifier : objectsToDelete) {
 				fillKeyBuffer(keyBuffer, recordIdentifier);
-				database.getKeyValueStore().storeNoOverwrite(recordIdentifier.getPackageName() + "_" + recordIdentifier.getClassName(), keyBuffer.array(), new byte[] { -1 }, this);
+				writeBatch.storeNoOverwrite(recordIdentifier.getPackageName() + "_" + recordIdentifier.getClassName(), keyBuffer.array(), new byte[] { -1 });
 				writes++;
 			}
-			// This buffer is reused for the values, it's position must be reset at the end of the loop, and the convertObjectToByteArray function is responsible for setting the buffer's position to the end of the (used part of the) buffer
-			ByteBuffer reusableBuffer = ByteBuffer.allocate(32768);
-			for (IdEObject object : objectsToCommit) {
-				if (object.getOid() == -1) {
-					throw new BimserverDatabaseException("Cannot store object with oid -1");
-				}
-				fillKeyBuffer(keyBuffer, object);
-				if (DEVELOPER_DEBUG) {
-					LOGGER.info("Write: " + object.eClass().getName() + " " + "pid=" + object.getPid() + " oid=" + object.getOid() + " rid=" + object.getRid());
-				}
-				ByteBuffer valueBuffer = convertObjectToByteArray(object, reusableBuffer, getMetaDataManager().getPackageMetaData(object.eClass().getEPackage().getName()));
-				int valueBufferPosition = valueBuffer.position();
-				if (object.eClass().getEAnnotation("nolazyload") == null && !overwriteEnabled) {
-					boolean hasAtLeastOneIndex = false;
-					for (EStructuralFeature eStructuralFeature : object.eClass().getEAllStructuralFeatures()) {
-						if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-							hasAtLeastOneIndex = true;
-							break;
-						}
+			if (parallelCommitEnabled && objectsToCommit.size() >= PARALLEL_COMMIT_THRESHOLD && database.getSerializationPool().getParallelism() > 1) {
+				commitParallel(keyBuffer, writeBatch, progressHandler);
+			} else {
+				// This buffer is reused for the values, it's position must be reset at the end of the loop, and the convertObjectToByteArray function is responsible for setting the buffer's position to the end of the (used part of the) buffer
+				ByteBuffer reusableBuffer = ByteBuffer.allocate(32768);
+				for (IdEObject object : objectsToCommit) {
+					if (object.getOid() == -1) {
+						throw new BimserverDatabaseException("Cannot store object with oid -1");
 					}
-					if (hasAtLeastOneIndex) {
-						ByteBuffer oldKeyBuffer = ByteBuffer.allocate(16);
-						oldKeyBuffer.putInt(object.getPid());
-						oldKeyBuffer.putLong(object.getOid());
-						oldKeyBuffer.putInt(-(object.getRid() - 1));
-						byte[] oldData = database.getKeyValueStore().get(object.eClass().getEPackage().getName() + "_" + object.eClass().getName(), oldKeyBuffer.array(), this);
-						for (EStructuralFeature eStructuralFeature : object.eClass().getEAllStructuralFeatures()) {
-							if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-								String indexTableName = object.eClass().getEPackage().getName() + "_" + object.eClass().getName() + "_" + eStructuralFeature.getName();
-								byte[] featureBytes = extractFeatureBytes(this, valueBuffer, object.eClass(), eStructuralFeature);
-
-								if (oldData != null) {
-									ByteBuffer oldValue = ByteBuffer.wrap(oldData);
-									byte[] featureBytesOldIndex = extractFeatureBytes(this, oldValue, object.eClass(), eStructuralFeature);
-									database.getKeyValueStore().delete(indexTableName, featureBytesOldIndex, oldKeyBuffer.array(), this);
-								}
-
-								if (featureBytes != null) {
-									database.getKeyValueStore().store(indexTableName, featureBytes, keyBuffer.array(), this);
-								}
-							}
-						}
+					PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(object.eClass().getEPackage().getName());
+					ByteBuffer valueBuffer = convertObjectToByteArray(object, reusableBuffer, packageMetaData, writeBatch);
+					writeObject(object, packageMetaData, valueBuffer.array(), valueBuffer.position(), keyBuffer, writeBatch);
+					if (progressHandler != null) {
+						progressHandler.progress(++current, objectsToCommit.size());
 					}
-					database.getKeyValueStore().storeNoOverwrite(object.eClass().getEPackage().getName() + "_" + object.eClass().getName(), keyBuffer.array(), valueBuffer.array(), 0, valueBufferPosition, this);
-				} else {
-					database.getKeyValueStore().store(object.eClass().getEPackage().getName() + "_" + object.eClass().getName(), keyBuffer.array(),
-							valueBuffer.array(), 0, valueBuffer.position(), this);
-				}
-				if (progressHandler != null) {
-					progressHandler.progress(++current, objectsToCommit.size());
+					reusableBuffer = valueBuffer; // bimServerClient may have increased the size of the buffer by creating a new one, we keep using it for other objects
+					reusableBuffer.position(0);
 				}
-				writes++;
-				reusableBuffer = valueBuffer; // bimServerClient may have increased the size of the buffer by creating a new one, we keep using it for other objects
-				reusableBuffer.position(0);
 			}
+			writes += objectsToCommit.size();
+			store(writeBatch);
 			bimTransaction.commit();
+			database.getRecordCache().invalidate(recordCacheInvalidation);
 			database.incrementCommittedWrites(writes);
 			close();
 			for (PostCommitAction postCommitAction : postCommitActions) {
@@ -245,6 +253,206 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		}
 	}
 
+	/*
+	 * The serialization stage of a large commit. The objects are split into partitions of one EClass, which are serialized on the
+	 * serialization pool of the database. This thread is the writer stage: it takes the partitions in order, maintains the indexes
+	 * and adds the records to the batch, so the key value store is only used from this thread and all writes stay in the transaction
+	 * of this session. At most two partitions per thread of the pool are serialized ahead of the writer.
+	 */
+	private void commitParallel(ByteBuffer keyBuffer, WriteBatch writeBatch, ProgressHandler progressHandler) throws BimserverDatabaseException {
+		Map<EClass, List<IdEObject>> objectsPerEClass = new LinkedHashMap<EClass, List<IdEObject>>();
+		for (IdEObject object : objectsToCommit) {
+			if (object.getOid() == -1) {
+				throw new BimserverDatabaseException("Cannot store object with oid -1");
+			}
+			// Lazy loading is not thread safe, so this happens here and not on the pool
+			((IdEObjectImpl) object).load();
+			List<IdEObject> objects = objectsPerEClass.get(object.eClass());
+			if (objects == null) {
+				objects = new ArrayList<IdEObject>();
+				objectsPerEClass.put(object.eClass(), objects);
+			}
+			objects.add(object);
+		}
+		List<CommitPartition> partitions = new ArrayList<CommitPartition>();
+		for (Map.Entry<EClass, List<IdEObject>> entry : objectsPerEClass.entrySet()) {
+			PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(entry.getKey().getEPackage().getName());
+			List<IdEObject> objects = entry.getValue();
+			for (int i = 0; i < objects.size(); i += COMMIT_PARTITION_SIZE) {
+				partitions.add(new CommitPartition(objects.subList(i, Math.min(i + COMMIT_PARTITION_SIZE, objects.size())), packageMetaData));
+			}
+		}
+		ForkJoinPool serializationPool = database.getSerializationPool();
+		int maxAhead = serializationPool.getParallelism() * 2;
+		int submitted = 0;
+		int current = 0;
+		try {
+			for (int i = 0; i < partitions.size(); i++) {
+				while (submitted < partitions.size() && submitted <= i + maxAhead) {
+					serializationPool.execute(partitions.get(submitted++));
+				}
+				CommitPartition partition = partitions.get(i);
+				join(partition);
+				writeBatch.addAll(partition.wrappedRecords);
+				for (int j = 0; j < partition.objects.size(); j++) {
+					byte[] value = partition.values[j];
+					writeObject(partition.objects.get(j), partition.packageMetaData, value, value.length, keyBuffer, writeBatch);
+					if (progressHandler != null) {
+						progressHandler.progress(++current, objectsToCommit.size());
+					}
+				}
+				// Let the values be garbage collected
+				partitions.set(i, null);
+			}
+		} finally {
+			for (int i = 0; i < submitted; i++) {
+				if (partitions.get(i) != null) {
+					partitions.get(i).cancel(false);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Objects of one EClass that are serialized together on the serialization pool during a parallel commit
+	 */
+	private class CommitPartition extends RecursiveAction {
+		private static final long serialVersionUID = -5046255432227381307L;
+		private final List<IdEObject> objects;
+		private final PackageMetaData packageMetaData;
+		private final byte[][] values;
+		// Wrapped values that are also stored as objects of their own (IfcGloballyUniqueId)
+		private final WriteBatch wrappedRecords = new WriteBatch();
+
+		public CommitPartition(List<IdEObject> objects, PackageMetaData packageMetaData) {
+			this.objects = objects;
+			this.packageMetaData = packageMetaData;
+			this.values = new byte[objects.size()][];
+		}
+
+		@Override
+		protected void compute() {
+			ByteBuffer reusableBuffer = ByteBuffer.allocate(32768);
+			try {
+				for (int i = 0; i < objects.size(); i++) {
+					ByteBuffer valueBuffer = convertObjectToByteArray(objects.get(i), reusableBuffer, packageMetaData, wrappedRecords);
+					values[i] = Arrays.copyOf(valueBuffer.array(), valueBuffer.position());
+					reusableBuffer = valueBuffer;
+					reusableBuffer.position(0);
+				}
+			} catch (BimserverDatabaseException e) {
+				throw new UncheckedBimserverDatabaseException(e);
+			}
+		}
+	}
+
+	/*
+	 * Adds the record of a serialized object, and its index entries, to the batch. The batch is written when it is full.
+	 */
+	private void writeObject(IdEObject object, PackageMetaData packageMetaData, byte[] value, int length, ByteBuffer keyBuffer, WriteBatch writeBatch) throws BimserverDatabaseException {
+		fillKeyBuffer(keyBuffer, object);
+		if (DEVELOPER_DEBUG) {
+			LOGGER.info("Write: " + object.eClass().getName() + " " + "pid=" + object.getPid() + " oid=" + object.getOid() + " rid=" + object.getRid());
+		}
+		String tableName = database.getTableName(object.eClass());
+		ByteBuffer valueBuffer = ByteBuffer.wrap(value, 0, length);
+		if (database.hasIfcRootIndexes(packageMetaData.getEPackage().getName()) && packageMetaData.getEClass("IfcRoot").isSuperTypeOf(object.eClass())) {
+			indexIfcRoot(object.eClass(), object.getPid(), object.getOid(), object.getRid(), valueBuffer, writeBatch);
+		}
+		if (object.eClass().getEAnnotation("nolazyload") == null && !overwriteEnabled) {
+			boolean hasAtLeastOneIndex = false;
+			for (EStructuralFeature eStructuralFeature : object.eClass().getEAllStructuralFeatures()) {
+				if (eStructuralFeature.getEAnnotation("singleindex") != null) {
+					hasAtLeastOneIndex = true;
+					break;
+				}
+			}
+			if (hasAtLeastOneIndex) {
+				ByteBuffer oldKeyBuffer = ByteBuffer.allocate(16);
+				oldKeyBuffer.putInt(object.getPid());
+				oldKeyBuffer.putLong(object.getOid());
+				oldKeyBuffer.putInt(-(object.getRid() - 1));
+				byte[] oldData = database.getKeyValueStore().get(tableName, oldKeyBuffer.array(), this);
+				for (EStructuralFeature eStructuralFeature : object.eClass().getEAllStructuralFeatures()) {
+					if (eStructuralFeature.getEAnnotation("singleindex") != null) {
+						String indexTableName = tableName + "_" + eStructuralFeature.getName();
+						byte[] featureBytes = extractFeatureBytes(this, valueBuffer, object.eClass(), eStructuralFeature);
+
+						if (oldData != null) {
+							ByteBuffer oldValue = ByteBuffer.wrap(oldData);
+							byte[] featureBytesOldIndex = extractFeatureBytes(this, oldValue, object.eClass(), eStructuralFeature);
+							database.getKeyValueStore().delete(indexTableName, featureBytesOldIndex, oldKeyBuffer.array(), this);
+						}
+
+						if (featureBytes != null) {
+							writeBatch.store(indexTableName, featureBytes, keyBuffer.array());
+						}
+					}
+				}
+			}
+			writeBatch.storeNoOverwrite(tableName, keyBuffer.array(), value, 0, length);
+		} else {
+			writeBatch.store(tableName, keyBuffer.array(), value, 0, length);
+		}
+		if (writeBatch.isFull()) {
+			store(writeBatch);
+			writeBatch.clear();
+		}
+	}
+
+	/*
+	 * Writes objects as they come instead of keeping them until the commit, for checkins that do not fit in memory. The records go through
+	 * the same batches as the ones of a commit and are written in the transaction of this session, the objects are not kept by the session.
+	 */
+	public class StreamingWriter {
+		private final WriteBatch writeBatch = new WriteBatch();
+		private final ByteBuffer keyBuffer = ByteBuffer.wrap(new byte[16]);
+		private ByteBuffer reusableBuffer = ByteBuffer.allocate(32768);
+		private long writes;
+
+		private StreamingWriter() {
+		}
+
+		public void write(IdEObject object) throws BimserverDatabaseException {
+			checkOpen();
+			if (object.getOid() == -1) {
+				throw new BimserverDatabaseException("Cannot store object with oid -1");
+			}
+			PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(object.eClass().getEPackage().getName());
+			ByteBuffer valueBuffer = convertObjectToByteArray(object, reusableBuffer, packageMetaData, writeBatch);
+			writeObject(object, packageMetaData, valueBuffer.array(), valueBuffer.position(), keyBuffer, writeBatch);
+			reusableBuffer = valueBuffer;
+			reusableBuffer.position(0);
+			writes++;
+		}
+
+		/*
+		 * Writes what is left in the batch, the writer can not be used afterwards
+		 */
+		public void close() throws BimserverDatabaseException {
+			store(writeBatch);
+			writeBatch.clear();
+			database.incrementCommittedWrites(writes);
+		}
+	}
+
+	public StreamingWriter createStreamingWriter() {
+		checkOpen();
+		return new StreamingWriter();
+	}
+
+	private void restartTransaction() {
+		recordCacheVersion = database.getRecordCache().getVersion();
+		bimTransaction = database.getKeyValueStore().startTransaction();
+		storedRecords = false;
+	}
+
+	private void store(WriteBatch writeBatch) throws BimserverDatabaseException {
+		recordCacheInvalidation.add(writeBatch);
+		storedRecords = true;
+		database.getKeyValueStore().store(writeBatch, this);
+	}
+
 	private void fillKeyBuffer(ByteBuffer buffer, RecordIdentifierPlusType recordIdentifier) {
 		fillKeyBuffer(buffer, recordIdentifier.getPid(), recordIdentifier.getOid(), recordIdentifier.getRid());
 	}
@@ -256,7 +464,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 	}
 
 	@SuppressWarnings({ "unused" })
-	private IdEObject convertByteArrayToObject(IdEObject idEObject, EClass originalQueryClass, EClass eClass, long oid, ByteBuffer buffer, IfcModelInterface model, int rid, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+	private IdEObject convertByteArrayToObject(IdEObject idEObject, EClass originalQueryClass, EClass eClass, long oid, ByteBuffer buffer, IfcModelInterface model, int rid, QueryInterface query, TodoList todoList, ObjectCache cache) throws BimserverDatabaseException {
 		try {
 			if (idEObject == null) {
 				idEObject = createInternal(eClass, query);
@@ -285,7 +493,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 
 			((IdEObjectImpl) idEObject).setLoadingState(State.LOADING);
 
-			objectCache.put(oid, idEObject);
+			cache.put(oid, idEObject);
 			
 			byte unsettedLength = buffer.get();
 			byte[] unsetted = new byte[unsettedLength];
@@ -310,7 +518,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 					} else {
 						Object newValue = null;
 						if (feature.isMany()) {
-							newValue = readList(idEObject, originalQueryClass, buffer, model, query, todoList, feature);
+							newValue = readList(idEObject, originalQueryClass, buffer, model, query, todoList, cache, feature);
 						} else {
 							if (feature.getEType() instanceof EEnum) {
 								int enumOrdinal = buffer.getInt();
@@ -337,7 +545,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 									// positive cid means value is reference to
 									// other record
 									EClass referenceClass = database.getEClassForCid(cid);
-									newValue = readReference(originalQueryClass, buffer, model, idEObject, feature, referenceClass, query, todoList);
+									newValue = readReference(originalQueryClass, buffer, model, idEObject, feature, referenceClass, query, todoList, cache);
 									// if (eReference.getEOpposite() != null &&
 									// ((IdEObjectImpl)
 									// newValue).isLoadedOrLoading()) {
@@ -370,7 +578,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 
 	@SuppressWarnings("unchecked")
 	private Object readList(IdEObject idEObject, EClass originalQueryClass, ByteBuffer buffer, IfcModelInterface model, QueryInterface query, TodoList todoList,
-			EStructuralFeature feature) throws BimserverDatabaseException {
+			ObjectCache cache, EStructuralFeature feature) throws BimserverDatabaseException {
 		if (feature.getEType() instanceof EEnum) {
 		} else if (feature.getEType() instanceof EClass) {
 			if (buffer.capacity() == 1 && buffer.get(0) == -1) {
@@ -392,7 +600,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 				for (int i = 0; i < listSize; i++) {
 					if (feature.getEAnnotation("twodimensionalarray") != null) {
 						IdEObjectImpl newObject = createInternal((EClass) feature.getEType(), query);
-						Object result = readList(newObject, originalQueryClass, buffer, model, query, todoList, newObject.eClass().getEStructuralFeature("List"));
+						Object result = readList(newObject, originalQueryClass, buffer, model, query, todoList, cache, newObject.eClass().getEStructuralFeature("List"));
 						if (result != null) {
 							newObject.eSet(newObject.eClass().getEStructuralFeature("List"), result);
 						}
@@ -414,7 +622,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 							// reference
 							// to another record
 							EClass referenceClass = database.getEClassForCid(cid);
-							referencedObject = readReference(originalQueryClass, buffer, model, idEObject, feature, referenceClass, query, todoList);
+							referencedObject = readReference(originalQueryClass, buffer, model, idEObject, feature, referenceClass, query, todoList, cache);
 						}
 						if (referencedObject != null) {
 							if (!feature.getEType().isInstance(referencedObject)) {
@@ -462,7 +670,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		return false;
 	}
 	
-	private ByteBuffer convertObjectToByteArray(IdEObject object, ByteBuffer buffer, PackageMetaData packageMetaData) throws BimserverDatabaseException {
+	private ByteBuffer convertObjectToByteArray(IdEObject object, ByteBuffer buffer, PackageMetaData packageMetaData, WriteBatch writeBatch) throws BimserverDatabaseException {
 		int bufferSize = getExactSize(object);
 		if (bufferSize > buffer.capacity()) {
 			LOGGER.debug("Buffer too small (" + bufferSize + ")");
@@ -487,7 +695,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		for (EStructuralFeature feature : object.eClass().getEAllStructuralFeatures()) {
 			if (!useUnsetBit(feature, object)) {
 				if (feature.isMany()) {
-					writeList(object, buffer, packageMetaData, feature);
+					writeList(object, buffer, packageMetaData, feature, writeBatch);
 				} else {
 					Object value = object.eGet(feature);
 					if (feature.getEType() instanceof EEnum) {
@@ -510,7 +718,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 							IdEObject referencedObject = (IdEObject) value;
 							EClass referencedClass = referencedObject.eClass();
 							if (referencedClass.getEAnnotation("wrapped") != null) {
-								writeWrappedValue(object.getPid(), object.getRid(), value, buffer, packageMetaData);
+								writeWrappedValue(object.getPid(), object.getRid(), value, buffer, packageMetaData, writeBatch);
 							} else {
 								writeReference(object, value, buffer, feature);
 							}
@@ -527,7 +735,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		return buffer;
 	}
 
-	private void writeList(IdEObject object, ByteBuffer buffer, PackageMetaData packageMetaData, EStructuralFeature feature) throws BimserverDatabaseException {
+	private void writeList(IdEObject object, ByteBuffer buffer, PackageMetaData packageMetaData, EStructuralFeature feature, WriteBatch writeBatch) throws BimserverDatabaseException {
 		if (feature.getEType() instanceof EEnum) {
 			// Aggregate relations to enums never occur... at this
 			// moment
@@ -540,10 +748,10 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 				} else {
 					IdEObject listObject = (IdEObject) o;
 					if (listObject.eClass().getEAnnotation("wrapped") != null || listObject.eClass().getEStructuralFeature("wrappedValue") != null) {
-						writeWrappedValue(object.getPid(), object.getRid(), listObject, buffer, packageMetaData);
+						writeWrappedValue(object.getPid(), object.getRid(), listObject, buffer, packageMetaData, writeBatch);
 					} else if (feature.getEAnnotation("twodimensionalarray") != null) {
 						EStructuralFeature lf = listObject.eClass().getEStructuralFeature("List");
-						writeList(listObject, buffer, packageMetaData, lf);
+						writeList(listObject, buffer, packageMetaData, lf, writeBatch);
 					} else {
 						writeReference(object, listObject, buffer, feature);
 					}
@@ -634,13 +842,13 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 				bimTransaction.rollback();
 				objectCache.clear();
 				objectsToCommit.clear();
-				bimTransaction = database.getKeyValueStore().startTransaction();
+				restartTransaction();
 			} catch (BimserverLockConflictException e) {
 				LOGGER.info("BimserverLockConflictException");
 				bimTransaction.rollback();
 				objectCache.clear();
 				objectsToCommit.clear();
-				bimTransaction = database.getKeyValueStore().startTransaction();
+				restartTransaction();
 				if (DEVELOPER_DEBUG) {
 					LockConflictException lockException = e.getLockException();
 					if (lockException instanceof TransactionTimeoutException) {
@@ -664,7 +872,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 				bimTransaction.rollback();
 				objectCache.clear();
 				objectsToCommit.clear();
-				bimTransaction = database.getKeyValueStore().startTransaction();
+				restartTransaction();
 			} catch (BimserverDatabaseException e) {
 				throw e;
 			} catch (ServiceException e) {
@@ -773,52 +981,62 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 				return (T) cachedObject;
 			}
 		}
-		ByteBuffer mustStartWith = ByteBuffer.wrap(new byte[12]);
-		mustStartWith.putInt(query.getPid());
-		mustStartWith.putLong(oid);
-		ByteBuffer startSearchWith = ByteBuffer.wrap(new byte[16]);
-		startSearchWith.putInt(query.getPid());
-		startSearchWith.putLong(oid);
-		startSearchWith.putInt(-query.getRid());
-
-		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
-				startSearchWith.array(), this);
-		try {
-			Record record = recordIterator.next();
-			if (record == null) {
-				return null;
-			}
-			reads++;
-			ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-			ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-			keyBuffer.getInt(); // pid
-			long keyOid = keyBuffer.getLong();
-			int keyRid = -keyBuffer.getInt();
-			if (keyRid <= query.getRid()) {
-				if (idEObject != null && idEObject.getRid() == Integer.MAX_VALUE) {
-					((IdEObjectImpl) idEObject).setRid(keyRid);
+		long keyOid = oid;
+		int keyRid;
+		byte[] value;
+		RecordCache recordCache = database.getRecordCache();
+		RecordCache.CachedRecord cachedRecord = storedRecords ? null : recordCache.get(query.getPid(), oid, query.getRid());
+		if (cachedRecord != null) {
+			keyRid = cachedRecord.getRid();
+			value = cachedRecord.getValue();
+		} else {
+			ByteBuffer mustStartWith = ByteBuffer.wrap(new byte[12]);
+			mustStartWith.putInt(query.getPid());
+			mustStartWith.putLong(oid);
+			ByteBuffer startSearchWith = ByteBuffer.wrap(new byte[16]);
+			startSearchWith.putInt(query.getPid());
+			startSearchWith.putLong(oid);
+			startSearchWith.putInt(-query.getRid());
+
+			SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+					startSearchWith.array(), this);
+			try {
+				Record record = recordIterator.next();
+				if (record == null) {
+					return null;
 				}
-				if (model.contains(keyOid) && ((IdEObjectImpl) model.get(keyOid)).getLoadingState() == State.LOADED) {
-					return (T) model.get(keyOid);
+				reads++;
+				byte[] key = record.getKey();
+				keyOid = BinUtils.byteArrayToLong(key, 4);
+				keyRid = -BinUtils.byteArrayToInt(key, 12);
+				value = record.getValue();
+			} finally {
+				recordIterator.close();
+			}
+			if (keyRid <= query.getRid() && !storedRecords) {
+				recordCache.put(query.getPid(), keyOid, keyRid, query.getRid(), value, recordCacheVersion);
+			}
+		}
+		if (keyRid <= query.getRid()) {
+			if (idEObject != null && idEObject.getRid() == Integer.MAX_VALUE) {
+				((IdEObjectImpl) idEObject).setRid(keyRid);
+			}
+			if (model.contains(keyOid) && ((IdEObjectImpl) model.get(keyOid)).getLoadingState() == State.LOADED) {
+				return (T) model.get(keyOid);
+			} else {
+				if (isDeleted(value)) {
+					return null;
 				} else {
-					if (valueBuffer.capacity() == 1 && valueBuffer.get(0) == -1) {
-						valueBuffer.position(valueBuffer.position() + 1);
-						return null;
-						// deleted entity
-					} else {
-						T convertByteArrayToObject = (T) convertByteArrayToObject(idEObject, eClass, eClass, keyOid, valueBuffer, model, keyRid, query, todoList);
-						if (convertByteArrayToObject.getRid() == Integer.MAX_VALUE) {
-							((IdEObjectImpl) convertByteArrayToObject).setRid(keyRid);
-						}
-						objectCache.put(oid, convertByteArrayToObject);
-						return convertByteArrayToObject;
+					T convertByteArrayToObject = (T) convertByteArrayToObject(idEObject, eClass, eClass, keyOid, ByteBuffer.wrap(value), model, keyRid, query, todoList, objectCache);
+					if (convertByteArrayToObject.getRid() == Integer.MAX_VALUE) {
+						((IdEObjectImpl) convertByteArrayToObject).setRid(keyRid);
 					}
+					objectCache.put(oid, convertByteArrayToObject);
+					return convertByteArrayToObject;
 				}
-			} else {
-				return null;
 			}
-		} finally {
-			recordIterator.close();
+		} else {
+			return null;
 		}
 	}
 
@@ -892,16 +1110,15 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		try {
 			Record record = recordIterator.next();
 			ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
-			byte[] nullReference = new byte[] { -1 };
 			while (record != null) {
 				reads++;
-				ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-				int keyPid = keyBuffer.getInt();
-				long oid = keyBuffer.getLong();
-				int keyRid = -keyBuffer.getInt();
+				byte[] key = record.getKey();
+				int keyPid = BinUtils.byteArrayToInt(key, 0);
+				long oid = BinUtils.byteArrayToLong(key, 4);
+				int keyRid = -BinUtils.byteArrayToInt(key, 12);
 				int map = getCount(model, pid, rid, keyPid, keyRid);
 				if (map == 1) {
-					if (!Arrays.equals(record.getValue(), nullReference)) {
+					if (!isDeleted(record.getValue())) {
 						count++;
 					}
 					nextKeyStart.position(0);
@@ -1019,15 +1236,22 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		return size;
 	}
 
+	private static boolean isDeleted(byte[] value) {
+		return value.length == 1 && value[0] == -1;
+	}
+
 	private enum GetResult {
 		STOP, CONTINUE_WITH_NEXT_RECORD, CONTINUE_WITH_NEXT_OID,
 	}
 
-	private GetResult getMap(EClass originalQueryClass, EClass eClass, IfcModelInterface model, ByteBuffer buffer, int keyPid, long keyOid, int keyRid, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+	/*
+	 * The value is only wrapped when the record is actually converted, most records of a scan are older versions or already loaded objects
+	 */
+	private GetResult getMap(EClass originalQueryClass, EClass eClass, IfcModelInterface model, byte[] value, int keyPid, long keyOid, int keyRid, QueryInterface query, TodoList todoList, ObjectCache cache) throws BimserverDatabaseException {
 		checkOpen();
 		if (keyPid == query.getPid()) {
 			if (keyRid <= query.getRid() && keyRid >= query.getStopRid()) {
-				IdEObject cachedObject = objectCache.get(keyOid);
+				IdEObject cachedObject = cache.get(keyOid);
 				if (cachedObject != null && ((IdEObjectImpl)cachedObject).getLoadingState() == State.LOADED) {
 					if (!model.contains(keyOid) && cachedObject.eClass().getEAnnotation("wrapped") == null) {
 						try {
@@ -1042,16 +1266,14 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 					if (model.contains(keyOid) && ((IdEObjectImpl)model.get(keyOid)).getLoadingState() == State.LOADED) {
 						object = model.get(keyOid);
 					} else {
-						if (buffer.capacity() == 1 && buffer.get(0) == -1) {
-							buffer.position(buffer.position() + 1);
+						if (isDeleted(value)) {
 							return GetResult.CONTINUE_WITH_NEXT_OID;
-							// deleted entity
 						} else {
-							object = convertByteArrayToObject(cachedObject, originalQueryClass, eClass, keyOid, buffer, model, keyRid, query, todoList);
+							object = convertByteArrayToObject(cachedObject, originalQueryClass, eClass, keyOid, ByteBuffer.wrap(value), model, keyRid, query, todoList, cache);
 						}
 					}
 					if (object != null) {
-						objectCache.put(keyOid, object);
+						cache.put(keyOid, object);
 						return GetResult.CONTINUE_WITH_NEXT_OID;
 					}
 				}
@@ -1064,22 +1286,40 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		return GetResult.STOP;
 	}
 
-	public void getMap(EClass eClass, IfcModelInterface ifcModel, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
-		checkOpen();
-		SearchingRecordIterator recordIterator = null;
+	/*
+	 * Returns null when the query has oid counters, but not for this EClass
+	 */
+	private SearchingRecordIterator getRecordIterator(EClass eClass, QueryInterface query) throws BimserverDatabaseException {
+		return getRecordIterator(eClass, query, Long.MIN_VALUE);
+	}
+
+	/*
+	 * Starts at fromOid, or at the start of the oids of the query when that is further
+	 */
+	private SearchingRecordIterator getRecordIterator(EClass eClass, QueryInterface query, long fromOid) throws BimserverDatabaseException {
 		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
 		if (query.getOidCounters() != null) {
 			if (!query.getOidCounters().containsKey(eClass)) {
-				return;
+				return null;
 			}
 			long startOid = query.getOidCounters().get(eClass);
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(query.getPid());
-			tmp.putLong(startOid + 1);
-			recordIterator = database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), tmp.array(), this);
+			tmp.putLong(Math.max(startOid + 1, fromOid));
+			return database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), tmp.array(), this);
+		} else if (fromOid != Long.MIN_VALUE) {
+			return database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), createKeyBuffer(query.getPid(), fromOid).array(), this);
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			recordIterator = database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), BinUtils.intToByteArray(query.getPid()), this);
+			return database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), BinUtils.intToByteArray(query.getPid()), this);
+		}
+	}
+
+	public void getMap(EClass eClass, IfcModelInterface ifcModel, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+		checkOpen();
+		SearchingRecordIterator recordIterator = getRecordIterator(eClass, query);
+		if (recordIterator == null) {
+			return;
 		}
 		try {
 			Record record = recordIterator.next();
@@ -1089,12 +1329,11 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 					throw new BimserverThreadInterruptedException("Thread interrupted");
 				}
 				reads++;
-				ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-				int keyPid = keyBuffer.getInt();
-				long keyOid = keyBuffer.getLong();
-				int keyRid = -keyBuffer.getInt();
-				ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-				GetResult map = getMap(eClass, eClass, ifcModel, valueBuffer, keyPid, keyOid, keyRid, query, todoList);
+				byte[] key = record.getKey();
+				int keyPid = BinUtils.byteArrayToInt(key, 0);
+				long keyOid = BinUtils.byteArrayToLong(key, 4);
+				int keyRid = -BinUtils.byteArrayToInt(key, 12);
+				GetResult map = getMap(eClass, eClass, ifcModel, record.getValue(), keyPid, keyOid, keyRid, query, todoList, objectCache);
 				if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 					nextKeyStart.position(0);
 					nextKeyStart.putInt(query.getPid());
@@ -1109,34 +1348,568 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		}
 	}
 
+	/*
+	 * The oids of the objects of one EClass that are visible in the revision of the query, in oid order. Only the oids are kept.
+	 */
+	public long[] getOids(EClass eClass, QueryInterface query) throws BimserverDatabaseException {
+		checkOpen();
+		long[] oids = new long[16];
+		int size = 0;
+		SearchingRecordIterator recordIterator = getRecordIterator(eClass, query);
+		if (recordIterator == null) {
+			return new long[0];
+		}
+		try {
+			Record record = recordIterator.next();
+			ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
+			while (record != null) {
+				reads++;
+				byte[] key = record.getKey();
+				long keyOid = BinUtils.byteArrayToLong(key, 4);
+				int keyRid = -BinUtils.byteArrayToInt(key, 12);
+				if (keyRid <= query.getRid() && keyRid >= query.getStopRid()) {
+					if (!isDeleted(record.getValue())) {
+						if (size == oids.length) {
+							oids = Arrays.copyOf(oids, size * 2);
+						}
+						oids[size++] = keyOid;
+					}
+					nextKeyStart.position(0);
+					nextKeyStart.putInt(query.getPid());
+					nextKeyStart.putLong(keyOid + 1);
+					record = recordIterator.next(nextKeyStart.array());
+				} else {
+					record = recordIterator.next();
+				}
+			}
+		} finally {
+			recordIterator.close();
+		}
+		return Arrays.copyOf(oids, size);
+	}
+
+	/*
+	 * Reads at most maxObjects visible objects of one EClass, from fromOid on, into the model. With a query that is not deep referenced
+	 * objects are added to the model as objects that still have to be loaded. The object cache of this session is cleared first, so reading
+	 * a table in batches does not keep the earlier batches in memory. Returns the oid to continue from, or -1 when the table has been read.
+	 */
+	public long getMap(EClass eClass, IfcModelInterface ifcModel, QueryInterface query, long fromOid, int maxObjects) throws BimserverDatabaseException {
+		checkOpen();
+		objectCache.clear();
+		TodoList todoList = new TodoList();
+		SearchingRecordIterator recordIterator = getRecordIterator(eClass, query, fromOid);
+		if (recordIterator == null) {
+			return -1;
+		}
+		int nrObjects = 0;
+		try {
+			Record record = recordIterator.next();
+			ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
+			while (record != null) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new BimserverThreadInterruptedException("Thread interrupted");
+				}
+				reads++;
+				byte[] key = record.getKey();
+				int keyPid = BinUtils.byteArrayToInt(key, 0);
+				long keyOid = BinUtils.byteArrayToLong(key, 4);
+				int keyRid = -BinUtils.byteArrayToInt(key, 12);
+				byte[] value = record.getValue();
+				GetResult map = getMap(eClass, eClass, ifcModel, value, keyPid, keyOid, keyRid, query, todoList, objectCache);
+				if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
+					if (!isDeleted(value) && ++nrObjects == maxObjects) {
+						return keyOid + 1;
+					}
+					nextKeyStart.position(0);
+					nextKeyStart.putInt(query.getPid());
+					nextKeyStart.putLong(keyOid + 1);
+					record = recordIterator.next(nextKeyStart.array());
+				} else {
+					record = recordIterator.next();
+				}
+			}
+		} finally {
+			recordIterator.close();
+		}
+		return -1;
+	}
+
 	public void getMap(IfcModelInterface ifcModel, QueryInterface query) throws BimserverDatabaseException {
+		getMap(ifcModel, query, database.getSerializationPool().getParallelism() > 1);
+	}
+
+	/*
+	 * With parallel the tables are read and decoded on the serialization pool of the database, the model is the same either way
+	 */
+	public void getMap(IfcModelInterface ifcModel, QueryInterface query, boolean parallel) throws BimserverDatabaseException {
 		checkOpen();
 		TodoList todoList = new TodoList();
-		if (query.getOidCounters() != null) {
-			for (EClass eClass : query.getOidCounters().keySet()) {
+		List<EClass> eClasses = getMapClasses(query);
+		if (parallel && eClasses.size() > 1) {
+			getMapParallel(eClasses, ifcModel, query, todoList);
+		} else {
+			for (EClass eClass : eClasses) {
 				if (Thread.currentThread().isInterrupted()) {
 					throw new BimserverDatabaseException("Thread interrupted");
 				}
-				if (eClass.getEAnnotation("nolazyload") == null && eClass.getEAnnotation("nodatabase") == null) {
-					if (query.shouldIncludeClass(eClass)) {
-						getMap(eClass, ifcModel, query, todoList);
+				getMap(eClass, ifcModel, query, todoList);
+			}
+		}
+		processTodoList(ifcModel, todoList, query);
+	}
+
+	/*
+	 * Reads the same objects as getMap(IfcModelInterface, QueryInterface) into a read only ColumnarIfcModel. References are kept as oids
+	 * until all objects are read, so there is no todo list.
+	 */
+	public ColumnarIfcModel getColumnarMap(PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap, QueryInterface query) throws BimserverDatabaseException {
+		checkOpen();
+		final ColumnarModelBuilder builder = new ColumnarModelBuilder(database, query);
+		scanTables(getMapClasses(query), query, new ScannedTableHandler() {
+			@Override
+			public void handle(TableScan scan) throws BimserverDatabaseException {
+				for (int j = 0; j < scan.size; j++) {
+					if (!isDeleted(scan.values[j])) {
+						builder.add(scan.eClass, scan.oids[j], scan.rids[j], scan.values[j]);
 					}
 				}
 			}
+		});
+		return builder.build(packageMetaData, pidRoidMap);
+	}
+
+	/*
+	 * The EClasses getMap reads for this query, in the order they are read
+	 */
+	public List<EClass> getMapClasses(QueryInterface query) {
+		Collection<EClass> candidates;
+		if (query.getOidCounters() != null) {
+			candidates = query.getOidCounters().keySet();
 		} else {
 			LOGGER.info("Inefficient getMap");
-			for (EClass eClass : database.getClasses()) {
+			candidates = database.getClasses();
+		}
+		List<EClass> eClasses = new ArrayList<EClass>();
+		for (EClass eClass : candidates) {
+			if (eClass.getEAnnotation("nolazyload") == null && eClass.getEAnnotation("nodatabase") == null) {
+				if (query.shouldIncludeClass(eClass)) {
+					eClasses.add(eClass);
+				}
+			}
+		}
+		return eClasses;
+	}
+
+	/*
+	 * The tables are independent until references are resolved, so they are scanned concurrently on the pool of the database, each with
+	 * its own cursor in the transaction of this session. A scan hands the visible records off in chunks of at most DECODE_CHUNK_SIZE records
+	 * that are decoded on the pool as well, each into a model and an object cache of its own. Those caches only read the object cache of this
+	 * session, which is not changed until all chunks are decoded. A scan waits for its oldest chunk when more than MAX_CHUNKS_AHEAD are not
+	 * decoded yet, so only a few chunks of values per table are kept.
+	 * 
+	 * References to objects of other chunks are proxies of their own chunk. Once all chunks are decoded, this thread merges them into the
+	 * model and replaces those proxies by the decoded objects. Proxies of objects that no chunk decoded are handled like readReference
+	 * handles them, so processTodoList resolves them afterwards like in the sequential load.
+	 */
+	private void getMapParallel(List<EClass> eClasses, IfcModelInterface ifcModel, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+		ForkJoinPool pool = database.getSerializationPool();
+		List<TableDecode> tables = new ArrayList<TableDecode>(eClasses.size());
+		try {
+			for (EClass eClass : eClasses) {
+				TableDecode table = new TableDecode(eClass, query);
+				tables.add(table);
+				pool.execute(table);
+			}
+			for (TableDecode table : tables) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new BimserverDatabaseException("Thread interrupted");
+				}
+				join(table);
+			}
+		} finally {
+			for (TableDecode table : tables) {
+				table.cancel(false);
+			}
+		}
+		List<IdEObject> decodedObjects = new ArrayList<IdEObject>();
+		for (TableDecode table : tables) {
+			reads += table.nrReads;
+			for (DecodeChunk chunk : table.chunks) {
+				reads += chunk.nrReads;
+				for (IdEObject object : chunk.model.getValues()) {
+					if (((IdEObjectImpl) object).getLoadingState() == State.LOADED) {
+						try {
+							if (((IdEObjectImpl) object).getModel() == chunk.model) {
+								((IdEObjectImpl) object).setModel(ifcModel);
+							}
+							if (!ifcModel.contains(object.getOid())) {
+								ifcModel.addAllowMultiModel(object.getOid(), object);
+							}
+						} catch (IfcModelInterfaceException e) {
+							throw new BimserverDatabaseException(e);
+						}
+						objectCache.put(object.getOid(), object);
+						decodedObjects.add(object);
+					}
+				}
+			}
+		}
+		for (IdEObject object : decodedObjects) {
+			resolveChunkProxies(object, ifcModel, query, todoList);
+		}
+	}
+
+	/*
+	 * Replaces the references of a decoded object to proxies of its chunk by the objects of this session. Like while reading the object,
+	 * the opposites of the references are not touched, the referenced objects read those from their own records.
+	 */
+	@SuppressWarnings("unchecked")
+	private void resolveChunkProxies(IdEObject object, IfcModelInterface ifcModel, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+		((IdEObjectImpl) object).useInverses(false);
+		try {
+			for (EReference eReference : object.eClass().getEAllReferences()) {
+				if (!object.eIsSet(eReference)) {
+					continue;
+				}
+				Object value = object.eGet(eReference);
+				if (eReference.isMany()) {
+					AbstractEList<Object> list = (AbstractEList<Object>) value;
+					for (int i = 0; i < list.size(); i++) {
+						IdEObject reference = (IdEObject) list.get(i);
+						if (eReference.getEAnnotation("twodimensionalarray") != null) {
+							resolveChunkProxies(reference, ifcModel, query, todoList);
+						} else {
+							IdEObject resolved = resolveChunkProxy(object, eReference, reference, ifcModel, query, todoList);
+							if (resolved != reference) {
+								list.setUnique(i, resolved);
+							}
+						}
+					}
+				} else if (value != null) {
+					IdEObject resolved = resolveChunkProxy(object, eReference, (IdEObject) value, ifcModel, query, todoList);
+					if (resolved != value) {
+						object.eSet(eReference, resolved);
+					}
+				}
+			}
+		} finally {
+			((IdEObjectImpl) object).useInverses(true);
+		}
+	}
+
+	private IdEObject resolveChunkProxy(IdEObject object, EReference eReference, IdEObject reference, IfcModelInterface ifcModel, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+		long oid = reference.getOid();
+		if (oid == -1) {
+			// Embedded in the record
+			return reference;
+		}
+		IdEObject found = objectCache.get(oid);
+		if (found != null) {
+			return found;
+		}
+		if (ifcModel.contains(oid)) {
+			return ifcModel.get(oid);
+		}
+		// The first proxy of an object that is not decoded takes the place of the proxy readReference would have created
+		try {
+			((IdEObjectImpl) reference).setModel(ifcModel);
+			objectCache.put(oid, reference);
+			if (query.isDeep() && object.eClass().getEAnnotation("wrapped") == null) {
+				if (eReference.getEAnnotation("nolazyload") == null) {
+					todoList.add(reference);
+				}
+			} else if (object.eClass().getEAnnotation("wrapped") == null) {
+				ifcModel.addAllowMultiModel(oid, reference);
+			}
+		} catch (IfcModelInterfaceException e) {
+			throw new BimserverDatabaseException(e);
+		}
+		return reference;
+	}
+
+	/*
+	 * A scan only keeps the newest visible record of every oid. When getMap does not accept that record the sequential getMap goes on with
+	 * the older records of the oid, this does the same. Returns the number of records read.
+	 */
+	private int getMapOlderRecords(EClass eClass, IfcModelInterface ifcModel, QueryInterface query, TodoList todoList, ObjectCache cache, long oid, int rid) throws BimserverDatabaseException {
+		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(),
+				createKeyBuffer(query.getPid(), oid).array(), createKeyBuffer(query.getPid(), oid, rid - 1).array(), this);
+		int nrReads = 0;
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				nrReads++;
+				int keyRid = -BinUtils.byteArrayToInt(record.getKey(), 12);
+				if (getMap(eClass, eClass, ifcModel, record.getValue(), query.getPid(), oid, keyRid, query, todoList, cache) == GetResult.CONTINUE_WITH_NEXT_OID) {
+					break;
+				}
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		return nrReads;
+	}
+
+	private interface ScannedTableHandler {
+		void handle(TableScan scan) throws BimserverDatabaseException;
+	}
+
+	/*
+	 * Hands the scans to the handler on this thread in the order of the classes. With a single thread in the pool the tables are scanned
+	 * on this thread as well.
+	 */
+	private void scanTables(List<EClass> eClasses, QueryInterface query, ScannedTableHandler handler) throws BimserverDatabaseException {
+		ForkJoinPool pool = database.getSerializationPool();
+		if (pool.getParallelism() <= 1) {
+			for (EClass eClass : eClasses) {
 				if (Thread.currentThread().isInterrupted()) {
 					throw new BimserverDatabaseException("Thread interrupted");
 				}
-				if (eClass.getEAnnotation("nolazyload") == null && eClass.getEAnnotation("nodatabase") == null) {
-					if (query.shouldIncludeClass(eClass)) {
-						getMap(eClass, ifcModel, query, todoList);
+				TableScan scan = new TableScan(eClass, query);
+				scan.scan();
+				reads += scan.nrReads;
+				handler.handle(scan);
+			}
+			return;
+		}
+		List<TableScan> scans = new ArrayList<TableScan>(eClasses.size());
+		for (EClass eClass : eClasses) {
+			scans.add(new TableScan(eClass, query));
+		}
+		int maxAhead = pool.getParallelism() * 2;
+		int submitted = 0;
+		try {
+			for (int i = 0; i < scans.size(); i++) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new BimserverDatabaseException("Thread interrupted");
+				}
+				while (submitted < scans.size() && submitted <= i + maxAhead) {
+					pool.execute(scans.get(submitted++));
+				}
+				TableScan scan = scans.get(i);
+				join(scan);
+				reads += scan.nrReads;
+				handler.handle(scan);
+				// Let the values be garbage collected
+				scans.set(i, null);
+			}
+		} finally {
+			for (int i = 0; i < submitted; i++) {
+				if (scans.get(i) != null) {
+					scans.get(i).cancel(false);
+				}
+			}
+		}
+	}
+
+	/*
+	 * join may rethrow a copy of the exception of a task with the original one as its cause
+	 */
+	private void join(ForkJoinTask<?> task) throws BimserverDatabaseException {
+		try {
+			task.join();
+		} catch (UncheckedBimserverDatabaseException e) {
+			Throwable cause = e.getCause();
+			while (cause instanceof UncheckedBimserverDatabaseException) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof BimserverDatabaseException) {
+				throw (BimserverDatabaseException) cause;
+			}
+			throw e;
+		}
+	}
+
+	/*
+	 * The visible records of one EClass in the revision of a query, the newest record with a rid between stopRid and rid of every oid
+	 */
+	private class TableScan extends RecursiveAction {
+		private static final long serialVersionUID = 2913478460137593853L;
+		private final EClass eClass;
+		private final QueryInterface query;
+		private long[] oids = new long[16];
+		private int[] rids = new int[16];
+		private byte[][] values = new byte[16][];
+		private int size;
+		private long nrReads;
+
+		public TableScan(EClass eClass, QueryInterface query) {
+			this.eClass = eClass;
+			this.query = query;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				scan();
+			} catch (BimserverDatabaseException e) {
+				throw new UncheckedBimserverDatabaseException(e);
+			}
+		}
+
+		private void scan() throws BimserverDatabaseException {
+			SearchingRecordIterator recordIterator = getRecordIterator(eClass, query);
+			if (recordIterator == null) {
+				return;
+			}
+			try {
+				Record record = recordIterator.next();
+				ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
+				while (record != null) {
+					nrReads++;
+					byte[] key = record.getKey();
+					long keyOid = BinUtils.byteArrayToLong(key, 4);
+					int keyRid = -BinUtils.byteArrayToInt(key, 12);
+					if (keyRid <= query.getRid() && keyRid >= query.getStopRid()) {
+						add(keyOid, keyRid, record.getValue());
+						nextKeyStart.position(0);
+						nextKeyStart.putInt(query.getPid());
+						nextKeyStart.putLong(keyOid + 1);
+						record = recordIterator.next(nextKeyStart.array());
+					} else {
+						record = recordIterator.next();
 					}
 				}
+			} finally {
+				recordIterator.close();
 			}
 		}
-		processTodoList(ifcModel, todoList, query);
+
+		private void add(long oid, int rid, byte[] value) {
+			if (size == oids.length) {
+				oids = Arrays.copyOf(oids, size * 2);
+				rids = Arrays.copyOf(rids, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			oids[size] = oid;
+			rids[size] = rid;
+			values[size] = value;
+			size++;
+		}
+	}
+
+	/*
+	 * Scans the visible records of one EClass like TableScan and hands them to chunks that are decoded on the pool
+	 */
+	private class TableDecode extends RecursiveAction {
+		private static final long serialVersionUID = -2318946731548364520L;
+		private final EClass eClass;
+		private final QueryInterface query;
+		private final List<DecodeChunk> chunks = new ArrayList<DecodeChunk>();
+		private long nrReads;
+
+		public TableDecode(EClass eClass, QueryInterface query) {
+			this.eClass = eClass;
+			this.query = query;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				scan();
+			} catch (BimserverDatabaseException e) {
+				throw new UncheckedBimserverDatabaseException(e);
+			}
+		}
+
+		private void scan() throws BimserverDatabaseException {
+			SearchingRecordIterator recordIterator = getRecordIterator(eClass, query);
+			if (recordIterator == null) {
+				return;
+			}
+			int firstNotJoined = 0;
+			try {
+				DecodeChunk chunk = new DecodeChunk(eClass, query);
+				Record record = recordIterator.next();
+				ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
+				while (record != null) {
+					nrReads++;
+					byte[] key = record.getKey();
+					long keyOid = BinUtils.byteArrayToLong(key, 4);
+					int keyRid = -BinUtils.byteArrayToInt(key, 12);
+					if (keyRid <= query.getRid() && keyRid >= query.getStopRid()) {
+						chunk.add(keyOid, keyRid, record.getValue());
+						if (chunk.size == DECODE_CHUNK_SIZE) {
+							chunks.add(chunk);
+							chunk.fork();
+							chunk = new DecodeChunk(eClass, query);
+							while (chunks.size() - firstNotJoined > MAX_CHUNKS_AHEAD) {
+								DatabaseSession.this.join(chunks.get(firstNotJoined++));
+							}
+						}
+						nextKeyStart.position(0);
+						nextKeyStart.putInt(query.getPid());
+						nextKeyStart.putLong(keyOid + 1);
+						record = recordIterator.next(nextKeyStart.array());
+					} else {
+						record = recordIterator.next();
+					}
+				}
+				if (chunk.size > 0) {
+					chunks.add(chunk);
+					chunk.fork();
+				}
+			} finally {
+				recordIterator.close();
+			}
+			for (int i = firstNotJoined; i < chunks.size(); i++) {
+				DatabaseSession.this.join(chunks.get(i));
+			}
+		}
+	}
+
+	/*
+	 * Decodes visible records of one EClass into a model of its own, with an object cache that falls back on the one of this session
+	 */
+	private class DecodeChunk extends RecursiveAction {
+		private static final long serialVersionUID = 6094731528730169470L;
+		private final EClass eClass;
+		private final QueryInterface query;
+		private long[] oids = new long[DECODE_CHUNK_SIZE];
+		private int[] rids = new int[DECODE_CHUNK_SIZE];
+		private byte[][] values = new byte[DECODE_CHUNK_SIZE][];
+		private int size;
+		private IfcModelInterface model;
+		private long nrReads;
+
+		public DecodeChunk(EClass eClass, QueryInterface query) {
+			this.eClass = eClass;
+			this.query = query;
+		}
+
+		private void add(long oid, int rid, byte[] value) {
+			oids[size] = oid;
+			rids[size] = rid;
+			values[size] = value;
+			size++;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				decode();
+			} catch (BimserverDatabaseException e) {
+				throw new UncheckedBimserverDatabaseException(e);
+			}
+		}
+
+		private void decode() throws BimserverDatabaseException {
+			model = createModel(query.getPackageMetaData(), null);
+			ObjectCache cache = new ObjectCache(objectCache);
+			// The proxies that have to be loaded are put in the todo list of the load by getMapParallel
+			TodoList todoList = new TodoList();
+			for (int i = 0; i < size; i++) {
+				GetResult map = getMap(eClass, eClass, model, values[i], query.getPid(), oids[i], rids[i], query, todoList, cache);
+				if (map != GetResult.CONTINUE_WITH_NEXT_OID) {
+					nrReads += getMapOlderRecords(eClass, model, query, todoList, cache, oids[i], rids[i]);
+				}
+			}
+			// Let the values be garbage collected
+			oids = null;
+			rids = null;
+			values = null;
+		}
 	}
 
 	public IfcModelInterface getMapWithOid(QueryInterface query, short cid, long oid, IfcModelInterface model) throws BimserverDatabaseException {
@@ -1148,21 +1921,20 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 
 		TodoList todoList = new TodoList();
 		ByteBuffer mustStartWith = createKeyBuffer(query.getPid(), oid);
-		ByteBuffer key = createKeyBuffer(query.getPid(), oid, -query.getStopRid());
+		ByteBuffer startSearchingAt = createKeyBuffer(query.getPid(), oid, -query.getStopRid());
 		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
-				key.array(), this);
+				startSearchingAt.array(), this);
 		checkOpen();
 		try {
 			Record record = recordIterator.next();
 			ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
 			while (record != null) {
 				reads++;
-				ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-				int keyPid = keyBuffer.getInt();
-				long keyOid = keyBuffer.getLong();
-				int keyRid = -keyBuffer.getInt();
-				ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-				GetResult map = getMap(eClass, eClass, model, valueBuffer, keyPid, keyOid, keyRid, query, todoList);
+				byte[] key = record.getKey();
+				int keyPid = BinUtils.byteArrayToInt(key, 0);
+				long keyOid = BinUtils.byteArrayToLong(key, 4);
+				int keyRid = -BinUtils.byteArrayToInt(key, 12);
+				GetResult map = getMap(eClass, eClass, model, record.getValue(), keyPid, keyOid, keyRid, query, todoList, objectCache);
 				if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 					nextKeyStart.position(0);
 					nextKeyStart.putInt(query.getPid());
@@ -1218,94 +1990,107 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		return query(condition, clazz, query).size();
 	}
 
-	public ObjectIdentifier getOidOfGuid(String schema, String guid, int pid, int rid) throws BimserverDatabaseException {
-		for (EClass eClass : getMetaDataManager().getPackageMetaData(schema).getAllSubClasses(getMetaDataManager().getPackageMetaData(schema).getEClass("IfcRoot"))) {
-			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
-					BinUtils.intToByteArray(pid), this);
-			try {
-				Record record = recordIterator.next();
-				while (record != null) {
-					reads++;
-					ByteBuffer buffer = ByteBuffer.wrap(record.getKey());
-					int pidOfRecord = buffer.getInt();
-					long oid = buffer.getLong();
-					int ridOfRecord = -buffer.getInt();
-					if (ridOfRecord == rid && pid == pidOfRecord) {
-						ByteBuffer value = ByteBuffer.wrap(record.getValue());
-
-						// Skip the unsettable part
-						byte unsettablesSize = value.get();
-						value.position(value.position() + unsettablesSize);
-
-						if (value.capacity() > 1) {
-							int stringLength = value.getInt();
-							if (stringLength == -1) {
-								return null;
-							} else {
-								String s = BinUtils.readString(value, stringLength);
-								if (s.equals(guid)) {
-									return new ObjectIdentifier(oid, getCid(eClass));
-								}
-							}
-						}
-					}
-					record = recordIterator.next();
+	/*
+	 * Finds the object with this guid that is visible in revision rid, objects of revisions before stopRid (the last clear revision) are not visible
+	 */
+	public ObjectIdentifier getOidOfGuid(String schema, String guid, int pid, int rid, int stopRid) throws BimserverDatabaseException {
+		byte[] guidBytes = guid.getBytes(Charsets.UTF_8);
+		for (byte[] indexValue : getIfcRootIndexValues(Database.GUID_INDEX_PREFIX + schema, pid, guidBytes)) {
+			ByteBuffer buffer = ByteBuffer.wrap(indexValue);
+			long oid = buffer.getLong();
+			int ridOfEntry = buffer.getInt();
+			if (ridOfEntry <= rid && ridOfEntry >= stopRid) {
+				EClass eClass = getEClassForOid(oid);
+				if (Arrays.equals(guidBytes, readIndexedFeature(eClass, pid, oid, rid, stopRid, "GlobalId"))) {
+					return new ObjectIdentifier(oid, getCid(eClass));
 				}
-			} finally {
-				recordIterator.close();
 			}
 		}
 		return null;
 	}
 
-	public Set<ObjectIdentifier> getOidsOfName(String schema, String name, int pid, int rid) throws BimserverDatabaseException, MetaDataException {
+	public Set<ObjectIdentifier> getOidsOfName(String schema, String name, int pid, int rid, int stopRid) throws BimserverDatabaseException, MetaDataException {
 		Set<ObjectIdentifier> result = new HashSet<ObjectIdentifier>();
-		for (EClass eClass : getMetaDataManager().getPackageMetaData(schema).getAllSubClasses(getMetaDataManager().getPackageMetaData(schema).getEClass("IfcRoot"))) {
-			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
-					BinUtils.intToByteArray(pid), this);
-			try {
-				Record record = recordIterator.next();
-				while (record != null) {
-					reads++;
-					ByteBuffer buffer = ByteBuffer.wrap(record.getKey());
-					int pidOfRecord = buffer.getInt();
-					long oid = buffer.getLong();
-					int ridOfRecord = -buffer.getInt();
-					if (ridOfRecord == rid && pid == pidOfRecord) {
-						ByteBuffer value = ByteBuffer.wrap(record.getValue());
-
-						// Skip the unsettable part
-						byte unsettablesSize = value.get();
-						value.position(value.position() + unsettablesSize);
-
-						if (value.capacity() > 1) {
-							int stringLength = value.getInt();
-							if (stringLength == -1) {
-								return null;
-							} else {
-								BinUtils.readString(value, stringLength); // GUID
-								if (value.getShort() != -1) { // CID of OwnerHistory
-									value.getLong(); // OID of OwnerHistory
-								}
-								stringLength = value.getInt();
-								if (stringLength != -1) {
-									String foundName = BinUtils.readString(value, stringLength);
-									if (name.equals(foundName)) {
-										result.add(new ObjectIdentifier(oid, getCid(eClass)));
-									}
-								}
-							}
-						}
-					}
-					record = recordIterator.next();
+		Set<Long> oids = new HashSet<Long>();
+		byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+		for (byte[] indexValue : getIfcRootIndexValues(Database.NAME_INDEX_PREFIX + schema, pid, nameBytes)) {
+			ByteBuffer buffer = ByteBuffer.wrap(indexValue);
+			long oid = buffer.getLong();
+			int ridOfEntry = buffer.getInt();
+			if (ridOfEntry <= rid && ridOfEntry >= stopRid && !oids.contains(oid)) {
+				EClass eClass = getEClassForOid(oid);
+				if (Arrays.equals(nameBytes, readIndexedFeature(eClass, pid, oid, rid, stopRid, "Name"))) {
+					result.add(new ObjectIdentifier(oid, getCid(eClass)));
+					oids.add(oid);
 				}
-			} finally {
-				recordIterator.close();
 			}
 		}
 		return result;
 	}
 
+	/*
+	 * Adds a stored IfcRoot object to the guid and name index of its schema. Keys are [pid][GlobalId or Name], values are [oid][rid].
+	 * An entry stays valid for later revisions that did not overwrite the object (see RevisionDelta). Entries are never removed, lookups check
+	 * every entry against the version of the object that is visible in the revision, so entries of objects that have been deleted or overwritten
+	 * with a different GlobalId/Name are skipped.
+	 */
+	void indexIfcRoot(EClass eClass, int pid, long oid, int rid, ByteBuffer value, WriteBatch writeBatch) throws BimserverDatabaseException {
+		String schema = eClass.getEPackage().getName();
+		ByteBuffer indexValue = ByteBuffer.allocate(12);
+		indexValue.putLong(oid);
+		indexValue.putInt(rid);
+		byte[] guidBytes = extractFeatureBytes(this, value, eClass, eClass.getEStructuralFeature("GlobalId"));
+		if (guidBytes != null) {
+			writeBatch.store(Database.GUID_INDEX_PREFIX + schema, createIfcRootIndexKey(pid, guidBytes), indexValue.array());
+		}
+		byte[] nameBytes = extractFeatureBytes(this, value, eClass, eClass.getEStructuralFeature("Name"));
+		if (nameBytes != null) {
+			writeBatch.store(Database.NAME_INDEX_PREFIX + schema, createIfcRootIndexKey(pid, nameBytes), indexValue.array());
+		}
+	}
+
+	private byte[] createIfcRootIndexKey(int pid, byte[] featureBytes) {
+		ByteBuffer key = ByteBuffer.allocate(4 + featureBytes.length);
+		key.putInt(pid);
+		key.put(featureBytes);
+		return key.array();
+	}
+
+	private List<byte[]> getIfcRootIndexValues(String indexTableName, int pid, byte[] featureBytes) throws BimserverDatabaseException {
+		if (!database.getKeyValueStore().containsTable(indexTableName)) {
+			throw new BimserverDatabaseException("No index " + indexTableName);
+		}
+		reads++;
+		List<byte[]> duplicates = database.getKeyValueStore().getDuplicates(indexTableName, createIfcRootIndexKey(pid, featureBytes), this);
+		if (duplicates == null) {
+			return Collections.emptyList();
+		}
+		return duplicates;
+	}
+
+	/*
+	 * Reads a feature of the version of an object that is visible in revision rid, the newest record with a rid between stopRid and rid
+	 */
+	private byte[] readIndexedFeature(EClass eClass, int pid, long oid, int rid, int stopRid, String featureName) throws BimserverDatabaseException {
+		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), createKeyBuffer(pid, oid).array(),
+				createKeyBuffer(pid, oid, rid).array(), this);
+		try {
+			reads++;
+			Record record = recordIterator.next();
+			if (record == null) {
+				return null;
+			}
+			int ridOfRecord = -BinUtils.byteArrayToInt(record.getKey(), 12);
+			byte[] value = record.getValue();
+			if (ridOfRecord < stopRid || value.length <= 1) {
+				return null;
+			}
+			return extractFeatureBytes(this, ByteBuffer.wrap(value), eClass, eClass.getEStructuralFeature(featureName));
+		} finally {
+			recordIterator.close();
+		}
+	}
+
 	private int getPrimitiveSize(EDataType eDataType, Object val) {
 		if (eDataType == EcorePackage.eINSTANCE.getEInt() || eDataType == EcorePackage.eINSTANCE.getEIntegerObject()) {
 			return 4;
@@ -1627,13 +2412,13 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 	}
 
 	private IdEObject readReference(EClass originalQueryClass, ByteBuffer buffer, IfcModelInterface model, IdEObject object, EStructuralFeature feature, EClass eClass,
-			QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+			QueryInterface query, TodoList todoList, ObjectCache cache) throws BimserverDatabaseException {
 		if (buffer.capacity() == 1 && buffer.get(0) == -1) {
 			buffer.position(buffer.position() + 1);
 			return null;
 		}
 		long oid = buffer.getLong();
-		IdEObject foundInCache = objectCache.get(oid);
+		IdEObject foundInCache = cache.get(oid);
 		if (foundInCache != null) {
 			return foundInCache;
 		}
@@ -1653,7 +2438,7 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		} catch (IfcModelInterfaceException e) {
 			LOGGER.error("", e);
 		}
-		objectCache.put(oid, newObject);
+		cache.put(oid, newObject);
 		if (query.isDeep() && object.eClass().getEAnnotation("wrapped") == null) {
 			if (feature.getEAnnotation("nolazyload") == null) {
 				todoList.add(newObject);
@@ -1823,7 +2608,10 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 		buffer.putLong(idEObject.getOid());
 	}
 
-	private void writeWrappedValue(int pid, int rid, Object value, ByteBuffer buffer, PackageMetaData packageMetaData) throws BimserverDatabaseException {
+	/*
+	 * Wrapped IfcGloballyUniqueId values are also stored as objects of their own, their records are added to writeBatch
+	 */
+	private void writeWrappedValue(int pid, int rid, Object value, ByteBuffer buffer, PackageMetaData packageMetaData, WriteBatch writeBatch) throws BimserverDatabaseException {
 		IdEObject wrappedValue = (IdEObject) value;
 		EStructuralFeature eStructuralFeature = wrappedValue.eClass().getEStructuralFeature("wrappedValue");
 		Short cid = database.getCidOfEClass(wrappedValue.eClass());
@@ -1834,15 +2622,10 @@ public class DatabaseSession implements LazyLoader, OidProvider<Long> {
 			if (wrappedValue.getOid() == -1) {
 				((IdEObjectImpl) wrappedValue).setOid(newOid(eClass));
 			}
-			ByteBuffer valueBuffer = convertObjectToByteArray(wrappedValue, ByteBuffer.allocate(getExactSize(wrappedValue)), packageMetaData);
+			ByteBuffer valueBuffer = convertObjectToByteArray(wrappedValue, ByteBuffer.allocate(getExactSize(wrappedValue)), packageMetaData, writeBatch);
 			ByteBuffer keyBuffer = createKeyBuffer(pid, wrappedValue.getOid(), rid);
-			try {
-				database.getKeyValueStore().storeNoOverwrite(eClass.getEPackage().getName() + "_" + eClass.getName(),
-						keyBuffer.array(), valueBuffer.array(), this);
-				database.incrementCommittedWrites(1);
-			} catch (BimserverLockConflictException e) {
-				LOGGER.error("", e);
-			}
+			writeBatch.storeNoOverwrite(database.getTableName(eClass), keyBuffer.array(), valueBuffer.array());
+			database.incrementCommittedWrites(1);
 		}
 	}
 	
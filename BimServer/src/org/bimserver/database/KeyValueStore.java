@@ -75,12 +75,23 @@ public interface KeyValueStore {
 	
 	void store(String tableName, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException;
 
+	/*
+	 * Writes all records of the batch in the transaction of the session, table by table in key order. Throws BimserverConcurrentModificationDatabaseException
+	 * when a record added with storeNoOverwrite already exists.
+	 */
+	void store(WriteBatch writeBatch, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException;
+
 	void dumpOpenCursors();
 
 	boolean createIndexTable(String tableName, DatabaseSession databaseSession) throws BimserverDatabaseException;
 
 	void openIndexTable(String indexTableName) throws BimserverDatabaseException;
 
+	/*
+	 * Whether the table was created with createIndexTable (sorted duplicates), opens the table when it is not open yet
+	 */
+	boolean isIndexTable(String tableName) throws BimserverDatabaseException;
+
 	List<byte[]> getDuplicates(String tableName, byte[] keyBytes, DatabaseSession databaseSession) throws BimserverDatabaseException;
 
 	void delete(String indexTableName, byte[] featureBytesOldIndex, byte[] array, DatabaseSession databaseSession) throws BimserverLockConflictException;
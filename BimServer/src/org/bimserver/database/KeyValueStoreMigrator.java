@@ -0,0 +1,106 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Copies every table of a database to a new database, possibly of another KeyValueStore type. The server must not be running.
+ * Copying to a database of the same type compacts it.
+ *
+ * Usage: KeyValueStoreMigrator <source type> <source dir> <target type> <target dir>, types are BERKELEY or MEMORY_MAPPED
+ */
+public class KeyValueStoreMigrator {
+	private static final Logger LOGGER = LoggerFactory.getLogger(KeyValueStoreMigrator.class);
+	private final KeyValueStore source;
+	private final KeyValueStore target;
+
+	public KeyValueStoreMigrator(KeyValueStore source, KeyValueStore target) {
+		this.source = source;
+		this.target = target;
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 4) {
+			System.out.println("Usage: KeyValueStoreMigrator <source type> <source dir> <target type> <target dir>");
+			return;
+		}
+		File sourceDir = new File(args[1]);
+		File targetDir = new File(args[3]);
+		if (KeyValueStoreType.detect(targetDir) != null) {
+			System.out.println("Target directory \"" + targetDir.getAbsolutePath() + "\" already contains a database");
+			return;
+		}
+		try {
+			KeyValueStore source = KeyValueStoreType.valueOf(args[0]).create(sourceDir);
+			try {
+				KeyValueStore target = KeyValueStoreType.valueOf(args[2]).create(targetDir);
+				try {
+					new KeyValueStoreMigrator(source, target).migrate();
+				} finally {
+					target.close();
+				}
+			} finally {
+				source.close();
+			}
+		} catch (DatabaseInitException e) {
+			LOGGER.error("", e);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+	}
+
+	public void migrate() throws BimserverDatabaseException {
+		long start = System.nanoTime();
+		long total = 0;
+		for (String tableName : source.getAllTableNames()) {
+			if (source.isIndexTable(tableName)) {
+				target.createIndexTable(tableName, null);
+			} else {
+				target.createTable(tableName, null);
+			}
+			long records = 0;
+			WriteBatch writeBatch = new WriteBatch();
+			RecordIterator recordIterator = source.getRecordIterator(tableName, null);
+			try {
+				Record record = recordIterator.next();
+				while (record != null) {
+					writeBatch.store(tableName, record.getKey(), record.getValue());
+					records++;
+					if (writeBatch.isFull()) {
+						target.store(writeBatch, null);
+						writeBatch.clear();
+					}
+					record = recordIterator.next();
+				}
+			} finally {
+				recordIterator.close();
+			}
+			target.store(writeBatch, null);
+			LOGGER.info(tableName + ": " + records + " records");
+			total += records;
+		}
+		target.sync();
+		LOGGER.info("Copied " + total + " records from " + source.getType() + " (" + source.getDatabaseSizeInBytes() + " bytes) to " + target.getType() + " ("
+				+ target.getDatabaseSizeInBytes() + " bytes) in " + ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+}
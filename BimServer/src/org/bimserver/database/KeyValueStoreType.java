@@ -0,0 +1,65 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.database.mmap.MemoryMappedKeyValueStore;
+
+/*
+ * The KeyValueStore implementations a server can be started with, see BimServerConfig.setKeyValueStoreType. A database directory can only
+ * be opened with the type it was created with, KeyValueStoreMigrator copies a database to another type.
+ */
+public enum KeyValueStoreType {
+	BERKELEY,
+	MEMORY_MAPPED;
+
+	public KeyValueStore create(File dataDir) throws DatabaseInitException {
+		KeyValueStoreType existingType = detect(dataDir);
+		if (existingType != null && existingType != this) {
+			throw new DatabaseInitException("The database in \"" + dataDir.getAbsolutePath() + "\" is a " + existingType + " database, not " + this
+					+ ", use KeyValueStoreMigrator to convert it");
+		}
+		switch (this) {
+		case MEMORY_MAPPED:
+			return new MemoryMappedKeyValueStore(dataDir);
+		default:
+			return new BerkeleyKeyValueStore(dataDir);
+		}
+	}
+
+	/*
+	 * The type of the database in dataDir, null when there is no database yet
+	 */
+	public static KeyValueStoreType detect(File dataDir) {
+		File[] files = dataDir.listFiles();
+		if (files == null) {
+			return null;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(".jdb")) {
+				return BERKELEY;
+			} else if (file.getName().endsWith(MemoryMappedKeyValueStore.SEGMENT_EXTENSION)) {
+				return MEMORY_MAPPED;
+			}
+		}
+		return null;
+	}
+}
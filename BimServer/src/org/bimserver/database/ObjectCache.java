@@ -19,33 +19,40 @@ package org.bimserver.database;
 
 import org.bimserver.emf.IdEObject;
 import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.utils.LongObjectHashMap;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
+/*
+ * Objects of a session by oid. Nothing looks objects up the other way, so there is no reverse map.
+ * 
+ * A cache with a parent also finds the objects of the parent, but only puts in its own map, so a parent that is not changed meanwhile can
+ * be shared by several threads that each have their own cache.
+ */
 public class ObjectCache {
-	private final BiMap<Long, IdEObjectImpl> oidCache = HashBiMap.create();
+	private final LongObjectHashMap<IdEObjectImpl> oidCache = new LongObjectHashMap<IdEObjectImpl>();
+	private final ObjectCache parent;
 
-	public void put(long oid, IdEObject object) {
-		if (!oidCache.containsValue(object)) {
-			oidCache.put(oid, (IdEObjectImpl) object);
-		}
+	public ObjectCache() {
+		this(null);
 	}
-	
-	public IdEObject get(long oid) {
-		return oidCache.get(oid);
+
+	public ObjectCache(ObjectCache parent) {
+		this.parent = parent;
 	}
-	
-	public long get(IdEObject object) {
-		return oidCache.inverse().get(object);
+
+	public void put(long oid, IdEObject object) {
+		oidCache.put(oid, (IdEObjectImpl) object);
 	}
 	
-	public boolean contains(IdEObject object) {
-		return oidCache.inverse().containsKey(object);
+	public IdEObject get(long oid) {
+		IdEObjectImpl object = oidCache.get(oid);
+		if (object == null && parent != null) {
+			return parent.get(oid);
+		}
+		return object;
 	}
 
 	public boolean contains(long oid) {
-		return oidCache.containsKey(oid);
+		return oidCache.containsKey(oid) || (parent != null && parent.contains(oid));
 	}
 
 	public void clear() {
@@ -0,0 +1,190 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bimserver.utils.BinUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/*
+ * Server wide cache of records of single objects, shared by all sessions, so looking up the same Project or User over and over does not
+ * go to the key value store every time. The cached values are the stored records, not objects, objects belong to a session and are mutable.
+ *
+ * An entry for (pid, oid) holds the record with rid recordRid that was found for a query with rid queryRid, so it is the visible record
+ * for every query with a rid from recordRid up to queryRid. A commit invalidates the objects it wrote once it is done and increments the
+ * version. A transaction reads the snapshot it started with, so a session takes the version before its transaction starts and a record is
+ * only put when no commit finished since, otherwise the record might be one that the invalidation of that commit already missed. Entries
+ * are evicted on the size of their values.
+ */
+public class RecordCache {
+	public static final long DEFAULT_MAX_SIZE_IN_BYTES = 64 * 1024 * 1024;
+	// A version for readers that do not know when their transaction started, they never put
+	public static final long NO_VERSION = -1;
+	// Roughly the size of an entry and its key without the value
+	private static final int ENTRY_OVERHEAD = 96;
+	private final Cache<Key, CachedRecord> cache;
+	private final AtomicLong version = new AtomicLong();
+	private final boolean enabled;
+
+	public static class Key {
+		private final int pid;
+		private final long oid;
+
+		public Key(int pid, long oid) {
+			this.pid = pid;
+			this.oid = oid;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * pid + (int) (oid ^ (oid >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return pid == other.pid && oid == other.oid;
+		}
+	}
+
+	public static class CachedRecord {
+		private final int recordRid;
+		private final int queryRid;
+		private final byte[] value;
+
+		private CachedRecord(int recordRid, int queryRid, byte[] value) {
+			this.recordRid = recordRid;
+			this.queryRid = queryRid;
+			this.value = value;
+		}
+
+		public int getRid() {
+			return recordRid;
+		}
+
+		/*
+		 * Shared by all readers, it must not be modified
+		 */
+		public byte[] getValue() {
+			return value;
+		}
+	}
+
+	/*
+	 * The objects a commit writes. A large commit invalidates the whole cache instead of remembering every object.
+	 */
+	public static class Invalidation {
+		private static final int MAX_KEYS = 100000;
+		private final Set<Key> keys = new HashSet<Key>();
+		private boolean all;
+
+		/*
+		 * Called for every batch before it is written. Keys that are not (pid, oid, -rid) keys of object tables only cost a useless invalidation.
+		 */
+		public void add(WriteBatch writeBatch) {
+			if (all) {
+				return;
+			}
+			for (String tableName : writeBatch.getTableNames()) {
+				for (WriteBatch.Entry entry : writeBatch.getEntries(tableName)) {
+					byte[] key = entry.getKey();
+					if (key.length == 16) {
+						keys.add(new Key(BinUtils.byteArrayToInt(key, 0), BinUtils.byteArrayToLong(key, 4)));
+					}
+				}
+				if (keys.size() > MAX_KEYS) {
+					all = true;
+					keys.clear();
+					return;
+				}
+			}
+		}
+	}
+
+	public RecordCache(long maxSizeInBytes) {
+		this.enabled = maxSizeInBytes > 0;
+		this.cache = CacheBuilder.newBuilder().maximumWeight(Math.max(maxSizeInBytes, 1)).weigher(new Weigher<Key, CachedRecord>() {
+			@Override
+			public int weigh(Key key, CachedRecord cachedRecord) {
+				return ENTRY_OVERHEAD + cachedRecord.value.length;
+			}
+		}).build();
+	}
+
+	/*
+	 * Take this before starting the transaction the records that are going to be put are read in
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/*
+	 * Returns null when there is no entry that is known to be the visible record for queryRid
+	 */
+	public CachedRecord get(int pid, long oid, int queryRid) {
+		if (!enabled) {
+			return null;
+		}
+		CachedRecord cachedRecord = cache.getIfPresent(new Key(pid, oid));
+		if (cachedRecord != null && cachedRecord.recordRid <= queryRid && queryRid <= cachedRecord.queryRid) {
+			return cachedRecord;
+		}
+		return null;
+	}
+
+	/*
+	 * Does nothing when a commit finished after versionAtTransactionStart was taken, the record might have been read from an older snapshot
+	 */
+	public void put(int pid, long oid, int recordRid, int queryRid, byte[] value, long versionAtTransactionStart) {
+		if (!enabled || version.get() != versionAtTransactionStart) {
+			return;
+		}
+		Key key = new Key(pid, oid);
+		cache.put(key, new CachedRecord(recordRid, queryRid, value));
+		if (version.get() != versionAtTransactionStart) {
+			// A commit finished while putting, its invalidation may have come before the put
+			cache.invalidate(key);
+		}
+	}
+
+	/*
+	 * Called after the transaction of a commit has been committed
+	 */
+	public void invalidate(Invalidation invalidation) {
+		version.incrementAndGet();
+		if (invalidation.all) {
+			cache.invalidateAll();
+		} else {
+			cache.invalidateAll(invalidation.keys);
+		}
+	}
+
+	public void invalidateAll() {
+		version.incrementAndGet();
+		cache.invalidateAll();
+	}
+}
@@ -17,6 +17,10 @@ package org.bimserver.database;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
 
+/*
+ * The Record returned by next() and last() may be reused by the iterator for the next call, the byte arrays it returns are never reused.
+ * Callers that need a record after moving on have to keep its key and value, not the Record.
+ */
 public interface RecordIterator {
 	Record next() throws BimserverLockConflictException;
 	void close();
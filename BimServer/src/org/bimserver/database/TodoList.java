@@ -17,11 +17,11 @@ package org.bimserver.database;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 
 import org.bimserver.emf.IdEObject;
 
-public class TodoList extends LinkedList<IdEObject> {
+public class TodoList extends ArrayDeque<IdEObject> {
 
 	private static final long serialVersionUID = -9011962542230161659L;
 }
\ No newline at end of file
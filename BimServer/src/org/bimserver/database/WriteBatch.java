@@ -0,0 +1,174 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Records that are written together with KeyValueStore.store(WriteBatch, DatabaseSession). Records are grouped per table and handed out sorted
+ * on key in unsigned byte order, the order of the tables, so a store can write each table with one cursor that moves forward through the tree
+ * instead of searching from the root for every record. Keys and values are copied, so callers can reuse their buffers.
+ */
+public class WriteBatch {
+	/*
+	 * Callers write a batch when it is full, so a large commit does not keep a second copy of all its records in memory
+	 */
+	public static final long MAX_SIZE_IN_BYTES = 16 * 1024 * 1024;
+	private static final Comparator<Entry> KEY_COMPARATOR = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			byte[] key1 = o1.key;
+			byte[] key2 = o2.key;
+			int length = Math.min(key1.length, key2.length);
+			for (int i = 0; i < length; i++) {
+				int difference = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+				if (difference != 0) {
+					return difference;
+				}
+			}
+			return key1.length - key2.length;
+		}
+	};
+	private final Map<String, List<Entry>> tables = new LinkedHashMap<String, List<Entry>>();
+	private long sizeInBytes;
+	private int size;
+
+	public static class Entry {
+		private final byte[] key;
+		private final byte[] value;
+		private final boolean noOverwrite;
+
+		private Entry(byte[] key, byte[] value, boolean noOverwrite) {
+			this.key = key;
+			this.value = value;
+			this.noOverwrite = noOverwrite;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		/*
+		 * A record that must not exist yet, see KeyValueStore.storeNoOverwrite
+		 */
+		public boolean isNoOverwrite() {
+			return noOverwrite;
+		}
+	}
+
+	public void store(String tableName, byte[] key, byte[] value) {
+		add(tableName, key, value, 0, value.length, false);
+	}
+
+	public void store(String tableName, byte[] key, byte[] value, int offset, int length) {
+		add(tableName, key, value, offset, length, false);
+	}
+
+	public void storeNoOverwrite(String tableName, byte[] key, byte[] value) {
+		add(tableName, key, value, 0, value.length, true);
+	}
+
+	public void storeNoOverwrite(String tableName, byte[] key, byte[] value, int offset, int length) {
+		add(tableName, key, value, offset, length, true);
+	}
+
+	private void add(String tableName, byte[] key, byte[] value, int offset, int length, boolean noOverwrite) {
+		List<Entry> entries = tables.get(tableName);
+		if (entries == null) {
+			entries = new ArrayList<Entry>();
+			tables.put(tableName, entries);
+		}
+		byte[] valueCopy = new byte[length];
+		System.arraycopy(value, offset, valueCopy, 0, length);
+		entries.add(new Entry(key.clone(), valueCopy, noOverwrite));
+		sizeInBytes += key.length + length;
+		size++;
+	}
+
+	/*
+	 * Moves the records of another batch into this one, without copying them again
+	 */
+	public void addAll(WriteBatch writeBatch) {
+		for (Map.Entry<String, List<Entry>> table : writeBatch.tables.entrySet()) {
+			List<Entry> entries = tables.get(table.getKey());
+			if (entries == null) {
+				entries = new ArrayList<Entry>();
+				tables.put(table.getKey(), entries);
+			}
+			entries.addAll(table.getValue());
+		}
+		sizeInBytes += writeBatch.sizeInBytes;
+		size += writeBatch.size;
+		writeBatch.clear();
+	}
+
+	public Set<String> getTableNames() {
+		return tables.keySet();
+	}
+
+	/*
+	 * The records of a table in the order they were added
+	 */
+	public List<Entry> getEntries(String tableName) {
+		return tables.get(tableName);
+	}
+
+	/*
+	 * The sort is stable, of two records with the same key in a table without duplicates the last one added is written last
+	 */
+	public List<Entry> getSortedEntries(String tableName) {
+		List<Entry> entries = tables.get(tableName);
+		Collections.sort(entries, KEY_COMPARATOR);
+		return entries;
+	}
+
+	/*
+	 * Number of bytes of the keys and values in this batch
+	 */
+	public long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isFull() {
+		return sizeInBytes >= MAX_SIZE_IN_BYTES;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		tables.clear();
+		sizeInBytes = 0;
+		size = 0;
+	}
+}
@@ -27,6 +27,7 @@ import org.bimserver.database.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.emf.IdEObject;
 import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.PackageMetaData;
 import org.bimserver.models.geometry.GeometryInfo;
 import org.bimserver.models.log.AccessMethod;
 import org.bimserver.models.store.ConcreteRevision;
@@ -37,6 +38,7 @@ import org.bimserver.plugins.Plugin;
 import org.bimserver.plugins.PluginManager;
 import org.bimserver.plugins.serializers.MessagingSerializerPlugin;
 import org.bimserver.plugins.serializers.SerializerPlugin;
+import org.bimserver.plugins.serializers.StreamingSerializerPlugin;
 import org.bimserver.webservices.authorization.Authorization;
 import org.eclipse.emf.ecore.EClass;
 
@@ -51,15 +53,31 @@ public abstract class AbstractDownloadDatabaseAction<T> extends BimDatabaseActio
 		this.authorization = authorization;
 	}
 	
-	protected void checkGeometry(PluginConfiguration serializerPluginConfiguration, PluginManager pluginManager, IfcModelInterface model, Project project, ConcreteRevision concreteRevision, Revision revision) throws BimserverDatabaseException, GeometryGeneratingException {
-		boolean needsGeometry = false;
+	protected boolean needsGeometry(PluginConfiguration serializerPluginConfiguration, PluginManager pluginManager) {
 		Plugin plugin = pluginManager.getPlugin(serializerPluginConfiguration.getPluginDescriptor().getPluginClassName(), true);
 		if (plugin instanceof SerializerPlugin) {
-			needsGeometry = ((SerializerPlugin)plugin).needsGeometry();
+			return ((SerializerPlugin)plugin).needsGeometry();
 		} else if (plugin instanceof MessagingSerializerPlugin) {
-			needsGeometry = ((MessagingSerializerPlugin)plugin).needsGeometry();
+			return ((MessagingSerializerPlugin)plugin).needsGeometry();
+		}
+		return false;
+	}
+
+	/*
+	 * Whether the serializer can write a model that is read while it is being written, in the schema of the model (a model that has to be
+	 * converted is read completely anyway)
+	 */
+	protected boolean supportsStreaming(PluginConfiguration serializerPluginConfiguration, PluginManager pluginManager, PackageMetaData packageMetaData) {
+		Plugin plugin = pluginManager.getPlugin(serializerPluginConfiguration.getPluginDescriptor().getPluginClassName(), true);
+		if (plugin instanceof StreamingSerializerPlugin) {
+			StreamingSerializerPlugin streamingSerializerPlugin = (StreamingSerializerPlugin) plugin;
+			return !streamingSerializerPlugin.needsGeometry() && streamingSerializerPlugin.getSupportedSchemas().contains(packageMetaData.getSchema());
 		}
-		if (needsGeometry) {
+		return false;
+	}
+
+	protected void checkGeometry(PluginConfiguration serializerPluginConfiguration, PluginManager pluginManager, IfcModelInterface model, Project project, ConcreteRevision concreteRevision, Revision revision) throws BimserverDatabaseException, GeometryGeneratingException {
+		if (needsGeometry(serializerPluginConfiguration, pluginManager)) {
 			if (!revision.isHasGeometry()) {
 				setProgress("Generating geometry...", -1);
 				// TODO When generating geometry for a partial model download (by types for example), this will fail (for example walls have no openings)
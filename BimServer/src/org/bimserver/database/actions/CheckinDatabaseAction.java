@@ -32,9 +32,12 @@ import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.PostCommitAction;
 import org.bimserver.database.Query;
+import org.bimserver.database.Query.Deep;
 import org.bimserver.emf.IdEObject;
 import org.bimserver.emf.IdEObjectImpl;
 import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.ifc.BasicIfcModel;
 import org.bimserver.mail.MailSystem;
 import org.bimserver.models.log.AccessMethod;
 import org.bimserver.models.log.NewRevisionAdded;
@@ -100,6 +103,7 @@ public class CheckinDatabaseAction extends GenericCheckinDatabaseAction {
 			if (project == null) {
 				throw new UserException("Project with poid " + poid + " not found");
 			}
+			ConcreteRevision previousConcreteRevision = project.getLastConcreteRevision();
 			if (!authorization.hasRightsOnProjectOrSuperProjects(user, project)) {
 				throw new UserException("User has no rights to checkin models to this project");
 			}
@@ -174,6 +178,14 @@ public class CheckinDatabaseAction extends GenericCheckinDatabaseAction {
 
 			ifcModel.fixOids(getDatabaseSession());
 
+			RevisionDelta revisionDelta = null;
+			if (bimServer.getConfig().isDeltaCheckins() && !merge && previousConcreteRevision != null && previousConcreteRevision.getProject() == project) {
+				setProgress("Comparing with previous revision...", -1);
+				revisionDelta = new RevisionDelta(loadPreviousModel(previousConcreteRevision, ifcModel.getPackageMetaData()), ifcModel);
+				revisionDelta.calculate();
+				ifcModel.fixOids();
+			}
+
 			if (bimServer.getServerSettingsCache().getServerSettings().isGenerateGeometryOnCheckin()) {
 				setProgress("Generating Geometry...", -1);
 				new GeometryGenerator(bimServer).generateGeometry(authorization.getUoid(), bimServer.getPluginManager(), getDatabaseSession(), ifcModel, project.getId(), concreteRevision.getId(), true, geometryCache);
@@ -182,7 +194,7 @@ public class CheckinDatabaseAction extends GenericCheckinDatabaseAction {
 				}
 			}
 
-			if (nrConcreteRevisionsBefore != 0 && !merge) {
+			if (nrConcreteRevisionsBefore != 0 && !merge && revisionDelta == null) {
 				// There already was a revision, lets delete it (only when not merging)
 				concreteRevision.setClear(true);
 			}
@@ -195,8 +207,18 @@ public class CheckinDatabaseAction extends GenericCheckinDatabaseAction {
 				}
 			}
 			ByteBuffer buffer = ByteBuffer.allocate(10 * s);
+			Map<EClass, Long> previousOidCounters = null;
+			if (revisionDelta != null) {
+				// Unchanged objects keep their oids, so the scans of this revision start where the scans of the previous one started
+				Query previousQuery = new Query(ifcModel.getPackageMetaData(), false);
+				previousQuery.updateOidCounters(previousConcreteRevision, getDatabaseSession());
+				previousOidCounters = previousQuery.getOidCounters();
+			}
 			for (EClass eClass : eClasses) {
 				long oid = startOids.get(eClass);
+				if (previousOidCounters != null && previousOidCounters.containsKey(eClass)) {
+					oid = Math.min(oid, previousOidCounters.get(eClass));
+				}
 				if (!DatabaseSession.perRecordVersioning(eClass)) {
 					buffer.putShort(getDatabaseSession().getCid(eClass));
 					buffer.putLong(oid);
@@ -205,7 +227,13 @@ public class CheckinDatabaseAction extends GenericCheckinDatabaseAction {
 			
 			concreteRevision.setOidCounters(buffer.array());
 
-			if (ifcModel != null) {
+			if (revisionDelta != null) {
+				getDatabaseSession().store(revisionDelta.getChanged(), project.getId(), concreteRevision.getId());
+				for (IdEObject removed : revisionDelta.getRemoved()) {
+					getDatabaseSession().delete(removed, concreteRevision.getId());
+				}
+				LOGGER.info("Delta checkin: " + revisionDelta.getChanged().size() + " written, " + revisionDelta.getRemoved().size() + " removed, " + revisionDelta.getNrUnchanged() + " unchanged");
+			} else if (ifcModel != null) {
 				getDatabaseSession().store(ifcModel.getValues(), project.getId(), concreteRevision.getId());
 			}
 			getDatabaseSession().addPostCommitAction(new PostCommitAction() {
@@ -230,6 +258,18 @@ public class CheckinDatabaseAction extends GenericCheckinDatabaseAction {
 		return concreteRevision;
 	}
 
+	/*
+	 * The whole previous revision, it is kept in memory next to the new model until the delta is calculated
+	 */
+	private IfcModelInterface loadPreviousModel(ConcreteRevision previousConcreteRevision, PackageMetaData packageMetaData) throws BimserverDatabaseException {
+		IfcModelInterface previousModel = new BasicIfcModel(packageMetaData, null);
+		int highestStopId = AbstractDownloadDatabaseAction.findHighestStopRid(project, previousConcreteRevision);
+		Query query = new Query(packageMetaData, project.getId(), previousConcreteRevision.getId(), -1, null, Deep.YES, highestStopId);
+		query.updateOidCounters(previousConcreteRevision, getDatabaseSession());
+		getDatabaseSession().getMap(previousModel, query);
+		return previousModel;
+	}
+
 	public String getFileName() {
 		return fileName;
 	}
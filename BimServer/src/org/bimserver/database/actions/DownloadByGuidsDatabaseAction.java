@@ -93,7 +93,7 @@ public class DownloadByGuidsDatabaseAction extends AbstractDownloadDatabaseActio
 				if (!foundGuids.contains(guid)) {
 					for (ConcreteRevision concreteRevision : virtualRevision.getConcreteRevisions()) {
 						ObjectIdentifier objectIdentifier = getDatabaseSession().getOidOfGuid(concreteRevision.getProject().getSchema(), guid, concreteRevision.getProject().getId(),
-								concreteRevision.getId());
+								concreteRevision.getId(), findHighestStopRid(concreteRevision.getProject(), concreteRevision));
 						if (objectIdentifier != null) {
 							foundGuids.add(guid);
 							if (!map.containsKey(concreteRevision)) {
@@ -94,7 +94,7 @@ public class DownloadByNamesDatabaseAction extends AbstractDownloadDatabaseActio
 					for (ConcreteRevision concreteRevision : virtualRevision.getConcreteRevisions()) {
 						try {
 							for (ObjectIdentifier objectIdentifier : getDatabaseSession().getOidsOfName(concreteRevision.getProject().getSchema(), name, concreteRevision.getProject().getId(),
-									concreteRevision.getId())) {
+									concreteRevision.getId(), findHighestStopRid(concreteRevision.getProject(), concreteRevision))) {
 								foundNames.add(name);
 								if (!map.containsKey(concreteRevision)) {
 									map.put(concreteRevision, new HashSet<Long>());
@@ -29,6 +29,7 @@ import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.Query;
 import org.bimserver.database.Query.Deep;
+import org.bimserver.database.streaming.StreamingIfcModel;
 import org.bimserver.emf.IfcModelInterface;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.ifc.IfcModel;
@@ -98,14 +99,34 @@ public class DownloadDatabaseAction extends AbstractDownloadDatabaseAction<IfcMo
 		PackageMetaData lastPackageMetaData = null;
 		Map<Integer, Long> pidRoidMap = new HashMap<>();
 		pidRoidMap.put(project.getId(), roid);
+		// The streaming and columnar models are read only and have no geometry, and models of several concrete revisions have to be merged
+		boolean streaming = getBimServer().getConfig().isStreamingDownloads() && concreteRevisions.size() == 1 && serializerPluginConfiguration != null
+				&& supportsStreaming(serializerPluginConfiguration, getBimServer().getPluginManager(), getBimServer().getMetaDataManager().getPackageMetaData(concreteRevisions.get(0).getProject().getSchema()));
+		boolean columnar = !streaming && getBimServer().getConfig().isColumnarDownloads() && concreteRevisions.size() == 1
+				&& (serializerPluginConfiguration == null || !needsGeometry(serializerPluginConfiguration, getBimServer().getPluginManager()));
 		for (ConcreteRevision concreteRevision : concreteRevisions) {
 			if (concreteRevision.getUser().getOid() != ignoreUoid) {
 				PackageMetaData packageMetaData = getBimServer().getMetaDataManager().getPackageMetaData(concreteRevision.getProject().getSchema());
 				lastPackageMetaData = packageMetaData;
-				IfcModel subModel = new ServerIfcModel(packageMetaData, pidRoidMap, getDatabaseSession());
 				ifcHeader = concreteRevision.getIfcHeader();
 				int highestStopId = findHighestStopRid(project, concreteRevision);
-				Query query = new Query(packageMetaData, concreteRevision.getProject().getId(), concreteRevision.getId(), concreteRevision.getOid(), objectIDM, Deep.YES, highestStopId);
+				Query query = new Query(packageMetaData, concreteRevision.getProject().getId(), concreteRevision.getId(), concreteRevision.getOid(), objectIDM, streaming ? Deep.NO : Deep.YES, highestStopId);
+				query.updateOidCounters(concreteRevision, getDatabaseSession());
+				if (streaming) {
+					// Nothing is read yet, that happens while the model is serialized
+					IfcModelInterface subModel = new StreamingIfcModel(getBimServer().getDatabase(), packageMetaData, pidRoidMap, query, StreamingIfcModel.DEFAULT_BATCH_SIZE);
+					subModel.getModelMetaData().setDate(concreteRevision.getDate());
+					ifcModelSet.add(subModel);
+					continue;
+				}
+				if (columnar) {
+					setProgress("Preparing download...", -1);
+					IfcModelInterface subModel = getDatabaseSession().getColumnarMap(packageMetaData, pidRoidMap, query);
+					subModel.getModelMetaData().setDate(concreteRevision.getDate());
+					ifcModelSet.add(subModel);
+					continue;
+				}
+				IfcModel subModel = new ServerIfcModel(packageMetaData, pidRoidMap, getDatabaseSession());
 				subModel.addChangeListener(new IfcModelChangeListener() {
 					@Override
 					public void objectAdded() {
@@ -117,7 +138,6 @@ public class DownloadDatabaseAction extends AbstractDownloadDatabaseAction<IfcMo
 						}
 					}
 				});
-				query.updateOidCounters(concreteRevision, getDatabaseSession());
 				getDatabaseSession().getMap(subModel, query);
 				if (serializerPluginConfiguration != null) {
 					try {
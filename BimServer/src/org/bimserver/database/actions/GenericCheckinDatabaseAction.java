@@ -44,6 +44,10 @@ public abstract class GenericCheckinDatabaseAction extends BimDatabaseAction<Con
 	}
 
 	protected void checkCheckSum(Project project) throws UserException {
+		checkCheckSum(project, getModel().getModelMetaData().getChecksum());
+	}
+
+	protected void checkCheckSum(Project project, byte[] checksum) throws UserException {
 		ConcreteRevision lastConcreteRevision = project.getLastConcreteRevision();
 		if (lastConcreteRevision != null) {
 			int revisionId = -1;
@@ -53,8 +57,8 @@ public abstract class GenericCheckinDatabaseAction extends BimDatabaseAction<Con
 				}
 			}
 			byte[] revisionChecksum = lastConcreteRevision.getChecksum();
-			if (revisionChecksum != null && getModel().getModelMetaData().getChecksum() != null) {
-				if (Arrays.equals(revisionChecksum, getModel().getModelMetaData().getChecksum())) {
+			if (revisionChecksum != null && checksum != null) {
+				if (Arrays.equals(revisionChecksum, checksum)) {
 					throw new UserException("Uploaded model is the same as last revision (" + revisionId + "), duplicate model not stored");
 				}
 			}
@@ -55,7 +55,6 @@ import org.eclipse.emf.ecore.EStructuralFeature;
 import org.eclipse.emf.ecore.EcorePackage;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.BiMap;
 
 public class GetDataObjectByOidDatabaseAction extends AbstractDownloadDatabaseAction<DataObject> {
 
@@ -121,7 +120,7 @@ public class GetDataObjectByOidDatabaseAction extends AbstractDownloadDatabaseAc
 	}
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
-	public static void fillDataObject(BiMap<? extends Long, ? extends EObject> mapResult, EObject eObject, DataObject dataObject) {
+	public static void fillDataObject(Map<? extends Long, ? extends EObject> mapResult, EObject eObject, DataObject dataObject) {
 		for (EStructuralFeature eStructuralFeature : eObject.eClass().getEAllStructuralFeatures()) {
 			Object eGet = eObject.eGet(eStructuralFeature);
 			if (eStructuralFeature.getEAnnotation("hidden") == null) {
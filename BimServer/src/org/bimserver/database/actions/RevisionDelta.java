@@ -0,0 +1,272 @@
+package org.bimserver.database.actions;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.models.geometry.GeometryPackage;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/*
+ * Computes what has to be written to store a new model as a delta on the previous revision of a project.
+ *
+ * Objects are matched to the previous model by GlobalId, objects without a GlobalId by a hash of their content (their attributes and the
+ * GlobalIds or content hashes of the objects they reference). A matched object gets the oid of its counterpart and is only written when its
+ * content differs, unchanged records stay visible in the new revision through the (pid, oid, -rid) key order as long as the new concrete
+ * revision is not a clear revision. Objects of the previous model without a counterpart are removed.
+ *
+ * A bad content match only costs a write: a matched object is compared feature by feature (references by oid) with its counterpart,
+ * so the new revision always reads back as exactly the new model. The geometry of an unchanged object is kept.
+ */
+public class RevisionDelta {
+	private final IfcModelInterface previousModel;
+	private final IfcModelInterface newModel;
+	private final Map<IdEObject, IdEObject> matches = new IdentityHashMap<IdEObject, IdEObject>();
+	private final Map<IdEObject, Long> contentHashes = new IdentityHashMap<IdEObject, Long>();
+	private final List<IdEObject> changed = new ArrayList<IdEObject>();
+	private final List<IdEObject> removed = new ArrayList<IdEObject>();
+	private int nrUnchanged;
+
+	public RevisionDelta(IfcModelInterface previousModel, IfcModelInterface newModel) {
+		this.previousModel = previousModel;
+		this.newModel = newModel;
+	}
+
+	/*
+	 * The new model must already have oids, matched objects get the oid of their counterpart. IfcModelInterface.fixOids() has to be called afterwards.
+	 */
+	public void calculate() {
+		Map<String, IdEObject> previousByGuid = new HashMap<String, IdEObject>();
+		Map<Long, Deque<IdEObject>> previousByContent = new HashMap<Long, Deque<IdEObject>>();
+		for (IdEObject previous : previousModel.getValues()) {
+			if (isGeometry(previous.eClass())) {
+				continue;
+			}
+			String guid = getGuid(previous);
+			if (guid != null) {
+				previousByGuid.put(guid, previous);
+			} else {
+				long contentHash = getContentHash(previous);
+				Deque<IdEObject> candidates = previousByContent.get(contentHash);
+				if (candidates == null) {
+					candidates = new ArrayDeque<IdEObject>();
+					previousByContent.put(contentHash, candidates);
+				}
+				candidates.add(previous);
+			}
+		}
+		for (IdEObject object : newModel.getValues()) {
+			if (isGeometry(object.eClass())) {
+				continue;
+			}
+			String guid = getGuid(object);
+			IdEObject previous = null;
+			if (guid != null) {
+				previous = previousByGuid.remove(guid);
+			} else {
+				Deque<IdEObject> candidates = previousByContent.get(getContentHash(object));
+				if (candidates != null) {
+					previous = candidates.poll();
+				}
+			}
+			if (previous != null && previous.eClass() == object.eClass()) {
+				matches.put(object, previous);
+				((IdEObjectImpl) object).setOid(previous.getOid());
+			}
+		}
+
+		// Oids are only final now, so the objects can be compared
+		Set<IdEObject> kept = new HashSet<IdEObject>();
+		for (IdEObject object : newModel.getValues()) {
+			IdEObject previous = matches.get(object);
+			if (previous != null && sameContent(object, previous)) {
+				kept.add(previous);
+				nrUnchanged++;
+			} else {
+				changed.add(object);
+			}
+		}
+		Set<IdEObject> overwritten = new HashSet<IdEObject>(matches.values());
+		overwritten.removeAll(kept);
+		Set<IdEObject> keptGeometry = new HashSet<IdEObject>();
+		for (IdEObject previous : kept) {
+			addGeometry(previous, keptGeometry);
+		}
+		for (IdEObject previous : previousModel.getValues()) {
+			if (!kept.contains(previous) && !overwritten.contains(previous) && !keptGeometry.contains(previous)) {
+				removed.add(previous);
+			}
+		}
+	}
+
+	/*
+	 * Objects of the new model that have to be written
+	 */
+	public List<IdEObject> getChanged() {
+		return changed;
+	}
+
+	/*
+	 * Objects of the previous model that have to be deleted
+	 */
+	public List<IdEObject> getRemoved() {
+		return removed;
+	}
+
+	public int getNrUnchanged() {
+		return nrUnchanged;
+	}
+
+	private boolean isGeometry(EClass eClass) {
+		return eClass.getEPackage() == GeometryPackage.eINSTANCE;
+	}
+
+	private String getGuid(IdEObject idEObject) {
+		EStructuralFeature guidFeature = idEObject.eClass().getEStructuralFeature("GlobalId");
+		if (guidFeature == null) {
+			return null;
+		}
+		return (String) idEObject.eGet(guidFeature);
+	}
+
+	private void addGeometry(IdEObject idEObject, Set<IdEObject> result) {
+		for (EReference eReference : idEObject.eClass().getEAllReferences()) {
+			if (!isGeometry(eReference.getEReferenceType())) {
+				continue;
+			}
+			for (Object value : getValues(idEObject, eReference)) {
+				if (value != null && result.add((IdEObject) value)) {
+					addGeometry((IdEObject) value, result);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Hash of the content of an object that does not depend on oids. Inverse references are left out, they mostly point back to the objects
+	 * that are being hashed. Objects that are still being hashed (cycles) count as 0.
+	 */
+	private long getContentHash(IdEObject idEObject) {
+		Long contentHash = contentHashes.get(idEObject);
+		if (contentHash != null) {
+			return contentHash;
+		}
+		contentHashes.put(idEObject, 0L);
+		long hash = idEObject.eClass().getName().hashCode();
+		for (EStructuralFeature eStructuralFeature : idEObject.eClass().getEAllStructuralFeatures()) {
+			if (eStructuralFeature.getEAnnotation("inverse") != null) {
+				continue;
+			}
+			if (eStructuralFeature instanceof EAttribute) {
+				Object value = idEObject.eGet(eStructuralFeature);
+				hash = 31 * hash + (value instanceof byte[] ? Arrays.hashCode((byte[]) value) : value == null ? 0 : value.hashCode());
+			} else {
+				EReference eReference = (EReference) eStructuralFeature;
+				if (isGeometry(eReference.getEReferenceType())) {
+					continue;
+				}
+				for (Object value : getValues(idEObject, eReference)) {
+					long referenceHash = 0;
+					if (value != null) {
+						IdEObject referenced = (IdEObject) value;
+						String guid = getGuid(referenced);
+						referenceHash = guid != null ? guid.hashCode() : getContentHash(referenced);
+					}
+					hash = 31 * hash + referenceHash;
+				}
+				hash = 31 * hash + eReference.getFeatureID();
+			}
+		}
+		contentHashes.put(idEObject, hash);
+		return hash;
+	}
+
+	/*
+	 * Compares everything that ends up in the stored record, references are compared by oid (wrapped values by content)
+	 */
+	private boolean sameContent(IdEObject a, IdEObject b) {
+		if (a.eClass() != b.eClass()) {
+			return false;
+		}
+		for (EStructuralFeature eStructuralFeature : a.eClass().getEAllStructuralFeatures()) {
+			if (eStructuralFeature instanceof EAttribute) {
+				Object valueA = a.eGet(eStructuralFeature);
+				Object valueB = b.eGet(eStructuralFeature);
+				if (valueA instanceof byte[] && valueB instanceof byte[]) {
+					if (!Arrays.equals((byte[]) valueA, (byte[]) valueB)) {
+						return false;
+					}
+				} else if (valueA == null ? valueB != null : !valueA.equals(valueB)) {
+					return false;
+				}
+			} else {
+				EReference eReference = (EReference) eStructuralFeature;
+				if (isGeometry(eReference.getEReferenceType())) {
+					continue;
+				}
+				List<Object> valuesA = getValues(a, eReference);
+				List<Object> valuesB = getValues(b, eReference);
+				if (valuesA.size() != valuesB.size()) {
+					return false;
+				}
+				for (int i = 0; i < valuesA.size(); i++) {
+					if (!sameReference((IdEObject) valuesA.get(i), (IdEObject) valuesB.get(i))) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean sameReference(IdEObject a, IdEObject b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		if (a.eClass().getEAnnotation("wrapped") != null) {
+			return sameContent(a, b);
+		}
+		return a.getOid() == b.getOid();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object> getValues(IdEObject idEObject, EReference eReference) {
+		Object value = idEObject.eGet(eReference);
+		if (eReference.isMany()) {
+			return (List<Object>) value;
+		}
+		List<Object> result = new ArrayList<Object>(1);
+		result.add(value);
+		return result;
+	}
+}
@@ -0,0 +1,282 @@
+package org.bimserver.database.actions;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.BimServer;
+import org.bimserver.SummaryMap;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.PostCommitAction;
+import org.bimserver.database.Query;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.emf.ModelMetaData;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.mail.MailSystem;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.log.NewRevisionAdded;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.IfcHeader;
+import org.bimserver.models.store.Project;
+import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.Service;
+import org.bimserver.models.store.User;
+import org.bimserver.notifications.NewRevisionNotification;
+import org.bimserver.plugins.deserializers.ByteProgressReporter;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.plugins.deserializers.StreamingDeserializer;
+import org.bimserver.plugins.deserializers.StreamingDeserializerHandler;
+import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.webservices.authorization.Authorization;
+import org.bimserver.webservices.authorization.ExplicitRightsAuthorization;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A checkin that does not keep the model in memory. The deserializer reads the file twice: the objects get their oids during the first pass,
+ * the revision is created when the header and checksum are known and the objects are written one by one during the second pass, with their
+ * inverses already set by the deserializer. The summary and the oid counters come from the classes counted during the first pass.
+ *
+ * What needs the whole model is left out: model checkers, merging, delta checkins and generating geometry, geometry is generated when the
+ * revision is downloaded instead. Everything is still written in one transaction.
+ */
+public class StreamingCheckinDatabaseAction extends GenericCheckinDatabaseAction {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamingCheckinDatabaseAction.class);
+	private final BimServer bimServer;
+	private final long poid;
+	private final Authorization authorization;
+	private final String comment;
+	private final String fileName;
+	private final StreamingDeserializer deserializer;
+	private final File file;
+	private ConcreteRevision concreteRevision;
+	private DeserializeException deserializeException;
+
+	public StreamingCheckinDatabaseAction(BimServer bimServer, DatabaseSession databaseSession, AccessMethod accessMethod, long poid, Authorization authorization, String comment,
+			String fileName, StreamingDeserializer deserializer, File file) {
+		super(databaseSession, accessMethod, null);
+		this.bimServer = bimServer;
+		this.poid = poid;
+		this.authorization = authorization;
+		this.comment = comment;
+		this.fileName = fileName;
+		this.deserializer = deserializer;
+		this.file = file;
+	}
+
+	@Override
+	public ConcreteRevision execute() throws UserException, BimserverDatabaseException {
+		try {
+			setProgress("Deserializing IFC file...", 0);
+			authorization.canCheckin(poid);
+			Project project = getProjectByPoid(poid);
+			if (project == null) {
+				throw new UserException("Project with poid " + poid + " not found");
+			}
+			User user = getUserByUoid(authorization.getUoid());
+			if (!authorization.hasRightsOnProjectOrSuperProjects(user, project)) {
+				throw new UserException("User has no rights to checkin models to this project");
+			}
+			if (!MailSystem.isValidEmailAddress(user.getUsername())) {
+				throw new UserException("Users must have a valid e-mail address to checkin");
+			}
+			CheckinHandler checkinHandler = new CheckinHandler(project, user);
+			final long fileSize = file.length();
+			final String title = "Deserializing and saving (" + fileName + ")";
+			try {
+				deserializer.read(file, checkinHandler, new ByteProgressReporter() {
+					@Override
+					public void progress(long byteNumber) {
+						setProgress(title, fileSize == 0 ? -1 : (int) (byteNumber * 100 / fileSize));
+					}
+				});
+			} catch (DeserializeException e) {
+				// The handler passes the exceptions of the database on as the cause of a DeserializeException
+				if (e.getCause() instanceof BimserverDatabaseException) {
+					throw (BimserverDatabaseException) e.getCause();
+				}
+				if (e.getCause() instanceof UserException) {
+					throw (UserException) e.getCause();
+				}
+				deserializeException = e;
+				throw e;
+			}
+			checkinHandler.finish();
+		} catch (Throwable e) {
+			if (e instanceof BimserverDatabaseException) {
+				throw (BimserverDatabaseException) e;
+			}
+			if (e instanceof UserException) {
+				throw (UserException) e;
+			}
+			LOGGER.error("", e);
+			throw new UserException(e);
+		}
+		return concreteRevision;
+	}
+
+	private class CheckinHandler implements StreamingDeserializerHandler {
+		private final Project project;
+		private final User user;
+		private final int nrConcreteRevisionsBefore;
+		private final Map<EClass, Integer> counts = new HashMap<EClass, Integer>();
+		private long size;
+		private Revision revision;
+		private DatabaseSession.StreamingWriter streamingWriter;
+
+		public CheckinHandler(Project project, User user) {
+			this.project = project;
+			this.user = user;
+			this.nrConcreteRevisionsBefore = project.getConcreteRevisions().size();
+		}
+
+		@Override
+		public long newOid(EClass eClass) {
+			Integer count = counts.get(eClass);
+			counts.put(eClass, count == null ? 1 : count + 1);
+			if (eClass.getEAnnotation("hidden") == null) {
+				size++;
+			}
+			return getDatabaseSession().newOid(eClass);
+		}
+
+		@Override
+		public void start(ModelMetaData modelMetaData) throws DeserializeException {
+			if (counts.isEmpty()) {
+				throw new DeserializeException("Cannot checkin empty model");
+			}
+			try {
+				checkCheckSum(project, modelMetaData.getChecksum());
+				CreateRevisionResult result = createNewConcreteRevision(getDatabaseSession(), size, project, user, comment.trim());
+				concreteRevision = result.getConcreteRevision();
+				IfcHeader ifcHeader = modelMetaData.getIfcHeader();
+				if (ifcHeader != null) {
+					getDatabaseSession().store(ifcHeader);
+					concreteRevision.setIfcHeader(ifcHeader);
+				}
+				project.getConcreteRevisions().add(concreteRevision);
+				concreteRevision.setChecksum(modelMetaData.getChecksum());
+				NewRevisionAdded newRevisionAdded = getDatabaseSession().create(NewRevisionAdded.class);
+				newRevisionAdded.setDate(new Date());
+				newRevisionAdded.setExecutor(user);
+				revision = concreteRevision.getRevisions().get(0);
+
+				SummaryMap summaryMap = new SummaryMap(getPackageMetaData());
+				for (Map.Entry<EClass, Integer> entry : counts.entrySet()) {
+					summaryMap.add(entry.getKey(), entry.getValue());
+				}
+				concreteRevision.setSummary(summaryMap.toRevisionSummary(getDatabaseSession()));
+
+				if (authorization instanceof ExplicitRightsAuthorization) {
+					ExplicitRightsAuthorization explicitRightsAuthorization = (ExplicitRightsAuthorization) authorization;
+					if (explicitRightsAuthorization.getSoid() != -1) {
+						Service service = getDatabaseSession().get(explicitRightsAuthorization.getSoid(), Query.getDefault());
+						revision.setService(service);
+					}
+				}
+				newRevisionAdded.setRevision(revision);
+				newRevisionAdded.setProject(project);
+				newRevisionAdded.setAccessMethod(getAccessMethod());
+				streamingWriter = getDatabaseSession().createStreamingWriter();
+			} catch (BimserverDatabaseException e) {
+				throw new DeserializeException(e);
+			} catch (UserException e) {
+				throw new DeserializeException(e);
+			}
+		}
+
+		@Override
+		public void object(IdEObject object) throws DeserializeException {
+			((IdEObjectImpl) object).setPid(project.getId());
+			((IdEObjectImpl) object).setRid(concreteRevision.getId());
+			try {
+				streamingWriter.write(object);
+			} catch (BimserverDatabaseException e) {
+				throw new DeserializeException(e);
+			}
+		}
+
+		public void finish() throws BimserverDatabaseException {
+			streamingWriter.close();
+			if (nrConcreteRevisionsBefore != 0) {
+				// There already was a revision, lets delete it
+				concreteRevision.setClear(true);
+			}
+			// Wrapped IfcGloballyUniqueIds are stored as objects of their own, they get their oids while they are written
+			Set<EClass> eClasses = new LinkedHashSet<EClass>(counts.keySet());
+			EClass ifcGloballyUniqueId = getPackageMetaData().getEClass("IfcGloballyUniqueId");
+			if (ifcGloballyUniqueId != null) {
+				eClasses.add(ifcGloballyUniqueId);
+			}
+			Map<EClass, Long> startOids = getDatabaseSession().getStartOids();
+			int s = 0;
+			for (EClass eClass : eClasses) {
+				if (!DatabaseSession.perRecordVersioning(eClass)) {
+					s++;
+				}
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(10 * s);
+			for (EClass eClass : eClasses) {
+				if (!DatabaseSession.perRecordVersioning(eClass)) {
+					buffer.putShort(getDatabaseSession().getCid(eClass));
+					buffer.putLong(startOids.get(eClass));
+				}
+			}
+			concreteRevision.setOidCounters(buffer.array());
+
+			final Revision revision = this.revision;
+			getDatabaseSession().addPostCommitAction(new PostCommitAction() {
+				@Override
+				public void execute() throws UserException {
+					bimServer.getNotificationsManager().notify(new NewRevisionNotification(bimServer, project.getOid(), revision.getOid()));
+				}
+			});
+			getDatabaseSession().store(concreteRevision);
+			getDatabaseSession().store(project);
+		}
+
+		private PackageMetaData getPackageMetaData() {
+			return bimServer.getDatabase().getMetaDataManager().getPackageMetaData(project.getSchema());
+		}
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getPoid() {
+		return poid;
+	}
+
+	/*
+	 * Null when the file could be deserialized
+	 */
+	public DeserializeException getDeserializeException() {
+		return deserializeException;
+	}
+}
@@ -20,7 +20,6 @@ package org.bimserver.database.berkeley;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +36,7 @@ import org.bimserver.database.KeyValueStore;
 import org.bimserver.database.Record;
 import org.bimserver.database.RecordIterator;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.WriteBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,7 +62,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	private Environment environment;
 	private long committedWrites;
 	private long reads;
-	private final Map<String, Database> tables = new HashMap<String, Database>();
+	private final Map<String, Database> tables = new ConcurrentHashMap<String, Database>();
 	private boolean isNew;
 	private TransactionConfig transactionConfig;
 	private CursorConfig cursorConfig;
@@ -198,6 +198,24 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		tables.put(tableName, database);
 	}
 	
+	@Override
+	public synchronized boolean isIndexTable(String tableName) throws BimserverDatabaseException {
+		Database database = tables.get(tableName);
+		if (database == null) {
+			DatabaseConfig databaseConfig = new DatabaseConfig();
+			databaseConfig.setAllowCreate(false);
+			databaseConfig.setTransactional(true);
+			databaseConfig.setUseExistingConfig(true);
+			try {
+				database = environment.openDatabase(null, tableName, databaseConfig);
+			} catch (DatabaseException e) {
+				throw new BimserverDatabaseException("Table " + tableName + " not found in database", e);
+			}
+			tables.put(tableName, database);
+		}
+		return database.getConfig().getSortedDuplicates();
+	}
+
 	private Database getDatabase(String tableName) throws BimserverDatabaseException {
 		Database database = tables.get(tableName);
 		if (database == null) {
@@ -463,20 +481,74 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 			Database database = getDatabase(tableName);
 			OperationStatus putNoOverwrite = database.putNoOverwrite(getTransaction(databaseSession), dbKey, dbValue);
 			if (putNoOverwrite == OperationStatus.KEYEXIST) {
-				ByteBuffer keyBuffer = ByteBuffer.wrap(key);
-				if (key.length == 16) {
-					int pid = keyBuffer.getInt();
-					long oid = keyBuffer.getLong();
-					int rid = -keyBuffer.getInt();
-					throw new BimserverConcurrentModificationDatabaseException("Key exists: pid: " + pid + ", oid: " + oid + ", rid: " + rid);
-				} else {
-					throw new BimserverConcurrentModificationDatabaseException("Key exists: " );
+				throw createKeyExistsException(key);
+			}
+		} catch (LockConflictException e) {
+			throw new BimserverLockConflictException(e);
+		} catch (DatabaseException e) {
+			throw new BimserverDatabaseException("", e);
+		}
+	}
+
+	/*
+	 * Sorted input is what makes this fast, every put of a cursor starts searching at the position of the previous one, which is
+	 * usually in the same leaf node. Deferred write and non-transactional tables are not used: the tables are shared by all projects,
+	 * and the records of a checkin have to be committed or aborted together with the rest of the transaction.
+	 */
+	@Override
+	public void store(WriteBatch writeBatch, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
+		DatabaseEntry dbKey = new DatabaseEntry();
+		DatabaseEntry dbValue = new DatabaseEntry();
+		// Without a session the batch is written in a transaction of its own
+		Transaction ownTransaction = null;
+		try {
+			Transaction transaction = getTransaction(databaseSession);
+			if (transaction == null) {
+				ownTransaction = environment.beginTransaction(null, transactionConfig);
+				transaction = ownTransaction;
+			}
+			for (String tableName : writeBatch.getTableNames()) {
+				Cursor cursor = getDatabase(tableName).openCursor(transaction, null);
+				try {
+					for (WriteBatch.Entry entry : writeBatch.getSortedEntries(tableName)) {
+						dbKey.setData(entry.getKey());
+						dbValue.setData(entry.getValue());
+						if (entry.isNoOverwrite()) {
+							if (cursor.putNoOverwrite(dbKey, dbValue) == OperationStatus.KEYEXIST) {
+								throw createKeyExistsException(entry.getKey());
+							}
+						} else {
+							cursor.put(dbKey, dbValue);
+						}
+					}
+				} finally {
+					cursor.close();
 				}
 			}
+			if (ownTransaction != null) {
+				ownTransaction.commit();
+				ownTransaction = null;
+			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
 		} catch (DatabaseException e) {
 			throw new BimserverDatabaseException("", e);
+		} finally {
+			if (ownTransaction != null) {
+				ownTransaction.abort();
+			}
+		}
+	}
+
+	private BimserverConcurrentModificationDatabaseException createKeyExistsException(byte[] key) {
+		if (key.length == 16) {
+			ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+			int pid = keyBuffer.getInt();
+			long oid = keyBuffer.getLong();
+			int rid = -keyBuffer.getInt();
+			return new BimserverConcurrentModificationDatabaseException("Key exists: pid: " + pid + ", oid: " + oid + ", rid: " + rid);
+		} else {
+			return new BimserverConcurrentModificationDatabaseException("Key exists: " );
 		}
 	}
 	
@@ -22,10 +22,20 @@ import org.bimserver.database.Record;
 import com.sleepycat.je.DatabaseEntry;
 
 public class BerkeleyRecord implements Record {
-	final byte[] key;
-	final byte[] value;
-	
+	private byte[] key;
+	private byte[] value;
+
+	public BerkeleyRecord() {
+	}
+
 	public BerkeleyRecord(DatabaseEntry key, DatabaseEntry value) {
+		set(key, value);
+	}
+
+	/*
+	 * Lets an iterator reuse one record for all its results, the arrays are the ones Berkeley allocated for this read
+	 */
+	void set(DatabaseEntry key, DatabaseEntry value) {
 		this.key = key.getData();
 		this.value = value.getData();
 	}
@@ -39,4 +49,4 @@ public class BerkeleyRecord implements Record {
 	public byte[] getValue() {
 		return value;
 	}
-}
\ No newline at end of file
+}
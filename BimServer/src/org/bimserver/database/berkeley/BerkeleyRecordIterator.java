@@ -34,6 +34,9 @@ public class BerkeleyRecordIterator implements RecordIterator {
 	private static final Logger LOGGER = LoggerFactory.getLogger(BerkeleyRecordIterator.class);
 	private final Cursor cursor;
 	private BerkeleyKeyValueStore berkeleyKeyValueStore;
+	private final DatabaseEntry key = new DatabaseEntry();
+	private final DatabaseEntry value = new DatabaseEntry();
+	private final BerkeleyRecord record = new BerkeleyRecord();
 
 	public BerkeleyRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId) {
 		this.cursor = cursor;
@@ -46,12 +49,11 @@ public class BerkeleyRecordIterator implements RecordIterator {
 	}
 	
 	public Record next() {
-		DatabaseEntry key = new DatabaseEntry();
-		DatabaseEntry value = new DatabaseEntry();
 		try {
 			OperationStatus next = cursor.getNext(key, value, LockMode.DEFAULT);
 			if (next == OperationStatus.SUCCESS) {
-				return new BerkeleyRecord(key, value);
+				record.set(key, value);
+				return record;
 			} else {
 				return null;
 			}
@@ -73,12 +75,11 @@ public class BerkeleyRecordIterator implements RecordIterator {
 
 	@Override
 	public Record last() throws BimserverLockConflictException {
-		DatabaseEntry key = new DatabaseEntry();
-		DatabaseEntry value = new DatabaseEntry();
 		try {
 			OperationStatus next = cursor.getLast(key, value, LockMode.DEFAULT);
 			if (next == OperationStatus.SUCCESS) {
-				return new BerkeleyRecord(key, value);
+				record.set(key, value);
+				return record;
 			} else {
 				return null;
 			}
@@ -17,8 +17,6 @@ package org.bimserver.database.berkeley;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
 
-import java.util.Arrays;
-
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
@@ -40,6 +38,10 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 	private byte[] nextStartSearchingAt;
 	private long cursorId;
 	private BerkeleyKeyValueStore berkeleyKeyValueStore;
+	// Reused for every read, Berkeley puts newly allocated arrays in them
+	private final DatabaseEntry key = new DatabaseEntry();
+	private final DatabaseEntry value = new DatabaseEntry();
+	private final BerkeleyRecord record = new BerkeleyRecord();
 
 	public BerkeleySearchingRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId, byte[] mustStartWith, byte[] startSearchingAt) throws BimserverLockConflictException {
 		this.cursor = cursor;
@@ -55,16 +57,12 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 	
 	private Record getFirstNext(byte[] startSearchingAt) throws BimserverLockConflictException {
 		this.nextStartSearchingAt = null;
-		DatabaseEntry key = new DatabaseEntry(startSearchingAt);
-		DatabaseEntry value = new DatabaseEntry();
+		key.setData(startSearchingAt);
 		try {
 			OperationStatus next = cursor.getSearchKeyRange(key, value, LockMode.DEFAULT);
-			if (next == OperationStatus.SUCCESS) {
-				byte[] firstBytes = new byte[mustStartWith.length];
-				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
-				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
-				}
+			if (next == OperationStatus.SUCCESS && startsWithMustStartWith()) {
+				record.set(key, value);
+				return record;
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -74,21 +72,30 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 		return null;
 	}
 
+	private boolean startsWithMustStartWith() {
+		if (key.getSize() < mustStartWith.length) {
+			return false;
+		}
+		byte[] data = key.getData();
+		int offset = key.getOffset();
+		for (int i = 0; i < mustStartWith.length; i++) {
+			if (data[offset + i] != mustStartWith[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public Record next() throws BimserverLockConflictException {
 		if (nextStartSearchingAt != null) {
 			return getFirstNext(nextStartSearchingAt);
 		}
-		DatabaseEntry key = new DatabaseEntry();
-		DatabaseEntry value = new DatabaseEntry();
 		try {
 			OperationStatus next = cursor.getNext(key, value, LockMode.DEFAULT);
-			if (next == OperationStatus.SUCCESS) {
-				byte[] firstBytes = new byte[mustStartWith.length];
-				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
-				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
-				}
+			if (next == OperationStatus.SUCCESS && startsWithMustStartWith()) {
+				record.set(key, value);
+				return record;
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -118,16 +125,11 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 		if (nextStartSearchingAt != null) {
 			return getFirstNext(nextStartSearchingAt);
 		}
-		DatabaseEntry key = new DatabaseEntry();
-		DatabaseEntry value = new DatabaseEntry();
 		try {
 			OperationStatus next = cursor.getLast(key, value, LockMode.DEFAULT);
-			if (next == OperationStatus.SUCCESS) {
-				byte[] firstBytes = new byte[mustStartWith.length];
-				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
-				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
-				}
+			if (next == OperationStatus.SUCCESS && startsWithMustStartWith()) {
+				record.set(key, value);
+				return record;
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
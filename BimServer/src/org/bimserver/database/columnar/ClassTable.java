@@ -0,0 +1,144 @@
+package org.bimserver.database.columnar;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bimserver.database.columnar.Column.DoubleColumn;
+import org.bimserver.database.columnar.Column.FloatColumn;
+import org.bimserver.database.columnar.Column.IntColumn;
+import org.bimserver.database.columnar.Column.ListColumn;
+import org.bimserver.database.columnar.Column.LongColumn;
+import org.bimserver.database.columnar.Column.ObjectColumn;
+import org.bimserver.database.columnar.Column.ReferenceColumn;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EEnum;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcorePackage;
+
+/*
+ * The objects of one EClass, in oid order, with a column for every structural feature (in the order of getEAllStructuralFeatures)
+ */
+class ClassTable {
+	private final EClass eClass;
+	private final List<EStructuralFeature> features;
+	private final Column[] columns;
+	private long[] oids = new long[16];
+	private int[] rids = new int[16];
+	private int size;
+	// Index in the model of the first object of this table
+	private int firstIndex;
+
+	ClassTable(EClass eClass) {
+		this.eClass = eClass;
+		this.features = eClass.getEAllStructuralFeatures();
+		this.columns = new Column[features.size()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = createColumn(features.get(i));
+		}
+	}
+
+	static Column createColumn(EStructuralFeature feature) {
+		if (feature.isMany()) {
+			if (feature.getEType() instanceof EClass && feature.getEAnnotation("twodimensionalarray") != null) {
+				EStructuralFeature listFeature = ((EClass) feature.getEType()).getEStructuralFeature("List");
+				return new ListColumn(createColumn(listFeature));
+			}
+			return new ListColumn(createSingleColumn(feature.getEType()));
+		}
+		return createSingleColumn(feature.getEType());
+	}
+
+	private static Column createSingleColumn(EClassifier type) {
+		EcorePackage ecorePackage = EcorePackage.eINSTANCE;
+		if (type instanceof EClass) {
+			return new ReferenceColumn();
+		} else if (type instanceof EEnum || type == ecorePackage.getEInt() || type == ecorePackage.getEIntegerObject() || type == ecorePackage.getEBoolean()
+				|| type == ecorePackage.getEBooleanObject()) {
+			return new IntColumn();
+		} else if (type == ecorePackage.getELong() || type == ecorePackage.getELongObject() || type == ecorePackage.getEDate()) {
+			return new LongColumn();
+		} else if (type == ecorePackage.getEDouble() || type == ecorePackage.getEDoubleObject()) {
+			return new DoubleColumn();
+		} else if (type == ecorePackage.getEFloat() || type == ecorePackage.getEFloatObject()) {
+			return new FloatColumn();
+		} else {
+			return new ObjectColumn();
+		}
+	}
+
+	int addObject(long oid, int rid) {
+		if (size == oids.length) {
+			oids = Arrays.copyOf(oids, size * 2);
+			rids = Arrays.copyOf(rids, size * 2);
+		}
+		oids[size] = oid;
+		rids[size] = rid;
+		return size++;
+	}
+
+	void trim() {
+		oids = Arrays.copyOf(oids, size);
+		rids = Arrays.copyOf(rids, size);
+		for (Column column : columns) {
+			column.trim();
+		}
+	}
+
+	EClass getEClass() {
+		return eClass;
+	}
+
+	List<EStructuralFeature> getFeatures() {
+		return features;
+	}
+
+	Column getColumn(int featureIndex) {
+		return columns[featureIndex];
+	}
+
+	Column[] getColumns() {
+		return columns;
+	}
+
+	int size() {
+		return size;
+	}
+
+	long getOid(int row) {
+		return oids[row];
+	}
+
+	long[] getOids() {
+		return oids;
+	}
+
+	int getRid(int row) {
+		return rids[row];
+	}
+
+	int getFirstIndex() {
+		return firstIndex;
+	}
+
+	void setFirstIndex(int firstIndex) {
+		this.firstIndex = firstIndex;
+	}
+}
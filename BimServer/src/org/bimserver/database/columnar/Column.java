@@ -0,0 +1,309 @@
+package org.bimserver.database.columnar;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/*
+ * A growable column of values, one row per object (or per list element for the elements of a ListColumn). Rows without a value (unset
+ * features, null values) are only marked in the set bits, so a column of an attribute that is rarely used costs little more than its array.
+ */
+abstract class Column {
+	private final BitSet set = new BitSet();
+	protected int size;
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isSet(int row) {
+		return set.get(row);
+	}
+
+	protected void markSet(int row) {
+		set.set(row);
+	}
+
+	public void addUnset() {
+		grow();
+		size++;
+	}
+
+	protected abstract void grow();
+
+	/*
+	 * Called once all rows have been added, so the arrays can be cut to size
+	 */
+	public abstract void trim();
+
+	/*
+	 * Called once all objects are known, for columns with references
+	 */
+	public void resolve(ColumnarIfcModel model) {
+	}
+
+	protected static int newCapacity(int capacity) {
+		return Math.max(16, capacity + (capacity >> 1));
+	}
+
+	static class IntColumn extends Column {
+		private int[] values = new int[0];
+
+		public void add(int value) {
+			grow();
+			values[size] = value;
+			markSet(size++);
+		}
+
+		public int get(int row) {
+			return values[row];
+		}
+
+		public void set(int row, int value) {
+			values[row] = value;
+		}
+
+		@Override
+		protected void grow() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, newCapacity(size));
+			}
+		}
+
+		@Override
+		public void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	static class LongColumn extends Column {
+		private long[] values = new long[0];
+
+		public void add(long value) {
+			grow();
+			values[size] = value;
+			markSet(size++);
+		}
+
+		public long get(int row) {
+			return values[row];
+		}
+
+		@Override
+		protected void grow() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, newCapacity(size));
+			}
+		}
+
+		@Override
+		public void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	static class DoubleColumn extends Column {
+		private double[] values = new double[0];
+
+		public void add(double value) {
+			grow();
+			values[size] = value;
+			markSet(size++);
+		}
+
+		public double get(int row) {
+			return values[row];
+		}
+
+		@Override
+		protected void grow() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, newCapacity(size));
+			}
+		}
+
+		@Override
+		public void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	static class FloatColumn extends Column {
+		private float[] values = new float[0];
+
+		public void add(float value) {
+			grow();
+			values[size] = value;
+			markSet(size++);
+		}
+
+		public float get(int row) {
+			return values[row];
+		}
+
+		@Override
+		protected void grow() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, newCapacity(size));
+			}
+		}
+
+		@Override
+		public void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	/*
+	 * For the values that have no primitive representation (byte arrays)
+	 */
+	static class ObjectColumn extends Column {
+		private Object[] values = new Object[0];
+
+		public void add(Object value) {
+			grow();
+			values[size] = value;
+			markSet(size++);
+		}
+
+		public Object get(int row) {
+			return values[row];
+		}
+
+		@Override
+		protected void grow() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, newCapacity(size));
+			}
+		}
+
+		@Override
+		public void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	/*
+	 * References are added as the oid of the referenced object, or as an embedded (wrapped) value. Once all objects are known resolve turns
+	 * the oids into the indexes of the objects in the model, so a reference costs an int. Decoded values: an index (>= 0), NULL, or
+	 * -(wrapped value) - 2.
+	 */
+	static class ReferenceColumn extends Column {
+		public static final int NULL = -1;
+		private long[] oids = new long[0];
+		private int[] values;
+
+		public void addReference(long oid) {
+			grow();
+			oids[size] = oid;
+			markSet(size++);
+		}
+
+		public void addWrapped(int wrappedIndex) {
+			grow();
+			oids[size] = -(long) wrappedIndex - 2;
+			markSet(size++);
+		}
+
+		public int get(int row) {
+			return values[row];
+		}
+
+		@Override
+		public void resolve(ColumnarIfcModel model) {
+			values = new int[size];
+			for (int i = 0; i < size; i++) {
+				long oid = oids[i];
+				values[i] = oid < 0 ? (int) oid : model.indexOf(oid);
+			}
+			oids = null;
+		}
+
+		@Override
+		protected void grow() {
+			if (size == oids.length) {
+				oids = Arrays.copyOf(oids, newCapacity(size));
+			}
+		}
+
+		@Override
+		public void trim() {
+			oids = Arrays.copyOf(oids, size);
+		}
+	}
+
+	/*
+	 * Row i holds the elements start(i) until end(i) of the elements column, which has one row per element (a nested list for two
+	 * dimensional arrays)
+	 */
+	static class ListColumn extends Column {
+		private final Column elements;
+		private int[] ends = new int[0];
+
+		ListColumn(Column elements) {
+			this.elements = elements;
+		}
+
+		public Column getElements() {
+			return elements;
+		}
+
+		/*
+		 * Called after the elements of the row have been added to the elements column
+		 */
+		public void add() {
+			grow();
+			ends[size] = elements.size();
+			markSet(size++);
+		}
+
+		@Override
+		public void addUnset() {
+			grow();
+			ends[size] = elements.size();
+			size++;
+		}
+
+		public int start(int row) {
+			return row == 0 ? 0 : ends[row - 1];
+		}
+
+		public int end(int row) {
+			return ends[row];
+		}
+
+		@Override
+		protected void grow() {
+			if (size == ends.length) {
+				ends = Arrays.copyOf(ends, newCapacity(size));
+			}
+		}
+
+		@Override
+		public void trim() {
+			ends = Arrays.copyOf(ends, size);
+			elements.trim();
+		}
+
+		@Override
+		public void resolve(ColumnarIfcModel model) {
+			elements.resolve(model);
+		}
+	}
+}
@@ -0,0 +1,584 @@
+package org.bimserver.database.columnar;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.bimserver.database.columnar.Column.DoubleColumn;
+import org.bimserver.database.columnar.Column.FloatColumn;
+import org.bimserver.database.columnar.Column.IntColumn;
+import org.bimserver.database.columnar.Column.ListColumn;
+import org.bimserver.database.columnar.Column.LongColumn;
+import org.bimserver.database.columnar.Column.ObjectColumn;
+import org.bimserver.database.columnar.Column.ReferenceColumn;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.emf.IdEObjectImpl.State;
+import org.bimserver.emf.IfcModelInterfaceException;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.ifc.ReadOnlyIfcModel;
+import org.bimserver.models.ifc2x3tc1.IfcRoot;
+import org.eclipse.emf.common.util.AbstractEList;
+import org.eclipse.emf.common.util.BasicEList;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EEnum;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcorePackage;
+
+/*
+ * Read only model for downloads. The objects are kept in columns per EClass (see ColumnarModelBuilder): oids and rids in arrays,
+ * primitive attributes in primitive arrays, strings deduplicated and references as the int index of the referenced object. An object
+ * costs about as much as its record in the database instead of a full EMF object with its lists and wrapped values.
+ *
+ * The IdEObjects this model hands out are created and loaded when they are asked for, the objects they reference load their values from
+ * the columns when they are first read (the lazy loading of IdEObjectImpl), so a serializer that walks the model once only keeps the objects
+ * it is working on. The same oid can give different instances, objects have to be compared by oid. Express ids follow from the position
+ * of an object in the model, they are the same for every instance.
+ */
+public class ColumnarIfcModel extends ReadOnlyIfcModel {
+	private static final EcorePackage ECORE_PACKAGE = EcorePackage.eINSTANCE;
+	private final int pid;
+	private final ClassTable[] tables;
+	// Index of the first object of every table
+	private final int[] tableStarts;
+	private final Map<EClass, ClassTable> tablesByEClass = new HashMap<EClass, ClassTable>();
+	private final int size;
+	// All oids sorted, with the index of the object of every oid
+	private final long[] sortedOids;
+	private final int[] sortedIndexes;
+	private final EClass[] wrappedClasses;
+	private final IntColumn wrappedValueClasses;
+	private final ObjectColumn wrappedValues;
+	private Map<String, Integer> guidIndex;
+
+	ColumnarIfcModel(PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap, int pid, List<ClassTable> tables, EClass[] wrappedClasses, IntColumn wrappedValueClasses, ObjectColumn wrappedValues) {
+		super(packageMetaData, pidRoidMap);
+		this.pid = pid;
+		this.tables = tables.toArray(new ClassTable[tables.size()]);
+		this.tableStarts = new int[this.tables.length];
+		this.wrappedClasses = wrappedClasses;
+		this.wrappedValueClasses = wrappedValueClasses;
+		this.wrappedValues = wrappedValues;
+		int index = 0;
+		for (int i = 0; i < this.tables.length; i++) {
+			ClassTable table = this.tables[i];
+			table.setFirstIndex(index);
+			tableStarts[i] = index;
+			tablesByEClass.put(table.getEClass(), table);
+			index += table.size();
+		}
+		this.size = index;
+		this.sortedOids = new long[size];
+		for (ClassTable table : this.tables) {
+			System.arraycopy(table.getOids(), 0, sortedOids, table.getFirstIndex(), table.size());
+		}
+		Arrays.sort(sortedOids);
+		this.sortedIndexes = new int[size];
+		for (ClassTable table : this.tables) {
+			for (int row = 0; row < table.size(); row++) {
+				sortedIndexes[Arrays.binarySearch(sortedOids, table.getOid(row))] = table.getFirstIndex() + row;
+			}
+		}
+		for (ClassTable table : this.tables) {
+			for (Column column : table.getColumns()) {
+				column.resolve(this);
+			}
+		}
+	}
+
+	/*
+	 * The index of the object with this oid, or -1
+	 */
+	int indexOf(long oid) {
+		int position = Arrays.binarySearch(sortedOids, oid);
+		return position < 0 ? -1 : sortedIndexes[position];
+	}
+
+	private ClassTable getTable(int index) {
+		int position = Arrays.binarySearch(tableStarts, index);
+		if (position < 0) {
+			position = -position - 2;
+		} else {
+			// Skip empty tables that start at the same index
+			while (position + 1 < tableStarts.length && tableStarts[position + 1] == index) {
+				position++;
+			}
+		}
+		return tables[position];
+	}
+
+	/*
+	 * The objects the model hands out are loaded, serializers look at the loading state (SharedJsonSerializer writes objects that are not
+	 * loaded as references). Referenced objects are only loaded when they are read.
+	 */
+	private IdEObject getObject(int index) {
+		IdEObject object = createObject(index);
+		load(object);
+		return object;
+	}
+
+	private IdEObject createObject(int index) {
+		ClassTable table = getTable(index);
+		int row = index - table.getFirstIndex();
+		EClass eClass = table.getEClass();
+		IdEObjectImpl object = (IdEObjectImpl) eClass.getEPackage().getEFactoryInstance().create(eClass);
+		object.setOid(table.getOid(row));
+		object.setPid(pid);
+		object.setRid(table.getRid(row));
+		object.setExpressId(index + 1);
+		try {
+			object.setModel(this);
+		} catch (IfcModelInterfaceException e) {
+			// Does not happen
+		}
+		object.setLoadingState(State.TO_BE_LOADED);
+		return object;
+	}
+
+	@Override
+	public void load(IdEObject idEObject) {
+		IdEObjectImpl object = (IdEObjectImpl) idEObject;
+		int index = indexOf(object.getOid());
+		if (index == -1) {
+			object.setLoaded();
+			return;
+		}
+		ClassTable table = getTable(index);
+		int row = index - table.getFirstIndex();
+		object.setLoadingState(State.LOADING);
+		object.useInverses(false);
+		List<EStructuralFeature> features = table.getFeatures();
+		for (int i = 0; i < features.size(); i++) {
+			Column column = table.getColumn(i);
+			if (column.isSet(row)) {
+				EStructuralFeature feature = features.get(i);
+				if (feature.isMany()) {
+					fillList(object, feature, (ListColumn) column, row);
+				} else {
+					object.eSet(feature, getValue(column, row, feature.getEType()));
+				}
+			}
+		}
+		object.setLoaded();
+		object.useInverses(true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void fillList(IdEObject object, EStructuralFeature feature, ListColumn column, int row) {
+		Column elements = column.getElements();
+		int start = column.start(row);
+		int end = column.end(row);
+		EClassifier type = feature.getEType();
+		if (type instanceof EClass) {
+			AbstractEList<Object> list = (AbstractEList<Object>) object.eGet(feature);
+			if (feature.getEAnnotation("twodimensionalarray") != null) {
+				EClass listClass = (EClass) type;
+				EStructuralFeature listFeature = listClass.getEStructuralFeature("List");
+				for (int i = start; i < end; i++) {
+					IdEObjectImpl listObject = (IdEObjectImpl) listClass.getEPackage().getEFactoryInstance().create(listClass);
+					listObject.setLoaded();
+					if (elements.isSet(i)) {
+						fillList(listObject, listFeature, (ListColumn) elements, i);
+					}
+					list.addUnique(listObject);
+				}
+			} else {
+				for (int i = start; i < end; i++) {
+					Object value = getReference((ReferenceColumn) elements, i);
+					if (value != null) {
+						list.addUnique(value);
+					}
+				}
+			}
+		} else {
+			BasicEList<Object> list = new BasicEList<Object>(end - start);
+			for (int i = start; i < end; i++) {
+				if (elements.isSet(i)) {
+					list.addUnique(getValue(elements, i, type));
+				}
+			}
+			object.eSet(feature, list);
+		}
+	}
+
+	private Object getValue(Column column, int row, EClassifier type) {
+		if (type instanceof EClass) {
+			return getReference((ReferenceColumn) column, row);
+		} else if (type instanceof EEnum) {
+			return ((EEnum) type).getEEnumLiteral(((IntColumn) column).get(row)).getInstance();
+		} else if (type == ECORE_PACKAGE.getEBoolean() || type == ECORE_PACKAGE.getEBooleanObject()) {
+			return ((IntColumn) column).get(row) == 1;
+		} else if (type == ECORE_PACKAGE.getEInt() || type == ECORE_PACKAGE.getEIntegerObject()) {
+			return ((IntColumn) column).get(row);
+		} else if (type == ECORE_PACKAGE.getELong() || type == ECORE_PACKAGE.getELongObject()) {
+			return ((LongColumn) column).get(row);
+		} else if (type == ECORE_PACKAGE.getEDate()) {
+			return new Date(((LongColumn) column).get(row));
+		} else if (type == ECORE_PACKAGE.getEDouble() || type == ECORE_PACKAGE.getEDoubleObject()) {
+			return ((DoubleColumn) column).get(row);
+		} else if (type == ECORE_PACKAGE.getEFloat() || type == ECORE_PACKAGE.getEFloatObject()) {
+			return ((FloatColumn) column).get(row);
+		} else {
+			return ((ObjectColumn) column).get(row);
+		}
+	}
+
+	private IdEObject getReference(ReferenceColumn column, int row) {
+		int value = column.get(row);
+		if (value >= 0) {
+			return createObject(value);
+		} else if (value == ReferenceColumn.NULL) {
+			return null;
+		}
+		int wrappedIndex = -value - 2;
+		EClass eClass = wrappedClasses[wrappedValueClasses.get(wrappedIndex)];
+		IdEObjectImpl wrapped = (IdEObjectImpl) eClass.getEPackage().getEFactoryInstance().create(eClass);
+		wrapped.setLoaded();
+		if (wrappedValues.isSet(wrappedIndex)) {
+			wrapped.eSet(eClass.getEStructuralFeature("wrappedValue"), wrappedValues.get(wrappedIndex));
+		}
+		return wrapped;
+	}
+
+	private Iterator<IdEObject> iterator(final int start, final int end) {
+		return new Iterator<IdEObject>() {
+			private int next = start;
+
+			@Override
+			public boolean hasNext() {
+				return next < end;
+			}
+
+			@Override
+			public IdEObject next() {
+				if (next >= end) {
+					throw new NoSuchElementException();
+				}
+				return getObject(next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(READ_ONLY);
+			}
+		};
+	}
+
+	@Override
+	public Iterator<IdEObject> iterator() {
+		return iterator(0, size);
+	}
+
+	@Override
+	public Collection<IdEObject> getValues() {
+		return new AbstractCollection<IdEObject>() {
+			@Override
+			public Iterator<IdEObject> iterator() {
+				return ColumnarIfcModel.this.iterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Set<Long> keySet() {
+		return new AbstractSet<Long>() {
+			@Override
+			public Iterator<Long> iterator() {
+				return new Iterator<Long>() {
+					private int next;
+
+					@Override
+					public boolean hasNext() {
+						return next < size;
+					}
+
+					@Override
+					public Long next() {
+						if (next >= size) {
+							throw new NoSuchElementException();
+						}
+						return sortedOids[next++];
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException(READ_ONLY);
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof Long && ColumnarIfcModel.this.contains((Long) o);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Map<Long, IdEObject> getObjects() {
+		return new AbstractMap<Long, IdEObject>() {
+			@Override
+			public Set<Entry<Long, IdEObject>> entrySet() {
+				return new AbstractSet<Entry<Long, IdEObject>>() {
+					@Override
+					public Iterator<Entry<Long, IdEObject>> iterator() {
+						final Iterator<IdEObject> iterator = ColumnarIfcModel.this.iterator();
+						return new Iterator<Entry<Long, IdEObject>>() {
+							@Override
+							public boolean hasNext() {
+								return iterator.hasNext();
+							}
+
+							@Override
+							public Entry<Long, IdEObject> next() {
+								IdEObject object = iterator.next();
+								return new SimpleImmutableEntry<Long, IdEObject>(object.getOid(), object);
+							}
+
+							@Override
+							public void remove() {
+								throw new UnsupportedOperationException(READ_ONLY);
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return size;
+					}
+				};
+			}
+
+			@Override
+			public IdEObject get(Object key) {
+				return key instanceof Long ? ColumnarIfcModel.this.get((Long) key) : null;
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return key instanceof Long && ColumnarIfcModel.this.contains((Long) key);
+			}
+
+			@Override
+			public Set<Long> keySet() {
+				return ColumnarIfcModel.this.keySet();
+			}
+
+			@Override
+			public Collection<IdEObject> values() {
+				return getValues();
+			}
+		};
+	}
+
+	@Override
+	public IdEObject get(long oid) {
+		int index = indexOf(oid);
+		return index == -1 ? null : getObject(index);
+	}
+
+	@Override
+	public boolean contains(long oid) {
+		return indexOf(oid) != -1;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public long getHighestOid() {
+		return size == 0 ? 0 : sortedOids[size - 1];
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends IdEObject> List<T> getAll(EClass eClass) {
+		final ClassTable table = tablesByEClass.get(eClass);
+		if (table == null) {
+			return Collections.emptyList();
+		}
+		return (List<T>) new AbstractList<IdEObject>() {
+			@Override
+			public IdEObject get(int index) {
+				if (index < 0 || index >= table.size()) {
+					throw new IndexOutOfBoundsException();
+				}
+				return getObject(table.getFirstIndex() + index);
+			}
+
+			@Override
+			public Iterator<IdEObject> iterator() {
+				return ColumnarIfcModel.this.iterator(table.getFirstIndex(), table.getFirstIndex() + table.size());
+			}
+
+			@Override
+			public int size() {
+				return table.size();
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends IdEObject> List<T> getAllWithSubTypes(EClass eClass) {
+		final List<ClassTable> matching = new ArrayList<ClassTable>();
+		for (ClassTable table : tables) {
+			if (eClass.isSuperTypeOf(table.getEClass())) {
+				matching.add(table);
+			}
+		}
+		return (List<T>) new AbstractList<IdEObject>() {
+			@Override
+			public IdEObject get(int index) {
+				if (index >= 0) {
+					for (ClassTable table : matching) {
+						if (index < table.size()) {
+							return getObject(table.getFirstIndex() + index);
+						}
+						index -= table.size();
+					}
+				}
+				throw new IndexOutOfBoundsException();
+			}
+
+			@Override
+			public int size() {
+				int result = 0;
+				for (ClassTable table : matching) {
+					result += table.size();
+				}
+				return result;
+			}
+		};
+	}
+
+	@Override
+	public int count(EClass eClass) {
+		ClassTable table = tablesByEClass.get(eClass);
+		return table == null ? 0 : table.size();
+	}
+
+	@Override
+	public Set<EClass> getUsedClasses() {
+		return Collections.unmodifiableSet(tablesByEClass.keySet());
+	}
+
+	@Override
+	public void indexGuids() {
+		if (guidIndex != null) {
+			return;
+		}
+		guidIndex = new HashMap<String, Integer>();
+		for (ClassTable table : tables) {
+			EStructuralFeature guidFeature = table.getEClass().getEStructuralFeature("GlobalId");
+			if (guidFeature != null && guidFeature.getEType() == ECORE_PACKAGE.getEString()) {
+				ObjectColumn column = (ObjectColumn) table.getColumn(table.getFeatures().indexOf(guidFeature));
+				for (int row = 0; row < table.size(); row++) {
+					if (column.isSet(row)) {
+						guidIndex.put((String) column.get(row), table.getFirstIndex() + row);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public IfcRoot getByGuid(String guid) {
+		indexGuids();
+		Integer index = guidIndex.get(guid);
+		if (index == null) {
+			return null;
+		}
+		IdEObject object = getObject(index);
+		return object instanceof IfcRoot ? (IfcRoot) object : null;
+	}
+
+	@Override
+	public boolean containsGuid(String referredGuid) {
+		indexGuids();
+		return guidIndex.containsKey(referredGuid);
+	}
+
+	@Override
+	public Set<String> getGuids(EClass eClass) {
+		return getStrings(eClass, "GlobalId");
+	}
+
+	@Override
+	public Set<String> getNames(EClass eClass) {
+		return getStrings(eClass, "Name");
+	}
+
+	private Set<String> getStrings(EClass eClass, String featureName) {
+		Set<String> result = new LinkedHashSet<String>();
+		ClassTable table = tablesByEClass.get(eClass);
+		EStructuralFeature feature = eClass.getEStructuralFeature(featureName);
+		if (table != null && feature != null && feature.getEType() == ECORE_PACKAGE.getEString()) {
+			ObjectColumn column = (ObjectColumn) table.getColumn(table.getFeatures().indexOf(feature));
+			for (int row = 0; row < table.size(); row++) {
+				if (column.isSet(row)) {
+					result.add((String) column.get(row));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public IdEObject getByName(EClass eClass, String name) {
+		ClassTable table = tablesByEClass.get(eClass);
+		EStructuralFeature feature = eClass.getEStructuralFeature("Name");
+		if (table != null && feature != null && feature.getEType() == ECORE_PACKAGE.getEString()) {
+			ObjectColumn column = (ObjectColumn) table.getColumn(table.getFeatures().indexOf(feature));
+			for (int row = 0; row < table.size(); row++) {
+				if (column.isSet(row) && name.equals(column.get(row))) {
+					return getObject(table.getFirstIndex() + row);
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,337 @@
+package org.bimserver.database.columnar;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.columnar.Column.DoubleColumn;
+import org.bimserver.database.columnar.Column.FloatColumn;
+import org.bimserver.database.columnar.Column.IntColumn;
+import org.bimserver.database.columnar.Column.ListColumn;
+import org.bimserver.database.columnar.Column.LongColumn;
+import org.bimserver.database.columnar.Column.ObjectColumn;
+import org.bimserver.database.columnar.Column.ReferenceColumn;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.QueryInterface;
+import org.bimserver.utils.BinUtils;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EEnum;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcorePackage;
+
+/*
+ * Decodes stored records straight into the columns of a ColumnarIfcModel, without creating objects. This follows the record format that
+ * DatabaseSession.convertByteArrayToObject reads, the two have to be kept in line. Features the query does not follow are skipped like
+ * fakeRead does and end up unset.
+ *
+ * Records have to be added per EClass in oid order, like the tables are scanned.
+ */
+public class ColumnarModelBuilder {
+	private static final EcorePackage ECORE_PACKAGE = EcorePackage.eINSTANCE;
+	private final Database database;
+	private final QueryInterface query;
+	private final Map<EClass, ClassTable> tables = new LinkedHashMap<EClass, ClassTable>();
+	private final Map<String, String> strings = new HashMap<String, String>();
+	private final List<EClass> wrappedClasses = new ArrayList<EClass>();
+	private final Map<EClass, Integer> wrappedClassIds = new HashMap<EClass, Integer>();
+	private final IntColumn wrappedValueClasses = new IntColumn();
+	private final ObjectColumn wrappedValues = new ObjectColumn();
+
+	public ColumnarModelBuilder(Database database, QueryInterface query) {
+		this.database = database;
+		this.query = query;
+	}
+
+	public void add(EClass eClass, long oid, int rid, byte[] value) throws BimserverDatabaseException {
+		ClassTable table = tables.get(eClass);
+		if (table == null) {
+			table = new ClassTable(eClass);
+			tables.put(eClass, table);
+		}
+		table.addObject(oid, rid);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(value);
+			byte unsettedLength = buffer.get();
+			int unsettedStart = buffer.position();
+			buffer.position(unsettedStart + unsettedLength);
+			List<EStructuralFeature> features = table.getFeatures();
+			for (int fieldCounter = 0; fieldCounter < features.size(); fieldCounter++) {
+				EStructuralFeature feature = features.get(fieldCounter);
+				Column column = table.getColumn(fieldCounter);
+				boolean isUnsetted = (value[unsettedStart + fieldCounter / 8] & (1 << (fieldCounter % 8))) != 0;
+				if (isUnsetted) {
+					column.addUnset();
+				} else if (!query.shouldFollowReference(eClass, eClass, feature)) {
+					read(null, feature, buffer);
+					column.addUnset();
+				} else {
+					read(column, feature, buffer);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new BimserverDatabaseException("Reading " + eClass.getName(), e);
+		} catch (BufferOverflowException e) {
+			throw new BimserverDatabaseException("Reading " + eClass.getName(), e);
+		}
+	}
+
+	/*
+	 * Reads the value of one feature, a null column only skips it
+	 */
+	private void read(Column column, EStructuralFeature feature, ByteBuffer buffer) throws BimserverDatabaseException {
+		EClassifier type = feature.getEType();
+		if (feature.isMany()) {
+			readList((ListColumn) column, feature, buffer);
+		} else if (type instanceof EEnum) {
+			int ordinal = buffer.getInt();
+			if (column != null) {
+				if (ordinal == -1) {
+					column.addUnset();
+				} else {
+					((IntColumn) column).add(ordinal);
+				}
+			}
+		} else if (type instanceof EClass) {
+			short cid = buffer.getShort();
+			if (cid == -1) {
+				addUnset(column);
+			} else if (cid < 0) {
+				int wrappedIndex = readWrappedValue(database.getEClassForCid((short) -cid), buffer);
+				if (column != null) {
+					((ReferenceColumn) column).addWrapped(wrappedIndex);
+				}
+			} else if (cid > 0) {
+				if (buffer.capacity() == 1 && buffer.get(0) == -1) {
+					buffer.position(buffer.position() + 1);
+					addUnset(column);
+				} else {
+					long oid = buffer.getLong();
+					if (column != null) {
+						((ReferenceColumn) column).addReference(oid);
+					}
+				}
+			} else {
+				addUnset(column);
+			}
+		} else {
+			readPrimitive(column, type, buffer, false);
+		}
+	}
+
+	private void addUnset(Column column) {
+		if (column != null) {
+			column.addUnset();
+		}
+	}
+
+	private void readList(ListColumn column, EStructuralFeature feature, ByteBuffer buffer) throws BimserverDatabaseException {
+		EClassifier type = feature.getEType();
+		Column elements = column == null ? null : column.getElements();
+		if (type instanceof EEnum) {
+			// Lists of enums are not stored
+			addUnset(column);
+		} else if (type instanceof EClass) {
+			if (buffer.capacity() == 1 && buffer.get(0) == -1) {
+				buffer.position(buffer.position() + 1);
+				addUnset(column);
+				return;
+			}
+			int listSize = buffer.getInt();
+			if (feature.getEAnnotation("twodimensionalarray") != null) {
+				EStructuralFeature listFeature = ((EClass) type).getEStructuralFeature("List");
+				for (int i = 0; i < listSize; i++) {
+					readList((ListColumn) elements, listFeature, buffer);
+				}
+			} else {
+				for (int i = 0; i < listSize; i++) {
+					short cid = buffer.getShort();
+					if (cid == -1) {
+						// null, not added to the list
+					} else if (cid < 0) {
+						int wrappedIndex = readWrappedValue(database.getEClassForCid((short) -cid), buffer);
+						if (elements != null) {
+							((ReferenceColumn) elements).addWrapped(wrappedIndex);
+						}
+					} else if (cid > 0) {
+						long oid = buffer.getLong();
+						if (elements != null) {
+							((ReferenceColumn) elements).addReference(oid);
+						}
+					}
+				}
+			}
+			if (column != null) {
+				column.add();
+			}
+		} else {
+			int listSize = buffer.getInt();
+			for (int i = 0; i < listSize; i++) {
+				readPrimitive(elements, type, buffer, true);
+			}
+			if (column != null) {
+				column.add();
+			}
+		}
+	}
+
+	/*
+	 * Null values are not added to lists
+	 */
+	private void readPrimitive(Column column, EClassifier type, ByteBuffer buffer, boolean inList) throws BimserverDatabaseException {
+		if (type == ECORE_PACKAGE.getEString()) {
+			int length = buffer.getInt();
+			if (length == -1) {
+				if (column != null && !inList) {
+					column.addUnset();
+				}
+			} else if (column == null) {
+				buffer.position(buffer.position() + length);
+			} else {
+				((ObjectColumn) column).add(dedup(BinUtils.readString(buffer, length)));
+			}
+		} else if (type == ECORE_PACKAGE.getEInt() || type == ECORE_PACKAGE.getEIntegerObject()) {
+			int value = buffer.getInt();
+			if (column != null) {
+				((IntColumn) column).add(value);
+			}
+		} else if (type == ECORE_PACKAGE.getELong() || type == ECORE_PACKAGE.getELongObject()) {
+			long value = buffer.getLong();
+			if (column != null) {
+				((LongColumn) column).add(value);
+			}
+		} else if (type == ECORE_PACKAGE.getEFloat() || type == ECORE_PACKAGE.getEFloatObject()) {
+			float value = buffer.getFloat();
+			if (column != null) {
+				((FloatColumn) column).add(value);
+			}
+		} else if (type == ECORE_PACKAGE.getEDouble() || type == ECORE_PACKAGE.getEDoubleObject()) {
+			double value = buffer.getDouble();
+			if (column != null) {
+				((DoubleColumn) column).add(value);
+			}
+		} else if (type == ECORE_PACKAGE.getEBoolean() || type == ECORE_PACKAGE.getEBooleanObject()) {
+			byte value = buffer.get();
+			if (column != null) {
+				((IntColumn) column).add(value == 1 ? 1 : 0);
+			}
+		} else if (type == ECORE_PACKAGE.getEDate()) {
+			long value = buffer.getLong();
+			if (column != null) {
+				if (value != -1L) {
+					((LongColumn) column).add(value);
+				} else if (!inList) {
+					column.addUnset();
+				}
+			}
+		} else if (type == ECORE_PACKAGE.getEByteArray()) {
+			byte[] value = new byte[buffer.getInt()];
+			buffer.get(value);
+			if (column != null) {
+				((ObjectColumn) column).add(value);
+			}
+		} else if (type instanceof EEnum) {
+			int ordinal = buffer.getInt();
+			if (column != null) {
+				((IntColumn) column).add(ordinal);
+			}
+		} else {
+			throw new BimserverDatabaseException("Unsupported type " + type.getName());
+		}
+	}
+
+	private int readWrappedValue(EClass eClass, ByteBuffer buffer) throws BimserverDatabaseException {
+		EClassifier type = eClass.getEStructuralFeature("wrappedValue").getEType();
+		Object value;
+		if (type == ECORE_PACKAGE.getEString()) {
+			int length = buffer.getInt();
+			value = length == -1 ? null : dedup(BinUtils.readString(buffer, length));
+		} else if (type == ECORE_PACKAGE.getEInt() || type == ECORE_PACKAGE.getEIntegerObject()) {
+			value = buffer.getInt();
+		} else if (type == ECORE_PACKAGE.getELong() || type == ECORE_PACKAGE.getELongObject()) {
+			value = buffer.getLong();
+		} else if (type == ECORE_PACKAGE.getEFloat() || type == ECORE_PACKAGE.getEFloatObject()) {
+			value = buffer.getFloat();
+		} else if (type == ECORE_PACKAGE.getEDouble() || type == ECORE_PACKAGE.getEDoubleObject()) {
+			value = buffer.getDouble();
+		} else if (type == ECORE_PACKAGE.getEBoolean() || type == ECORE_PACKAGE.getEBooleanObject()) {
+			value = buffer.get() == 1;
+		} else if (type == ECORE_PACKAGE.getEDate()) {
+			long time = buffer.getLong();
+			value = time == -1L ? null : new Date(time);
+		} else if (type == ECORE_PACKAGE.getEByteArray()) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			value = bytes;
+		} else if (type instanceof EEnum) {
+			value = ((EEnum) type).getEEnumLiteral(buffer.getInt()).getInstance();
+		} else {
+			throw new BimserverDatabaseException("Unsupported wrapped type " + type.getName());
+		}
+		Integer classId = wrappedClassIds.get(eClass);
+		if (classId == null) {
+			classId = wrappedClasses.size();
+			wrappedClasses.add(eClass);
+			wrappedClassIds.put(eClass, classId);
+		}
+		wrappedValueClasses.add(classId);
+		if (value == null) {
+			wrappedValues.addUnset();
+		} else {
+			wrappedValues.add(value);
+		}
+		return wrappedValues.size() - 1;
+	}
+
+	private String dedup(String value) {
+		String existing = strings.get(value);
+		if (existing == null) {
+			strings.put(value, value);
+			return value;
+		}
+		return existing;
+	}
+
+	/*
+	 * The builder can not be used anymore afterwards
+	 */
+	public ColumnarIfcModel build(PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap) {
+		strings.clear();
+		wrappedValueClasses.trim();
+		wrappedValues.trim();
+		List<ClassTable> result = new ArrayList<ClassTable>(tables.size());
+		for (ClassTable table : tables.values()) {
+			if (table.size() > 0) {
+				table.trim();
+				result.add(table);
+			}
+		}
+		tables.clear();
+		return new ColumnarIfcModel(packageMetaData, pidRoidMap, query.getPid(), result, wrappedClasses.toArray(new EClass[wrappedClasses.size()]), wrappedValueClasses, wrappedValues);
+	}
+}
@@ -97,6 +97,8 @@ public class Migrator {
 		try {
 			Schema schema = migrate(session);
 			session.commit();
+			// Migrations rewrite records directly in the key value store
+			database.getRecordCache().invalidateAll();
 			return schema;
 		} catch (BimserverDatabaseException e) {
 			throw new MigrationException(e);
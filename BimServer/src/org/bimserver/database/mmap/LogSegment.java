@@ -0,0 +1,85 @@
+package org.bimserver.database.mmap;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/*
+ * One file of the log, mapped into memory as a whole. Files are created at their full size (sparse on most file systems) and filled up
+ * from the start, the part after the last block is all zeroes or the remains of an interrupted write.
+ */
+public class LogSegment {
+	private final int index;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer buffer;
+	private final int size;
+
+	public LogSegment(int index, File file, int size) throws IOException {
+		this.index = index;
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		if (randomAccessFile.length() < size) {
+			randomAccessFile.setLength(size);
+		}
+		this.size = (int) randomAccessFile.length();
+		this.buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, this.size);
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/*
+	 * A view on this segment with its own position, so reads and writes of different threads do not interfere
+	 */
+	public ByteBuffer view() {
+		return buffer.duplicate();
+	}
+
+	public void read(int offset, byte[] destination) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(destination);
+	}
+
+	public void force() {
+		buffer.force();
+	}
+
+	public void close() throws IOException {
+		buffer.force();
+		FileChannel channel = randomAccessFile.getChannel();
+		channel.close();
+		randomAccessFile.close();
+	}
+}
@@ -0,0 +1,862 @@
+package org.bimserver.database.mmap;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.bimserver.database.BimTransaction;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.BimserverLockConflictException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.KeyValueStore;
+import org.bimserver.database.Record;
+import org.bimserver.database.RecordIterator;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.WriteBatch;
+import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.database.mmap.MemoryMappedTable.TableKey;
+import org.bimserver.database.mmap.MemoryMappedTable.Version;
+import org.bimserver.database.mmap.MemoryMappedTransaction.Write;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/*
+ * A KeyValueStore for read heavy servers. All records are appended to a log of memory mapped files, the keys of every table are kept in
+ * a sorted in-memory index that points into the log. A read is an index lookup and one copy out of the mapping, it never waits for
+ * a lock and never goes through a cache of its own, the operating system page cache is the only cache.
+ *
+ * The log consists of blocks: [int magic][int body length][body][long crc32 of the body]. A body is one of
+ * - table: [byte 1][int table id][byte duplicates][int name length][name]
+ * - data: [byte 2][long transaction id][int nr of operations] and per operation [byte put or delete][int table id][int key length][key][int value length][value]
+ * - commit: [byte 3][long transaction id][long version]
+ * Transactions append their data while they run and a commit block when they commit, only data of committed transactions is used
+ * when the log is read at startup. Space of overwritten, deleted and rolled back records is never reclaimed, copying the store
+ * with KeyValueStoreMigrator compacts it. The keys of all records have to fit on the heap.
+ */
+public class MemoryMappedKeyValueStore implements KeyValueStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MemoryMappedKeyValueStore.class);
+	public static final String SEGMENT_EXTENSION = ".mmkv";
+	private static final int SEGMENT_SIZE = 256 * 1024 * 1024;
+	private static final int MAGIC = 0x4D4D4B56;
+	private static final byte BLOCK_TABLE = 1;
+	private static final byte BLOCK_DATA = 2;
+	private static final byte BLOCK_COMMIT = 3;
+	private static final byte OPERATION_PUT = 1;
+	private static final byte OPERATION_DELETE = 2;
+	private final File dataDir;
+	private final boolean isNew;
+	private final Map<String, MemoryMappedTable> tables = new ConcurrentHashMap<String, MemoryMappedTable>();
+	private final List<LogSegment> segments = new CopyOnWriteArrayList<LogSegment>();
+	// Guards currentSegment, writePosition and dirtySegments
+	private final Object appendLock = new Object();
+	// Commits and table creations are serialized
+	private final Object commitLock = new Object();
+	private final Set<LogSegment> dirtySegments = new LinkedHashSet<LogSegment>();
+	private final AtomicLong transactionCounter = new AtomicLong();
+	// Number of running transactions per start version, the oldest one decides which versions of a record have to be kept
+	private final TreeMap<Long, Integer> liveStartVersions = new TreeMap<Long, Integer>();
+	private LogSegment currentSegment;
+	private int writePosition;
+	private int nextTableId = 1;
+	private volatile long committedVersion;
+	private long committedWrites;
+	private long reads;
+	private long lastPrintedReads = 0;
+	private long lastPrintedCommittedWrites = 0;
+
+	private static class Location {
+		private final LogSegment segment;
+		private final int bodyOffset;
+
+		private Location(LogSegment segment, int bodyOffset) {
+			this.segment = segment;
+			this.bodyOffset = bodyOffset;
+		}
+	}
+
+	/*
+	 * An operation read from the log, applied when the commit block of its transaction is read
+	 */
+	private static class PendingOperation {
+		private final MemoryMappedTable table;
+		private final TableKey tableKey;
+		private final int segment;
+		private final int offset;
+		private final int length;
+		private final boolean deleted;
+
+		private PendingOperation(MemoryMappedTable table, TableKey tableKey, int segment, int offset, int length, boolean deleted) {
+			this.table = table;
+			this.tableKey = tableKey;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.deleted = deleted;
+		}
+	}
+
+	private static class Operation {
+		private final MemoryMappedTable table;
+		private final byte[] key;
+		private final byte[] value;
+		private final boolean deleted;
+		private final boolean noOverwrite;
+
+		private Operation(MemoryMappedTable table, byte[] key, byte[] value, boolean deleted, boolean noOverwrite) {
+			this.table = table;
+			this.key = key;
+			this.value = value;
+			this.deleted = deleted;
+			this.noOverwrite = noOverwrite;
+		}
+
+		private TableKey getTableKey() {
+			return new TableKey(key, table.hasDuplicates() ? value : null);
+		}
+	}
+
+	public MemoryMappedKeyValueStore(File dataDir) throws DatabaseInitException {
+		this.dataDir = dataDir;
+		if (dataDir.isDirectory()) {
+			isNew = getSegmentFiles(dataDir).length == 0;
+			LOGGER.info((isNew ? "Empty" : "Non-empty") + " database directory found \"" + dataDir.getAbsolutePath() + "\"");
+		} else {
+			isNew = true;
+			LOGGER.info("No database directory found, creating \"" + dataDir.getAbsolutePath() + "\"");
+			if (!dataDir.mkdirs()) {
+				throw new DatabaseInitException("Error creating database dir \"" + dataDir.getAbsolutePath() + "\"");
+			}
+		}
+		try {
+			readLog();
+		} catch (IOException e) {
+			throw new DatabaseInitException(e);
+		}
+	}
+
+	public static File[] getSegmentFiles(File dataDir) {
+		File[] files = dataDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_EXTENSION);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/*
+	 * Rebuilds the tables from the log. Blocks with a wrong checksum were being written when the server stopped, they are skipped.
+	 */
+	private void readLog() throws IOException {
+		Map<Long, List<PendingOperation>> pending = new HashMap<Long, List<PendingOperation>>();
+		Map<Integer, MemoryMappedTable> tablesById = new HashMap<Integer, MemoryMappedTable>();
+		File[] files = getSegmentFiles(dataDir);
+		for (int i = 0; i < files.length; i++) {
+			LogSegment segment = new LogSegment(i, files[i], 0);
+			segments.add(segment);
+			ByteBuffer view = segment.view();
+			int position = 0;
+			while (position + 16 <= segment.getSize()) {
+				view.position(position);
+				if (view.getInt() != MAGIC) {
+					break;
+				}
+				int bodyLength = view.getInt();
+				if (bodyLength < 0 || bodyLength > segment.getSize() - position - 16) {
+					break;
+				}
+				byte[] body = new byte[bodyLength];
+				view.get(body);
+				long checksum = view.getLong();
+				int bodyOffset = position + 8;
+				position += 16 + bodyLength;
+				if (checksum(body) == checksum) {
+					replay(segment, bodyOffset, ByteBuffer.wrap(body), tablesById, pending);
+				}
+			}
+			currentSegment = segment;
+			writePosition = position;
+		}
+		if (currentSegment != null) {
+			clearTail();
+		}
+		LOGGER.info("Read " + segments.size() + " log segments, " + tables.size() + " tables, version " + committedVersion);
+	}
+
+	/*
+	 * Parts of blocks after the end of the log can have reached the disk while the block at the end did not. None of them belongs to a
+	 * committed transaction (a commit forces everything before it). They are zeroed, otherwise they could be read as part of the log once
+	 * new blocks have been appended in front of them.
+	 */
+	private void clearTail() {
+		ByteBuffer view = currentSegment.view();
+		boolean cleared = false;
+		for (int position = writePosition; position < currentSegment.getSize(); position++) {
+			if (view.get(position) != 0) {
+				view.put(position, (byte) 0);
+				cleared = true;
+			}
+		}
+		if (cleared) {
+			LOGGER.info("Removed unfinished writes from the end of the log");
+			currentSegment.force();
+		}
+	}
+
+	private void replay(LogSegment segment, int bodyOffset, ByteBuffer body, Map<Integer, MemoryMappedTable> tablesById, Map<Long, List<PendingOperation>> pending) {
+		byte blockType = body.get();
+		if (blockType == BLOCK_TABLE) {
+			int tableId = body.getInt();
+			boolean duplicates = body.get() == 1;
+			byte[] name = new byte[body.getInt()];
+			body.get(name);
+			MemoryMappedTable table = new MemoryMappedTable(tableId, new String(name, Charsets.UTF_8), duplicates);
+			tables.put(table.getName(), table);
+			tablesById.put(tableId, table);
+			nextTableId = Math.max(nextTableId, tableId + 1);
+		} else if (blockType == BLOCK_DATA) {
+			long transactionId = body.getLong();
+			updateTransactionCounter(transactionId);
+			List<PendingOperation> operations = pending.get(transactionId);
+			if (operations == null) {
+				operations = new ArrayList<PendingOperation>();
+				pending.put(transactionId, operations);
+			}
+			int nrOperations = body.getInt();
+			for (int i = 0; i < nrOperations; i++) {
+				boolean deleted = body.get() == OPERATION_DELETE;
+				MemoryMappedTable table = tablesById.get(body.getInt());
+				byte[] key = new byte[body.getInt()];
+				body.get(key);
+				int valueLength = body.getInt();
+				int valueOffset = body.position();
+				byte[] value = null;
+				if (table.hasDuplicates()) {
+					value = new byte[valueLength];
+					body.get(value);
+				} else {
+					body.position(body.position() + valueLength);
+				}
+				operations.add(new PendingOperation(table, new TableKey(key, value), segment.getIndex(), bodyOffset + valueOffset, valueLength, deleted));
+			}
+		} else if (blockType == BLOCK_COMMIT) {
+			long transactionId = body.getLong();
+			long version = body.getLong();
+			updateTransactionCounter(transactionId);
+			List<PendingOperation> operations = pending.remove(transactionId);
+			if (operations != null) {
+				for (PendingOperation operation : operations) {
+					operation.table.apply(operation.tableKey, new Version(version, operation.segment, operation.offset, operation.length, operation.deleted), version);
+				}
+			}
+			committedVersion = version;
+		}
+	}
+
+	private void updateTransactionCounter(long transactionId) {
+		if (transactionId > transactionCounter.get()) {
+			transactionCounter.set(transactionId);
+		}
+	}
+
+	private long checksum(byte[] body) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(body);
+		return crc32.getValue();
+	}
+
+	/*
+	 * The header is written while holding the lock, the body after that, so a block that was not finished never hides the blocks after it
+	 */
+	private Location append(byte[] body) throws BimserverDatabaseException {
+		Location location;
+		synchronized (appendLock) {
+			int blockSize = body.length + 16;
+			try {
+				if (currentSegment == null || writePosition + blockSize > currentSegment.getSize()) {
+					File file = new File(dataDir, String.format("%08d", segments.size()) + SEGMENT_EXTENSION);
+					currentSegment = new LogSegment(segments.size(), file, Math.max(SEGMENT_SIZE, blockSize));
+					segments.add(currentSegment);
+					writePosition = 0;
+				}
+			} catch (IOException e) {
+				throw new BimserverDatabaseException(e);
+			}
+			ByteBuffer view = currentSegment.view();
+			view.position(writePosition);
+			view.putInt(MAGIC);
+			view.putInt(body.length);
+			location = new Location(currentSegment, writePosition + 8);
+			writePosition += blockSize;
+			dirtySegments.add(currentSegment);
+		}
+		ByteBuffer view = location.segment.view();
+		view.position(location.bodyOffset);
+		view.put(body);
+		view.putLong(checksum(body));
+		return location;
+	}
+
+	private void forceDirtySegments() {
+		List<LogSegment> toForce;
+		synchronized (appendLock) {
+			toForce = new ArrayList<LogSegment>(dirtySegments);
+			dirtySegments.clear();
+		}
+		for (LogSegment segment : toForce) {
+			segment.force();
+		}
+	}
+
+	private void write(MemoryMappedTransaction transaction, List<Operation> operations) throws BimserverDatabaseException {
+		int bodyLength = 13;
+		for (Operation operation : operations) {
+			bodyLength += 13 + operation.key.length + operation.value.length;
+		}
+		ByteBuffer body = ByteBuffer.allocate(bodyLength);
+		body.put(BLOCK_DATA);
+		body.putLong(transaction.getId());
+		body.putInt(operations.size());
+		int[] valueOffsets = new int[operations.size()];
+		for (int i = 0; i < operations.size(); i++) {
+			Operation operation = operations.get(i);
+			body.put(operation.deleted ? OPERATION_DELETE : OPERATION_PUT);
+			body.putInt(operation.table.getId());
+			body.putInt(operation.key.length);
+			body.put(operation.key);
+			body.putInt(operation.value.length);
+			valueOffsets[i] = body.position();
+			body.put(operation.value);
+		}
+		Location location = append(body.array());
+		for (int i = 0; i < operations.size(); i++) {
+			Operation operation = operations.get(i);
+			transaction.addWrite(operation.table, operation.getTableKey(), new Write(location.segment.getIndex(), location.bodyOffset + valueOffsets[i], operation.value.length, operation.deleted, operation.noOverwrite));
+		}
+	}
+
+	/*
+	 * Writes outside of a session are committed right away, like auto commit in Berkeley
+	 */
+	private void write(DatabaseSession databaseSession, List<Operation> operations) throws BimserverDatabaseException {
+		MemoryMappedTransaction transaction = getTransaction(databaseSession);
+		if (transaction == null) {
+			transaction = (MemoryMappedTransaction) startTransaction();
+			write(transaction, operations);
+			transaction.commit();
+		} else {
+			write(transaction, operations);
+		}
+	}
+
+	void commit(MemoryMappedTransaction transaction) throws BimserverDatabaseException {
+		if (transaction.getWrites().isEmpty()) {
+			return;
+		}
+		synchronized (commitLock) {
+			for (Map.Entry<MemoryMappedTable, TreeMap<TableKey, Write>> tableWrites : transaction.getWrites().entrySet()) {
+				MemoryMappedTable table = tableWrites.getKey();
+				if (table.hasDuplicates()) {
+					// Index entries are added and removed independently of each other, there is nothing to conflict on
+					continue;
+				}
+				for (Map.Entry<TableKey, Write> write : tableWrites.getValue().entrySet()) {
+					Version current = table.getRecords().get(write.getKey());
+					if (current != null && current.getVersion() > transaction.getStartVersion()) {
+						if (write.getValue().isNoOverwrite() && !current.isDeleted()) {
+							throw createKeyExistsException(write.getKey().getKey());
+						}
+						throw new BimserverConcurrentModificationDatabaseException("Record in " + table.getName() + " has been changed by another transaction");
+					}
+				}
+			}
+			long version = committedVersion + 1;
+			long oldestReadVersion = getOldestReadVersion();
+			ByteBuffer body = ByteBuffer.allocate(17);
+			body.put(BLOCK_COMMIT);
+			body.putLong(transaction.getId());
+			body.putLong(version);
+			append(body.array());
+			forceDirtySegments();
+			for (Map.Entry<MemoryMappedTable, TreeMap<TableKey, Write>> tableWrites : transaction.getWrites().entrySet()) {
+				for (Map.Entry<TableKey, Write> entry : tableWrites.getValue().entrySet()) {
+					Write write = entry.getValue();
+					tableWrites.getKey().apply(entry.getKey(), new Version(version, write.getSegment(), write.getOffset(), write.getLength(), write.isDeleted()), oldestReadVersion);
+				}
+			}
+			committedVersion = version;
+		}
+	}
+
+	/*
+	 * Transactions that start from now on read at committedVersion or later, so that is the oldest read version when none are running
+	 */
+	private long getOldestReadVersion() {
+		synchronized (liveStartVersions) {
+			if (liveStartVersions.isEmpty()) {
+				return committedVersion;
+			}
+			return Math.min(liveStartVersions.firstKey(), committedVersion);
+		}
+	}
+
+	void endTransaction(MemoryMappedTransaction transaction) {
+		synchronized (liveStartVersions) {
+			Integer count = liveStartVersions.get(transaction.getStartVersion());
+			if (count == null) {
+				return;
+			}
+			if (count == 1) {
+				liveStartVersions.remove(transaction.getStartVersion());
+			} else {
+				liveStartVersions.put(transaction.getStartVersion(), count - 1);
+			}
+		}
+	}
+
+	/*
+	 * Reads without a transaction see the latest committed version, reads in a transaction the version it started at
+	 */
+	private long getReadVersion(MemoryMappedTransaction transaction) {
+		return transaction == null ? committedVersion : transaction.getStartVersion();
+	}
+
+	private MemoryMappedTransaction getTransaction(DatabaseSession databaseSession) {
+		if (databaseSession != null) {
+			return (MemoryMappedTransaction) databaseSession.getBimTransaction();
+		}
+		return null;
+	}
+
+	private MemoryMappedTable getTable(String tableName) throws BimserverDatabaseException {
+		MemoryMappedTable table = tables.get(tableName);
+		if (table == null) {
+			throw new BimserverDatabaseException("Table " + tableName + " not found");
+		}
+		return table;
+	}
+
+	private byte[] read(MemoryMappedTable table, TableKey tableKey, int segment, int offset, int length) {
+		if (table.hasDuplicates()) {
+			return tableKey.getValue();
+		}
+		byte[] value = new byte[length];
+		segments.get(segment).read(offset, value);
+		return value;
+	}
+
+	/*
+	 * The first record at or after from (from null is the start of the table) as seen by the transaction: its own writes on top of
+	 * everything that has been committed
+	 */
+	MemoryMappedRecord ceiling(MemoryMappedTable table, MemoryMappedTransaction transaction, TableKey from, boolean inclusive) {
+		long readVersion = getReadVersion(transaction);
+		TreeMap<TableKey, Write> writes = transaction == null ? null : transaction.getWrites(table);
+		while (true) {
+			Map.Entry<TableKey, Version> committed = table.getVisibleCeiling(from, inclusive, readVersion);
+			Map.Entry<TableKey, Write> own = null;
+			if (writes != null) {
+				own = from == null ? writes.firstEntry() : (inclusive ? writes.ceilingEntry(from) : writes.higherEntry(from));
+			}
+			if (own != null && (committed == null || own.getKey().compareTo(committed.getKey()) <= 0)) {
+				Write write = own.getValue();
+				if (write.isDeleted()) {
+					from = own.getKey();
+					inclusive = false;
+					continue;
+				}
+				return new MemoryMappedRecord(own.getKey(), read(table, own.getKey(), write.getSegment(), write.getOffset(), write.getLength()));
+			}
+			if (committed == null) {
+				return null;
+			}
+			Version version = MemoryMappedTable.getVisible(committed.getValue(), readVersion);
+			return new MemoryMappedRecord(committed.getKey(), read(table, committed.getKey(), version.getSegment(), version.getOffset(), version.getLength()));
+		}
+	}
+
+	MemoryMappedRecord last(MemoryMappedTable table, MemoryMappedTransaction transaction) {
+		long readVersion = getReadVersion(transaction);
+		TreeMap<TableKey, Write> writes = transaction == null ? null : transaction.getWrites(table);
+		TableKey before = null;
+		while (true) {
+			Map.Entry<TableKey, Version> committed = table.getVisibleLower(before, readVersion);
+			Map.Entry<TableKey, Write> own = null;
+			if (writes != null) {
+				own = before == null ? writes.lastEntry() : writes.lowerEntry(before);
+			}
+			if (own != null && (committed == null || own.getKey().compareTo(committed.getKey()) >= 0)) {
+				Write write = own.getValue();
+				if (write.isDeleted()) {
+					before = own.getKey();
+					continue;
+				}
+				return new MemoryMappedRecord(own.getKey(), read(table, own.getKey(), write.getSegment(), write.getOffset(), write.getLength()));
+			}
+			if (committed == null) {
+				return null;
+			}
+			Version version = MemoryMappedTable.getVisible(committed.getValue(), readVersion);
+			return new MemoryMappedRecord(committed.getKey(), read(table, committed.getKey(), version.getSegment(), version.getOffset(), version.getLength()));
+		}
+	}
+
+	private boolean exists(MemoryMappedTable table, MemoryMappedTransaction transaction, TableKey tableKey) {
+		MemoryMappedRecord record = ceiling(table, transaction, tableKey, true);
+		return record != null && record.getTableKey().equals(tableKey);
+	}
+
+	private BimserverConcurrentModificationDatabaseException createKeyExistsException(byte[] key) {
+		if (key.length == 16) {
+			ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+			int pid = keyBuffer.getInt();
+			long oid = keyBuffer.getLong();
+			int rid = -keyBuffer.getInt();
+			return new BimserverConcurrentModificationDatabaseException("Key exists: pid: " + pid + ", oid: " + oid + ", rid: " + rid);
+		} else {
+			return new BimserverConcurrentModificationDatabaseException("Key exists: ");
+		}
+	}
+
+	private boolean createTable(String tableName, boolean duplicates) throws BimserverDatabaseException {
+		synchronized (commitLock) {
+			if (tables.containsKey(tableName)) {
+				throw new BimserverDatabaseException("Table " + tableName + " already created");
+			}
+			MemoryMappedTable table = new MemoryMappedTable(nextTableId++, tableName, duplicates);
+			byte[] name = tableName.getBytes(Charsets.UTF_8);
+			ByteBuffer body = ByteBuffer.allocate(10 + name.length);
+			body.put(BLOCK_TABLE);
+			body.putInt(table.getId());
+			body.put((byte) (duplicates ? 1 : 0));
+			body.putInt(name.length);
+			body.put(name);
+			append(body.array());
+			forceDirtySegments();
+			tables.put(tableName, table);
+			return true;
+		}
+	}
+
+	@Override
+	public boolean createTable(String tableName, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		return createTable(tableName, false);
+	}
+
+	@Override
+	public boolean createIndexTable(String tableName, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		return createTable(tableName, true);
+	}
+
+	/*
+	 * All tables are open once the log has been read
+	 */
+	@Override
+	public boolean openTable(String tableName) throws BimserverDatabaseException {
+		getTable(tableName);
+		return true;
+	}
+
+	@Override
+	public void openIndexTable(String indexTableName) throws BimserverDatabaseException {
+		if (!getTable(indexTableName).hasDuplicates()) {
+			throw new BimserverDatabaseException("Table " + indexTableName + " is not an index table");
+		}
+	}
+
+	@Override
+	public boolean isIndexTable(String tableName) throws BimserverDatabaseException {
+		return getTable(tableName).hasDuplicates();
+	}
+
+	@Override
+	public boolean containsTable(String tableName) {
+		return tables.containsKey(tableName);
+	}
+
+	@Override
+	public Set<String> getAllTableNames() {
+		return new HashSet<String>(tables.keySet());
+	}
+
+	@Override
+	public BimTransaction startTransaction() {
+		// Registered while holding the lock, so a commit can not drop the versions this transaction reads before it is registered
+		synchronized (liveStartVersions) {
+			long startVersion = committedVersion;
+			Integer count = liveStartVersions.get(startVersion);
+			liveStartVersions.put(startVersion, count == null ? 1 : count + 1);
+			return new MemoryMappedTransaction(this, transactionCounter.incrementAndGet(), startVersion);
+		}
+	}
+
+	@Override
+	public void commit(DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException {
+		getTransaction(databaseSession).commit();
+	}
+
+	@Override
+	public void store(String tableName, byte[] key, byte[] value, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		store(tableName, key, value, 0, value.length, databaseSession);
+	}
+
+	@Override
+	public void store(String tableName, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException {
+		List<Operation> operations = new ArrayList<Operation>(1);
+		operations.add(new Operation(getTable(tableName), key.clone(), Arrays.copyOfRange(value, offset, offset + length), false, false));
+		write(databaseSession, operations);
+	}
+
+	@Override
+	public void storeNoOverwrite(String tableName, byte[] key, byte[] value, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
+		storeNoOverwrite(tableName, key, value, 0, value.length, databaseSession);
+	}
+
+	@Override
+	public void storeNoOverwrite(String tableName, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException {
+		Operation operation = new Operation(getTable(tableName), key.clone(), Arrays.copyOfRange(value, offset, offset + length), false, true);
+		if (exists(operation.table, getTransaction(databaseSession), operation.getTableKey())) {
+			throw createKeyExistsException(key);
+		}
+		List<Operation> operations = new ArrayList<Operation>(1);
+		operations.add(operation);
+		write(databaseSession, operations);
+	}
+
+	/*
+	 * The whole batch is appended to the log as one block
+	 */
+	@Override
+	public void store(WriteBatch writeBatch, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
+		if (writeBatch.isEmpty()) {
+			return;
+		}
+		MemoryMappedTransaction transaction = getTransaction(databaseSession);
+		List<Operation> operations = new ArrayList<Operation>(writeBatch.size());
+		for (String tableName : writeBatch.getTableNames()) {
+			MemoryMappedTable table = getTable(tableName);
+			TableKey previous = null;
+			for (WriteBatch.Entry entry : writeBatch.getSortedEntries(tableName)) {
+				Operation operation = new Operation(table, entry.getKey(), entry.getValue(), false, entry.isNoOverwrite());
+				TableKey tableKey = operation.getTableKey();
+				if (entry.isNoOverwrite() && (tableKey.equals(previous) || exists(table, transaction, tableKey))) {
+					throw createKeyExistsException(entry.getKey());
+				}
+				operations.add(operation);
+				previous = tableKey;
+			}
+		}
+		write(databaseSession, operations);
+	}
+
+	@Override
+	public byte[] get(String tableName, byte[] key, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		MemoryMappedRecord record = ceiling(getTable(tableName), getTransaction(databaseSession), new TableKey(key, null), true);
+		if (record != null && Arrays.equals(record.getKey(), key)) {
+			return record.getValue();
+		}
+		return null;
+	}
+
+	@Override
+	public List<byte[]> getDuplicates(String tableName, byte[] keyBytes, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		MemoryMappedTable table = getTable(tableName);
+		MemoryMappedTransaction transaction = getTransaction(databaseSession);
+		List<byte[]> result = new ArrayList<byte[]>();
+		MemoryMappedRecord record = ceiling(table, transaction, new TableKey(keyBytes, null), true);
+		while (record != null && Arrays.equals(record.getKey(), keyBytes)) {
+			result.add(record.getValue());
+			record = ceiling(table, transaction, new TableKey(record.getKey(), table.hasDuplicates() ? record.getValue() : null), false);
+		}
+		return result;
+	}
+
+	@Override
+	public byte[] getFirstStartingWith(String tableName, byte[] key, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		SearchingRecordIterator recordIterator = getRecordIterator(tableName, key, key, databaseSession);
+		try {
+			Record record = recordIterator.next(key);
+			if (record == null) {
+				return null;
+			}
+			return record.getValue();
+		} finally {
+			recordIterator.close();
+		}
+	}
+
+	@Override
+	public RecordIterator getRecordIterator(String tableName, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		return new MemoryMappedRecordIterator(this, getTable(tableName), getTransaction(databaseSession), null, null);
+	}
+
+	@Override
+	public SearchingRecordIterator getRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		return new MemoryMappedRecordIterator(this, getTable(tableName), getTransaction(databaseSession), mustStartWith, startSearchingAt);
+	}
+
+	@Override
+	public void delete(String tableName, byte[] key, DatabaseSession databaseSession) throws BimserverLockConflictException {
+		try {
+			MemoryMappedTable table = getTable(tableName);
+			List<Operation> operations = new ArrayList<Operation>();
+			if (table.hasDuplicates()) {
+				for (byte[] value : getDuplicates(tableName, key, databaseSession)) {
+					operations.add(new Operation(table, key.clone(), value, true, false));
+				}
+			} else {
+				operations.add(new Operation(table, key.clone(), new byte[0], true, false));
+			}
+			if (!operations.isEmpty()) {
+				write(databaseSession, operations);
+			}
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+	}
+
+	@Override
+	public void delete(String indexTableName, byte[] featureBytesOldIndex, byte[] array, DatabaseSession databaseSession) throws BimserverLockConflictException {
+		try {
+			MemoryMappedTable table = getTable(indexTableName);
+			byte[] value = table.hasDuplicates() ? array : get(indexTableName, featureBytesOldIndex, databaseSession);
+			if (value != null && Arrays.equals(value, array) && exists(table, getTransaction(databaseSession), new TableKey(featureBytesOldIndex, table.hasDuplicates() ? array : null))) {
+				List<Operation> operations = new ArrayList<Operation>(1);
+				operations.add(new Operation(table, featureBytesOldIndex.clone(), array.clone(), true, false));
+				write(databaseSession, operations);
+			}
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+	}
+
+	@Override
+	public long count(String tableName) {
+		MemoryMappedTable table = tables.get(tableName);
+		if (table == null) {
+			LOGGER.error("Table " + tableName + " not found");
+			return -1;
+		}
+		return table.count(committedVersion);
+	}
+
+	@Override
+	public void sync() {
+		for (LogSegment segment : segments) {
+			segment.force();
+		}
+	}
+
+	@Override
+	public void close() {
+		for (LogSegment segment : segments) {
+			try {
+				segment.close();
+			} catch (IOException e) {
+				LOGGER.error("", e);
+			}
+		}
+	}
+
+	@Override
+	public boolean isNew() {
+		return isNew;
+	}
+
+	@Override
+	public String getLocation() {
+		return dataDir.getAbsolutePath();
+	}
+
+	@Override
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Segments: " + segments.size() + "\n");
+		sb.append("Log size: " + getDatabaseSizeInBytes() + " bytes\n");
+		sb.append("Tables: " + tables.size() + "\n");
+		sb.append("Committed version: " + committedVersion + "\n");
+		return sb.toString();
+	}
+
+	@Override
+	public String getType() {
+		return "Memory mapped log";
+	}
+
+	/*
+	 * The used part of the log, segment files are allocated at their full size
+	 */
+	@Override
+	public long getDatabaseSizeInBytes() {
+		synchronized (appendLock) {
+			long size = 0;
+			for (LogSegment segment : segments) {
+				size += segment == currentSegment ? writePosition : segment.getSize();
+			}
+			return size;
+		}
+	}
+
+	@Override
+	public synchronized void incrementCommittedWrites(long committedWrites) {
+		this.committedWrites += committedWrites;
+		if (this.committedWrites / 100000 != lastPrintedCommittedWrites) {
+			LOGGER.info("writes: " + this.committedWrites);
+			lastPrintedCommittedWrites = this.committedWrites / 100000;
+		}
+	}
+
+	@Override
+	public synchronized void incrementReads(long reads) {
+		this.reads += reads;
+		if (this.reads / 100000 != lastPrintedReads) {
+			LOGGER.info("reads: " + this.reads);
+			lastPrintedReads = this.reads / 100000;
+		}
+	}
+
+	/*
+	 * Iterators do not hold resources, there are no cursors to dump
+	 */
+	@Override
+	public void dumpOpenCursors() {
+	}
+}
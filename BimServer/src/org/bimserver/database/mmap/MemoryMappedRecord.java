@@ -0,0 +1,48 @@
+package org.bimserver.database.mmap;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.database.Record;
+import org.bimserver.database.mmap.MemoryMappedTable.TableKey;
+
+public class MemoryMappedRecord implements Record {
+	private final TableKey tableKey;
+	private final byte[] value;
+
+	public MemoryMappedRecord(TableKey tableKey, byte[] value) {
+		this.tableKey = tableKey;
+		this.value = value;
+	}
+
+	/*
+	 * The key of the record in the index, iterators continue from it without building a new one
+	 */
+	public TableKey getTableKey() {
+		return tableKey;
+	}
+
+	@Override
+	public byte[] getKey() {
+		return tableKey.getKey();
+	}
+
+	@Override
+	public byte[] getValue() {
+		return value;
+	}
+}
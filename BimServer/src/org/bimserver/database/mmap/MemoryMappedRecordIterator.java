@@ -0,0 +1,89 @@
+package org.bimserver.database.mmap;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.database.BimserverLockConflictException;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.mmap.MemoryMappedTable.TableKey;
+
+/*
+ * Behaves like the Berkeley iterators: without mustStartWith it iterates the whole table, with mustStartWith every call returns null for
+ * a record that does not start with it, but the iterator still moves past that record.
+ */
+public class MemoryMappedRecordIterator implements SearchingRecordIterator {
+	private final MemoryMappedKeyValueStore store;
+	private final MemoryMappedTable table;
+	private final MemoryMappedTransaction transaction;
+	private final byte[] mustStartWith;
+	private byte[] nextStartSearchingAt;
+	private TableKey position;
+
+	public MemoryMappedRecordIterator(MemoryMappedKeyValueStore store, MemoryMappedTable table, MemoryMappedTransaction transaction, byte[] mustStartWith, byte[] startSearchingAt) {
+		this.store = store;
+		this.table = table;
+		this.transaction = transaction;
+		this.mustStartWith = mustStartWith;
+		this.nextStartSearchingAt = startSearchingAt;
+	}
+
+	@Override
+	public Record next() throws BimserverLockConflictException {
+		if (nextStartSearchingAt != null) {
+			return next(nextStartSearchingAt);
+		}
+		return filter(store.ceiling(table, transaction, position, false));
+	}
+
+	@Override
+	public Record next(byte[] startSearchingAt) throws BimserverLockConflictException {
+		nextStartSearchingAt = null;
+		return filter(store.ceiling(table, transaction, new TableKey(startSearchingAt, null), true));
+	}
+
+	@Override
+	public Record last() throws BimserverLockConflictException {
+		if (nextStartSearchingAt != null) {
+			return next(nextStartSearchingAt);
+		}
+		return filter(store.last(table, transaction));
+	}
+
+	private Record filter(MemoryMappedRecord record) {
+		if (record == null) {
+			return null;
+		}
+		position = record.getTableKey();
+		if (mustStartWith != null) {
+			byte[] key = record.getKey();
+			if (key.length < mustStartWith.length) {
+				return null;
+			}
+			for (int i = 0; i < mustStartWith.length; i++) {
+				if (key[i] != mustStartWith[i]) {
+					return null;
+				}
+			}
+		}
+		return record;
+	}
+
+	@Override
+	public void close() {
+	}
+}
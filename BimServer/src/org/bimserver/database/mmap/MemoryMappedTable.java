@@ -0,0 +1,213 @@
+package org.bimserver.database.mmap;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * The committed records of one table. Records are sorted like the tables of the Berkeley store: on key in unsigned byte order and, for
+ * tables with duplicates, on value within a key. Every record points to the newest version of its value in the log, and through that to
+ * the older versions that a running transaction can still read, so a transaction sees the table as it was when it started.
+ */
+public class MemoryMappedTable {
+	private final int id;
+	private final String name;
+	private final boolean duplicates;
+	private final ConcurrentSkipListMap<TableKey, Version> records = new ConcurrentSkipListMap<TableKey, Version>();
+
+	/*
+	 * Key of a record. The value is only part of the key in tables with duplicates, it is null otherwise.
+	 */
+	public static class TableKey implements Comparable<TableKey> {
+		private final byte[] key;
+		private final byte[] value;
+
+		public TableKey(byte[] key, byte[] value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		@Override
+		public int compareTo(TableKey other) {
+			int result = compare(key, other.key);
+			if (result != 0) {
+				return result;
+			}
+			if (value == null || other.value == null) {
+				return value == null ? (other.value == null ? 0 : -1) : 1;
+			}
+			return compare(value, other.value);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TableKey)) {
+				return false;
+			}
+			TableKey other = (TableKey) obj;
+			return Arrays.equals(key, other.key) && Arrays.equals(value, other.value);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(key) + Arrays.hashCode(value);
+		}
+
+		public static int compare(byte[] a, byte[] b) {
+			int length = Math.min(a.length, b.length);
+			for (int i = 0; i < length; i++) {
+				int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if (difference != 0) {
+					return difference;
+				}
+			}
+			return a.length - b.length;
+		}
+	}
+
+	/*
+	 * A committed version of a record. Deleted records keep a version, so a delete can be detected as a concurrent modification.
+	 */
+	public static class Version {
+		private final long version;
+		private final int segment;
+		private final int offset;
+		private final int length;
+		private final boolean deleted;
+		private volatile Version previous;
+
+		public Version(long version, int segment, int offset, int length, boolean deleted) {
+			this.version = version;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.deleted = deleted;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public int getSegment() {
+			return segment;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+	}
+
+	public MemoryMappedTable(int id, String name, boolean duplicates) {
+		this.id = id;
+		this.name = name;
+		this.duplicates = duplicates;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean hasDuplicates() {
+		return duplicates;
+	}
+
+	public ConcurrentSkipListMap<TableKey, Version> getRecords() {
+		return records;
+	}
+
+	/*
+	 * The version of a record that is visible to a read of committed version readVersion, null when the record did not exist or was deleted
+	 */
+	public static Version getVisible(Version version, long readVersion) {
+		while (version != null && version.version > readVersion) {
+			version = version.previous;
+		}
+		if (version == null || version.deleted) {
+			return null;
+		}
+		return version;
+	}
+
+	public Map.Entry<TableKey, Version> getVisibleCeiling(TableKey from, boolean inclusive, long readVersion) {
+		Map.Entry<TableKey, Version> entry = from == null ? records.firstEntry() : (inclusive ? records.ceilingEntry(from) : records.higherEntry(from));
+		while (entry != null && getVisible(entry.getValue(), readVersion) == null) {
+			entry = records.higherEntry(entry.getKey());
+		}
+		return entry;
+	}
+
+	/*
+	 * The last visible record before the given key, or the last visible record of the table when before is null
+	 */
+	public Map.Entry<TableKey, Version> getVisibleLower(TableKey before, long readVersion) {
+		Map.Entry<TableKey, Version> entry = before == null ? records.lastEntry() : records.lowerEntry(before);
+		while (entry != null && getVisible(entry.getValue(), readVersion) == null) {
+			entry = records.lowerEntry(entry.getKey());
+		}
+		return entry;
+	}
+
+	/*
+	 * Only called while commits are serialized. No read is done at a version before oldestReadVersion, so the versions that are older
+	 * than the one visible at oldestReadVersion are dropped. Versions of records that are not written anymore are only dropped by the
+	 * next write to that record.
+	 */
+	void apply(TableKey tableKey, Version version, long oldestReadVersion) {
+		version.previous = records.get(tableKey);
+		Version oldestVisible = version;
+		while (oldestVisible != null && oldestVisible.version > oldestReadVersion) {
+			oldestVisible = oldestVisible.previous;
+		}
+		if (oldestVisible != null) {
+			oldestVisible.previous = null;
+		}
+		records.put(tableKey, version);
+	}
+
+	public long count(long readVersion) {
+		long count = 0;
+		for (Version version : records.values()) {
+			if (getVisible(version, readVersion) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,155 @@
+package org.bimserver.database.mmap;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bimserver.database.BimTransaction;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.BimserverLockConflictException;
+import org.bimserver.database.mmap.MemoryMappedTable.TableKey;
+
+/*
+ * Writes are appended to the log right away but only become visible when the transaction commits. Until then they are kept per table,
+ * so the transaction reads its own writes, on top of the committed version it started at. Transactions do not lock, conflicting writes are detected when committing (the first
+ * transaction to commit wins) and reported as a BimserverConcurrentModificationDatabaseException, on which DatabaseSession retries.
+ */
+public class MemoryMappedTransaction implements BimTransaction {
+	private final MemoryMappedKeyValueStore store;
+	private final long id;
+	private final long startVersion;
+	private final Map<MemoryMappedTable, TreeMap<TableKey, Write>> writes = new LinkedHashMap<MemoryMappedTable, TreeMap<TableKey, Write>>();
+	private String name;
+	private boolean alive = true;
+
+	public static class Write {
+		private final int segment;
+		private final int offset;
+		private final int length;
+		private final boolean deleted;
+		private final boolean noOverwrite;
+
+		public Write(int segment, int offset, int length, boolean deleted, boolean noOverwrite) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.deleted = deleted;
+			this.noOverwrite = noOverwrite;
+		}
+
+		public int getSegment() {
+			return segment;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+
+		public boolean isNoOverwrite() {
+			return noOverwrite;
+		}
+	}
+
+	public MemoryMappedTransaction(MemoryMappedKeyValueStore store, long id, long startVersion) {
+		this.store = store;
+		this.id = id;
+		this.startVersion = startVersion;
+	}
+
+	public long getStartVersion() {
+		return startVersion;
+	}
+
+	public Map<MemoryMappedTable, TreeMap<TableKey, Write>> getWrites() {
+		return writes;
+	}
+
+	public TreeMap<TableKey, Write> getWrites(MemoryMappedTable table) {
+		return writes.get(table);
+	}
+
+	void addWrite(MemoryMappedTable table, TableKey tableKey, Write write) {
+		TreeMap<TableKey, Write> tableWrites = writes.get(table);
+		if (tableWrites == null) {
+			tableWrites = new TreeMap<TableKey, Write>();
+			writes.put(table, tableWrites);
+		}
+		tableWrites.put(tableKey, write);
+	}
+
+	public boolean isAlive() {
+		return alive;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public void close() {
+		if (alive) {
+			rollback();
+		}
+	}
+
+	/*
+	 * The records that were already appended stay in the log, they are never referenced by a commit
+	 */
+	@Override
+	public void rollback() {
+		writes.clear();
+		if (alive) {
+			alive = false;
+			store.endTransaction(this);
+		}
+	}
+
+	@Override
+	public void commit() throws BimserverLockConflictException, BimserverDatabaseException {
+		if (!alive) {
+			throw new BimserverDatabaseException("Transaction " + id + " is not alive");
+		}
+		try {
+			store.commit(this);
+		} finally {
+			writes.clear();
+			alive = false;
+			store.endTransaction(this);
+		}
+	}
+
+	@Override
+	public long getId() {
+		return id;
+	}
+}
@@ -0,0 +1,485 @@
+package org.bimserver.database.streaming;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.Closeable;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.bimserver.ServerIfcModel;
+import org.bimserver.database.BimDatabase;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.UncheckedBimserverDatabaseException;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.emf.IdEObjectImpl.State;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.QueryInterface;
+import org.bimserver.ifc.ReadOnlyIfcModel;
+import org.eclipse.emf.ecore.EClass;
+
+/*
+ * Read only model that reads its objects from the database while it is being serialized, per EClass in batches of batchSize objects.
+ * Only the current batch and the oids of the model are kept in memory, so it can be used for serializers that go through the model once
+ * and can write references to objects that come later (see StreamingSerializerPlugin).
+ *
+ * The oids are read first, when the objects are first asked for, because express ids follow from the position of an object: the objects
+ * of a batch and the objects they reference get the express ids they have in the whole model. The query should not be deep, referenced
+ * objects are not read until they are written themselves.
+ *
+ * Reads go through a session of its own, which is opened when needed and closed when an iteration is done or the model is closed. The
+ * long action of the download closes the model as well when it is terminated or cleaned up, a download that is never fetched would
+ * otherwise keep its session. The session is only used while holding the lock on the model, so that can happen while it is being read,
+ * a read after that opens a new session.
+ */
+public class StreamingIfcModel extends ReadOnlyIfcModel implements Closeable {
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+	private final BimDatabase database;
+	private final QueryInterface query;
+	private final int batchSize;
+	private DatabaseSession databaseSession;
+	// The oids of every class, in the order the classes are read
+	private Map<EClass, long[]> oidsByClass;
+	private Map<EClass, Integer> firstIndexes;
+	private long size;
+
+	public StreamingIfcModel(BimDatabase database, PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap, QueryInterface query, int batchSize) {
+		super(packageMetaData, pidRoidMap);
+		this.database = database;
+		this.query = query;
+		this.batchSize = batchSize;
+	}
+
+	private DatabaseSession getDatabaseSession() {
+		if (databaseSession == null) {
+			databaseSession = database.createSession();
+		}
+		return databaseSession;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (databaseSession != null) {
+			databaseSession.close();
+			databaseSession = null;
+		}
+	}
+
+	private synchronized void index() {
+		if (oidsByClass != null) {
+			return;
+		}
+		Map<EClass, long[]> oidsByClass = new LinkedHashMap<EClass, long[]>();
+		Map<EClass, Integer> firstIndexes = new HashMap<EClass, Integer>();
+		long size = 0;
+		try {
+			DatabaseSession databaseSession = getDatabaseSession();
+			for (EClass eClass : databaseSession.getMapClasses(query)) {
+				long[] oids = databaseSession.getOids(eClass, query);
+				if (oids.length > 0) {
+					oidsByClass.put(eClass, oids);
+					firstIndexes.put(eClass, (int) size);
+					size += oids.length;
+				}
+			}
+		} catch (BimserverDatabaseException e) {
+			throw new UncheckedBimserverDatabaseException(e);
+		}
+		this.oidsByClass = oidsByClass;
+		this.firstIndexes = firstIndexes;
+		this.size = size;
+	}
+
+	/*
+	 * The position of the object in the model, or -1
+	 */
+	private int indexOf(EClass eClass, long oid) {
+		index();
+		long[] oids = oidsByClass.get(eClass);
+		if (oids == null) {
+			return -1;
+		}
+		int position = Arrays.binarySearch(oids, oid);
+		return position < 0 ? -1 : firstIndexes.get(eClass) + position;
+	}
+
+	/*
+	 * The class follows from the oid, an oid without a known class is an error and not an object that is missing from the model
+	 */
+	private synchronized EClass getEClassForOid(long oid) {
+		try {
+			return getDatabaseSession().getEClassForOid(oid);
+		} catch (BimserverDatabaseException e) {
+			throw new UncheckedBimserverDatabaseException(e);
+		}
+	}
+
+	/*
+	 * The objects of one class, read in batches
+	 */
+	private class ClassIterator implements Iterator<IdEObject> {
+		private final EClass eClass;
+		private final long[] oids;
+		private IfcModelInterface batch;
+		private int position;
+		private int batchEnd;
+
+		public ClassIterator(EClass eClass, long[] oids) {
+			this.eClass = eClass;
+			this.oids = oids;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return position < oids.length;
+		}
+
+		@Override
+		public IdEObject next() {
+			if (position >= oids.length) {
+				throw new NoSuchElementException();
+			}
+			if (position == batchEnd) {
+				readBatch();
+			}
+			long oid = oids[position++];
+			IdEObject idEObject = batch.get(oid);
+			if (idEObject == null) {
+				throw new UncheckedBimserverDatabaseException("Object " + oid + " of " + eClass.getName() + " not found");
+			}
+			return idEObject;
+		}
+
+		private void readBatch() {
+			synchronized (StreamingIfcModel.this) {
+				DatabaseSession databaseSession = getDatabaseSession();
+				batch = new ServerIfcModel(getPackageMetaData(), getPidRoidMap(), databaseSession);
+				try {
+					databaseSession.getMap(eClass, batch, query, oids[position], batchSize);
+				} catch (BimserverDatabaseException e) {
+					throw new UncheckedBimserverDatabaseException(e);
+				}
+			}
+			batchEnd = Math.min(position + batchSize, oids.length);
+			for (IdEObject idEObject : batch.getValues()) {
+				int index = indexOf(idEObject.eClass(), idEObject.getOid());
+				if (index != -1) {
+					((IdEObjectImpl) idEObject).setExpressId(index + 1);
+				}
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException(READ_ONLY);
+		}
+	}
+
+	@Override
+	public Iterator<IdEObject> iterator() {
+		index();
+		final Iterator<Map.Entry<EClass, long[]>> classes = oidsByClass.entrySet().iterator();
+		return new Iterator<IdEObject>() {
+			private ClassIterator current;
+
+			@Override
+			public boolean hasNext() {
+				while (current == null || !current.hasNext()) {
+					if (!classes.hasNext()) {
+						if (current != null) {
+							current = null;
+							close();
+						}
+						return false;
+					}
+					Map.Entry<EClass, long[]> entry = classes.next();
+					current = new ClassIterator(entry.getKey(), entry.getValue());
+				}
+				return true;
+			}
+
+			@Override
+			public IdEObject next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(READ_ONLY);
+			}
+		};
+	}
+
+	@Override
+	public Collection<IdEObject> getValues() {
+		return new AbstractCollection<IdEObject>() {
+			@Override
+			public Iterator<IdEObject> iterator() {
+				return StreamingIfcModel.this.iterator();
+			}
+
+			@Override
+			public int size() {
+				return (int) StreamingIfcModel.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<Long> keySet() {
+		index();
+		return new AbstractSet<Long>() {
+			@Override
+			public Iterator<Long> iterator() {
+				final Iterator<long[]> classes = oidsByClass.values().iterator();
+				return new Iterator<Long>() {
+					private long[] oids = new long[0];
+					private int position;
+
+					@Override
+					public boolean hasNext() {
+						while (position == oids.length) {
+							if (!classes.hasNext()) {
+								return false;
+							}
+							oids = classes.next();
+							position = 0;
+						}
+						return true;
+					}
+
+					@Override
+					public Long next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return oids[position++];
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException(READ_ONLY);
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof Long && StreamingIfcModel.this.contains((Long) o);
+			}
+
+			@Override
+			public int size() {
+				return (int) StreamingIfcModel.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Map<Long, IdEObject> getObjects() {
+		return new AbstractMap<Long, IdEObject>() {
+			@Override
+			public Set<Entry<Long, IdEObject>> entrySet() {
+				return new AbstractSet<Entry<Long, IdEObject>>() {
+					@Override
+					public Iterator<Entry<Long, IdEObject>> iterator() {
+						final Iterator<IdEObject> iterator = StreamingIfcModel.this.iterator();
+						return new Iterator<Entry<Long, IdEObject>>() {
+							@Override
+							public boolean hasNext() {
+								return iterator.hasNext();
+							}
+
+							@Override
+							public Entry<Long, IdEObject> next() {
+								IdEObject idEObject = iterator.next();
+								return new SimpleImmutableEntry<Long, IdEObject>(idEObject.getOid(), idEObject);
+							}
+
+							@Override
+							public void remove() {
+								throw new UnsupportedOperationException(READ_ONLY);
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return (int) StreamingIfcModel.this.size();
+					}
+				};
+			}
+
+			@Override
+			public IdEObject get(Object key) {
+				return key instanceof Long ? StreamingIfcModel.this.get((Long) key) : null;
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return key instanceof Long && StreamingIfcModel.this.contains((Long) key);
+			}
+
+			@Override
+			public Set<Long> keySet() {
+				return StreamingIfcModel.this.keySet();
+			}
+
+			@Override
+			public Collection<IdEObject> values() {
+				return getValues();
+			}
+		};
+	}
+
+	/*
+	 * Reads the object on its own
+	 */
+	@Override
+	public synchronized IdEObject get(long oid) {
+		EClass eClass = getEClassForOid(oid);
+		int index = indexOf(eClass, oid);
+		if (index == -1) {
+			return null;
+		}
+		try {
+			IdEObject idEObject = getDatabaseSession().get(oid, query);
+			if (idEObject != null) {
+				((IdEObjectImpl) idEObject).setExpressId(index + 1);
+			}
+			return idEObject;
+		} catch (BimserverDatabaseException e) {
+			throw new UncheckedBimserverDatabaseException(e);
+		}
+	}
+
+	@Override
+	public boolean contains(long oid) {
+		return indexOf(getEClassForOid(oid), oid) != -1;
+	}
+
+	/*
+	 * Called by serializers for every reference, the class of the object saves looking it up
+	 */
+	@Override
+	public boolean contains(IdEObject referencedObject) {
+		return referencedObject != null && indexOf(referencedObject.eClass(), referencedObject.getOid()) != -1;
+	}
+
+	/*
+	 * The objects of the batches belong to the model of their batch, this is only used for objects that were given this model
+	 */
+	@Override
+	public synchronized void load(IdEObject idEObject) {
+		((IdEObjectImpl) idEObject).setLoadingState(State.LOADING);
+		getDatabaseSession().load(idEObject);
+		((IdEObjectImpl) idEObject).setLoadingState(State.LOADED);
+	}
+
+	@Override
+	public long size() {
+		index();
+		return size;
+	}
+
+	@Override
+	public long getHighestOid() {
+		index();
+		long highestOid = 0;
+		for (long[] oids : oidsByClass.values()) {
+			highestOid = Math.max(highestOid, oids[oids.length - 1]);
+		}
+		return highestOid;
+	}
+
+	/*
+	 * Reads all objects of the class into memory
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends IdEObject> List<T> getAll(EClass eClass) {
+		index();
+		long[] oids = oidsByClass.get(eClass);
+		if (oids == null) {
+			return Collections.emptyList();
+		}
+		List<T> result = new ArrayList<T>(oids.length);
+		ClassIterator iterator = new ClassIterator(eClass, oids);
+		while (iterator.hasNext()) {
+			result.add((T) iterator.next());
+		}
+		return result;
+	}
+
+	/*
+	 * Reads all objects of the classes into memory
+	 */
+	@Override
+	public <T extends IdEObject> List<T> getAllWithSubTypes(EClass eClass) {
+		index();
+		List<T> result = new ArrayList<T>();
+		for (EClass usedClass : oidsByClass.keySet()) {
+			if (eClass.isSuperTypeOf(usedClass)) {
+				result.addAll(this.<T> getAll(usedClass));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int count(EClass eClass) {
+		index();
+		long[] oids = oidsByClass.get(eClass);
+		return oids == null ? 0 : oids.length;
+	}
+
+	@Override
+	public int countWithSubtypes(EClass eClass) {
+		index();
+		int result = 0;
+		for (Map.Entry<EClass, long[]> entry : oidsByClass.entrySet()) {
+			if (eClass.isSuperTypeOf(entry.getKey())) {
+				result += entry.getValue().length;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Set<EClass> getUsedClasses() {
+		index();
+		return Collections.unmodifiableSet(oidsByClass.keySet());
+	}
+}
@@ -20,6 +20,8 @@ package org.bimserver.endpoints;
 import org.bimserver.shared.interfaces.bimsie1.Bimsie1NotificationInterface;
 import org.bimserver.shared.interfaces.bimsie1.Bimsie1RemoteServiceInterface;
 
+import com.google.gson.JsonObject;
+
 public interface EndPoint {
 
 	long getEndPointId();
@@ -27,4 +29,9 @@ public interface EndPoint {
 	Bimsie1RemoteServiceInterface getRemoteServiceInterface();
 	void cleanup();
 	long getUoid();
+	
+	/*
+	 * Sends a message that is not part of a service interface, used for NFC notifications
+	 */
+	void send(JsonObject message);
 }
\ No newline at end of file
@@ -201,4 +201,10 @@ public abstract class LongAction<T extends LongActionKey> implements Reporter, P
 	public void stop() {
 		progressTopic.remove();
 	}
+
+	/*
+	 * Called when the LongActionManager drops this action, releases what the result of the action still holds on to
+	 */
+	public void cleanup() {
+	}
 }
\ No newline at end of file
@@ -71,6 +71,7 @@ public class LongActionManager {
 				GregorianCalendar stop = longAction.getStop();
 				if (now.getTimeInMillis() - stop.getTimeInMillis() > FIVE_MINUTES_IN_MS) {
 					LOGGER.info("Cleaning up long running action: " + longAction.getDescription() + " - " + longAction.getClass().getSimpleName());
+					longAction.cleanup();
 					iterator.remove();
 				}
 			}
@@ -94,6 +95,7 @@ public class LongActionManager {
 		if (longAction != null) {
 			LOGGER.debug("Cleaning up long running action: " + longAction.getDescription() + " (" + longAction.getProgressTopic().getKey().getId() + ")");
 			longAction.stop();
+			longAction.cleanup();
 			actions.remove(topicId);
 		} else {
 			throw new UserException("No long action with id " + topicId + " found");
@@ -103,6 +105,7 @@ public class LongActionManager {
 	public synchronized void remove(LongAction<?> action) {
 		LOGGER.info("Cleaning up long running action: " + action.getDescription());
 		action.stop();
+		action.cleanup();
 		actions.inverse().remove(action);
 	}
 }
\ No newline at end of file
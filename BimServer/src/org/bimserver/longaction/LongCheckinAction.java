@@ -17,13 +17,20 @@ package org.bimserver.longaction;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
 
+import java.io.File;
+
 import org.bimserver.BimServer;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.ProgressHandler;
 import org.bimserver.database.actions.CheckinDatabaseAction;
+import org.bimserver.database.actions.GenericCheckinDatabaseAction;
+import org.bimserver.database.actions.StreamingCheckinDatabaseAction;
 import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
 import org.bimserver.interfaces.objects.SProgressTopicType;
 import org.bimserver.models.store.ActionState;
+import org.bimserver.plugins.deserializers.ByteProgressReporter;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.plugins.deserializers.Deserializer;
 import org.bimserver.shared.exceptions.UserException;
 import org.bimserver.webservices.authorization.Authorization;
 import org.slf4j.Logger;
@@ -32,21 +39,60 @@ import org.slf4j.LoggerFactory;
 public class LongCheckinAction extends LongAction<LongCheckinActionKey> {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(LongCheckinAction.class);
-	private CheckinDatabaseAction checkinDatabaseAction;
+	private GenericCheckinDatabaseAction checkinDatabaseAction;
 	private String fileName;
+	private Deserializer deserializer;
+	private File file;
+	private DeserializeException deserializeException;
 
 	public LongCheckinAction(BimServer bimServer, String username, String userUsername, Authorization authorization, CheckinDatabaseAction checkinDatabaseAction) {
+		this(bimServer, username, userUsername, authorization, checkinDatabaseAction, checkinDatabaseAction.getPoid(), checkinDatabaseAction.getFileName());
+	}
+
+	/*
+	 * The streaming checkin action reads the file itself while it is saving the objects
+	 */
+	public LongCheckinAction(BimServer bimServer, String username, String userUsername, Authorization authorization, StreamingCheckinDatabaseAction checkinDatabaseAction) {
+		this(bimServer, username, userUsername, authorization, checkinDatabaseAction, checkinDatabaseAction.getPoid(), checkinDatabaseAction.getFileName());
+	}
+
+	private LongCheckinAction(BimServer bimServer, String username, String userUsername, Authorization authorization, GenericCheckinDatabaseAction checkinDatabaseAction, long poid,
+			String fileName) {
 		super(bimServer, username, userUsername, authorization);
 		this.checkinDatabaseAction = checkinDatabaseAction;
-		this.fileName = checkinDatabaseAction.getFileName();
+		this.fileName = fileName;
 		
-		setProgressTopic(bimServer.getNotificationsManager().createProgressOnProjectTopic(authorization.getUoid(), checkinDatabaseAction.getPoid(), SProgressTopicType.UPLOAD, "Checkin"));
+		setProgressTopic(bimServer.getNotificationsManager().createProgressOnProjectTopic(authorization.getUoid(), poid, SProgressTopicType.UPLOAD, "Checkin"));
 		checkinDatabaseAction.addProgressListener(this);
 	}
 
+	/*
+	 * The file is deserialized by the action itself, so the caller does not have to wait for it. The checkin action gets the model afterwards.
+	 */
+	public LongCheckinAction(BimServer bimServer, String username, String userUsername, Authorization authorization, CheckinDatabaseAction checkinDatabaseAction, Deserializer deserializer, File file) {
+		this(bimServer, username, userUsername, authorization, checkinDatabaseAction);
+		this.deserializer = deserializer;
+		this.file = file;
+	}
+
 	public void execute() {
 		DatabaseSession session = getBimServer().getDatabase().createSession();
 		try {
+			if (deserializer != null) {
+				final long fileSize = file.length();
+				final String title = "Deserializing (" + fileName + ")";
+				try {
+					checkinDatabaseAction.setModel(deserializer.read(file, new ByteProgressReporter() {
+						@Override
+						public void progress(long byteNumber) {
+							updateProgress(title, fileSize == 0 ? -1 : (int) (byteNumber * 100 / fileSize));
+						}
+					}));
+				} catch (DeserializeException e) {
+					deserializeException = e;
+					throw e;
+				}
+			}
 			checkinDatabaseAction.setDatabaseSession(session);
 			session.executeAndCommitAction(checkinDatabaseAction, new ProgressHandler() {
 				private int count;
@@ -66,6 +112,9 @@ public class LongCheckinAction extends LongAction<LongCheckinActionKey> {
 				}
 			});
 		} catch (Exception e) {
+			if (checkinDatabaseAction instanceof StreamingCheckinDatabaseAction && deserializeException == null) {
+				deserializeException = ((StreamingCheckinDatabaseAction) checkinDatabaseAction).getDeserializeException();
+			}
 			if (e instanceof UserException) {
 			} else if (e instanceof BimserverConcurrentModificationDatabaseException) {
 				// Ignore
@@ -89,6 +138,14 @@ public class LongCheckinAction extends LongAction<LongCheckinActionKey> {
 		// This is very important! The LongCheckinAction will probably live another 30 minutes 
 		// before it will be cleaned up (this is useful for clients asking for the progress/status of this checkin)
 		checkinDatabaseAction = null;
+		deserializer = null;
+	}
+
+	/*
+	 * Null when the file could be deserialized (or was deserialized before this action was started)
+	 */
+	public DeserializeException getDeserializeException() {
+		return deserializeException;
 	}
 
 	@Override
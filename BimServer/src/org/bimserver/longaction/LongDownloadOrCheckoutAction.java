@@ -17,6 +17,9 @@ package org.bimserver.longaction;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
 
+import java.io.Closeable;
+import java.io.IOException;
+
 import javax.activation.DataHandler;
 
 import org.bimserver.BimServer;
@@ -54,6 +57,8 @@ public abstract class LongDownloadOrCheckoutAction extends LongAction<DownloadPa
 	protected final DownloadParameters downloadParameters;
 	protected SCheckoutResult checkoutResult;
 	protected MessagingSerializer messagingSerializer;
+	// A model that still reads from the database (StreamingIfcModel), closed when this action is terminated or cleaned up
+	private volatile Closeable openModel;
 
 	protected LongDownloadOrCheckoutAction(BimServer bimServer, String username, String userUsername, DownloadParameters downloadParameters, AccessMethod accessMethod,
 			Authorization authorization) {
@@ -93,6 +98,33 @@ public abstract class LongDownloadOrCheckoutAction extends LongAction<DownloadPa
 		return checkoutResult;
 	}
 	
+	@Override
+	public void terminate() {
+		super.terminate();
+		closeModel();
+	}
+
+	/*
+	 * The serializer data source closes the model when the download is written, this is for downloads that were never fetched
+	 */
+	@Override
+	public void cleanup() {
+		super.cleanup();
+		closeModel();
+	}
+
+	private void closeModel() {
+		Closeable model = openModel;
+		if (model != null) {
+			openModel = null;
+			try {
+				model.close();
+			} catch (IOException e) {
+				LOGGER.error("", e);
+			}
+		}
+	}
+
 	public MessagingSerializer getMessagingSerializer() {
 		return messagingSerializer;
 	}
@@ -117,6 +149,9 @@ public abstract class LongDownloadOrCheckoutAction extends LongAction<DownloadPa
 															// be usable
 				IfcModelInterface ifcModel = session.executeAndCommitAction(action);
 				// Session is closed after this
+				if (ifcModel instanceof Closeable) {
+					openModel = (Closeable) ifcModel;
+				}
 
 				DatabaseSession newSession = getBimServer().getDatabase().createSession();
 				RenderEnginePlugin renderEnginePlugin = null;
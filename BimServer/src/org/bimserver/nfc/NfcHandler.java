@@ -1,41 +1,107 @@
 package org.bimserver.nfc;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.io.FileUtils;
 import org.bimserver.BimServer;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.endpoints.EndPoint;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.endpoints.EndPointManager;
+import org.bimserver.models.store.Revision;
+import org.bimserver.nfc.NfcWriteQueue.PendingWrite;
+import org.bimserver.notifications.NfcTagAssignedNotification;
+import org.bimserver.notifications.NfcTagMovedNotification;
+import org.bimserver.notifications.NfcTagScannedAtLocationNotification;
+import org.bimserver.notifications.NfcTopicKey;
+import org.bimserver.notifications.NotificationsManager;
+import org.bimserver.notifications.Topic;
+import org.bimserver.notifications.TopicRegisterException;
 import org.bimserver.plugins.serializers.SerializerException;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.stream.JsonWriter;
 
+/*
+ * Long lived NFC service, created once by BimServer. All tags and readers are kept in memory, every change is written through to the NfcStore
+ * via the NfcWriteQueue, which commits concurrent and batched writes together. Methods only respond after their writes have been committed.
+ * Changes to a single tag or reader are synchronized on that object, so concurrent scans of different tags do not block each other.
+ * Tags are also indexed by ifc node id and by latest location, so lookups by node or location do not have to walk all tags.
+ * Every scan is also appended to the NfcScanLog, which answers the history queries.
+ * Once committed, scans and assignments are published on the NFC topics of the NotificationsManager, websocket endpoints register
+ * on those topics with the register*Handler methods, optionally for a single tag, location or ifc node.
+ */
 public class NfcHandler {
 	private static final Logger LOGGER = LoggerFactory.getLogger(NfcHandler.class);
-	private final BimServer bimServer;
-	Map<String, Map<String, String>> nfcReadersMap = new HashMap<String, Map<String, String>>();
-	Map<String, Map<String, String>> nfcTagsMap = new HashMap<String, Map<String, String>>();
-	String readersFilePath;
-	String tagsFilePath;
+	private static final int MAX_TRACKED_LOCATIONS = 10;
+	private static final long DEFAULT_HISTORY_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private final NfcStore nfcStore;
+	private final NfcScanLog nfcScanLog;
+	private final NfcWriteQueue nfcWriteQueue;
+	private final NotificationsManager notificationsManager;
+	private final EndPointManager endPointManager;
+	private final NfcObjectResolver nfcObjectResolver;
+	private final NfcSpatialIndex nfcSpatialIndex;
+	// Incremented on every change of an ifc node assignment, tells the NfcSpatialIndex when to rebuild
+	private final AtomicLong assignmentVersion = new AtomicLong();
+	private final ConcurrentMap<String, NfcReader> nfcReadersMap = new ConcurrentHashMap<String, NfcReader>();
+	private final ConcurrentMap<String, NfcTag> nfcTagsMap = new ConcurrentHashMap<String, NfcTag>();
+	private final ConcurrentMap<String, NfcTag> tagsByIfcNodeId = new ConcurrentHashMap<String, NfcTag>();
+	private final ConcurrentMap<String, Set<NfcTag>> tagsByLocation = new ConcurrentHashMap<String, Set<NfcTag>>();
+	private final Object assignmentLock = new Object();
 	
-	public NfcHandler(BimServer bimServer) throws IOException {
-		this.bimServer = bimServer;
-		readFromFile();
+	private static final class AppliedScan {
+		private final NfcScanEvent nfcScanEvent;
+		private final String previousLocation;
+		private final PendingWrite pendingWrite;
+		
+		private AppliedScan(NfcScanEvent nfcScanEvent, String previousLocation, PendingWrite pendingWrite) {
+			this.nfcScanEvent = nfcScanEvent;
+			this.previousLocation = previousLocation;
+			this.pendingWrite = pendingWrite;
+		}
+	}
+	
+	public NfcHandler(BimServer bimServer) throws BimserverDatabaseException {
+		this.nfcStore = bimServer.getNfcStore();
+		this.nfcScanLog = bimServer.getNfcScanLog();
+		this.nfcWriteQueue = bimServer.getNfcWriteQueue();
+		this.notificationsManager = bimServer.getNotificationsManager();
+		this.endPointManager = bimServer.getEndPointManager();
+		this.nfcObjectResolver = new NfcObjectResolver(bimServer);
+		this.nfcSpatialIndex = new NfcSpatialIndex(nfcObjectResolver);
+		loadFromStore();
 	}
 
-	public void handleNfcMethods(JsonObject request, String jsonToken, HttpServletRequest httpRequest, JsonWriter writer) throws IOException, SerializerException{
-		LOGGER.info("NfcHandler | handleNfcMethods");
+	public void handleNfcMethods(JsonObject request, String jsonToken, HttpServletRequest httpRequest, JsonWriter writer) throws IOException, SerializerException, BimserverDatabaseException, UserException, ServerException {
 		String methodName = request.get("method").getAsString();
+		LOGGER.debug("NfcHandler | handleNfcMethods | " + methodName);
 		if(methodName.equals("saveNfcData")){
 			saveNfcData(request, writer);
+		} else if(methodName.equals("saveNfcDataBatch")){
+			saveNfcDataBatch(request, writer);
 		} else if(methodName.equals("getNfcTagData")){
 			getNfcTagData(writer);
 		} else if(methodName.equals("getNfcReadersData")){
@@ -44,52 +110,48 @@ public class NfcHandler {
 			assignTagIdToIfcNode(request, writer);
 		} else if(methodName.equals("getNfcTagDataByIfcNodeId")){
 			getNfcTagDataByIfcNodeId(request, writer);
+		} else if(methodName.equals("getNfcTagObject")){
+			getNfcTagObject(request, jsonToken, writer);
 		} else if(methodName.equals("registerNfcReader")){
 			registerNfcReader(request, writer);
+		} else if(methodName.equals("placeNfcReader")){
+			placeNfcReader(request, writer);
+		} else if(methodName.equals("getNfcTagsNear")){
+			getNfcTagsNear(request, jsonToken, writer);
 		} else if(methodName.equals("registerNfcTag")){
 			registerNfcTag(request, writer);
+		} else if(methodName.equals("getNfcTagsByLocation")){
+			getNfcTagsByLocation(request, writer);
+		} else if(methodName.equals("getNfcTagHistory")){
+			getNfcTagHistory(request, writer);
+		} else if(methodName.equals("getNfcTagsSeenByReader")){
+			getNfcTagsSeenByReader(request, writer);
+		} else if(methodName.equals("registerNfcTagMovedHandler")){
+			registerHandler(request, notificationsManager.getOrCreateNfcTagMovedTopic(getTopicKey(request, "nfcTagId")), writer);
+		} else if(methodName.equals("unregisterNfcTagMovedHandler")){
+			unregisterHandler(request, notificationsManager.getNfcTagMovedTopic(getTopicKey(request, "nfcTagId")), writer);
+		} else if(methodName.equals("registerNfcTagScannedAtLocationHandler")){
+			registerHandler(request, notificationsManager.getOrCreateNfcTagScannedAtLocationTopic(getTopicKey(request, "location")), writer);
+		} else if(methodName.equals("unregisterNfcTagScannedAtLocationHandler")){
+			unregisterHandler(request, notificationsManager.getNfcTagScannedAtLocationTopic(getTopicKey(request, "location")), writer);
+		} else if(methodName.equals("registerNfcTagAssignedHandler")){
+			registerHandler(request, notificationsManager.getOrCreateNfcTagAssignedTopic(getTopicKey(request, "ifcNodeId")), writer);
+		} else if(methodName.equals("unregisterNfcTagAssignedHandler")){
+			unregisterHandler(request, notificationsManager.getNfcTagAssignedTopic(getTopicKey(request, "ifcNodeId")), writer);
 		}
 	}
 	
-	private void saveNfcData(JsonObject request, JsonWriter writer) throws IOException{
-		LOGGER.info("NfcHandler | handleNfcMethods | saveNfcData");
+	private void saveNfcData(JsonObject request, JsonWriter writer) throws IOException, BimserverDatabaseException, UserException{
 		JsonObject parameters = request.getAsJsonObject("parameters");
 		String readerId = parameters.get("readerId").getAsString();
 		String readerName = parameters.get("readerName").getAsString();
 		String readerLocation = parameters.get("readerLocation").getAsString();
 		String nfcTagId = parameters.get("nfcTagId").getAsString();
+		long timestamp = parameters.has("timestamp") ? parameters.get("timestamp").getAsLong() : System.currentTimeMillis();
 		
-		Map<String, String> currentReaderEntry = this.nfcReadersMap.get(readerId);
-		if(currentReaderEntry == null) {
-			//this should never occur.
-			currentReaderEntry = new HashMap<String, String>();
-		}
-		//currentReaderEntry.put("readerId", readerId);
-		currentReaderEntry.put("readerName", readerName);
-		currentReaderEntry.put("readerLocation", readerLocation);
-		this.nfcReadersMap.put(readerId, currentReaderEntry);
-		
-		Map<String, String> currentTagEntry = this.nfcTagsMap.get(nfcTagId);
-		if(currentTagEntry == null) {
-			currentTagEntry = new HashMap<String, String>();
-		}
-		currentTagEntry.put("nfcTagId", nfcTagId);
-		if(currentTagEntry.get("ifcNodeId") == null) currentTagEntry.put("ifcNodeId", "");
-		currentTagEntry.put("latestLocation", readerLocation);
-		String trackedLocations = currentTagEntry.get("trackedLocations");
-		if((trackedLocations == null) || trackedLocations.isEmpty()){
-			trackedLocations = readerLocation;
-		} else if (!trackedLocations.contains(readerLocation)){
-			trackedLocations += "|" + readerLocation;
-		}
-		currentTagEntry.put("trackedLocations", trackedLocations);
-		this.nfcTagsMap.put(nfcTagId, currentTagEntry);
-		
-		
-		
-		writeToNfcReaderFile();
-		writeToNfcTagFile();
-		
+		AppliedScan appliedScan = applyScan(readerId, readerName, readerLocation, nfcTagId, timestamp);
+		appliedScan.pendingWrite.await();
+		notifyScan(appliedScan);
 		
 		writer.beginObject();
 		writer.name("result");
@@ -101,83 +163,430 @@ public class NfcHandler {
 		writer.endObject();
 	}
 	
-	private void getNfcTagData(JsonWriter writer) throws IOException{
-		LOGGER.info("NfcHandler | handleNfcMethods | getNfcTagData");
+	/*
+	 * Accepts an array of scans in "scans", every scan has the parameters of saveNfcData (readerName and timestamp are optional).
+	 * All scans are queued before waiting, so the whole batch ends up in one or a few commits. Every scan is reported as accepted or not,
+	 * a malformed scan is rejected without affecting the others.
+	 */
+	private void saveNfcDataBatch(JsonObject request, JsonWriter writer) throws IOException, BimserverDatabaseException{
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		JsonArray scans = parameters.getAsJsonArray("scans");
+		
+		long now = System.currentTimeMillis();
+		List<AppliedScan> appliedScans = new ArrayList<AppliedScan>(scans.size());
+		List<String> errors = new ArrayList<String>(scans.size());
+		for (JsonElement scanElement : scans) {
+			String error = null;
+			AppliedScan appliedScan = null;
+			if (!scanElement.isJsonObject()) {
+				error = "Scan is not an object";
+			} else {
+				JsonObject scan = scanElement.getAsJsonObject();
+				if (!scan.has("readerId") || !scan.has("readerLocation") || !scan.has("nfcTagId")) {
+					error = "Scan requires readerId, readerLocation and nfcTagId";
+				} else {
+					try {
+						String readerName = scan.has("readerName") ? scan.get("readerName").getAsString() : null;
+						long timestamp = scan.has("timestamp") ? scan.get("timestamp").getAsLong() : now;
+						appliedScan = applyScan(scan.get("readerId").getAsString(), readerName, scan.get("readerLocation").getAsString(), scan.get("nfcTagId").getAsString(), timestamp);
+					} catch (IllegalStateException | UnsupportedOperationException | ClassCastException | NumberFormatException e) {
+						error = "Invalid scan: " + e.getMessage();
+					} catch (UserException e) {
+						error = e.getMessage();
+					}
+				}
+			}
+			appliedScans.add(appliedScan);
+			errors.add(error);
+		}
+		
+		int accepted = 0;
 		writer.beginObject();
 		writer.name("result");
+		writer.beginObject();
+		writer.name("scans");
 		writer.beginArray();
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcTagsMap.entrySet()){
-			Map<String, String> currentTagMap = entry.getValue();
+		for (int i = 0; i < appliedScans.size(); i++) {
+			AppliedScan appliedScan = appliedScans.get(i);
+			String error = errors.get(i);
+			if (appliedScan != null) {
+				try {
+					appliedScan.pendingWrite.await();
+					notifyScan(appliedScan);
+				} catch (BimserverDatabaseException e) {
+					error = e.getMessage();
+				}
+			}
 			writer.beginObject();
-			writer.name("nfcTagId").value(currentTagMap.get("nfcTagId"));
-			writer.name("ifcNodeId").value(currentTagMap.get("ifcNodeId"));
-			writer.name("latestLocation").value(currentTagMap.get("latestLocation"));
-			writer.name("trackedLocations").value(currentTagMap.get("trackedLocations"));
+			writer.name("index").value(i);
+			writer.name("accepted").value(error == null);
+			if (error == null) {
+				accepted++;
+			} else {
+				writer.name("error").value(error);
+			}
 			writer.endObject();
 		}
 		writer.endArray();
+		writer.name("accepted").value(accepted);
+		writer.name("rejected").value(appliedScans.size() - accepted);
+		writer.endObject();
 		writer.endObject();
 	}
 	
+	/*
+	 * Updates the reader and tag in memory and queues the writes, the returned write is the last one queued for this scan.
+	 * A null readerName keeps the current name of the reader.
+	 */
+	private AppliedScan applyScan(String readerId, String readerName, String readerLocation, String nfcTagId, long timestamp) throws BimserverDatabaseException, UserException {
+		checkScanValueLength("readerId", readerId);
+		checkScanValueLength("readerLocation", readerLocation);
+		checkScanValueLength("nfcTagId", nfcTagId);
+		//a reader should always be registered first, but we accept unknown readers
+		NfcReader currentReader = getOrCreateReader(readerId);
+		synchronized (currentReader) {
+			boolean changed = false;
+			if (readerName != null && !readerName.equals(currentReader.getReaderName())) {
+				currentReader.setReaderName(readerName);
+				changed = true;
+			}
+			if (!readerLocation.equals(currentReader.getReaderLocation())) {
+				currentReader.setReaderLocation(readerLocation);
+				changed = true;
+			}
+			// Readers mostly report the same name and location, those scans do not rewrite the reader
+			if (changed) {
+				nfcWriteQueue.storeReader(currentReader);
+			}
+		}
+		
+		NfcTag currentTag = getOrCreateTag(nfcTagId);
+		String previousLocation;
+		synchronized (currentTag) {
+			previousLocation = currentTag.getLatestLocation();
+			setLatestLocation(currentTag, readerLocation);
+			currentTag.setTrackedLocations(addTrackedLocation(currentTag.getTrackedLocations(), readerLocation));
+			nfcWriteQueue.storeTag(currentTag);
+		}
+		NfcScanEvent nfcScanEvent = new NfcScanEvent(nfcTagId, readerId, readerLocation, timestamp);
+		return new AppliedScan(nfcScanEvent, previousLocation, nfcWriteQueue.logScan(nfcScanEvent));
+	}
+	
+	/*
+	 * The scan log stores these with a two byte length, they come from clients so they are checked before anything is changed
+	 */
+	private void checkScanValueLength(String name, String value) throws UserException {
+		int length = value.getBytes(Charsets.UTF_8).length;
+		if (length > NfcScanLog.MAX_STRING_LENGTH) {
+			throw new UserException(name + " is " + length + " bytes long, the maximum is " + NfcScanLog.MAX_STRING_LENGTH);
+		}
+	}
+
+	/*
+	 * Notifications are queued, they are sent by the NotificationsProcessor thread
+	 */
+	private void notifyScan(AppliedScan appliedScan) {
+		NfcScanEvent nfcScanEvent = appliedScan.nfcScanEvent;
+		if (!appliedScan.previousLocation.equals(nfcScanEvent.getLocation())) {
+			notificationsManager.notify(new NfcTagMovedNotification(notificationsManager.getBimServer(), nfcScanEvent.getNfcTagId(), nfcScanEvent.getReaderId(), appliedScan.previousLocation, nfcScanEvent.getLocation(), nfcScanEvent.getTimestamp()));
+		}
+		notificationsManager.notify(new NfcTagScannedAtLocationNotification(notificationsManager.getBimServer(), nfcScanEvent.getNfcTagId(), nfcScanEvent.getReaderId(), nfcScanEvent.getLocation(), nfcScanEvent.getTimestamp()));
+	}
+	
+	private NfcTopicKey getTopicKey(JsonObject request, String keyName) {
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		return parameters.has(keyName) ? new NfcTopicKey(parameters.get(keyName).getAsString()) : NfcTopicKey.ALL;
+	}
+	
+	private EndPoint getEndPoint(JsonObject request) throws UserException {
+		long endPointId = request.getAsJsonObject("parameters").get("endPointId").getAsLong();
+		EndPoint endPoint = endPointManager.get(endPointId);
+		if (endPoint == null) {
+			throw new UserException("Endpoint with id " + endPointId + " not found");
+		}
+		return endPoint;
+	}
+	
+	private void registerHandler(JsonObject request, Topic topic, JsonWriter writer) throws IOException, UserException {
+		try {
+			topic.register(getEndPoint(request));
+		} catch (TopicRegisterException e) {
+			throw new UserException(e);
+		}
+		writeEmptyResult(writer);
+	}
+	
+	private void unregisterHandler(JsonObject request, Topic topic, JsonWriter writer) throws IOException, UserException {
+		EndPoint endPoint = getEndPoint(request);
+		if (topic != null) {
+			try {
+				topic.unregister(endPoint);
+			} catch (TopicRegisterException e) {
+				throw new UserException(e);
+			}
+		}
+		writeEmptyResult(writer);
+	}
+	
+	private void writeEmptyResult(JsonWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("result");
+		writer.beginObject();
+		writer.endObject();
+		writer.endObject();
+	}
+	
+	/*
+	 * trackedLocations only keeps the most recent distinct locations (most recent last), the full history is in the NfcScanLog
+	 */
+	private String addTrackedLocation(String trackedLocations, String location) {
+		List<String> locations = new ArrayList<String>();
+		if (!trackedLocations.isEmpty()) {
+			locations.addAll(Arrays.asList(trackedLocations.split("\\|")));
+		}
+		locations.remove(location);
+		locations.add(location);
+		if (locations.size() > MAX_TRACKED_LOCATIONS) {
+			locations = locations.subList(locations.size() - MAX_TRACKED_LOCATIONS, locations.size());
+		}
+		return Joiner.on("|").join(locations);
+	}
+	
+	private NfcReader getOrCreateReader(String readerId) {
+		NfcReader nfcReader = this.nfcReadersMap.get(readerId);
+		if (nfcReader == null) {
+			nfcReader = new NfcReader(readerId);
+			NfcReader existing = this.nfcReadersMap.putIfAbsent(readerId, nfcReader);
+			if (existing != null) {
+				nfcReader = existing;
+			}
+		}
+		return nfcReader;
+	}
+	
+	private NfcTag getOrCreateTag(String nfcTagId) {
+		NfcTag nfcTag = this.nfcTagsMap.get(nfcTagId);
+		if (nfcTag == null) {
+			nfcTag = new NfcTag(nfcTagId);
+			NfcTag existing = this.nfcTagsMap.putIfAbsent(nfcTagId, nfcTag);
+			if (existing != null) {
+				nfcTag = existing;
+			}
+		}
+		return nfcTag;
+	}
+	
+	private void getNfcTagData(JsonWriter writer) throws IOException{
+		writer.beginObject();
+		writer.name("result");
+		writer.beginArray();
+		for (NfcTag nfcTag : this.nfcTagsMap.values()){
+			writeTag(nfcTag, writer);
+		}
+		writer.endArray();
+		writer.endObject();
+	}
+	
+	private void writeTag(NfcTag nfcTag, JsonWriter writer) throws IOException {
+		writer.beginObject();
+		writeTagFields(nfcTag, writer);
+		writer.endObject();
+	}
+	
+	private void writeTagFields(NfcTag nfcTag, JsonWriter writer) throws IOException {
+		String ifcNodeId;
+		String latestLocation;
+		String trackedLocations;
+		synchronized (nfcTag) {
+			ifcNodeId = nfcTag.getIfcNodeId();
+			latestLocation = nfcTag.getLatestLocation();
+			trackedLocations = nfcTag.getTrackedLocations();
+		}
+		writer.name("nfcTagId").value(nfcTag.getNfcTagId());
+		writer.name("ifcNodeId").value(ifcNodeId);
+		writer.name("latestLocation").value(latestLocation);
+		writer.name("trackedLocations").value(trackedLocations);
+	}
+	
 	private void getNfcReadersData(JsonWriter writer) throws IOException{
-		LOGGER.info("NfcHandler | handleNfcMethods | getNfcReadersData");
 		writer.beginObject();
 		writer.name("result");
 		writer.beginArray();
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcReadersMap.entrySet()){
-			Map<String, String> currentTagMap = entry.getValue();
-			writer.beginObject();
-			writer.name("readerId").value(currentTagMap.get("readerId"));
-			writer.name("readerName").value(currentTagMap.get("readerName"));
-			writer.name("readerLocation").value(currentTagMap.get("readerLocation"));
-			writer.endObject();
+		for (NfcReader nfcReader : this.nfcReadersMap.values()){
+			writeReader(nfcReader, writer);
 		}
 		writer.endArray();
 		writer.endObject();
 	}
 	
+	private void writeReader(NfcReader nfcReader, JsonWriter writer) throws IOException {
+		NfcReader snapshot;
+		synchronized (nfcReader) {
+			snapshot = new NfcReader(nfcReader);
+		}
+		writer.beginObject();
+		writer.name("readerId").value(snapshot.getReaderId());
+		writer.name("readerName").value(snapshot.getReaderName());
+		writer.name("readerLocation").value(snapshot.getReaderLocation());
+		writer.name("spatialNodeId").value(snapshot.getSpatialNodeId());
+		if (snapshot.hasCoordinate()) {
+			writer.name("x").value(snapshot.getX());
+			writer.name("y").value(snapshot.getY());
+			writer.name("z").value(snapshot.getZ());
+		}
+		writer.endObject();
+	}
+	
 	private void getNfcTagDataByIfcNodeId(JsonObject request, JsonWriter writer) throws IOException{
-		LOGGER.info("NfcHandler | handleNfcMethods | getNfcTagDataByIfcNodeId");
 		JsonObject parameters = request.getAsJsonObject("parameters");
 		String ifcNodeId = parameters.get("ifcNodeId").getAsString();
 		
 		writer.beginObject();
 		writer.name("result");
 		writer.beginObject();
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcTagsMap.entrySet()){
-			Map<String, String> currentTagMap = entry.getValue();
-			if(currentTagMap.get("ifcNodeId").equals(ifcNodeId)){
-				writer.name("nfcTagId").value(currentTagMap.get("nfcTagId"));
-				writer.name("ifcNodeId").value(currentTagMap.get("ifcNodeId"));
-				writer.name("latestLocation").value(currentTagMap.get("latestLocation"));
-				writer.name("trackedLocations").value(currentTagMap.get("trackedLocations"));
+		NfcTag nfcTag = this.tagsByIfcNodeId.get(ifcNodeId);
+		if(nfcTag != null){
+			writeTagFields(nfcTag, writer);
+		}
+		writer.endObject();
+		writer.endObject();
+	}
+	
+	/*
+	 * Returns the object the tag is assigned to in the latest revision of project "poid", with its attributes and geometry.
+	 * Either "nfcTagId" or "ifcNodeId" can be given, binary geometry data is left out when "includeGeometryData" is false.
+	 */
+	private void getNfcTagObject(JsonObject request, String jsonToken, JsonWriter writer) throws IOException, BimserverDatabaseException, UserException, ServerException{
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		long poid = parameters.get("poid").getAsLong();
+		boolean includeGeometryData = parameters.has("includeGeometryData") ? parameters.get("includeGeometryData").getAsBoolean() : true;
+		String nfcTagId;
+		String ifcNodeId;
+		if (parameters.has("nfcTagId")) {
+			nfcTagId = parameters.get("nfcTagId").getAsString();
+			NfcTag nfcTag = this.nfcTagsMap.get(nfcTagId);
+			if (nfcTag == null) {
+				throw new UserException("No NFC tag found with id " + nfcTagId);
+			}
+			synchronized (nfcTag) {
+				ifcNodeId = nfcTag.getIfcNodeId();
+			}
+			if (ifcNodeId.isEmpty()) {
+				throw new UserException("NFC tag " + nfcTagId + " is not assigned to an ifc node");
+			}
+		} else {
+			ifcNodeId = parameters.get("ifcNodeId").getAsString();
+			NfcTag nfcTag = this.tagsByIfcNodeId.get(ifcNodeId);
+			nfcTagId = nfcTag == null ? "" : nfcTag.getNfcTagId();
+		}
+		
+		nfcObjectResolver.writeObject(jsonToken, poid, nfcTagId, ifcNodeId, includeGeometryData, writer);
+	}
+	
+	private void getNfcTagsByLocation(JsonObject request, JsonWriter writer) throws IOException{
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		String location = parameters.get("location").getAsString();
+		
+		writer.beginObject();
+		writer.name("result");
+		writer.beginArray();
+		Set<NfcTag> tags = this.tagsByLocation.get(location);
+		if(tags != null){
+			for (NfcTag nfcTag : tags){
+				writeTag(nfcTag, writer);
 			}
 		}
+		writer.endArray();
 		writer.endObject();
+	}
+	
+	private void getNfcTagHistory(JsonObject request, final JsonWriter writer) throws IOException, BimserverDatabaseException{
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		String nfcTagId = parameters.get("nfcTagId").getAsString();
+		long to = parameters.has("to") ? parameters.get("to").getAsLong() : System.currentTimeMillis();
+		long from = parameters.has("from") ? parameters.get("from").getAsLong() : to - DEFAULT_HISTORY_MILLIS;
+		
+		writer.beginObject();
+		writer.name("result");
+		writer.beginArray();
+		nfcScanLog.getTagHistory(nfcTagId, from, to, new NfcScanEventVisitor() {
+			@Override
+			public void visit(NfcScanEvent nfcScanEvent) throws IOException {
+				writer.beginObject();
+				writer.name("readerId").value(nfcScanEvent.getReaderId());
+				writer.name("location").value(nfcScanEvent.getLocation());
+				writer.name("timestamp").value(nfcScanEvent.getTimestamp());
+				writer.endObject();
+			}
+		});
+		writer.endArray();
 		writer.endObject();
 	}
 	
-	private void assignTagIdToIfcNode(JsonObject request, JsonWriter writer) throws IOException {
-		LOGGER.info("NfcHandler | handleNfcMethods | assignTagIdToIfcNode");
+	private void getNfcTagsSeenByReader(JsonObject request, JsonWriter writer) throws IOException, BimserverDatabaseException{
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		String readerId = parameters.get("readerId").getAsString();
+		long to = parameters.has("to") ? parameters.get("to").getAsLong() : System.currentTimeMillis();
+		long from = parameters.has("from") ? parameters.get("from").getAsLong() : to - DEFAULT_HISTORY_MILLIS;
 		
+		// Only the last scan per tag is reported
+		final Map<String, NfcScanEvent> lastScans = new LinkedHashMap<String, NfcScanEvent>();
+		nfcScanLog.getReaderHistory(readerId, from, to, new NfcScanEventVisitor() {
+			@Override
+			public void visit(NfcScanEvent nfcScanEvent) {
+				lastScans.remove(nfcScanEvent.getNfcTagId());
+				lastScans.put(nfcScanEvent.getNfcTagId(), nfcScanEvent);
+			}
+		});
+		
+		writer.beginObject();
+		writer.name("result");
+		writer.beginArray();
+		for (NfcScanEvent nfcScanEvent : lastScans.values()){
+			writer.beginObject();
+			writer.name("nfcTagId").value(nfcScanEvent.getNfcTagId());
+			writer.name("location").value(nfcScanEvent.getLocation());
+			writer.name("timestamp").value(nfcScanEvent.getTimestamp());
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.endObject();
+	}
+	
+	private void assignTagIdToIfcNode(JsonObject request, JsonWriter writer) throws IOException, BimserverDatabaseException, UserException {
 		JsonObject parameters = request.getAsJsonObject("parameters");
 		String ifcNodeId = parameters.get("ifcNodeId").getAsString();
 		String nfcTagId = parameters.get("nfcTagId").getAsString();
 		
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcTagsMap.entrySet()){
-			Map<String, String> currentTagMap = entry.getValue();
-			if(currentTagMap.get("ifcNodeId").equals(ifcNodeId)){
-				currentTagMap.put("ifcNodeId", "");
-				currentTagMap.put("latestLocation", "");
-				currentTagMap.put("trackedLocations", "");
-			}
+		NfcTag currentTag = this.nfcTagsMap.get(nfcTagId);
+		if (currentTag == null) {
+			throw new UserException("No NFC tag found with id " + nfcTagId);
 		}
 		
-		Map<String, String> currentTagMap = this.nfcTagsMap.get(nfcTagId);
-		currentTagMap.put("ifcNodeId", ifcNodeId);
-		currentTagMap.put("latestLocation", "");
-		currentTagMap.put("trackedLocations", "");
-		writeToNfcTagFile();
+		// An assignment changes two tags, assignments are serialized so an ifc node never ends up with more than one tag
+		PendingWrite pendingWrite;
+		String previousNfcTagId = "";
+		synchronized (assignmentLock) {
+			NfcTag previousTag = this.tagsByIfcNodeId.get(ifcNodeId);
+			if(previousTag != null && previousTag != currentTag){
+				previousNfcTagId = previousTag.getNfcTagId();
+				synchronized (previousTag) {
+					setIfcNodeId(previousTag, "");
+					setLatestLocation(previousTag, "");
+					previousTag.setTrackedLocations("");
+					nfcWriteQueue.storeTag(previousTag);
+				}
+			}
+			
+			synchronized (currentTag) {
+				setIfcNodeId(currentTag, ifcNodeId);
+				setLatestLocation(currentTag, "");
+				currentTag.setTrackedLocations("");
+				pendingWrite = nfcWriteQueue.storeTag(currentTag);
+			}
+		}
+		pendingWrite.await();
+		notificationsManager.notify(new NfcTagAssignedNotification(notificationsManager.getBimServer(), nfcTagId, ifcNodeId, previousNfcTagId));
 		
 		writer.beginObject();
 		writer.name("result");
@@ -189,152 +598,225 @@ public class NfcHandler {
 		
 	}
 	
-	@SuppressWarnings("unchecked")
-	private void readFromFile() throws IOException{
-		File nfcDataDir = new File(this.bimServer.getHomeDir().getAbsolutePath() + "/NfcData");
-		if(!nfcDataDir.exists()){
-			nfcDataDir.mkdir();
+	private void loadFromStore() throws BimserverDatabaseException{
+		for (NfcReader nfcReader : nfcStore.getAllReaders()) {
+			this.nfcReadersMap.put(nfcReader.getReaderId(), nfcReader);
 		}
-		
-		this.readersFilePath = nfcDataDir.getAbsolutePath() + "/nfcReaders.txt";
-		File readersFile = new File(this.readersFilePath);
-		if(!readersFile.exists()){
-			readersFile.createNewFile();
+		for (NfcTag nfcTag : nfcStore.getAllTags()) {
+			this.nfcTagsMap.put(nfcTag.getNfcTagId(), nfcTag);
+			indexIfcNodeId(nfcTag);
+			indexLocation(nfcTag);
 		}
-		this.tagsFilePath = nfcDataDir.getAbsolutePath() + "/nfcTags.txt";
-		File tagsFile = new File(this.tagsFilePath);
-		if(!tagsFile.exists()){
-			tagsFile.createNewFile();
+		nfcStore.getReaderIdSequence().init(nfcReadersMap.keySet());
+		nfcStore.getTagIdSequence().init(nfcTagsMap.keySet());
+		LOGGER.info("Loaded " + nfcReadersMap.size() + " NFC readers and " + nfcTagsMap.size() + " NFC tags");
+	}
+	
+	/*
+	 * The following methods keep tagsByIfcNodeId and tagsByLocation in sync with the tags, callers must hold the lock on the tag
+	 */
+	private void setIfcNodeId(NfcTag nfcTag, String ifcNodeId) {
+		if (!nfcTag.getIfcNodeId().isEmpty()) {
+			this.tagsByIfcNodeId.remove(nfcTag.getIfcNodeId(), nfcTag);
 		}
-		
-		List<String> list = FileUtils.readLines(new File(this.readersFilePath), "UTF-8");
-		for(String line : list){
-			Map<String, String> tempMap = new HashMap<String, String>();
-			if(line.startsWith("//")) continue;
-			String[] lineArr = line.split(",", -1);
-			tempMap.put("readerId", lineArr[0]);
-			tempMap.put("readerName", lineArr[1]);
-			tempMap.put("readerLocation", lineArr[2]);
-			
-			this.nfcReadersMap.put(tempMap.get("readerId"), tempMap);
+		nfcTag.setIfcNodeId(ifcNodeId);
+		indexIfcNodeId(nfcTag);
+		assignmentVersion.incrementAndGet();
+	}
+	
+	private void setLatestLocation(NfcTag nfcTag, String location) {
+		if (nfcTag.getLatestLocation().equals(location)) {
+			return;
 		}
-		
-		list = FileUtils.readLines(new File(this.tagsFilePath), "UTF-8");
-		for(String line : list){
-			Map<String, String> tempMap = new HashMap<String, String>();
-			if(line.startsWith("//")) continue;
-			String[] lineArr = line.split(",", -1);
-			tempMap.put("nfcTagId", lineArr[0]);
-			tempMap.put("ifcNodeId", lineArr[1]);
-			tempMap.put("latestLocation", lineArr[2]);
-			tempMap.put("trackedLocations", lineArr[3]);
-			
-			this.nfcTagsMap.put(tempMap.get("nfcTagId"), tempMap);
+		Set<NfcTag> tags = this.tagsByLocation.get(nfcTag.getLatestLocation());
+		if (tags != null) {
+			tags.remove(nfcTag);
 		}
+		nfcTag.setLatestLocation(location);
+		indexLocation(nfcTag);
 	}
 	
-	private void writeToNfcReaderFile() throws IOException{
-		String content = "//readerId, readerName, readerLocation";
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcReadersMap.entrySet()){
-			Map<String, String> tempMap = entry.getValue();
-			content += "\n";
-			content += tempMap.get("readerId");
-			content += "," + tempMap.get("readerName");
-			content += "," + tempMap.get("readerLocation");
+	private void indexIfcNodeId(NfcTag nfcTag) {
+		if (!nfcTag.getIfcNodeId().isEmpty()) {
+			this.tagsByIfcNodeId.put(nfcTag.getIfcNodeId(), nfcTag);
 		}
-		FileUtils.writeStringToFile(new File(this.readersFilePath), content, "UTF-8");
 	}
 	
-	private void writeToNfcTagFile() throws IOException{
-		String content = "//nfcTagId, ifcNodeId, latestLocation, trackedLocations";
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcTagsMap.entrySet()){
-			Map<String, String> tempMap = entry.getValue();
-			content += "\n";
-			content += tempMap.get("nfcTagId");
-			content += "," + tempMap.get("ifcNodeId");
-			content += "," + tempMap.get("latestLocation");
-			content += "," + tempMap.get("trackedLocations");
-			
+	private void indexLocation(NfcTag nfcTag) {
+		String location = nfcTag.getLatestLocation();
+		if (location.isEmpty()) {
+			return;
+		}
+		Set<NfcTag> tags = this.tagsByLocation.get(location);
+		if (tags == null) {
+			tags = Collections.newSetFromMap(new ConcurrentHashMap<NfcTag, Boolean>());
+			Set<NfcTag> existing = this.tagsByLocation.putIfAbsent(location, tags);
+			if (existing != null) {
+				tags = existing;
+			}
 		}
-		FileUtils.writeStringToFile(new File(this.tagsFilePath), content, "UTF-8");
+		tags.add(nfcTag);
 	}
 	
-	private void registerNfcReader(JsonObject request, JsonWriter writer) throws IOException{
-		LOGGER.info("NfcHandler | handleNfcMethods | registerNfcReader");
+	private void registerNfcReader(JsonObject request, JsonWriter writer) throws IOException, BimserverDatabaseException{
 		JsonObject parameters = request.getAsJsonObject("parameters");
 		String readerName = parameters.get("readerName").getAsString();
 		String readerLocation = parameters.get("readerLocation").getAsString();
-		String readerId = generateReaderId();
 		
-		Map<String, String> newReaderMap = new HashMap<String, String>();
-		newReaderMap.put("readerId", readerId);
-		newReaderMap.put("readerName", readerName);
-		newReaderMap.put("readerLocation", readerLocation);
-		this.nfcReadersMap.put(readerId, newReaderMap);
-		writeToNfcReaderFile();
+		NfcReader newReader;
+		do {
+			newReader = new NfcReader(nfcStore.getReaderIdSequence().next());
+		} while (this.nfcReadersMap.putIfAbsent(newReader.getReaderId(), newReader) != null);
+		PendingWrite pendingWrite;
+		synchronized (newReader) {
+			newReader.setReaderName(readerName);
+			newReader.setReaderLocation(readerLocation);
+			setPlacement(newReader, parameters);
+			pendingWrite = nfcWriteQueue.storeReader(newReader);
+		}
+		pendingWrite.await();
 		
 		writer.beginObject();
 		writer.name("result");
-		writer.beginObject();
-		writer.name("readerId").value(readerId);
-		writer.name("readerName").value(readerName);
-		writer.name("readerLocation").value(readerLocation);
-		writer.endObject();
+		writeReader(newReader, writer);
 		writer.endObject();
 	}
 	
-	private void registerNfcTag(JsonObject request, JsonWriter writer) throws IOException{
-		LOGGER.info("NfcHandler | handleNfcMethods | registerNfcTag");
-		String nfcTagId = generateTagId();
-		
-		Map<String, String>  newTagMap = new HashMap<String, String>();
-		newTagMap.put("nfcTagId", nfcTagId);
-		newTagMap.put("ifcNodeId", "");
-		newTagMap.put("latestLocation", "");
-		newTagMap.put("trackedLocations", "");
-		this.nfcTagsMap.put(nfcTagId, newTagMap);
-		writeToNfcTagFile();
+	/*
+	 * Places a reader in an IfcSpace/IfcBuildingStorey ("spatialNodeId", a guid) and/or at a coordinate ("x", "y", "z") in model space
+	 */
+	private void placeNfcReader(JsonObject request, JsonWriter writer) throws IOException, BimserverDatabaseException, UserException{
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		String readerId = parameters.get("readerId").getAsString();
+		NfcReader nfcReader = this.nfcReadersMap.get(readerId);
+		if (nfcReader == null) {
+			throw new UserException("No NFC reader found with id " + readerId);
+		}
+		PendingWrite pendingWrite;
+		synchronized (nfcReader) {
+			setPlacement(nfcReader, parameters);
+			pendingWrite = nfcWriteQueue.storeReader(nfcReader);
+		}
+		pendingWrite.await();
 		
 		writer.beginObject();
 		writer.name("result");
-		writer.beginObject();
-		writer.name("nfcTagId").value(nfcTagId);
-		writer.endObject();
+		writeReader(nfcReader, writer);
 		writer.endObject();
 	}
 	
-	private String generateReaderId(){
-		String readerId;
-		Integer randId;
-		ArrayList<String> existingIds = new ArrayList<String>();
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcReadersMap.entrySet()){
-			Map<String, String> tempMap = entry.getValue();
-			existingIds.add(tempMap.get("readerId"));
-			
+	private void setPlacement(NfcReader nfcReader, JsonObject parameters) {
+		if (parameters.has("spatialNodeId")) {
+			nfcReader.setSpatialNodeId(parameters.get("spatialNodeId").getAsString());
+		}
+		if (parameters.has("x")) {
+			nfcReader.setCoordinate(parameters.get("x").getAsDouble(), parameters.get("y").getAsDouble(), parameters.get("z").getAsDouble());
 		}
-		do {
-			randId = (int) Math.abs(Math.random() * 100000);
-			readerId = "r" + randId.toString();
-		} while(existingIds.contains(readerId));
-		
-		return readerId.toString();
 	}
 	
-	private String generateTagId(){
-		String tagId;
-		Integer randId;
-		ArrayList<String> existingIds = new ArrayList<String>();
-		for (Map.Entry<String, Map<String, String>> entry : this.nfcTagsMap.entrySet()){
-			Map<String, String> tempMap = entry.getValue();
-			existingIds.add(tempMap.get("nfcTagId"));
-			
+	/*
+	 * Returns the tags assigned to ifc nodes in the latest revision of project "poid" that are near one of:
+	 * - "spatialNodeId": the guid of an IfcSpace/IfcBuildingStorey, tags whose node intersects its bounds
+	 * - "readerId": the space/storey the reader is placed in, or its coordinate with "radius"
+	 * - "x", "y", "z" and "radius": tags whose node is within radius of the coordinate
+	 * Answered from the NfcSpatialIndex, so only the nodes in range are visited.
+	 */
+	private void getNfcTagsNear(JsonObject request, String jsonToken, JsonWriter writer) throws IOException, BimserverDatabaseException, UserException, ServerException{
+		JsonObject parameters = request.getAsJsonObject("parameters");
+		long poid = parameters.get("poid").getAsLong();
+		String spatialNodeId = parameters.has("spatialNodeId") ? parameters.get("spatialNodeId").getAsString() : null;
+		double[] coordinate = null;
+		if (parameters.has("readerId")) {
+			String readerId = parameters.get("readerId").getAsString();
+			NfcReader nfcReader = this.nfcReadersMap.get(readerId);
+			if (nfcReader == null) {
+				throw new UserException("No NFC reader found with id " + readerId);
+			}
+			synchronized (nfcReader) {
+				if (!nfcReader.getSpatialNodeId().isEmpty()) {
+					spatialNodeId = nfcReader.getSpatialNodeId();
+				} else if (nfcReader.hasCoordinate()) {
+					coordinate = new double[] { nfcReader.getX(), nfcReader.getY(), nfcReader.getZ() };
+				} else {
+					throw new UserException("NFC reader " + readerId + " has not been placed");
+				}
+			}
+		} else if (parameters.has("x")) {
+			coordinate = new double[] { parameters.get("x").getAsDouble(), parameters.get("y").getAsDouble(), parameters.get("z").getAsDouble() };
+		} else if (spatialNodeId == null) {
+			throw new UserException("One of spatialNodeId, readerId or x/y/z is required");
+		}
+		if (coordinate != null && !parameters.has("radius")) {
+			throw new UserException("A radius is required when searching around a coordinate");
+		}
+		
+		List<NfcRTree.Entry> entries;
+		DatabaseSession databaseSession = nfcObjectResolver.createSession();
+		try {
+			Revision revision = nfcObjectResolver.getLastRevision(nfcObjectResolver.getAccessibleProject(jsonToken, databaseSession, poid));
+			long version = this.assignmentVersion.get();
+			NfcRTree tree = nfcSpatialIndex.getCurrentTree(poid, revision, version);
+			if (tree == null) {
+				// Only a rebuild needs all assignments, they are copied so the tree is built from one consistent set
+				Map<String, String> assignments = new HashMap<String, String>();
+				for (Map.Entry<String, NfcTag> entry : this.tagsByIfcNodeId.entrySet()) {
+					assignments.put(entry.getKey(), entry.getValue().getNfcTagId());
+				}
+				tree = nfcSpatialIndex.getTree(databaseSession, poid, revision, assignments, version);
+			}
+			if (coordinate != null) {
+				entries = tree.searchRadius(coordinate[0], coordinate[1], coordinate[2], parameters.get("radius").getAsDouble());
+			} else {
+				IdEObject spatialNode = nfcObjectResolver.findObject(databaseSession, revision, spatialNodeId);
+				if (spatialNode == null) {
+					throw new UserException("No object found with guid " + spatialNodeId + " in the latest revision of project " + poid);
+				}
+				float[] bounds = nfcObjectResolver.getBounds(spatialNode);
+				entries = bounds == null ? Collections.<NfcRTree.Entry>emptyList() : tree.search(bounds);
+			}
+		} finally {
+			databaseSession.close();
+		}
+		
+		writer.beginObject();
+		writer.name("result");
+		writer.beginArray();
+		for (NfcRTree.Entry entry : entries) {
+			NfcTag nfcTag = this.nfcTagsMap.get(entry.getId());
+			if (nfcTag == null) {
+				continue;
+			}
+			float[] bounds = entry.getBounds();
+			writer.beginObject();
+			writeTagFields(nfcTag, writer);
+			writer.name("minBounds");
+			writer.beginArray().value(bounds[0]).value(bounds[1]).value(bounds[2]).endArray();
+			writer.name("maxBounds");
+			writer.beginArray().value(bounds[3]).value(bounds[4]).value(bounds[5]).endArray();
+			writer.endObject();
 		}
+		writer.endArray();
+		writer.endObject();
+	}
+	
+	private void registerNfcTag(JsonObject request, JsonWriter writer) throws IOException, BimserverDatabaseException{
+		// saveNfcData accepts any tag id, so a generated id can already be taken by a tag that was never registered
+		NfcTag newTag;
 		do {
-			randId = (int) Math.abs(Math.random() * 100000);
-			tagId = "t" + randId.toString();
-		} while(existingIds.contains(tagId));
+			newTag = new NfcTag(nfcStore.getTagIdSequence().next());
+		} while (this.nfcTagsMap.putIfAbsent(newTag.getNfcTagId(), newTag) != null);
+		PendingWrite pendingWrite;
+		synchronized (newTag) {
+			pendingWrite = nfcWriteQueue.storeTag(newTag);
+		}
+		pendingWrite.await();
 		
-		return tagId.toString();
+		writer.beginObject();
+		writer.name("result");
+		writer.beginObject();
+		writer.name("nfcTagId").value(newTag.getNfcTagId());
+		writer.endObject();
+		writer.endObject();
 	}
 	
 }
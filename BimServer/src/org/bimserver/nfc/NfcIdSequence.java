@@ -0,0 +1,88 @@
+package org.bimserver.nfc;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bimserver.database.BimDatabase;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.shared.exceptions.ServiceException;
+
+/*
+ * Hands out NFC ids of the form prefix + number. Numbers come from an AtomicLong, the Registry only stores the end of the block of numbers
+ * that has been handed out, so only one in BLOCK_SIZE ids takes a lock and a commit. After a restart numbering continues after the last
+ * reserved block, the unused part of that block is skipped.
+ */
+public class NfcIdSequence {
+	private static final int BLOCK_SIZE = 1000;
+	private final BimDatabase database;
+	private final String prefix;
+	private final String registryKey;
+	private final AtomicLong next = new AtomicLong(1);
+	private volatile long reservedUntil = 1;
+
+	public NfcIdSequence(BimDatabase database, String prefix, String registryKey) {
+		this.database = database;
+		this.prefix = prefix;
+		this.registryKey = registryKey;
+	}
+
+	/*
+	 * Older versions picked random numbers, so numbering starts after the highest id that is already in use
+	 */
+	public void init(Collection<String> existingIds) throws BimserverDatabaseException {
+		long start = 1;
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			if (database.getRegistry().has(registryKey, databaseSession)) {
+				start = database.getRegistry().readLong(registryKey, databaseSession);
+			}
+		} finally {
+			databaseSession.close();
+		}
+		for (String id : existingIds) {
+			long number = parseNumber(id);
+			if (number >= start) {
+				start = number + 1;
+			}
+		}
+		reservedUntil = start;
+		next.set(start);
+	}
+
+	public String next() throws BimserverDatabaseException {
+		long number = next.getAndIncrement();
+		if (number >= reservedUntil) {
+			reserve(number);
+		}
+		return prefix + number;
+	}
+
+	private synchronized void reserve(long number) throws BimserverDatabaseException {
+		while (number >= reservedUntil) {
+			long newReservedUntil = reservedUntil + BLOCK_SIZE;
+			DatabaseSession databaseSession = database.createSession();
+			try {
+				database.getRegistry().save(registryKey, newReservedUntil, databaseSession);
+				databaseSession.commit();
+			} catch (ServiceException e) {
+				throw new BimserverDatabaseException(e);
+			} finally {
+				databaseSession.close();
+			}
+			reservedUntil = newReservedUntil;
+		}
+	}
+
+	private long parseNumber(String id) {
+		if (!id.startsWith(prefix) || id.length() == prefix.length() || id.length() - prefix.length() > 18) {
+			return -1;
+		}
+		for (int i = prefix.length(); i < id.length(); i++) {
+			if (!Character.isDigit(id.charAt(i))) {
+				return -1;
+			}
+		}
+		return Long.parseLong(id.substring(prefix.length()));
+	}
+}
@@ -0,0 +1,268 @@
+package org.bimserver.nfc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bimserver.BimServer;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.ObjectIdentifier;
+import org.bimserver.database.Query;
+import org.bimserver.database.Query.Deep;
+import org.bimserver.database.actions.AbstractDownloadDatabaseAction;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.geometry.Vector3f;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Project;
+import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.StorePackage;
+import org.bimserver.models.store.User;
+import org.bimserver.models.store.UserType;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * Resolves the ifc node id of a tag (the GlobalId of an IfcRoot) to the object in the latest revision of a project, and writes its attributes
+ * and geometry. Guids are resolved with the guid index of the database, so a scan costs a few point reads.
+ */
+public class NfcObjectResolver {
+	private static final int MAX_SPATIAL_DEPTH = 4;
+	private final BimServer bimServer;
+
+	public NfcObjectResolver(BimServer bimServer) {
+		this.bimServer = bimServer;
+	}
+
+	public DatabaseSession createSession() {
+		return bimServer.getDatabase().createSession();
+	}
+
+	/*
+	 * Nothing is written before the object has been found, so errors can still be reported as an exception response
+	 */
+	public void writeObject(String jsonToken, long poid, String nfcTagId, String ifcNodeId, boolean includeGeometryData, JsonWriter writer) throws IOException, BimserverDatabaseException, UserException, ServerException {
+		DatabaseSession databaseSession = bimServer.getDatabase().createSession();
+		try {
+			Revision revision = getLastRevision(getAccessibleProject(jsonToken, databaseSession, poid));
+			IdEObject idEObject = findObject(databaseSession, revision, ifcNodeId);
+			if (idEObject == null) {
+				throw new UserException("No object found with guid " + ifcNodeId + " in the latest revision of project " + poid);
+			}
+			writer.beginObject();
+			writer.name("result");
+			writer.beginObject();
+			writer.name("nfcTagId").value(nfcTagId);
+			writer.name("ifcNodeId").value(ifcNodeId);
+			writer.name("object");
+			writeObject(revision, idEObject, includeGeometryData, writer);
+			writer.endObject();
+			writer.endObject();
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	public Project getAccessibleProject(String jsonToken, DatabaseSession databaseSession, long poid) throws BimserverDatabaseException, UserException, ServerException {
+		if (jsonToken == null) {
+			throw new UserException("Authentication required");
+		}
+		long uoid = bimServer.getServiceFactory().get(jsonToken, AccessMethod.JSON).getBimServerAuthInterface().getLoggedInUser().getOid();
+		User user = databaseSession.get(StorePackage.eINSTANCE.getUser(), uoid, Query.getDefault());
+		Project project = databaseSession.get(StorePackage.eINSTANCE.getProject(), poid, Query.getDefault());
+		if (project == null) {
+			throw new UserException("No project found with poid " + poid);
+		}
+		if (user.getUserType() != UserType.ADMIN && !user.getHasRightsOn().contains(project)) {
+			throw new UserException("User has no rights on project " + poid);
+		}
+		return project;
+	}
+
+	public Revision getLastRevision(Project project) throws UserException {
+		Revision revision = project.getLastRevision();
+		if (revision == null) {
+			throw new UserException("Project " + project.getOid() + " has no revisions");
+		}
+		return revision;
+	}
+
+	/*
+	 * Returns null when there is no object with this guid in the revision
+	 */
+	public IdEObject findObject(DatabaseSession databaseSession, Revision revision, String guid) throws BimserverDatabaseException {
+		for (ConcreteRevision concreteRevision : revision.getConcreteRevisions()) {
+			Project subProject = concreteRevision.getProject();
+			ObjectIdentifier objectIdentifier = databaseSession.getOidOfGuid(subProject.getSchema(), guid, subProject.getId(), concreteRevision.getId(), AbstractDownloadDatabaseAction.findHighestStopRid(subProject, concreteRevision));
+			if (objectIdentifier != null) {
+				PackageMetaData packageMetaData = bimServer.getMetaDataManager().getPackageMetaData(subProject.getSchema());
+				Query query = new Query(packageMetaData, subProject.getId(), concreteRevision.getId(), revision.getOid(), null, Deep.NO, AbstractDownloadDatabaseAction.findHighestStopRid(subProject, concreteRevision));
+				return databaseSession.get(objectIdentifier.getOid(), query);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * The bounds of the geometry of an object. Spatial elements without geometry of their own (an IfcBuildingStorey usually has none)
+	 * get the union of the bounds of the elements they contain and are decomposed into. Returns null when there is no geometry at all.
+	 */
+	public float[] getBounds(IdEObject idEObject) {
+		return getBounds(idEObject, 0);
+	}
+
+	private float[] getBounds(IdEObject idEObject, int depth) {
+		EClass eClass = idEObject.eClass();
+		EStructuralFeature geometryFeature = eClass.getEStructuralFeature("geometry");
+		if (geometryFeature != null) {
+			GeometryInfo geometryInfo = (GeometryInfo) idEObject.eGet(geometryFeature);
+			if (geometryInfo != null) {
+				geometryInfo.forceLoad();
+				Vector3f min = geometryInfo.getMinBounds();
+				Vector3f max = geometryInfo.getMaxBounds();
+				min.forceLoad();
+				max.forceLoad();
+				return new float[] { min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ() };
+			}
+		}
+		if (depth >= MAX_SPATIAL_DEPTH) {
+			return null;
+		}
+		float[] result = null;
+		for (IdEObject child : getRelated(idEObject, "ContainsElements", "RelatedElements")) {
+			result = union(result, getBounds(child, depth + 1));
+		}
+		for (IdEObject child : getRelated(idEObject, "IsDecomposedBy", "RelatedObjects")) {
+			result = union(result, getBounds(child, depth + 1));
+		}
+		return result;
+	}
+
+	private List<IdEObject> getRelated(IdEObject idEObject, String relationsFeatureName, String relatedFeatureName) {
+		List<IdEObject> result = new ArrayList<IdEObject>();
+		EStructuralFeature relationsFeature = idEObject.eClass().getEStructuralFeature(relationsFeatureName);
+		if (relationsFeature == null) {
+			return result;
+		}
+		for (Object relation : (List<?>) idEObject.eGet(relationsFeature)) {
+			IdEObject relationObject = (IdEObject) relation;
+			EStructuralFeature relatedFeature = relationObject.eClass().getEStructuralFeature(relatedFeatureName);
+			if (relatedFeature != null) {
+				for (Object related : (List<?>) relationObject.eGet(relatedFeature)) {
+					result.add((IdEObject) related);
+				}
+			}
+		}
+		return result;
+	}
+
+	private float[] union(float[] a, float[] b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		return new float[] { Math.min(a[0], b[0]), Math.min(a[1], b[1]), Math.min(a[2], b[2]), Math.max(a[3], b[3]), Math.max(a[4], b[4]), Math.max(a[5], b[5]) };
+	}
+
+	private void writeObject(Revision revision, IdEObject idEObject, boolean includeGeometryData, JsonWriter writer) throws IOException {
+		EClass eClass = idEObject.eClass();
+		writer.beginObject();
+		writer.name("roid").value(revision.getOid());
+		writer.name("oid").value(idEObject.getOid());
+		writer.name("type").value(eClass.getName());
+		writer.name("attributes");
+		writer.beginObject();
+		for (EAttribute eAttribute : eClass.getEAllAttributes()) {
+			if (eAttribute.getEAnnotation("hidden") != null) {
+				continue;
+			}
+			Object value = idEObject.eGet(eAttribute);
+			if (value == null) {
+				continue;
+			}
+			writer.name(eAttribute.getName());
+			if (eAttribute.isMany()) {
+				writer.beginArray();
+				for (Object item : (List<?>) value) {
+					writeValue(item, writer);
+				}
+				writer.endArray();
+			} else {
+				writeValue(value, writer);
+			}
+		}
+		writer.endObject();
+		EStructuralFeature geometryFeature = eClass.getEStructuralFeature("geometry");
+		if (geometryFeature != null) {
+			GeometryInfo geometryInfo = (GeometryInfo) idEObject.eGet(geometryFeature);
+			if (geometryInfo != null) {
+				writer.name("geometry");
+				writeGeometry(geometryInfo, includeGeometryData, writer);
+			}
+		}
+		writer.endObject();
+	}
+
+	private void writeValue(Object value, JsonWriter writer) throws IOException {
+		if (value instanceof Number) {
+			writer.value((Number) value);
+		} else if (value instanceof Boolean) {
+			writer.value((Boolean) value);
+		} else if (value instanceof byte[]) {
+			writer.value(new String((byte[]) value, Charsets.UTF_8));
+		} else {
+			writer.value(value.toString());
+		}
+	}
+
+	private void writeGeometry(GeometryInfo geometryInfo, boolean includeGeometryData, JsonWriter writer) throws IOException {
+		geometryInfo.forceLoad();
+		writer.beginObject();
+		writer.name("minBounds");
+		writeVector(geometryInfo.getMinBounds(), writer);
+		writer.name("maxBounds");
+		writeVector(geometryInfo.getMaxBounds(), writer);
+		writer.name("primitiveCount").value(geometryInfo.getPrimitiveCount());
+		writer.name("area").value(geometryInfo.getArea());
+		writer.name("volume").value(geometryInfo.getVolume());
+		if (includeGeometryData) {
+			if (geometryInfo.getTransformation() != null) {
+				writer.name("transformation").value(encode(geometryInfo.getTransformation()));
+			}
+			GeometryData geometryData = geometryInfo.getData();
+			if (geometryData != null) {
+				geometryData.forceLoad();
+				writer.name("indices").value(encode(geometryData.getIndices()));
+				writer.name("vertices").value(encode(geometryData.getVertices()));
+				writer.name("normals").value(encode(geometryData.getNormals()));
+			}
+		}
+		writer.endObject();
+	}
+
+	private void writeVector(Vector3f vector, JsonWriter writer) throws IOException {
+		vector.forceLoad();
+		writer.beginArray();
+		writer.value(vector.getX());
+		writer.value(vector.getY());
+		writer.value(vector.getZ());
+		writer.endArray();
+	}
+
+	private String encode(byte[] data) {
+		return data == null ? null : new String(Base64.encodeBase64(data), Charsets.UTF_8);
+	}
+}
@@ -0,0 +1,175 @@
+package org.bimserver.nfc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Read only R-tree over axis aligned boxes, bulk loaded with Sort-Tile-Recursive packing. Boxes are float[6] with
+ * minX, minY, minZ, maxX, maxY, maxZ, the same layout as the minBounds/maxBounds of a GeometryInfo.
+ * The tree is rebuilt instead of updated, it is only used for data that changes far less often than it is queried.
+ */
+public class NfcRTree {
+	private static final int NODE_CAPACITY = 16;
+	private final Box root;
+	private final int size;
+
+	private abstract static class Box {
+		protected final float[] bounds;
+
+		private Box(float[] bounds) {
+			this.bounds = bounds;
+		}
+
+		private float center(int axis) {
+			return (bounds[axis] + bounds[axis + 3]) / 2;
+		}
+	}
+
+	public static class Entry extends Box {
+		private final String id;
+
+		public Entry(String id, float[] bounds) {
+			super(bounds);
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public float[] getBounds() {
+			return bounds;
+		}
+	}
+
+	private static class Node extends Box {
+		private final Box[] children;
+
+		private Node(List<? extends Box> children) {
+			super(union(children));
+			this.children = children.toArray(new Box[children.size()]);
+		}
+	}
+
+	private NfcRTree(Box root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	public static NfcRTree build(List<Entry> entries) {
+		if (entries.isEmpty()) {
+			return new NfcRTree(null, 0);
+		}
+		List<? extends Box> level = new ArrayList<Entry>(entries);
+		do {
+			level = pack(level);
+		} while (level.size() > 1);
+		return new NfcRTree(level.get(0), entries.size());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * All entries whose box intersects the given box
+	 */
+	public List<Entry> search(float[] box) {
+		List<Entry> result = new ArrayList<Entry>();
+		if (root != null) {
+			search(root, box, result);
+		}
+		return result;
+	}
+
+	/*
+	 * All entries whose box is within radius of the given point
+	 */
+	public List<Entry> searchRadius(double x, double y, double z, double radius) {
+		float[] box = new float[] { (float) (x - radius), (float) (y - radius), (float) (z - radius), (float) (x + radius), (float) (y + radius), (float) (z + radius) };
+		List<Entry> result = new ArrayList<Entry>();
+		for (Entry entry : search(box)) {
+			if (distanceSquared(entry.bounds, x, y, z) <= radius * radius) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	private void search(Box box, float[] query, List<Entry> result) {
+		if (!intersects(box.bounds, query)) {
+			return;
+		}
+		if (box instanceof Entry) {
+			result.add((Entry) box);
+		} else {
+			for (Box child : ((Node) box).children) {
+				search(child, query, result);
+			}
+		}
+	}
+
+	/*
+	 * One level of Sort-Tile-Recursive packing: sort on x and cut into slabs, sort each slab on y and cut into columns,
+	 * sort each column on z and cut into nodes of NODE_CAPACITY
+	 */
+	private static List<Node> pack(List<? extends Box> boxes) {
+		int nrNodes = (boxes.size() + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		int slabsPerAxis = (int) Math.ceil(Math.cbrt(nrNodes));
+		List<Node> nodes = new ArrayList<Node>(nrNodes);
+		List<Box> sorted = new ArrayList<Box>(boxes);
+		sortOnAxis(sorted, 0);
+		int slabSize = (int) Math.ceil((double) sorted.size() / slabsPerAxis);
+		for (int slabStart = 0; slabStart < sorted.size(); slabStart += slabSize) {
+			List<Box> slab = sorted.subList(slabStart, Math.min(slabStart + slabSize, sorted.size()));
+			sortOnAxis(slab, 1);
+			int columnSize = (int) Math.ceil((double) slab.size() / slabsPerAxis);
+			for (int columnStart = 0; columnStart < slab.size(); columnStart += columnSize) {
+				List<Box> column = slab.subList(columnStart, Math.min(columnStart + columnSize, slab.size()));
+				sortOnAxis(column, 2);
+				for (int nodeStart = 0; nodeStart < column.size(); nodeStart += NODE_CAPACITY) {
+					nodes.add(new Node(column.subList(nodeStart, Math.min(nodeStart + NODE_CAPACITY, column.size()))));
+				}
+			}
+		}
+		return nodes;
+	}
+
+	private static void sortOnAxis(List<Box> boxes, final int axis) {
+		Collections.sort(boxes, new Comparator<Box>() {
+			@Override
+			public int compare(Box o1, Box o2) {
+				return Float.compare(o1.center(axis), o2.center(axis));
+			}
+		});
+	}
+
+	private static float[] union(List<? extends Box> boxes) {
+		float[] result = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (Box box : boxes) {
+			for (int i = 0; i < 3; i++) {
+				result[i] = Math.min(result[i], box.bounds[i]);
+				result[i + 3] = Math.max(result[i + 3], box.bounds[i + 3]);
+			}
+		}
+		return result;
+	}
+
+	private static boolean intersects(float[] a, float[] b) {
+		for (int i = 0; i < 3; i++) {
+			if (a[i] > b[i + 3] || b[i] > a[i + 3]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static double distanceSquared(float[] box, double x, double y, double z) {
+		double dx = Math.max(0, Math.max(box[0] - x, x - box[3]));
+		double dy = Math.max(0, Math.max(box[1] - y, y - box[4]));
+		double dz = Math.max(0, Math.max(box[2] - z, z - box[5]));
+		return dx * dx + dy * dy + dz * dz;
+	}
+}
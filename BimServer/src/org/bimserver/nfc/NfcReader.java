@@ -0,0 +1,76 @@
+package org.bimserver.nfc;
+
+public class NfcReader {
+	private String readerId;
+	private String readerName = "";
+	private String readerLocation = "";
+	// A reader can be placed in an IfcSpace/IfcBuildingStorey (by guid), at a coordinate in model space, or both
+	private String spatialNodeId = "";
+	private double x = Double.NaN;
+	private double y = Double.NaN;
+	private double z = Double.NaN;
+
+	public NfcReader(String readerId) {
+		this.readerId = readerId;
+	}
+
+	public NfcReader(NfcReader nfcReader) {
+		this.readerId = nfcReader.readerId;
+		this.readerName = nfcReader.readerName;
+		this.readerLocation = nfcReader.readerLocation;
+		this.spatialNodeId = nfcReader.spatialNodeId;
+		this.x = nfcReader.x;
+		this.y = nfcReader.y;
+		this.z = nfcReader.z;
+	}
+
+	public String getReaderId() {
+		return readerId;
+	}
+
+	public String getReaderName() {
+		return readerName;
+	}
+
+	public void setReaderName(String readerName) {
+		this.readerName = readerName;
+	}
+
+	public String getReaderLocation() {
+		return readerLocation;
+	}
+
+	public void setReaderLocation(String readerLocation) {
+		this.readerLocation = readerLocation;
+	}
+
+	public String getSpatialNodeId() {
+		return spatialNodeId;
+	}
+
+	public void setSpatialNodeId(String spatialNodeId) {
+		this.spatialNodeId = spatialNodeId;
+	}
+
+	public boolean hasCoordinate() {
+		return !Double.isNaN(x);
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public double getZ() {
+		return z;
+	}
+
+	public void setCoordinate(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+}
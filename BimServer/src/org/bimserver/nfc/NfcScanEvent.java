@@ -0,0 +1,31 @@
+package org.bimserver.nfc;
+
+public class NfcScanEvent {
+	private final String nfcTagId;
+	private final String readerId;
+	private final String location;
+	private final long timestamp;
+
+	public NfcScanEvent(String nfcTagId, String readerId, String location, long timestamp) {
+		this.nfcTagId = nfcTagId;
+		this.readerId = readerId;
+		this.location = location;
+		this.timestamp = timestamp;
+	}
+
+	public String getNfcTagId() {
+		return nfcTagId;
+	}
+
+	public String getReaderId() {
+		return readerId;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+}
@@ -0,0 +1,7 @@
+package org.bimserver.nfc;
+
+import java.io.IOException;
+
+public interface NfcScanEventVisitor {
+	void visit(NfcScanEvent nfcScanEvent) throws IOException;
+}
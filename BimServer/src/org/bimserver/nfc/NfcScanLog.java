@@ -0,0 +1,410 @@
+package org.bimserver.nfc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bimserver.database.BimDatabase;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.KeyValueStore;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Append only log of NFC scans. Every scan is written to three tables:
+ *
+ * INT-NfcScans          [timestamp][seq]             -> [tagId][readerId][location]
+ * INT-NfcScansByTag     [tagId][timestamp][seq]      -> [readerId][location]
+ * INT-NfcScansByReader  [readerId][timestamp][seq]   -> [tagId][location]
+ *
+ * Keys are big endian, so each table is ordered by time within a tag/reader, and range queries only read the records inside the range.
+ * The time ordered table is used by cleanup() to downsample and expire old scans one time range at a time.
+ *
+ * Timestamps come from the readers, a scan can arrive after the time it was done in has been downsampled. Such scans are also written to
+ * INT-NfcLateScans [timestamp][seq] -> (empty), cleanup() downsamples their intervals again.
+ */
+public class NfcScanLog {
+	private static final Logger LOGGER = LoggerFactory.getLogger(NfcScanLog.class);
+	public static final String NFC_SCANS_TABLE = "INT-NfcScans";
+	public static final String NFC_SCANS_BY_TAG_TABLE = "INT-NfcScansByTag";
+	public static final String NFC_SCANS_BY_READER_TABLE = "INT-NfcScansByReader";
+	public static final String NFC_LATE_SCANS_TABLE = "INT-NfcLateScans";
+	// Ids and locations are stored with a two byte length
+	public static final int MAX_STRING_LENGTH = 0xFFFF;
+	private static final String DOWNSAMPLED_UNTIL = "NFC_SCANS_DOWNSAMPLED_UNTIL";
+	private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(365);
+	private static final long DOWNSAMPLE_AFTER_MILLIS = TimeUnit.DAYS.toMillis(30);
+	// Scans older than DOWNSAMPLE_AFTER_MILLIS are reduced to the first scan of a tag by a reader per interval
+	private static final long DOWNSAMPLE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private static final int CLEANUP_BATCH_SIZE = 10000;
+	private final BimDatabase database;
+	private final KeyValueStore keyValueStore;
+	private final AtomicInteger sequence = new AtomicInteger();
+	// Never behind the mark in the registry, scans before it are late. It is moved before a downsample starts, so a scan that comes in
+	// while the downsample runs is treated as late as well.
+	private volatile long downsampledUntil;
+
+	public NfcScanLog(BimDatabase database) {
+		this.database = database;
+		this.keyValueStore = database.getKeyValueStore();
+	}
+
+	public void init() throws BimserverDatabaseException {
+		for (String tableName : new String[] { NFC_SCANS_TABLE, NFC_SCANS_BY_TAG_TABLE, NFC_SCANS_BY_READER_TABLE, NFC_LATE_SCANS_TABLE }) {
+			if (keyValueStore.containsTable(tableName)) {
+				keyValueStore.openTable(tableName);
+			} else {
+				keyValueStore.createTable(tableName, null);
+			}
+		}
+		downsampledUntil = readDownsampledUntil();
+	}
+
+	public void log(NfcScanEvent nfcScanEvent) throws BimserverDatabaseException {
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			log(nfcScanEvent, databaseSession);
+			databaseSession.commit();
+		} catch (ServiceException e) {
+			throw new BimserverDatabaseException(e);
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	public void log(NfcScanEvent nfcScanEvent, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		byte[] tagId = nfcScanEvent.getNfcTagId().getBytes(Charsets.UTF_8);
+		byte[] readerId = nfcScanEvent.getReaderId().getBytes(Charsets.UTF_8);
+		byte[] location = nfcScanEvent.getLocation().getBytes(Charsets.UTF_8);
+		long timestamp = nfcScanEvent.getTimestamp();
+
+		ByteBuffer timeValue = ByteBuffer.allocate(6 + tagId.length + readerId.length + location.length);
+		putString(timeValue, tagId);
+		putString(timeValue, readerId);
+		putString(timeValue, location);
+		int seq = storeTimeRecord(timestamp, timeValue.array(), databaseSession);
+
+		ByteBuffer tagValue = ByteBuffer.allocate(4 + readerId.length + location.length);
+		putString(tagValue, readerId);
+		putString(tagValue, location);
+		keyValueStore.store(NFC_SCANS_BY_TAG_TABLE, createKey(tagId, timestamp, seq), tagValue.array(), databaseSession);
+
+		ByteBuffer readerValue = ByteBuffer.allocate(4 + tagId.length + location.length);
+		putString(readerValue, tagId);
+		putString(readerValue, location);
+		keyValueStore.store(NFC_SCANS_BY_READER_TABLE, createKey(readerId, timestamp, seq), readerValue.array(), databaseSession);
+
+		if (timestamp < downsampledUntil) {
+			keyValueStore.store(NFC_LATE_SCANS_TABLE, ByteBuffer.allocate(12).putLong(timestamp).putInt(seq).array(), new byte[0], databaseSession);
+		}
+	}
+
+	/*
+	 * The sequence starts at 0 again after a restart and timestamps come from the readers, so [timestamp][seq] can already be taken. The
+	 * record is never overwritten, the next seq is tried instead. The other tables have the timestamp and seq in their keys as well, so
+	 * their keys are free once this one is.
+	 */
+	private int storeTimeRecord(long timestamp, byte[] value, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		ByteBuffer timeKey = ByteBuffer.allocate(12);
+		while (true) {
+			int seq = sequence.incrementAndGet();
+			timeKey.clear();
+			timeKey.putLong(timestamp);
+			timeKey.putInt(seq);
+			try {
+				keyValueStore.storeNoOverwrite(NFC_SCANS_TABLE, timeKey.array(), value, databaseSession);
+				return seq;
+			} catch (BimserverConcurrentModificationDatabaseException e) {
+				// Taken, try the next one
+			}
+		}
+	}
+
+	/*
+	 * Visits all scans of the given tag with from <= timestamp <= to, oldest first
+	 */
+	public void getTagHistory(String nfcTagId, long from, long to, NfcScanEventVisitor visitor) throws BimserverDatabaseException, IOException {
+		byte[] tagId = nfcTagId.getBytes(Charsets.UTF_8);
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(NFC_SCANS_BY_TAG_TABLE, createPrefix(tagId), createKey(tagId, from, 0), databaseSession);
+			try {
+				Record record = recordIterator.next();
+				while (record != null) {
+					ByteBuffer key = ByteBuffer.wrap(record.getKey());
+					long timestamp = key.getLong(2 + tagId.length);
+					if (timestamp > to) {
+						break;
+					}
+					ByteBuffer value = ByteBuffer.wrap(record.getValue());
+					String readerId = getString(value);
+					String location = getString(value);
+					visitor.visit(new NfcScanEvent(nfcTagId, readerId, location, timestamp));
+					record = recordIterator.next();
+				}
+			} finally {
+				recordIterator.close();
+			}
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	/*
+	 * Visits all scans done by the given reader with from <= timestamp <= to, oldest first
+	 */
+	public void getReaderHistory(String nfcReaderId, long from, long to, NfcScanEventVisitor visitor) throws BimserverDatabaseException, IOException {
+		byte[] readerId = nfcReaderId.getBytes(Charsets.UTF_8);
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(NFC_SCANS_BY_READER_TABLE, createPrefix(readerId), createKey(readerId, from, 0), databaseSession);
+			try {
+				Record record = recordIterator.next();
+				while (record != null) {
+					ByteBuffer key = ByteBuffer.wrap(record.getKey());
+					long timestamp = key.getLong(2 + readerId.length);
+					if (timestamp > to) {
+						break;
+					}
+					ByteBuffer value = ByteBuffer.wrap(record.getValue());
+					String tagId = getString(value);
+					String location = getString(value);
+					visitor.visit(new NfcScanEvent(tagId, nfcReaderId, location, timestamp));
+					record = recordIterator.next();
+				}
+			} finally {
+				recordIterator.close();
+			}
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	/*
+	 * Removes scans older than the retention period and downsamples scans older than DOWNSAMPLE_AFTER_MILLIS, called periodically by the JobScheduler
+	 */
+	public void cleanup() throws BimserverDatabaseException {
+		long now = System.currentTimeMillis();
+		int expired = expire(now - RETENTION_MILLIS);
+		int downsampled = downsample(((now - DOWNSAMPLE_AFTER_MILLIS) / DOWNSAMPLE_INTERVAL_MILLIS) * DOWNSAMPLE_INTERVAL_MILLIS);
+		if (expired > 0 || downsampled > 0) {
+			LOGGER.info("NFC scan log cleanup, expired: " + expired + ", downsampled: " + downsampled);
+		}
+	}
+
+	private int expire(long before) throws BimserverDatabaseException {
+		int removed = 0;
+		while (true) {
+			List<byte[]> batch = new ArrayList<byte[]>();
+			List<byte[]> values = new ArrayList<byte[]>();
+			DatabaseSession databaseSession = database.createSession();
+			try {
+				SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(NFC_SCANS_TABLE, new byte[0], new byte[0], databaseSession);
+				try {
+					Record record = recordIterator.next();
+					while (record != null && batch.size() < CLEANUP_BATCH_SIZE && ByteBuffer.wrap(record.getKey()).getLong() < before) {
+						batch.add(record.getKey());
+						values.add(record.getValue());
+						record = recordIterator.next();
+					}
+				} finally {
+					recordIterator.close();
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					delete(batch.get(i), values.get(i), databaseSession);
+				}
+				databaseSession.commit();
+			} catch (ServiceException e) {
+				throw new BimserverDatabaseException(e);
+			} finally {
+				databaseSession.close();
+			}
+			removed += batch.size();
+			if (batch.size() < CLEANUP_BATCH_SIZE) {
+				return removed;
+			}
+		}
+	}
+
+	private int downsample(long until) throws BimserverDatabaseException {
+		int removed = 0;
+		long from = readDownsampledUntil();
+		if (from < until) {
+			downsampledUntil = until;
+			removed += downsample(from, until, true);
+		}
+		return removed + downsampleLateScans();
+	}
+
+	/*
+	 * Downsamples the intervals of the scans that came in after their interval had been downsampled, and forgets those scans
+	 */
+	private int downsampleLateScans() throws BimserverDatabaseException {
+		List<byte[]> lateKeys = new ArrayList<byte[]>();
+		Set<Long> intervals = new TreeSet<Long>();
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(NFC_LATE_SCANS_TABLE, new byte[0], new byte[0], databaseSession);
+			try {
+				Record record = recordIterator.next();
+				while (record != null) {
+					lateKeys.add(record.getKey());
+					intervals.add(ByteBuffer.wrap(record.getKey()).getLong() / DOWNSAMPLE_INTERVAL_MILLIS);
+					record = recordIterator.next();
+				}
+			} finally {
+				recordIterator.close();
+			}
+		} finally {
+			databaseSession.close();
+		}
+		if (lateKeys.isEmpty()) {
+			return 0;
+		}
+		int removed = 0;
+		for (long interval : intervals) {
+			removed += downsample(interval * DOWNSAMPLE_INTERVAL_MILLIS, (interval + 1) * DOWNSAMPLE_INTERVAL_MILLIS, false);
+		}
+		databaseSession = database.createSession();
+		try {
+			for (byte[] lateKey : lateKeys) {
+				keyValueStore.delete(NFC_LATE_SCANS_TABLE, lateKey, databaseSession);
+			}
+			databaseSession.commit();
+		} catch (ServiceException e) {
+			throw new BimserverDatabaseException(e);
+		} finally {
+			databaseSession.close();
+		}
+		return removed;
+	}
+
+	/*
+	 * Keeps the first scan of a tag by a reader per interval for from <= timestamp < until, from has to be the start of an interval
+	 */
+	private int downsample(long from, long until, boolean saveMark) throws BimserverDatabaseException {
+		int removed = 0;
+		byte[] startKey = ByteBuffer.allocate(12).putLong(from).array();
+		long currentInterval = -1;
+		Set<String> seenInInterval = new HashSet<String>();
+		boolean done = false;
+		while (!done) {
+			List<byte[]> batch = new ArrayList<byte[]>();
+			List<byte[]> values = new ArrayList<byte[]>();
+			DatabaseSession databaseSession = database.createSession();
+			try {
+				SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(NFC_SCANS_TABLE, new byte[0], startKey, databaseSession);
+				try {
+					Record record = recordIterator.next();
+					int read = 0;
+					while (true) {
+						if (record == null || ByteBuffer.wrap(record.getKey()).getLong() >= until) {
+							done = true;
+							break;
+						}
+						if (read == CLEANUP_BATCH_SIZE) {
+							startKey = record.getKey();
+							break;
+						}
+						long timestamp = ByteBuffer.wrap(record.getKey()).getLong();
+						long interval = timestamp / DOWNSAMPLE_INTERVAL_MILLIS;
+						if (interval != currentInterval) {
+							currentInterval = interval;
+							seenInInterval.clear();
+						}
+						ByteBuffer value = ByteBuffer.wrap(record.getValue());
+						String tagAndReader = getString(value) + "\n" + getString(value);
+						if (!seenInInterval.add(tagAndReader)) {
+							batch.add(record.getKey());
+							values.add(record.getValue());
+						}
+						read++;
+						record = recordIterator.next();
+					}
+				} finally {
+					recordIterator.close();
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					delete(batch.get(i), values.get(i), databaseSession);
+				}
+				if (done && saveMark) {
+					database.getRegistry().save(DOWNSAMPLED_UNTIL, until, databaseSession);
+				}
+				databaseSession.commit();
+			} catch (ServiceException e) {
+				throw new BimserverDatabaseException(e);
+			} finally {
+				databaseSession.close();
+			}
+			removed += batch.size();
+		}
+		return removed;
+	}
+
+	private long readDownsampledUntil() throws BimserverDatabaseException {
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			return database.getRegistry().readLong(DOWNSAMPLED_UNTIL, databaseSession);
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	private void delete(byte[] timeKey, byte[] timeValue, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		ByteBuffer key = ByteBuffer.wrap(timeKey);
+		long timestamp = key.getLong();
+		int seq = key.getInt();
+		ByteBuffer value = ByteBuffer.wrap(timeValue);
+		byte[] tagId = getBytes(value);
+		byte[] readerId = getBytes(value);
+		keyValueStore.delete(NFC_SCANS_BY_TAG_TABLE, createKey(tagId, timestamp, seq), databaseSession);
+		keyValueStore.delete(NFC_SCANS_BY_READER_TABLE, createKey(readerId, timestamp, seq), databaseSession);
+		keyValueStore.delete(NFC_SCANS_TABLE, timeKey, databaseSession);
+	}
+
+	private byte[] createPrefix(byte[] id) {
+		ByteBuffer buffer = ByteBuffer.allocate(2 + id.length);
+		putString(buffer, id);
+		return buffer.array();
+	}
+
+	private byte[] createKey(byte[] id, long timestamp, int seq) {
+		ByteBuffer buffer = ByteBuffer.allocate(14 + id.length);
+		putString(buffer, id);
+		buffer.putLong(timestamp);
+		buffer.putInt(seq);
+		return buffer.array();
+	}
+
+	private void putString(ByteBuffer buffer, byte[] bytes) {
+		if (bytes.length > MAX_STRING_LENGTH) {
+			// NfcHandler rejects these, a short length would wrap and corrupt the record
+			throw new IllegalArgumentException("Value of " + bytes.length + " bytes is too long, the maximum is " + MAX_STRING_LENGTH);
+		}
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	private byte[] getBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private String getString(ByteBuffer buffer) {
+		return new String(getBytes(buffer), Charsets.UTF_8);
+	}
+}
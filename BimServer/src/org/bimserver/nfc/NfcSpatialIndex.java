@@ -0,0 +1,83 @@
+package org.bimserver.nfc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.models.store.Revision;
+
+/*
+ * Per project R-tree over the bounds of the ifc nodes tags are assigned to, in the latest revision of the project.
+ * A tree is rebuilt when the latest revision or any assignment changed since it was built. Within a revision the bounds of every node
+ * are only looked up once, so a rebuild after an assignment only loads the newly assigned nodes.
+ */
+public class NfcSpatialIndex {
+	private final NfcObjectResolver nfcObjectResolver;
+	private final ConcurrentMap<Long, ProjectIndex> projectIndexes = new ConcurrentHashMap<Long, ProjectIndex>();
+
+	private static class ProjectIndex {
+		private final long roid;
+		private final long assignmentVersion;
+		private final NfcRTree tree;
+		// null values are nodes without geometry
+		private final Map<String, float[]> boundsByGuid;
+
+		private ProjectIndex(long roid, long assignmentVersion, NfcRTree tree, Map<String, float[]> boundsByGuid) {
+			this.roid = roid;
+			this.assignmentVersion = assignmentVersion;
+			this.tree = tree;
+			this.boundsByGuid = boundsByGuid;
+		}
+	}
+
+	public NfcSpatialIndex(NfcObjectResolver nfcObjectResolver) {
+		this.nfcObjectResolver = nfcObjectResolver;
+	}
+
+	/*
+	 * The tree for the revision when it is still up to date with assignmentVersion, null when it has to be built with getTree
+	 */
+	public NfcRTree getCurrentTree(long poid, Revision revision, long assignmentVersion) {
+		ProjectIndex projectIndex = projectIndexes.get(poid);
+		if (projectIndex != null && projectIndex.roid == revision.getOid() && projectIndex.assignmentVersion == assignmentVersion) {
+			return projectIndex.tree;
+		}
+		return null;
+	}
+
+	/*
+	 * assignments maps ifc node ids to tag ids, assignmentVersion must change whenever an assignment changes
+	 */
+	public NfcRTree getTree(DatabaseSession databaseSession, long poid, Revision revision, Map<String, String> assignments, long assignmentVersion) throws BimserverDatabaseException {
+		NfcRTree currentTree = getCurrentTree(poid, revision, assignmentVersion);
+		if (currentTree != null) {
+			return currentTree;
+		}
+		ProjectIndex projectIndex = projectIndexes.get(poid);
+		Map<String, float[]> boundsByGuid = new HashMap<String, float[]>();
+		if (projectIndex != null && projectIndex.roid == revision.getOid()) {
+			boundsByGuid.putAll(projectIndex.boundsByGuid);
+		}
+		List<NfcRTree.Entry> entries = new ArrayList<NfcRTree.Entry>(assignments.size());
+		for (Map.Entry<String, String> assignment : assignments.entrySet()) {
+			String guid = assignment.getKey();
+			if (!boundsByGuid.containsKey(guid)) {
+				IdEObject idEObject = nfcObjectResolver.findObject(databaseSession, revision, guid);
+				boundsByGuid.put(guid, idEObject == null ? null : nfcObjectResolver.getBounds(idEObject));
+			}
+			float[] bounds = boundsByGuid.get(guid);
+			if (bounds != null) {
+				entries.add(new NfcRTree.Entry(assignment.getValue(), bounds));
+			}
+		}
+		NfcRTree tree = NfcRTree.build(entries);
+		projectIndexes.put(poid, new ProjectIndex(revision.getOid(), assignmentVersion, tree, boundsByGuid));
+		return tree;
+	}
+}
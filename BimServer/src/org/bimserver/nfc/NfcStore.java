@@ -0,0 +1,251 @@
+package org.bimserver.nfc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.BimDatabase;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.KeyValueStore;
+import org.bimserver.database.Record;
+import org.bimserver.database.RecordIterator;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Stores NFC tags and readers in their own tables of the KeyValueStore, one record per tag/reader, so a scan only writes the records it touches
+ */
+public class NfcStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(NfcStore.class);
+	public static final String NFC_TAGS_TABLE = "INT-NfcTags";
+	public static final String NFC_READERS_TABLE = "INT-NfcReaders";
+	private final BimDatabase database;
+	private final KeyValueStore keyValueStore;
+	private final NfcIdSequence tagIdSequence;
+	private final NfcIdSequence readerIdSequence;
+
+	public NfcStore(BimDatabase database) {
+		this.database = database;
+		this.keyValueStore = database.getKeyValueStore();
+		this.tagIdSequence = new NfcIdSequence(database, "t", "NFC_NEXT_TAG_ID");
+		this.readerIdSequence = new NfcIdSequence(database, "r", "NFC_NEXT_READER_ID");
+	}
+
+	public void init(File legacyDataDir) throws BimserverDatabaseException {
+		boolean tagsCreated = initTable(NFC_TAGS_TABLE);
+		boolean readersCreated = initTable(NFC_READERS_TABLE);
+		if (tagsCreated || readersCreated) {
+			importLegacyFiles(legacyDataDir);
+		}
+	}
+
+	private boolean initTable(String tableName) throws BimserverDatabaseException {
+		if (keyValueStore.containsTable(tableName)) {
+			keyValueStore.openTable(tableName);
+			return false;
+		}
+		keyValueStore.createTable(tableName, null);
+		return true;
+	}
+
+	public NfcIdSequence getTagIdSequence() {
+		return tagIdSequence;
+	}
+
+	public NfcIdSequence getReaderIdSequence() {
+		return readerIdSequence;
+	}
+
+	public List<NfcTag> getAllTags() throws BimserverDatabaseException {
+		List<NfcTag> result = new ArrayList<NfcTag>();
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			RecordIterator recordIterator = keyValueStore.getRecordIterator(NFC_TAGS_TABLE, databaseSession);
+			try {
+				Record record = recordIterator.next();
+				while (record != null) {
+					result.add(tagFromBytes(record.getKey(), record.getValue()));
+					record = recordIterator.next();
+				}
+			} finally {
+				recordIterator.close();
+			}
+		} finally {
+			databaseSession.close();
+		}
+		return result;
+	}
+
+	public List<NfcReader> getAllReaders() throws BimserverDatabaseException {
+		List<NfcReader> result = new ArrayList<NfcReader>();
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			RecordIterator recordIterator = keyValueStore.getRecordIterator(NFC_READERS_TABLE, databaseSession);
+			try {
+				Record record = recordIterator.next();
+				while (record != null) {
+					result.add(readerFromBytes(record.getKey(), record.getValue()));
+					record = recordIterator.next();
+				}
+			} finally {
+				recordIterator.close();
+			}
+		} finally {
+			databaseSession.close();
+		}
+		return result;
+	}
+
+	public void storeTag(NfcTag nfcTag) throws BimserverDatabaseException {
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			storeTag(nfcTag, databaseSession);
+			databaseSession.commit();
+		} catch (ServiceException e) {
+			throw new BimserverDatabaseException(e);
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	public void storeReader(NfcReader nfcReader) throws BimserverDatabaseException {
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			storeReader(nfcReader, databaseSession);
+			databaseSession.commit();
+		} catch (ServiceException e) {
+			throw new BimserverDatabaseException(e);
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	public void storeTag(NfcTag nfcTag, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		keyValueStore.store(NFC_TAGS_TABLE, nfcTag.getNfcTagId().getBytes(Charsets.UTF_8), tagToBytes(nfcTag), databaseSession);
+	}
+
+	public void storeReader(NfcReader nfcReader, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		keyValueStore.store(NFC_READERS_TABLE, nfcReader.getReaderId().getBytes(Charsets.UTF_8), readerToBytes(nfcReader), databaseSession);
+	}
+
+	/*
+	 * Older versions kept all NFC data in two csv files in the home dir, those are imported once when the tables are created
+	 */
+	@SuppressWarnings("unchecked")
+	private void importLegacyFiles(File legacyDataDir) throws BimserverDatabaseException {
+		File readersFile = new File(legacyDataDir, "nfcReaders.txt");
+		File tagsFile = new File(legacyDataDir, "nfcTags.txt");
+		if (!readersFile.exists() && !tagsFile.exists()) {
+			return;
+		}
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			int nrReaders = 0;
+			int nrTags = 0;
+			if (readersFile.exists()) {
+				List<String> lines = FileUtils.readLines(readersFile, "UTF-8");
+				for (String line : lines) {
+					if (line.startsWith("//") || line.isEmpty()) continue;
+					String[] lineArr = line.split(",", -1);
+					NfcReader nfcReader = new NfcReader(lineArr[0]);
+					nfcReader.setReaderName(lineArr[1]);
+					nfcReader.setReaderLocation(lineArr[2]);
+					storeReader(nfcReader, databaseSession);
+					nrReaders++;
+				}
+			}
+			if (tagsFile.exists()) {
+				List<String> lines = FileUtils.readLines(tagsFile, "UTF-8");
+				for (String line : lines) {
+					if (line.startsWith("//") || line.isEmpty()) continue;
+					String[] lineArr = line.split(",", -1);
+					NfcTag nfcTag = new NfcTag(lineArr[0]);
+					nfcTag.setIfcNodeId(lineArr[1]);
+					nfcTag.setLatestLocation(lineArr[2]);
+					nfcTag.setTrackedLocations(lineArr[3]);
+					storeTag(nfcTag, databaseSession);
+					nrTags++;
+				}
+			}
+			databaseSession.commit();
+			LOGGER.info("Imported " + nrReaders + " NFC readers and " + nrTags + " NFC tags from " + legacyDataDir.getAbsolutePath());
+			if (readersFile.exists()) {
+				readersFile.renameTo(new File(legacyDataDir, "nfcReaders.txt.imported"));
+			}
+			if (tagsFile.exists()) {
+				tagsFile.renameTo(new File(legacyDataDir, "nfcTags.txt.imported"));
+			}
+		} catch (IOException e) {
+			LOGGER.error("", e);
+		} catch (ServiceException e) {
+			throw new BimserverDatabaseException(e);
+		} finally {
+			databaseSession.close();
+		}
+	}
+
+	private byte[] tagToBytes(NfcTag nfcTag) {
+		byte[] ifcNodeId = nfcTag.getIfcNodeId().getBytes(Charsets.UTF_8);
+		byte[] latestLocation = nfcTag.getLatestLocation().getBytes(Charsets.UTF_8);
+		byte[] trackedLocations = nfcTag.getTrackedLocations().getBytes(Charsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(12 + ifcNodeId.length + latestLocation.length + trackedLocations.length);
+		putString(buffer, ifcNodeId);
+		putString(buffer, latestLocation);
+		putString(buffer, trackedLocations);
+		return buffer.array();
+	}
+
+	private NfcTag tagFromBytes(byte[] key, byte[] value) {
+		NfcTag nfcTag = new NfcTag(new String(key, Charsets.UTF_8));
+		ByteBuffer buffer = ByteBuffer.wrap(value);
+		nfcTag.setIfcNodeId(getString(buffer));
+		nfcTag.setLatestLocation(getString(buffer));
+		nfcTag.setTrackedLocations(getString(buffer));
+		return nfcTag;
+	}
+
+	private byte[] readerToBytes(NfcReader nfcReader) {
+		byte[] readerName = nfcReader.getReaderName().getBytes(Charsets.UTF_8);
+		byte[] readerLocation = nfcReader.getReaderLocation().getBytes(Charsets.UTF_8);
+		byte[] spatialNodeId = nfcReader.getSpatialNodeId().getBytes(Charsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(36 + readerName.length + readerLocation.length + spatialNodeId.length);
+		putString(buffer, readerName);
+		putString(buffer, readerLocation);
+		putString(buffer, spatialNodeId);
+		buffer.putDouble(nfcReader.getX());
+		buffer.putDouble(nfcReader.getY());
+		buffer.putDouble(nfcReader.getZ());
+		return buffer.array();
+	}
+
+	private NfcReader readerFromBytes(byte[] key, byte[] value) {
+		NfcReader nfcReader = new NfcReader(new String(key, Charsets.UTF_8));
+		ByteBuffer buffer = ByteBuffer.wrap(value);
+		nfcReader.setReaderName(getString(buffer));
+		nfcReader.setReaderLocation(getString(buffer));
+		// Readers stored before readers could be placed only have a name and location
+		if (buffer.hasRemaining()) {
+			nfcReader.setSpatialNodeId(getString(buffer));
+			nfcReader.setCoordinate(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+		}
+		return nfcReader;
+	}
+
+	private void putString(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+}
@@ -0,0 +1,47 @@
+package org.bimserver.nfc;
+
+public class NfcTag {
+	private String nfcTagId;
+	private String ifcNodeId = "";
+	private String latestLocation = "";
+	private String trackedLocations = "";
+
+	public NfcTag(String nfcTagId) {
+		this.nfcTagId = nfcTagId;
+	}
+
+	public NfcTag(NfcTag nfcTag) {
+		this.nfcTagId = nfcTag.nfcTagId;
+		this.ifcNodeId = nfcTag.ifcNodeId;
+		this.latestLocation = nfcTag.latestLocation;
+		this.trackedLocations = nfcTag.trackedLocations;
+	}
+
+	public String getNfcTagId() {
+		return nfcTagId;
+	}
+
+	public String getIfcNodeId() {
+		return ifcNodeId;
+	}
+
+	public void setIfcNodeId(String ifcNodeId) {
+		this.ifcNodeId = ifcNodeId;
+	}
+
+	public String getLatestLocation() {
+		return latestLocation;
+	}
+
+	public void setLatestLocation(String latestLocation) {
+		this.latestLocation = latestLocation;
+	}
+
+	public String getTrackedLocations() {
+		return trackedLocations;
+	}
+
+	public void setTrackedLocations(String trackedLocations) {
+		this.trackedLocations = trackedLocations;
+	}
+}
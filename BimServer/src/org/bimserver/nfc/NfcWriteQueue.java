@@ -0,0 +1,182 @@
+package org.bimserver.nfc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.bimserver.database.BimDatabase;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.BimserverThreadInterruptedException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Group commit for NFC writes. Writes are queued and a single writer thread stores everything that is waiting in one transaction,
+ * so a burst of scans costs one commit per batch instead of one commit per tag/reader/scan.
+ * Writes are applied in the order they were queued, callers that queue a snapshot of a tag while holding the lock on that tag
+ * therefore never overwrite a newer snapshot with an older one.
+ */
+public class NfcWriteQueue {
+	private static final Logger LOGGER = LoggerFactory.getLogger(NfcWriteQueue.class);
+	private static final int MAX_BATCH_SIZE = 10000;
+	private final BimDatabase database;
+	private final NfcStore nfcStore;
+	private final NfcScanLog nfcScanLog;
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+	private final Thread writerThread;
+	private final PendingWrite closeMarker = new PendingWrite() {
+		@Override
+		protected void write(DatabaseSession databaseSession) {
+		}
+	};
+	private volatile boolean running = true;
+
+	public abstract static class PendingWrite {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Exception exception;
+
+		protected abstract void write(DatabaseSession databaseSession) throws BimserverDatabaseException;
+
+		/*
+		 * Blocks until the transaction containing this write has been committed
+		 */
+		public void await() throws BimserverDatabaseException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				throw new BimserverThreadInterruptedException("Interrupted while waiting for NFC write");
+			}
+			if (exception != null) {
+				throw new BimserverDatabaseException(exception);
+			}
+		}
+
+		public boolean isCommitted() {
+			return done.getCount() == 0 && exception == null;
+		}
+
+		public Exception getException() {
+			return exception;
+		}
+
+		private void finish(Exception exception) {
+			this.exception = exception;
+			done.countDown();
+		}
+	}
+
+	public NfcWriteQueue(BimDatabase database, NfcStore nfcStore, NfcScanLog nfcScanLog) {
+		this.database = database;
+		this.nfcStore = nfcStore;
+		this.nfcScanLog = nfcScanLog;
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "NfcWriteQueue");
+		this.writerThread.setDaemon(true);
+	}
+
+	public void start() {
+		writerThread.start();
+	}
+
+	public PendingWrite storeTag(NfcTag nfcTag) throws BimserverDatabaseException {
+		final NfcTag snapshot = new NfcTag(nfcTag);
+		return enqueue(new PendingWrite() {
+			@Override
+			protected void write(DatabaseSession databaseSession) throws BimserverDatabaseException {
+				nfcStore.storeTag(snapshot, databaseSession);
+			}
+		});
+	}
+
+	public PendingWrite storeReader(NfcReader nfcReader) throws BimserverDatabaseException {
+		final NfcReader snapshot = new NfcReader(nfcReader);
+		return enqueue(new PendingWrite() {
+			@Override
+			protected void write(DatabaseSession databaseSession) throws BimserverDatabaseException {
+				nfcStore.storeReader(snapshot, databaseSession);
+			}
+		});
+	}
+
+	public PendingWrite logScan(final NfcScanEvent nfcScanEvent) throws BimserverDatabaseException {
+		return enqueue(new PendingWrite() {
+			@Override
+			protected void write(DatabaseSession databaseSession) throws BimserverDatabaseException {
+				nfcScanLog.log(nfcScanEvent, databaseSession);
+			}
+		});
+	}
+
+	private PendingWrite enqueue(PendingWrite pendingWrite) throws BimserverDatabaseException {
+		if (!running) {
+			throw new BimserverDatabaseException("NFC write queue has been closed");
+		}
+		queue.add(pendingWrite);
+		return pendingWrite;
+	}
+
+	private void writeLoop() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		boolean closing = false;
+		while (!closing) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+			closing = batch.remove(closeMarker);
+			if (!batch.isEmpty()) {
+				writeBatch(batch);
+			}
+			batch.clear();
+		}
+		// Only writes that raced with close() can still be here
+		queue.drainTo(batch);
+		for (PendingWrite pendingWrite : batch) {
+			pendingWrite.finish(new BimserverDatabaseException("NFC write queue has been closed"));
+		}
+	}
+
+	private void writeBatch(List<PendingWrite> batch) {
+		Exception exception = null;
+		DatabaseSession databaseSession = database.createSession();
+		try {
+			for (PendingWrite pendingWrite : batch) {
+				pendingWrite.write(databaseSession);
+			}
+			databaseSession.commit();
+		} catch (BimserverDatabaseException | ServiceException | RuntimeException e) {
+			exception = e;
+		} finally {
+			databaseSession.close();
+		}
+		if (exception != null) {
+			LOGGER.error("Error committing " + batch.size() + " NFC writes", exception);
+		}
+		for (PendingWrite pendingWrite : batch) {
+			pendingWrite.finish(exception);
+		}
+	}
+
+	/*
+	 * Writes everything that was queued before close() was called, the writer thread is not interrupted because Berkeley DB does not survive interrupts during IO
+	 */
+	public void close() {
+		running = false;
+		queue.add(closeMarker);
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			LOGGER.error("", e);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package org.bimserver.notifications;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.BimServer;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+
+public class NfcTagAssignedNotification extends Notification {
+
+	private final String nfcTagId;
+	private final String ifcNodeId;
+	private final String previousNfcTagId;
+
+	public NfcTagAssignedNotification(BimServer bimServer, String nfcTagId, String ifcNodeId, String previousNfcTagId) {
+		super(bimServer);
+		this.nfcTagId = nfcTagId;
+		this.ifcNodeId = ifcNodeId;
+		this.previousNfcTagId = previousNfcTagId;
+	}
+
+	@Override
+	public void process() throws BimserverDatabaseException, UserException, ServerException {
+		NotificationsManager notificationsManager = getBimServer().getNotificationsManager();
+		if (!ifcNodeId.isEmpty()) {
+			NfcTagAssignedTopic topic = notificationsManager.getNfcTagAssignedTopic(new NfcTopicKey(ifcNodeId));
+			if (topic != null) {
+				topic.process(nfcTagId, ifcNodeId, previousNfcTagId);
+			}
+		}
+		NfcTagAssignedTopic allTopic = notificationsManager.getNfcTagAssignedTopic(NfcTopicKey.ALL);
+		if (allTopic != null) {
+			allTopic.process(nfcTagId, ifcNodeId, previousNfcTagId);
+		}
+	}
+}
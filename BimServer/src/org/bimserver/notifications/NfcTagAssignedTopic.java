@@ -0,0 +1,45 @@
+package org.bimserver.notifications;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class NfcTagAssignedTopic extends NfcTopic {
+
+	public NfcTagAssignedTopic(NotificationsManager notificationsManager, NfcTopicKey key) {
+		super(notificationsManager, key);
+	}
+
+	public void process(String nfcTagId, String ifcNodeId, String previousNfcTagId) throws BimserverDatabaseException, UserException, ServerException {
+		JsonObject parameters = new JsonObject();
+		parameters.add("nfcTagId", new JsonPrimitive(nfcTagId));
+		parameters.add("ifcNodeId", new JsonPrimitive(ifcNodeId));
+		parameters.add("previousNfcTagId", new JsonPrimitive(previousNfcTagId));
+		send("nfcTagAssigned", parameters);
+	}
+
+	@Override
+	public void remove() {
+		getNotificationsManager().removeNfcTagAssignedTopic(getKey());
+	}
+}
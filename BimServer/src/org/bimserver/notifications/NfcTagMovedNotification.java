@@ -0,0 +1,56 @@
+package org.bimserver.notifications;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.BimServer;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+
+public class NfcTagMovedNotification extends Notification {
+
+	private final String nfcTagId;
+	private final String readerId;
+	private final String fromLocation;
+	private final String toLocation;
+	private final long timestamp;
+
+	public NfcTagMovedNotification(BimServer bimServer, String nfcTagId, String readerId, String fromLocation, String toLocation, long timestamp) {
+		super(bimServer);
+		this.nfcTagId = nfcTagId;
+		this.readerId = readerId;
+		this.fromLocation = fromLocation;
+		this.toLocation = toLocation;
+		this.timestamp = timestamp;
+	}
+
+	@Override
+	public void process() throws BimserverDatabaseException, UserException, ServerException {
+		NotificationsManager notificationsManager = getBimServer().getNotificationsManager();
+		if (!nfcTagId.isEmpty()) {
+			NfcTagMovedTopic topic = notificationsManager.getNfcTagMovedTopic(new NfcTopicKey(nfcTagId));
+			if (topic != null) {
+				topic.process(nfcTagId, readerId, fromLocation, toLocation, timestamp);
+			}
+		}
+		NfcTagMovedTopic allTopic = notificationsManager.getNfcTagMovedTopic(NfcTopicKey.ALL);
+		if (allTopic != null) {
+			allTopic.process(nfcTagId, readerId, fromLocation, toLocation, timestamp);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package org.bimserver.notifications;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.endpoints.EndPoint;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/*
+ * NFC notifications are not part of a service interface, they are sent to the websocket endpoints in the same format the
+ * JsonWebsocketReflector uses, with "NfcNotificationInterface" as interface
+ */
+public abstract class NfcTopic extends Topic {
+	public static final String INTERFACE_NAME = "NfcNotificationInterface";
+	private final NfcTopicKey key;
+
+	public NfcTopic(NotificationsManager notificationsManager, NfcTopicKey key) {
+		super(notificationsManager);
+		this.key = key;
+	}
+	
+	public NfcTopicKey getKey() {
+		return key;
+	}
+
+	protected void send(String methodName, JsonObject parameters) throws BimserverDatabaseException, UserException, ServerException {
+		JsonObject request = new JsonObject();
+		request.add("interface", new JsonPrimitive(INTERFACE_NAME));
+		request.add("method", new JsonPrimitive(methodName));
+		request.add("parameters", parameters);
+		final JsonObject message = new JsonObject();
+		message.add("request", request);
+		map(new Mapper() {
+			@Override
+			public void map(EndPoint endPoint) {
+				endPoint.send(message);
+			}
+		});
+	}
+}
@@ -23,6 +23,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.bimserver.BimServer;
 import org.bimserver.client.Channel;
@@ -48,6 +50,11 @@ public class NotificationsManager {
 	private final Map<NewExtendedDataOnRevisionTopicKey, NewExtendedDataOnRevisionTopic> newExtendedDataOnRevisionTopics = new HashMap<NewExtendedDataOnRevisionTopicKey, NewExtendedDataOnRevisionTopic>();
 	private final Map<NewRevisionOnSpecificProjectTopicKey, NewRevisionOnSpecificProjectTopic> newRevisionOnSpecificProjectTopics = new HashMap<NewRevisionOnSpecificProjectTopicKey, NewRevisionOnSpecificProjectTopic>();
 
+	// NFC topics are looked up for every scan, so these maps are concurrent
+	private final ConcurrentMap<NfcTopicKey, NfcTagMovedTopic> nfcTagMovedTopics = new ConcurrentHashMap<NfcTopicKey, NfcTagMovedTopic>();
+	private final ConcurrentMap<NfcTopicKey, NfcTagScannedAtLocationTopic> nfcTagScannedAtLocationTopics = new ConcurrentHashMap<NfcTopicKey, NfcTagScannedAtLocationTopic>();
+	private final ConcurrentMap<NfcTopicKey, NfcTagAssignedTopic> nfcTagAssignedTopics = new ConcurrentHashMap<NfcTopicKey, NfcTagAssignedTopic>();
+
 	// These are for keeping track of new/removed progress topics
 	private final Map<ChangeProgressTopicOnProjectTopicKey, ChangeProgressTopicOnProjectTopic> changeProgressTopicOnProjectTopics = new HashMap<ChangeProgressTopicOnProjectTopicKey, ChangeProgressTopicOnProjectTopic>();
 	private final Map<ChangeProgressTopicOnRevisionTopicKey, ChangeProgressTopicOnRevisionTopic> changeProgressTopicOnRevisionTopics = new HashMap<ChangeProgressTopicOnRevisionTopicKey, ChangeProgressTopicOnRevisionTopic>();
@@ -285,6 +292,66 @@ public class NotificationsManager {
 		this.newRevisionOnSpecificProjectTopics.remove(key);
 	}
 
+	public NfcTagMovedTopic getNfcTagMovedTopic(NfcTopicKey key) {
+		return nfcTagMovedTopics.get(key);
+	}
+
+	public NfcTagMovedTopic getOrCreateNfcTagMovedTopic(NfcTopicKey key) {
+		NfcTagMovedTopic topic = nfcTagMovedTopics.get(key);
+		if (topic == null) {
+			topic = new NfcTagMovedTopic(this, key);
+			NfcTagMovedTopic existing = nfcTagMovedTopics.putIfAbsent(key, topic);
+			if (existing != null) {
+				topic = existing;
+			}
+		}
+		return topic;
+	}
+
+	public void removeNfcTagMovedTopic(NfcTopicKey key) {
+		this.nfcTagMovedTopics.remove(key);
+	}
+
+	public NfcTagScannedAtLocationTopic getNfcTagScannedAtLocationTopic(NfcTopicKey key) {
+		return nfcTagScannedAtLocationTopics.get(key);
+	}
+
+	public NfcTagScannedAtLocationTopic getOrCreateNfcTagScannedAtLocationTopic(NfcTopicKey key) {
+		NfcTagScannedAtLocationTopic topic = nfcTagScannedAtLocationTopics.get(key);
+		if (topic == null) {
+			topic = new NfcTagScannedAtLocationTopic(this, key);
+			NfcTagScannedAtLocationTopic existing = nfcTagScannedAtLocationTopics.putIfAbsent(key, topic);
+			if (existing != null) {
+				topic = existing;
+			}
+		}
+		return topic;
+	}
+
+	public void removeNfcTagScannedAtLocationTopic(NfcTopicKey key) {
+		this.nfcTagScannedAtLocationTopics.remove(key);
+	}
+
+	public NfcTagAssignedTopic getNfcTagAssignedTopic(NfcTopicKey key) {
+		return nfcTagAssignedTopics.get(key);
+	}
+
+	public NfcTagAssignedTopic getOrCreateNfcTagAssignedTopic(NfcTopicKey key) {
+		NfcTagAssignedTopic topic = nfcTagAssignedTopics.get(key);
+		if (topic == null) {
+			topic = new NfcTagAssignedTopic(this, key);
+			NfcTagAssignedTopic existing = nfcTagAssignedTopics.putIfAbsent(key, topic);
+			if (existing != null) {
+				topic = existing;
+			}
+		}
+		return topic;
+	}
+
+	public void removeNfcTagAssignedTopic(NfcTopicKey key) {
+		this.nfcTagAssignedTopics.remove(key);
+	}
+
 	public void removeProgressTopic(ProgressTopicKey key) {
 		if (key instanceof ProgressOnProjectTopicKey) {
 			progressOnProjectTopics.remove((ProgressOnProjectTopicKey)key);
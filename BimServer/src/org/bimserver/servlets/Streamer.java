@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.GregorianCalendar;
@@ -134,11 +135,28 @@ public class Streamer implements EndPoint {
 			} catch (ServerException e) {
 				LOGGER.error("", e);
 			}
+		} else if (isNfcRequest(request)) {
+			// NFC readers stream their scans over the websocket and need the acceptance of their scans back
+			StringWriter stringWriter = new StringWriter();
+			bimServer.getJsonHandler().execute(request, null, stringWriter);
+			JsonObject response = (JsonObject) parser.parse(stringWriter.toString());
+			if (request.has("id")) {
+				response.add("id", request.get("id"));
+			}
+			streamingSocketInterface.send(response);
 		} else {
 			bimServer.getJsonHandler().execute(request, null, new NullWriter());
 		}
 	}
 
+	private boolean isNfcRequest(JsonObject request) {
+		if (!request.has("request")) {
+			return false;
+		}
+		JsonObject innerRequest = request.getAsJsonObject("request");
+		return innerRequest.has("interface") && innerRequest.get("interface").getAsString().equals("handleNfcMethods");
+	}
+
 	@Override
 	public void cleanup() {
 		bimServer.getEndPointManager().unregister(endpointid);
@@ -168,6 +186,11 @@ public class Streamer implements EndPoint {
 		return uoid;
 	}
 	
+	@Override
+	public void send(JsonObject message) {
+		streamingSocketInterface.send(message);
+	}
+	
 	@Override
 	public String toString() {
 		return "" + endpointid;
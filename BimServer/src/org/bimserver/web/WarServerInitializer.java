@@ -27,6 +27,7 @@ import org.bimserver.BimServer;
 import org.bimserver.BimServerConfig;
 import org.bimserver.database.BimserverDatabaseException;
 import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.KeyValueStoreType;
 import org.bimserver.database.berkeley.DatabaseInitException;
 import org.bimserver.plugins.PluginException;
 import org.bimserver.plugins.ResourceFetcher;
@@ -57,6 +58,26 @@ public class WarServerInitializer implements ServletContextListener {
 		if (autoMigrate == false && servletContext.getInitParameter("autoMigrate") != null) {
 			autoMigrate = Boolean.valueOf(servletContext.getInitParameter("autoMigrate"));
 		}
+		boolean deltaCheckins = false;
+		if (servletContext.getInitParameter("deltaCheckins") != null) {
+			deltaCheckins = Boolean.valueOf(servletContext.getInitParameter("deltaCheckins"));
+		}
+		boolean columnarDownloads = false;
+		if (servletContext.getInitParameter("columnarDownloads") != null) {
+			columnarDownloads = Boolean.valueOf(servletContext.getInitParameter("columnarDownloads"));
+		}
+		boolean streamingDownloads = false;
+		if (servletContext.getInitParameter("streamingDownloads") != null) {
+			streamingDownloads = Boolean.valueOf(servletContext.getInitParameter("streamingDownloads"));
+		}
+		long streamingCheckinThreshold = 0;
+		if (servletContext.getInitParameter("streamingCheckinThreshold") != null) {
+			streamingCheckinThreshold = Long.valueOf(servletContext.getInitParameter("streamingCheckinThreshold"));
+		}
+		KeyValueStoreType keyValueStoreType = KeyValueStoreType.BERKELEY;
+		if (servletContext.getInitParameter("keyValueStore") != null) {
+			keyValueStoreType = KeyValueStoreType.valueOf(servletContext.getInitParameter("keyValueStore"));
+		}
 		
 		String realPath = servletContext.getRealPath("/");
 		if (!realPath.endsWith("/")) {
@@ -69,6 +90,11 @@ public class WarServerInitializer implements ServletContextListener {
 		ResourceFetcher resourceFetcher = new WarResourceFetcher(servletContext, homeDir);
 		BimServerConfig config = new BimServerConfig();
 		config.setAutoMigrate(autoMigrate);
+		config.setDeltaCheckins(deltaCheckins);
+		config.setColumnarDownloads(columnarDownloads);
+		config.setStreamingDownloads(streamingDownloads);
+		config.setStreamingCheckinThreshold(streamingCheckinThreshold);
+		config.setKeyValueStoreType(keyValueStoreType);
 		config.setHomeDir(homeDir);
 		config.setResourceFetcher(resourceFetcher);
 		config.setClassPath(makeClassPath(resourceFetcher.getFile("lib")));
@@ -19,11 +19,15 @@ package org.bimserver.webservices.impl;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -94,6 +98,7 @@ import org.bimserver.database.actions.RemoveServiceFromProjectDatabaseAction;
 import org.bimserver.database.actions.RemoveUserFromExtendedDataSchemaDatabaseAction;
 import org.bimserver.database.actions.RemoveUserFromProjectDatabaseAction;
 import org.bimserver.database.actions.SetRevisionTagDatabaseAction;
+import org.bimserver.database.actions.StreamingCheckinDatabaseAction;
 import org.bimserver.database.actions.UndeleteUserDatabaseAction;
 import org.bimserver.database.actions.UpdateGeoTagDatabaseAction;
 import org.bimserver.database.actions.UpdateModelCheckerDatabaseAction;
@@ -156,6 +161,7 @@ import org.bimserver.models.store.UserType;
 import org.bimserver.notifications.NewExtendedDataOnRevisionNotification;
 import org.bimserver.notifications.NewRevisionNotification;
 import org.bimserver.plugins.deserializers.Deserializer;
+import org.bimserver.plugins.deserializers.StreamingDeserializer;
 import org.bimserver.plugins.queryengine.QueryEnginePlugin;
 import org.bimserver.plugins.services.BimServerClientInterface;
 import org.bimserver.shared.BimServerClientFactory;
@@ -164,7 +170,6 @@ import org.bimserver.shared.exceptions.ServerException;
 import org.bimserver.shared.exceptions.UserException;
 import org.bimserver.shared.interfaces.ServiceInterface;
 import org.bimserver.shared.interfaces.SettingsInterface;
-import org.bimserver.utils.MultiplexingInputStream;
 import org.bimserver.utils.NetUtils;
 import org.bimserver.webservices.CheckoutComparator;
 import org.bimserver.webservices.SRevisionComparator;
@@ -182,6 +187,8 @@ import com.google.common.base.Charsets;
 
 public class ServiceImpl extends GenericServiceImpl implements ServiceInterface {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ServiceImpl.class);
+	// Bytes per transfer when an upload is spooled to the incoming directory
+	private static final long SPOOL_BLOCK_SIZE = 16 * 1024 * 1024;
 
 	public ServiceImpl(ServiceMap serviceMap) {
 		super(serviceMap);
@@ -223,17 +230,15 @@ public class ServiceImpl extends GenericServiceImpl implements ServiceInterface
 			if (deserializerObject == null) {
 				throw new UserException("Deserializer with oid " + deserializerOid + " not found");
 			}
-			InputStream inputStream = new MultiplexingInputStream(dataHandler.getInputStream(), new FileOutputStream(file));
+			spool(dataHandler.getInputStream(), file);
 			Deserializer deserializer = getBimServer().getDeserializerFactory().createDeserializer(deserializerOid);
 			deserializer.init(getBimServer().getDatabase().getMetaDataManager().getPackageMetaData(project.getSchema()));
 			
-			IfcModelInterface model = deserializer.read(inputStream, fileName, 0, null);
-			
-			CheckinDatabaseAction checkinDatabaseAction = new CheckinDatabaseAction(getBimServer(), null, getInternalAccessMethod(), poid, getAuthorization(), model, comment, fileName, merge);
-			LongCheckinAction longAction = new LongCheckinAction(getBimServer(), username, userUsername, getAuthorization(), checkinDatabaseAction);
+			// The spooled file is deserialized by the long action, the id is returned before that starts
+			LongCheckinAction longAction = createLongCheckinAction(username, userUsername, project, comment, fileName, merge, deserializer, file);
 			getBimServer().getLongActionManager().start(longAction);
 			if (sync) {
-				longAction.waitForCompletion();
+				waitForCheckin(longAction);
 			}
 			return longAction.getProgressTopic().getKey().getId();
 		} catch (UserException e) {
@@ -284,17 +289,18 @@ public class ServiceImpl extends GenericServiceImpl implements ServiceInterface
 			if (deserializerObject == null) {
 				throw new UserException("Deserializer with oid " + deserializerOid + " not found");
 			}
-			InputStream inputStream = new MultiplexingInputStream(input, new FileOutputStream(file));
+			spool(input, file);
 			Deserializer deserializer = getBimServer().getDeserializerFactory().createDeserializer(deserializerOid);
 			deserializer.init(getBimServer().getDatabase().getMetaDataManager().getPackageMetaData("ifc2x3tc1"));
 
-			IfcModelInterface model = deserializer.read(inputStream, fileName, 0, null);
-			
-			CheckinDatabaseAction checkinDatabaseAction = new CheckinDatabaseAction(getBimServer(), null, getInternalAccessMethod(), poid, getAuthorization(), model, comment, fileName, merge);
-			LongCheckinAction longAction = new LongCheckinAction(getBimServer(), username, userUsername, getAuthorization(), checkinDatabaseAction);
+			Project project = session.get(poid, Query.getDefault());
+			if (project == null) {
+				throw new UserException("No project found with poid " + poid);
+			}
+			LongCheckinAction longAction = createLongCheckinAction(username, userUsername, project, comment, fileName, merge, deserializer, file);
 			getBimServer().getLongActionManager().start(longAction);
 			if (sync) {
-				longAction.waitForCompletion();
+				waitForCheckin(longAction);
 			}
 			return longAction.getProgressTopic().getKey().getId();
 		} catch (UserException e) {
@@ -307,6 +313,63 @@ public class ServiceImpl extends GenericServiceImpl implements ServiceInterface
 		}
 	}
 	
+	/*
+	 * Copies an upload to the incoming directory through file channels, blocks are transferred without going through a buffer of our own
+	 */
+	private void spool(InputStream inputStream, File file) throws IOException {
+		ReadableByteChannel in = Channels.newChannel(inputStream);
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				FileChannel channel = out.getChannel();
+				long position = 0;
+				long transferred = channel.transferFrom(in, position, SPOOL_BLOCK_SIZE);
+				while (transferred > 0) {
+					position += transferred;
+					transferred = channel.transferFrom(in, position, SPOOL_BLOCK_SIZE);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Files from the streaming checkin threshold on are checked in without a model in memory, when nothing needs the whole model
+	 */
+	private LongCheckinAction createLongCheckinAction(String username, String userUsername, Project project, String comment, String fileName, boolean merge, Deserializer deserializer,
+			File file) {
+		long threshold = getBimServer().getConfig().getStreamingCheckinThreshold();
+		if (threshold > 0 && file.length() >= threshold && deserializer instanceof StreamingDeserializer && !merge && !hasValidModelCheckers(project)) {
+			StreamingCheckinDatabaseAction checkinDatabaseAction = new StreamingCheckinDatabaseAction(getBimServer(), null, getInternalAccessMethod(), project.getOid(), getAuthorization(),
+					comment, fileName, (StreamingDeserializer) deserializer, file);
+			return new LongCheckinAction(getBimServer(), username, userUsername, getAuthorization(), checkinDatabaseAction);
+		}
+		CheckinDatabaseAction checkinDatabaseAction = new CheckinDatabaseAction(getBimServer(), null, getInternalAccessMethod(), project.getOid(), getAuthorization(), null, comment, fileName, merge);
+		return new LongCheckinAction(getBimServer(), username, userUsername, getAuthorization(), checkinDatabaseAction, deserializer, file);
+	}
+
+	private boolean hasValidModelCheckers(Project project) {
+		for (ModelCheckerInstance modelCheckerInstance : project.getModelCheckers()) {
+			if (modelCheckerInstance.isValid()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * A synchronous checkin reports a file that cannot be deserialized as an error of the user, with the message of the deserializer
+	 */
+	private void waitForCheckin(LongCheckinAction longAction) throws UserException {
+		longAction.waitForCompletion();
+		if (longAction.getDeserializeException() != null) {
+			throw new UserException(longAction.getDeserializeException());
+		}
+	}
+
 	@Override
 	public SUser addUser(String username, String name, SUserType type, Boolean selfRegistration, String resetUrl) throws ServerException, UserException {
 		DatabaseSession session = getBimServer().getDatabase().createSession();
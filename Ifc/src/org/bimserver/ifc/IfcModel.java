@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -66,6 +67,7 @@ import org.bimserver.plugins.objectidms.ObjectIDM;
 import org.bimserver.shared.PublicInterfaceNotFoundException;
 import org.bimserver.shared.exceptions.ServerException;
 import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.utils.LongObjectHashMap;
 import org.eclipse.emf.common.util.ECollections;
 import org.eclipse.emf.common.util.EList;
 import org.eclipse.emf.ecore.EAttribute;
@@ -87,7 +89,10 @@ public abstract class IfcModel implements IfcModelInterface {
 	private final Set<IfcModelChangeListener> changeListeners = new LinkedHashSet<IfcModelChangeListener>();
 
 	// Object with oid
-	private BiMap<Long, IdEObject> objects;
+	private LongObjectHashMap<IdEObject> objects;
+
+	// Reverse of objects, only built when an object has to be found that is not stored under its own oid, maintained from then on
+	private Map<IdEObject, Long> oidsByObject;
 	
 	// Objects without oid, usually embedded when serialized
 	private final Set<IdEObject> unidentifiedObjects = new HashSet<IdEObject>();
@@ -108,7 +113,7 @@ public abstract class IfcModel implements IfcModelInterface {
 			throw new IllegalArgumentException();
 		}
 		this.packageMetaData = packageMetaData;
-		this.objects = HashBiMap.create(size);
+		this.objects = new LongObjectHashMap<IdEObject>(size);
 	}
 
 	public IfcModel(PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap) {
@@ -118,8 +123,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	@SuppressWarnings("unchecked")
 	private void buildIndex() {
 		indexPerClass = new HashMap<EClass, List<? extends IdEObject>>();
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (value != null) {
 				List<? extends IdEObject> list = indexPerClass.get(value.eClass());
 				if (list == null) {
@@ -137,8 +141,7 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 		ArrayList<IdEObject> list = new ArrayList<IdEObject>();
 		indexPerClass.put((EClass) eClass, list);
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (eClass.isInstance(value)) {
 				list.add(value);
 			}
@@ -147,8 +150,7 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	private void buildIndexWithSubTypes() {
 		indexPerClassWithSubTypes = new HashMap<EClass, List<? extends IdEObject>>();
-		for (Long key : objects.keySet()) {
-			IdEObject idEObject = objects.get(key);
+		for (IdEObject idEObject : objects.values()) {
 			if (idEObject != null) {
 				buildIndexWithSuperTypes(idEObject, idEObject.eClass());
 			}
@@ -177,8 +179,7 @@ public abstract class IfcModel implements IfcModelInterface {
 				guidIndex.put((EClass) classifier, map);
 			}
 		}
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (value instanceof IfcRoot) {
 				IfcRoot ifcRoot = (IfcRoot) value;
 				guidIndex.get(value.eClass()).put(ifcRoot.getGlobalId(), value);
@@ -194,8 +195,7 @@ public abstract class IfcModel implements IfcModelInterface {
 				nameIndex.put((EClass) classifier, map);
 			}
 		}
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get((Long) key);
+		for (IdEObject value : objects.values()) {
 			if (value instanceof IfcRoot) {
 				IfcRoot ifcRoot = (IfcRoot) value;
 				if (ifcRoot.getName() != null) {
@@ -380,6 +380,9 @@ public abstract class IfcModel implements IfcModelInterface {
 				}
 			} else {
 				objects.put(oid, eObject);
+				if (oidsByObject != null) {
+					oidsByObject.put(eObject, oid);
+				}
 				if (!((IdEObjectImpl) eObject).hasModel() || !allowMultiModel) {
 					((IdEObjectImpl) eObject).setModel(this);
 				}
@@ -406,8 +409,8 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 	}
 
-	public BiMap<Long, IdEObject> getObjects() {
-		return (BiMap<Long, IdEObject>) objects;
+	public Map<Long, IdEObject> getObjects() {
+		return objects;
 	}
 
 	public boolean contains(long oid) {
@@ -415,7 +418,24 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public boolean contains(IdEObject eObject) {
-		return objects.containsValue(eObject);
+		return findOid(eObject) != null;
+	}
+
+	/*
+	 * The key eObject is stored under, or null. Objects are almost always stored under their own oid, only when they are not the reverse map is needed.
+	 */
+	private Long findOid(IdEObject eObject) {
+		long oid = eObject.getOid();
+		if (objects.get(oid) == eObject) {
+			return oid;
+		}
+		if (oidsByObject == null) {
+			oidsByObject = new IdentityHashMap<IdEObject, Long>(objects.size());
+			for (long key : objects.keySet()) {
+				oidsByObject.put(objects.get(key), key);
+			}
+		}
+		return oidsByObject.get(eObject);
 	}
 
 	public void indexGuids() {
@@ -545,7 +565,13 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	public void remove(IdEObject idEObject) {
 		unidentifiedObjects.remove(idEObject);
-		objects.inverse().remove(idEObject);
+		Long oid = findOid(idEObject);
+		if (oid != null) {
+			objects.remove(oid.longValue());
+			if (oidsByObject != null) {
+				oidsByObject.remove(idEObject);
+			}
+		}
 		if (indexPerClass != null) {
 			indexPerClass.get(idEObject.eClass()).remove(idEObject);
 		}
@@ -554,36 +580,53 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 	}
 
+	/*
+	 * Stores object under oid, whatever it was stored under before and whatever was stored under oid before
+	 */
 	public void setOid(IdEObject object, Long oid) {
-		objects.forcePut(oid, object);
+		Long oldOid = findOid(object);
+		if (oldOid != null) {
+			objects.remove(oldOid.longValue());
+		}
+		IdEObject replaced = objects.put(oid.longValue(), object);
+		if (oidsByObject != null) {
+			if (replaced != null) {
+				oidsByObject.remove(replaced);
+			}
+			oidsByObject.put(object, oid);
+		}
 	}
 
 	public void fixOids(OidProvider<Long> oidProvider) {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
-		for (long oid : objects.keySet()) {
-			fixOids(objects.get(oid), oidProvider, temp);
+		LongObjectHashMap<IdEObject> temp = new LongObjectHashMap<IdEObject>(objects.size());
+		Set<IdEObject> done = Collections.newSetFromMap(new IdentityHashMap<IdEObject, Boolean>(objects.size()));
+		for (IdEObject object : objects.values()) {
+			fixOids(object, oidProvider, temp, done);
 		}
 		objects = temp;
+		oidsByObject = null;
 	}
 
 	public void fixOids() {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
+		LongObjectHashMap<IdEObject> temp = new LongObjectHashMap<IdEObject>(objects.size());
 		for (IdEObject object : objects.values()) {
 			temp.put(object.getOid(), object);
 		}
 		objects = temp;
+		oidsByObject = null;
 	}
 	
 	@SuppressWarnings("rawtypes")
-	private void fixOids(IdEObject idEObject, OidProvider<Long> oidProvider, BiMap<Long, IdEObject> temp) {
+	private void fixOids(IdEObject idEObject, OidProvider<Long> oidProvider, LongObjectHashMap<IdEObject> temp, Set<IdEObject> done) {
 		if (idEObject == null) {
 			return;
 		}
-		if (temp.containsValue(idEObject)) {
+		if (!done.add(idEObject)) {
 			return;
 		}
+		boolean inModel = contains(idEObject);
 		((IdEObjectImpl) idEObject).setOid(oidProvider.newOid(idEObject.eClass()));
-		if (objects.containsValue(idEObject)) {
+		if (inModel) {
 			temp.put(idEObject.getOid(), idEObject);
 		}
 		for (EReference eReference : idEObject.eClass().getEAllReferences()) {
@@ -591,10 +634,10 @@ public abstract class IfcModel implements IfcModelInterface {
 			if (eReference.isMany()) {
 				List list = (List) val;
 				for (Object o : list) {
-					fixOids((IdEObject) o, oidProvider, temp);
+					fixOids((IdEObject) o, oidProvider, temp, done);
 				}
 			} else {
-				fixOids((IdEObject) val, oidProvider, temp);
+				fixOids((IdEObject) val, oidProvider, temp, done);
 			}
 		}
 	}
@@ -616,8 +659,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public void changeOid(IdEObject object) {
-		objects.inverse().remove(object);
-		objects.put(object.getOid(), object);
+		setOid(object, object.getOid());
 	}
 	
 	public IfcRoot getByGuid(String guid) {
@@ -926,6 +968,7 @@ public abstract class IfcModel implements IfcModelInterface {
 		if (objects != null) {
 			objects.clear();
 		}
+		oidsByObject = null;
 	}
 
 	@Override
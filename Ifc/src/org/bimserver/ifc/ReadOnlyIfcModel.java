@@ -0,0 +1,335 @@
+package org.bimserver.ifc;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.IfcModelInterfaceException;
+import org.bimserver.emf.ModelMetaData;
+import org.bimserver.emf.OidProvider;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.ifc2x3tc1.IfcRoot;
+import org.bimserver.shared.PublicInterfaceNotFoundException;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * Base for models that are only read, by serializers, and do not keep all their objects in memory. Everything that changes the model
+ * throws an UnsupportedOperationException. The objects of these models are created when they are asked for, so the same oid can give
+ * different instances.
+ *
+ * The guid and name lookups go through the objects, subclasses that can do better override them.
+ */
+public abstract class ReadOnlyIfcModel implements IfcModelInterface {
+	protected static final String READ_ONLY = "This model is read only";
+	private final ModelMetaData modelMetaData = new ModelMetaData();
+	private final PackageMetaData packageMetaData;
+	private final Map<Integer, Long> pidRoidMap;
+	private Map<String, Long> guidIndex;
+	private boolean useDoubleStrings = true;
+
+	protected ReadOnlyIfcModel(PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap) {
+		this.packageMetaData = packageMetaData;
+		this.pidRoidMap = pidRoidMap;
+	}
+
+	@Override
+	public IdEObject getNoFetch(long oid) {
+		return get(oid);
+	}
+
+	@Override
+	public boolean containsNoFetch(long oid) {
+		return contains(oid);
+	}
+
+	@Override
+	public boolean contains(IdEObject referencedObject) {
+		return referencedObject != null && contains(referencedObject.getOid());
+	}
+
+	@Override
+	public <T extends IdEObject> List<T> getAll(Class<T> clazz) {
+		return getAll(packageMetaData.getEClassIncludingDependencies(clazz));
+	}
+
+	@Override
+	public <T extends IdEObject> List<T> getAllWithSubTypes(Class<T> clazz) {
+		return getAllWithSubTypes(packageMetaData.getEClass(clazz));
+	}
+
+	@Override
+	public int countWithSubtypes(EClass eClass) {
+		return getAllWithSubTypes(eClass).size();
+	}
+
+	@Override
+	public void indexGuids() {
+		if (guidIndex != null) {
+			return;
+		}
+		guidIndex = new HashMap<String, Long>();
+		for (IdEObject idEObject : this) {
+			if (idEObject instanceof IfcRoot && ((IfcRoot) idEObject).getGlobalId() != null) {
+				guidIndex.put(((IfcRoot) idEObject).getGlobalId(), idEObject.getOid());
+			}
+		}
+	}
+
+	@Override
+	public IfcRoot getByGuid(String guid) {
+		indexGuids();
+		Long oid = guidIndex.get(guid);
+		if (oid == null) {
+			return null;
+		}
+		IdEObject idEObject = get(oid);
+		return idEObject instanceof IfcRoot ? (IfcRoot) idEObject : null;
+	}
+
+	@Override
+	public boolean containsGuid(String referredGuid) {
+		indexGuids();
+		return guidIndex.containsKey(referredGuid);
+	}
+
+	@Override
+	public Set<String> getGuids(EClass eClass) {
+		return getStrings(eClass, "GlobalId");
+	}
+
+	@Override
+	public Set<String> getNames(EClass eClass) {
+		return getStrings(eClass, "Name");
+	}
+
+	private Set<String> getStrings(EClass eClass, String featureName) {
+		Set<String> result = new LinkedHashSet<String>();
+		EStructuralFeature feature = eClass.getEStructuralFeature(featureName);
+		if (feature != null) {
+			for (IdEObject idEObject : getAll(eClass)) {
+				Object value = idEObject.eGet(feature);
+				if (value instanceof String) {
+					result.add((String) value);
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public IdEObject getByName(EClass eClass, String name) {
+		EStructuralFeature feature = eClass.getEStructuralFeature("Name");
+		if (feature != null) {
+			for (IdEObject idEObject : getAll(eClass)) {
+				if (name.equals(idEObject.eGet(feature))) {
+					return idEObject;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Collection<IdEObject> getUnidentifiedValues() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public ModelMetaData getModelMetaData() {
+		return modelMetaData;
+	}
+
+	@Override
+	public PackageMetaData getPackageMetaData() {
+		return packageMetaData;
+	}
+
+	@Override
+	public Map<Integer, Long> getPidRoidMap() {
+		return pidRoidMap;
+	}
+
+	@Override
+	public boolean isValid() {
+		return true;
+	}
+
+	@Override
+	public void setUseDoubleStrings(boolean useDoubleStrings) {
+		this.useDoubleStrings = useDoubleStrings;
+	}
+
+	@Override
+	public boolean isUseDoubleStrings() {
+		return useDoubleStrings;
+	}
+
+	/*
+	 * Called for every value an object gets while it is loaded, there is nothing to record
+	 */
+	@Override
+	public void set(IdEObject idEObject, EStructuralFeature eFeature, Object newValue) {
+	}
+
+	@Override
+	public void generateMinimalExpressIds() {
+		// Express ids are given out by the subclasses
+	}
+
+	@Override
+	public void resetExpressIds() {
+		// Express ids are not kept in the objects
+	}
+
+	@Override
+	public void checkDoubleOidsPlusReferences() {
+		// Every oid is read once
+	}
+
+	@Override
+	public void query(ObjectNode query) {
+	}
+
+	@Override
+	public void add(long oid, IdEObject newObject) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void addAllowMultiModel(long oid, IdEObject newObject) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void remove(IdEObject objectToRemove) {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void fixOids(OidProvider<Long> oidProvider) {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void setObjectOids() {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void resetOids() {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void resetOidsFlat() {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void fixOidCounter() {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void changeOid(IdEObject object) {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void fixOids() {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void fixInverseMismatches() {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public IfcModelInterface branch(long poid, boolean recordChanges) {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public long commit(String comment) throws ServerException, UserException, PublicInterfaceNotFoundException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public void checkin(long poid, String comment) throws ServerException, UserException, PublicInterfaceNotFoundException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T create(Class<T> clazz) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T create(EClass eClass) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T create(Class<T> clazz, OidProvider<Long> oidProvider) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T create(EClass eClass, OidProvider<Long> oidProvider) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T create(EClass eClass, long oid) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T createAndAdd(Class<T> clazz) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T createAndAdd(EClass eClass, long oid) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@Override
+	public <T extends IdEObject> T createAndAdd(EClass eClass) throws IfcModelInterfaceException {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+}
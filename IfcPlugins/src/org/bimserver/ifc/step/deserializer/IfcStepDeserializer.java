@@ -19,25 +19,24 @@ package org.bimserver.ifc.step.deserializer;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.UnsupportedCharsetException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
 import org.bimserver.emf.IdEObject;
 import org.bimserver.emf.IdEObjectImpl;
 import org.bimserver.emf.IfcModelInterface;
@@ -50,30 +49,25 @@ import org.bimserver.models.store.StoreFactory;
 import org.bimserver.plugins.deserializers.ByteProgressReporter;
 import org.bimserver.plugins.deserializers.DeserializeException;
 import org.bimserver.plugins.deserializers.EmfDeserializer;
-import org.bimserver.plugins.schema.Attribute;
+import org.bimserver.plugins.deserializers.StreamingDeserializer;
+import org.bimserver.plugins.deserializers.StreamingDeserializerHandler;
 import org.bimserver.plugins.schema.EntityDefinition;
-import org.bimserver.plugins.schema.ExplicitAttribute;
-import org.bimserver.shared.ListWaitingObject;
-import org.bimserver.shared.SingleWaitingObject;
 import org.bimserver.shared.WaitingList;
 import org.bimserver.utils.FakeClosingInputStream;
-import org.bimserver.utils.StringUtils;
+import org.bimserver.utils.MappedFileInputStream;
 import org.bimserver.utils.TokenizeException;
 import org.bimserver.utils.Tokenizer;
-import org.eclipse.emf.common.util.AbstractEList;
 import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EClassifier;
-import org.eclipse.emf.ecore.EDataType;
+import org.eclipse.emf.ecore.EEnum;
 import org.eclipse.emf.ecore.EEnumLiteral;
 import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EPackage;
 import org.eclipse.emf.ecore.EStructuralFeature;
-import org.eclipse.emf.ecore.EcorePackage;
-import org.eclipse.emf.ecore.impl.EClassImpl;
-import org.eclipse.emf.ecore.impl.EEnumImpl;
 
 import com.google.common.base.Charsets;
 
-public abstract class IfcStepDeserializer extends EmfDeserializer {
+public abstract class IfcStepDeserializer extends EmfDeserializer implements StreamingDeserializer {
 	/*
 	 * The following hacks are present
 	 * 
@@ -84,8 +78,16 @@ public abstract class IfcStepDeserializer extends EmfDeserializer {
 	 */
 
 	private static final int AVERAGE_LINE_LENGTH = 58;
-	private static final String WRAPPED_VALUE = "wrappedValue";
-	private final WaitingList<Integer> waitingList = new WaitingList<Integer>();
+	// Smaller files are parsed line by line on the calling thread
+	private static final long MIN_PARALLEL_FILE_SIZE = 16 * 1024 * 1024;
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final ForkJoinPool PARSER_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	// Limits the text that has been read but not parsed yet when reading is faster than parsing
+	private static final int MAX_CHUNKS_AHEAD = 2 * PARSER_POOL.getParallelism();
+	private long minParallelFileSize = PARSER_POOL.getParallelism() > 1 ? MIN_PARALLEL_FILE_SIZE : Long.MAX_VALUE;
+	private int chunkSize = CHUNK_SIZE;
+	private StepRecordParser recordParser;
+	private StepSchema stepSchema;
 	private Mode mode = Mode.HEADER;
 	private IfcModelInterface model;
 	private int lineNumber;
@@ -99,6 +101,20 @@ public abstract class IfcStepDeserializer extends EmfDeserializer {
 		this.schema = schema;
 	}
 
+	/**
+	 * @param minParallelFileSize Files of at least this size are parsed on the parser pool, smaller ones line by line
+	 */
+	public void setMinParallelFileSize(long minParallelFileSize) {
+		this.minParallelFileSize = minParallelFileSize;
+	}
+
+	/**
+	 * @param chunkSize The number of bytes that is read at once, for the parallel reader also the size of the chunks that are parsed
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
 	public IfcModelInterface read(InputStream in, String filename, long fileSize, ByteProgressReporter byteProgressReporter) throws DeserializeException {
 		mode = Mode.HEADER;
 		if (filename != null && (filename.toUpperCase().endsWith(".ZIP") || filename.toUpperCase().endsWith(".IFCZIP"))) {
@@ -143,9 +159,13 @@ public abstract class IfcStepDeserializer extends EmfDeserializer {
 	}
 	
 	private IfcModelInterface read(InputStream inputStream, long fileSize, ByteProgressReporter byteProgressReporter) throws DeserializeException {
+		if (fileSize >= minParallelFileSize) {
+			return readParallel(inputStream, fileSize, byteProgressReporter);
+		}
 		BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, Charsets.UTF_8));
 		int initialCapacity = (int) (fileSize / AVERAGE_LINE_LENGTH);
 		model = new BasicIfcModel(getPackageMetaData(), null, initialCapacity);
+		recordParser = new ModelRecordParser();
 		long bytesRead = 0;
 		lineNumber = 0;
 		try {
@@ -195,19 +215,349 @@ public abstract class IfcStepDeserializer extends EmfDeserializer {
 		return model;
 	}
 
-	public IfcModelInterface read(File sourceFile) throws DeserializeException {
+	/*
+	 * Reads the raw bytes and cuts the DATA section into chunks at record boundaries, the chunks are parsed on the parser pool while reading
+	 * goes on. The checksum is computed over the bytes as they are read. When everything has been parsed the objects are added to the model
+	 * in the order of the file and the references between chunks are set.
+	 */
+	private IfcModelInterface readParallel(InputStream inputStream, long fileSize, ByteProgressReporter byteProgressReporter) throws DeserializeException {
+		model = new BasicIfcModel(getPackageMetaData(), null, (int) (fileSize / AVERAGE_LINE_LENGTH));
+		initializeMetaData();
+		getStepSchema();
+		List<StepChunk> chunks = new ArrayList<StepChunk>();
+		Deque<StepChunk> running = new ArrayDeque<StepChunk>();
+		StepRecordSplitter splitter = new StepRecordSplitter(0);
+		byte[] buffer = new byte[chunkSize];
+		int length = 0;
+		int recordStart = 0;
+		int chunkStart = 0;
+		int chunkStartLineNumber = 0;
+		long bytesRead = 0;
+		lineNumber = 0;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			int read = inputStream.read(buffer, length, buffer.length - length);
+			while (read != -1) {
+				updateChecksum(md, buffer, length, length + read);
+				int position = length;
+				length += read;
+				bytesRead += read;
+				if (byteProgressReporter != null) {
+					byteProgressReporter.progress(bytesRead);
+				}
+				int recordEnd = splitter.next(buffer, position, length);
+				while (recordEnd != -1) {
+					lineNumber = splitter.getLineNumber();
+					if (mode == Mode.DATA) {
+						if (firstNonWhitespace(buffer, recordStart, recordEnd) != '#' && splitter.getRecord(buffer, recordStart, recordEnd).equals("ENDSEC;")) {
+							if (recordStart > chunkStart) {
+								submit(new StepChunk(getPackageMetaData(), getStepSchema(), buffer, chunkStart, recordStart, chunkStartLineNumber), chunks, running);
+							}
+							mode = Mode.FOOTER;
+						}
+					} else if (mode == Mode.HEADER) {
+						String record = splitter.getRecord(buffer, recordStart, recordEnd);
+						processHeader(record);
+						if (record.equals("DATA;")) {
+							mode = Mode.DATA;
+							chunkStart = recordEnd;
+							chunkStartLineNumber = lineNumber;
+						}
+					}
+					splitter.nextRecord();
+					recordStart = recordEnd;
+					if (mode != Mode.DATA) {
+						chunkStart = recordStart;
+					}
+					recordEnd = splitter.next(buffer, recordStart, length);
+				}
+				if (length == buffer.length) {
+					// Chunks keep the buffer they were cut from, so what is left always goes to a new one
+					if (mode == Mode.DATA && recordStart > chunkStart) {
+						submit(new StepChunk(getPackageMetaData(), getStepSchema(), buffer, chunkStart, recordStart, chunkStartLineNumber), chunks, running);
+						chunkStartLineNumber = lineNumber;
+					}
+					if (recordStart == 0) {
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					} else {
+						byte[] newBuffer = new byte[Math.max(chunkSize, (length - recordStart) * 2)];
+						System.arraycopy(buffer, recordStart, newBuffer, 0, length - recordStart);
+						buffer = newBuffer;
+						length -= recordStart;
+						recordStart = 0;
+						chunkStart = 0;
+					}
+				}
+				read = inputStream.read(buffer, length, buffer.length - length);
+			}
+			if (mode == Mode.DATA && recordStart > chunkStart) {
+				submit(new StepChunk(getPackageMetaData(), getStepSchema(), buffer, chunkStart, recordStart, chunkStartLineNumber), chunks, running);
+			}
+			while (!running.isEmpty()) {
+				join(running.poll());
+			}
+			model.getModelMetaData().setChecksum(md.digest());
+			if (mode == Mode.HEADER) {
+				throw new DeserializeException(lineNumber, "No valid IFC header found");
+			}
+		} catch (IOException e) {
+			throw new DeserializeException(lineNumber, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new DeserializeException(lineNumber, e);
+		}
+		addChunksToModel(chunks);
+		return model;
+	}
+
+	private void submit(StepChunk chunk, List<StepChunk> chunks, Deque<StepChunk> running) throws DeserializeException {
+		PARSER_POOL.execute(chunk);
+		chunks.add(chunk);
+		running.add(chunk);
+		while (running.size() > MAX_CHUNKS_AHEAD) {
+			join(running.poll());
+		}
+	}
+
+	private void join(StepChunk chunk) throws DeserializeException {
+		chunk.join();
+		if (chunk.getDeserializeException() != null) {
+			throw chunk.getDeserializeException();
+		}
+	}
+
+	private void addChunksToModel(List<StepChunk> chunks) throws DeserializeException {
+		try {
+			for (StepChunk chunk : chunks) {
+				for (IdEObject object : chunk.getObjects()) {
+					model.add(object.getExpressId(), object);
+				}
+				for (IdEObject object : chunk.getInlineObjects()) {
+					model.add(-1, object);
+				}
+			}
+		} catch (IfcModelInterfaceException e) {
+			throw new DeserializeException(e);
+		}
+		// References the line based parser leaves unresolved (records that are not in the file) stay unresolved here as well
+		for (StepChunk chunk : chunks) {
+			WaitingList<Integer> waitingList = chunk.getRecordParser().getWaitingList();
+			for (Integer recordNumber : waitingList.getKeys()) {
+				IdEObject object = model.get(recordNumber);
+				if (object != null) {
+					waitingList.updateNode(recordNumber, object.eClass(), object);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Same as the checksum of the line based parser, which hashes the lines without their line breaks
+	 */
+	private void updateChecksum(MessageDigest md, byte[] bytes, int start, int end) {
+		int runStart = start;
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == '\n' || bytes[i] == '\r') {
+				if (i > runStart) {
+					md.update(bytes, runStart, i - runStart);
+				}
+				runStart = i + 1;
+			}
+		}
+		if (end > runStart) {
+			md.update(bytes, runStart, end - runStart);
+		}
+	}
+
+	private byte firstNonWhitespace(byte[] bytes, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] > ' ') {
+				return bytes[i];
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * The schema definition and the EMF metadata fill some of their caches on first use, that should not happen on several threads at once
+	 */
+	private StepSchema getStepSchema() {
+		if (stepSchema == null) {
+			stepSchema = new StepSchema(getPackageMetaData());
+		}
+		return stepSchema;
+	}
+
+	private void initializeMetaData() {
+		for (EntityDefinition entityDefinition : getPackageMetaData().getSchemaDefinition().getEntities()) {
+			entityDefinition.getAttributesCached(true);
+		}
+		EPackage ePackage = getPackageMetaData().getEPackage();
+		for (EClassifier eClassifier : ePackage.getEClassifiers()) {
+			ePackage.getEClassifier(eClassifier.getName());
+			if (eClassifier instanceof EClass) {
+				EClass eClass = (EClass) eClassifier;
+				eClass.getEAllSuperTypes();
+				for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
+					eClass.getEStructuralFeature(eStructuralFeature.getName());
+				}
+			} else if (eClassifier instanceof EEnum) {
+				for (EEnumLiteral eEnumLiteral : ((EEnum) eClassifier).getELiterals()) {
+					((EEnum) eClassifier).getEEnumLiteral(eEnumLiteral.getName());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Files are read through a memory mapping, the chunks of the parallel reader are copied straight from the mapped pages
+	 */
+	@Override
+	public IfcModelInterface read(File sourceFile, ByteProgressReporter byteProgressReporter) throws DeserializeException {
 		try {
-			FileInputStream in = new FileInputStream(sourceFile);
-			read(in, sourceFile.length(), null);
-			in.close();
+			MappedFileInputStream in = new MappedFileInputStream(sourceFile);
+			try {
+				read(in, sourceFile.getName(), sourceFile.length(), byteProgressReporter);
+			} finally {
+				in.close();
+			}
 			model.getModelMetaData().setDate(new Date());
 			model.getModelMetaData().setName(sourceFile.getName());
 			return model;
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			throw new DeserializeException(lineNumber, e);
+		}
+	}
+
+	/*
+	 * Reads the file twice, so the objects do not have to be kept. The first pass gives every record an oid and writes down which records
+	 * reference which through a feature that has an inverse, the second pass parses the records again, sets their references to objects
+	 * that only have an oid and sets their inverses before they are handed out. What is kept between the passes is in temporary files.
+	 */
+	@Override
+	public void read(File sourceFile, StreamingDeserializerHandler handler, ByteProgressReporter byteProgressReporter) throws DeserializeException {
+		model = new BasicIfcModel(getPackageMetaData(), null);
+		lineNumber = 0;
+		initializeMetaData();
+		getStepSchema();
+		try {
+			StepStreamingIndex index = new StepStreamingIndex(getPackageMetaData());
+			try {
+				MessageDigest md = MessageDigest.getInstance("MD5");
+				readPass(sourceFile, new FirstPassRecordParser(handler, index), md, byteProgressReporter, 0);
+				if (mode == Mode.HEADER) {
+					throw new DeserializeException(lineNumber, "No valid IFC header found");
+				}
+				model.getModelMetaData().setChecksum(md.digest());
+				model.getModelMetaData().setDate(new Date());
+				model.getModelMetaData().setName(sourceFile.getName());
+				handler.start(model.getModelMetaData());
+				readPass(sourceFile, new SecondPassRecordParser(handler, index), null, byteProgressReporter, 1);
+			} finally {
+				index.close();
+			}
 		} catch (IOException e) {
 			throw new DeserializeException(lineNumber, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new DeserializeException(lineNumber, e);
+		}
+	}
+
+	/*
+	 * One pass of the streaming reader, the records are parsed where they are in the buffer. The header is only processed by the first pass.
+	 * Each pass is reported as half of the progress.
+	 */
+	private void readPass(File sourceFile, StepRecordParser recordParser, MessageDigest md, ByteProgressReporter byteProgressReporter, int pass) throws DeserializeException, IOException {
+		long fileSize = sourceFile.length();
+		InputStream inputStream = openStream(sourceFile);
+		try {
+			mode = Mode.HEADER;
+			StepRecordSplitter splitter = new StepRecordSplitter(0);
+			byte[] buffer = new byte[chunkSize];
+			int length = 0;
+			int recordStart = 0;
+			long bytesRead = 0;
+			lineNumber = 0;
+			int read = inputStream.read(buffer, length, buffer.length - length);
+			while (read != -1) {
+				if (md != null) {
+					updateChecksum(md, buffer, length, length + read);
+				}
+				int position = length;
+				length += read;
+				bytesRead += read;
+				if (byteProgressReporter != null) {
+					byteProgressReporter.progress((pass * fileSize + Math.min(bytesRead, fileSize)) / 2);
+				}
+				int recordEnd = splitter.next(buffer, position, length);
+				while (recordEnd != -1) {
+					lineNumber = splitter.getLineNumber();
+					processRecord(recordParser, splitter, buffer, recordStart, recordEnd, md != null);
+					splitter.nextRecord();
+					recordStart = recordEnd;
+					recordEnd = splitter.next(buffer, recordStart, length);
+				}
+				if (length == buffer.length) {
+					if (recordStart == 0) {
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					} else {
+						System.arraycopy(buffer, recordStart, buffer, 0, length - recordStart);
+						length -= recordStart;
+						recordStart = 0;
+					}
+				}
+				read = inputStream.read(buffer, length, buffer.length - length);
+			}
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private void processRecord(StepRecordParser recordParser, StepRecordSplitter splitter, byte[] buffer, int recordStart, int recordEnd, boolean processHeader) throws DeserializeException {
+		try {
+			if (mode == Mode.DATA) {
+				if (splitter.getFirstByte() == '#') {
+					recordParser.setLineNumber(lineNumber);
+					recordParser.processRecord(buffer, recordStart, recordEnd);
+				} else if (splitter.getRecord(buffer, recordStart, recordEnd).equals("ENDSEC;")) {
+					mode = Mode.FOOTER;
+				}
+			} else if (mode == Mode.HEADER) {
+				String record = splitter.getRecord(buffer, recordStart, recordEnd);
+				if (processHeader) {
+					processHeader(record);
+				}
+				if (record.equals("DATA;")) {
+					mode = Mode.DATA;
+				}
+			}
+		} catch (DeserializeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DeserializeException(lineNumber, " (" + e.getMessage() + ") " + splitter.getRecord(buffer, recordStart, recordEnd), e);
+		}
+	}
+
+	/*
+	 * The IFC file itself, or the one IFC file in it for zip files
+	 */
+	private InputStream openStream(File sourceFile) throws DeserializeException, IOException {
+		MappedFileInputStream in = new MappedFileInputStream(sourceFile);
+		String name = sourceFile.getName().toUpperCase();
+		if (!name.endsWith(".ZIP") && !name.endsWith(".IFCZIP")) {
+			return in;
 		}
+		ZipInputStream zipInputStream = new ZipInputStream(in);
+		ZipEntry nextEntry = zipInputStream.getNextEntry();
+		if (nextEntry == null || !nextEntry.getName().toUpperCase().endsWith(".IFC")) {
+			zipInputStream.close();
+			throw new DeserializeException("Zip files must contain exactly one IFC-file");
+		}
+		return zipInputStream;
+	}
+
+	@Override
+	public IfcModelInterface read(File sourceFile) throws DeserializeException {
+		return read(sourceFile, null);
 	}
 
 	public IfcModelInterface getModel() {
@@ -343,395 +693,140 @@ public abstract class IfcStepDeserializer extends EmfDeserializer {
 			throw new DeserializeException(lineNumber, e);
 		}
 	}
-
 	public void processRecord(String line) throws DeserializeException, MetaDataException {
-		int equalSignLocation = line.indexOf("=");
-		int lastIndexOfSemiColon = line.lastIndexOf(";");
-		if (lastIndexOfSemiColon == -1) {
-			throw new DeserializeException(lineNumber, "No semicolon found in line");
-		}
-		int indexOfFirstParen = line.indexOf("(", equalSignLocation);
-		if (indexOfFirstParen == -1) {
-			throw new DeserializeException(lineNumber, "No left parenthesis found in line");
-		}
-		int indexOfLastParen = line.lastIndexOf(")", lastIndexOfSemiColon);
-		if (indexOfLastParen == -1) {
-			throw new DeserializeException(lineNumber, "No right parenthesis found in line");
-		}
-		int recordNumber = Integer.parseInt(line.substring(1, equalSignLocation).trim());
-		String name = line.substring(equalSignLocation + 1, indexOfFirstParen).trim();
-		EClass classifier = (EClass) getPackageMetaData().getEClassifierCaseInsensitive(name);
-		if (classifier != null) {
-			IdEObject object = (IdEObject) getPackageMetaData().create(classifier);
+		recordParser.setLineNumber(lineNumber);
+		recordParser.processRecord(line);
+	}
+
+	private class ModelRecordParser extends StepRecordParser {
+		ModelRecordParser() {
+			super(getPackageMetaData(), getStepSchema());
+		}
+
+		@Override
+		protected void addRecord(int recordNumber, IdEObject object) throws DeserializeException {
 			try {
 				model.add(recordNumber, object);
 			} catch (IfcModelInterfaceException e) {
-				throw new DeserializeException(lineNumber, e);
-			}
-			((IdEObjectImpl) object).setExpressId(recordNumber);
-			String realData = line.substring(indexOfFirstParen + 1, indexOfLastParen);
-			int lastIndex = 0;
-			EntityDefinition entityBN = getPackageMetaData().getSchemaDefinition().getEntityBN(name);
-			if (entityBN == null) {
-				throw new DeserializeException(lineNumber, "Unknown entity " + name);
-			}
-			for (Attribute attribute : entityBN.getAttributesCached(true)) {
-				if (attribute instanceof ExplicitAttribute) {
-					if (!entityBN.isDerived(attribute.getName())) {
-						EStructuralFeature structuralFeature = classifier.getEStructuralFeature(attribute.getName());
-						if (structuralFeature == null) {
-							throw new DeserializeException(lineNumber, "Unknown feature " + classifier.getName() + "." + attribute.getName());
-						}
-						int nextIndex = StringUtils.nextString(realData, lastIndex);
-						String val = null;
-						try {
-							val = realData.substring(lastIndex, nextIndex - 1).trim();
-						} catch (Exception e) {
-							int expected = 0;
-							for (Attribute attribute2 : entityBN.getAttributesCached(true)) {
-								if (attribute2 instanceof ExplicitAttribute) {
-									expected++;
-								}
-							}
-							throw new DeserializeException(lineNumber, classifier.getName() + " expects " + expected + " fields, but less found");
-						}
-						lastIndex = nextIndex;
-						char firstChar = val.charAt(0);
-						if (firstChar == '$') {
-							object.eUnset(structuralFeature);
-							if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEDouble()) {
-								EStructuralFeature doubleStringFeature = classifier.getEStructuralFeature(attribute.getName() + "AsString");
-								object.eSet(doubleStringFeature, val);
-							}
-						} else if (firstChar == '#') {
-							readReference(val, object, structuralFeature);
-						} else if (firstChar == '.') {
-							readEnum(val, object, structuralFeature);
-						} else if (firstChar == '(') {
-							readList(val, object, structuralFeature);
-						} else if (firstChar == '*') {
-						} else {
-							if (!structuralFeature.isMany()) {
-								object.eSet(structuralFeature, convert(structuralFeature.getEType(), val));
-								if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEDouble()) {
-									EStructuralFeature doubleStringFeature = classifier.getEStructuralFeature(attribute.getName() + "AsString");
-									object.eSet(doubleStringFeature, val);
-								}
-							} else {
-								// It's not a list in the file, but it is in the
-								// schema??
-							}
-						}
-					} else {
-						int nextIndex = StringUtils.nextString(realData, lastIndex);
-						lastIndex = nextIndex;
-					}
-				}
-			}
-			if (waitingList.containsKey(recordNumber)) {
-				waitingList.updateNode(recordNumber, classifier, object);
+				throw new DeserializeException(getLineNumber(), e);
 			}
-		} else {
-			throw new DeserializeException(lineNumber, name + " is not a known entity");
 		}
-	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void readList(String val, EObject object, EStructuralFeature structuralFeature) throws DeserializeException, MetaDataException {
-		int index = 0;
-		if (!structuralFeature.isMany()) {
-			throw new DeserializeException(lineNumber, "Field " + structuralFeature.getName() + " of " + structuralFeature.getEContainingClass().getName() + " is no aggregation");
-		}
-		AbstractEList list = (AbstractEList) object.eGet(structuralFeature);
-		AbstractEList doubleStringList = null;
-		if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEDouble()) {
-			EStructuralFeature doubleStringFeature = structuralFeature.getEContainingClass().getEStructuralFeature(structuralFeature.getName() + "AsString");
-			if (doubleStringFeature == null) {
-				throw new DeserializeException(lineNumber, "Field not found: " + structuralFeature.getName() + "AsString");
-			}
-			doubleStringList = (AbstractEList) object.eGet(doubleStringFeature);
-		}
-		String realData = val.substring(1, val.length() - 1);
-		int lastIndex = 0;
-		while (lastIndex != realData.length() + 1) {
-			int nextIndex = StringUtils.nextString(realData, lastIndex);
-			String stringValue = realData.substring(lastIndex, nextIndex - 1).trim();
-			lastIndex = nextIndex;
-			if (stringValue.length() > 0) {
-				if (stringValue.charAt(0) == '#') {
-					Integer referenceId = Integer.parseInt(stringValue.substring(1));
-					if (model.contains(referenceId)) {
-						EObject referencedObject = model.get(referenceId);
-						if (referencedObject != null) {
-							EClass referenceEClass = referencedObject.eClass();
-							if (((EClass) structuralFeature.getEType()).isSuperTypeOf(referenceEClass)) {
-								while (list.size() <= index) {
-									list.addUnique(referencedObject);
-								}
-								list.setUnique(index, referencedObject);
-							} else {
-								throw new DeserializeException(lineNumber, referenceEClass.getName() + " cannot be stored in " + structuralFeature.getName());
-							}
-						}
-					} else {
-						waitingList.add(referenceId, new ListWaitingObject(lineNumber, object, structuralFeature, index));
-					}
-				} else if (stringValue.charAt(0) == '(') {
-					// Two dimensional list
-					IdEObject newObject = (IdEObject) getPackageMetaData().create((EClass) structuralFeature.getEType());
-					readList(stringValue, newObject, newObject.eClass().getEStructuralFeature("List"));
-					list.addUnique(newObject);
-				} else {
-					Object convert = convert(structuralFeature.getEType(), stringValue);
-					if (convert != null) {
-						while (list.size() <= index) {
-							if (doubleStringList != null) {
-								doubleStringList.addUnique(stringValue);
-							}
-							list.addUnique(convert);
-						}
-						if (doubleStringList != null) {
-							doubleStringList.setUnique(index, stringValue);
-						}
-						list.setUnique(index, convert);
-					}
-				}
+		@Override
+		protected void addInline(IdEObject object) throws DeserializeException {
+			try {
+				model.add(-1, object);
+			} catch (IfcModelInterfaceException e) {
+				throw new DeserializeException(getLineNumber(), e);
 			}
-			index++;
 		}
-	}
 
-	private Object convertSimpleValue(Class<?> instanceClass, String value) throws DeserializeException {
-		if (!value.equals("")) {
-			if (instanceClass == Integer.class || instanceClass == int.class) {
-				return Integer.parseInt(value);
-			} else if (instanceClass == Long.class || instanceClass == long.class) {
-				return Long.parseLong(value);
-			} else if (instanceClass == Boolean.class || instanceClass == boolean.class) {
-				return Boolean.parseBoolean(value);
-			} else if (instanceClass == Double.class || instanceClass == double.class) {
-				try {
-					return Double.parseDouble(value);
-				} catch (NumberFormatException e) {
-					throw new DeserializeException(lineNumber, "Incorrect double floating point value: " + value, e);
-				}
-			} else if (instanceClass == String.class) {
-				if (value.startsWith("'") && value.endsWith("'")) {
-					return readString(value);
-				} else {
-					return value;
-				}
-			}
+		@Override
+		protected IdEObject getRecord(int recordNumber) {
+			return model.get(recordNumber);
 		}
-		return null;
 	}
 
-	private String readString(String value) throws DeserializeException {
-		String result = value.substring(1, value.length() - 1);
-		// Replace all '' with '
-		while (result.contains("''")) {
-			int index = result.indexOf("''");
-			result = result.substring(0, index) + "'" + result.substring(index + 2);
-		}
-		while (result.contains("\\S\\")) {
-			int index = result.indexOf("\\S\\");
-			char x = result.charAt(index + 3);
-			ByteBuffer b = ByteBuffer.wrap(new byte[] { (byte) (x + 128) });
-			CharBuffer decode = Charsets.ISO_8859_1.decode(b);
-			result = result.substring(0, index) + decode.get() + result.substring(index + 4);
-		}
-		while (result.contains("\\X\\")) {
-			int index = result.indexOf("\\X\\");
-			int code = Integer.parseInt(result.substring(index + 3, index + 5), 16);
-			ByteBuffer b = ByteBuffer.wrap(new byte[] { (byte) (code) });
-			CharBuffer decode = Charsets.ISO_8859_1.decode(b);
-			result = result.substring(0, index) + decode.get() + result.substring(index + 5);
-		}
-		while (result.contains("\\X2\\")) {
-			int index = result.indexOf("\\X2\\");
-			int indexOfEnd = result.indexOf("\\X0\\");
-			if (indexOfEnd == -1) {
-				throw new DeserializeException(lineNumber, "\\X2\\ not closed with \\X0\\");
-			}
-			if ((indexOfEnd - index) % 4 != 0) {
-				throw new DeserializeException(lineNumber, "Number of hex chars in \\X2\\ definition not divisible by 4");
-			}
-			try {
-				ByteBuffer buffer = ByteBuffer.wrap(Hex.decodeHex(result.substring(index + 4, indexOfEnd).toCharArray()));
-				CharBuffer decode = Charsets.UTF_16BE.decode(buffer);
-				result = result.substring(0, index) + decode.toString() + result.substring(indexOfEnd + 4);
-			} catch (DecoderException e) {
-				throw new DeserializeException(lineNumber, e);
-			}
+	/*
+	 * Assigns the oids and writes down the references that have an inverse, the objects are thrown away
+	 */
+	private class FirstPassRecordParser extends StepRecordParser {
+		private final StreamingDeserializerHandler handler;
+		private final StepStreamingIndex index;
+
+		FirstPassRecordParser(StreamingDeserializerHandler handler, StepStreamingIndex index) {
+			super(getPackageMetaData(), getStepSchema());
+			this.handler = handler;
+			this.index = index;
 		}
-		while (result.contains("\\X4\\")) {
-			int index = result.indexOf("\\X4\\");
-			int indexOfEnd = result.indexOf("\\X0\\");
-			if (indexOfEnd == -1) {
-				throw new DeserializeException(lineNumber, "\\X4\\ not closed with \\X0\\");
-			}
-			if ((indexOfEnd - index) % 8 != 0) {
-				throw new DeserializeException(lineNumber, "Number of hex chars in \\X4\\ definition not divisible by 8");
-			}
+
+		@Override
+		protected void addRecord(int recordNumber, IdEObject object) throws DeserializeException {
+			long oid = handler.newOid(object.eClass());
+			((IdEObjectImpl) object).setOid(oid);
 			try {
-				ByteBuffer buffer = ByteBuffer.wrap(Hex.decodeHex(result.substring(index + 4, indexOfEnd).toCharArray()));
-				CharBuffer decode = Charset.forName("UTF-32").decode(buffer);
-				result = result.substring(0, index) + decode.toString() + result.substring(indexOfEnd + 4);
-			} catch (DecoderException e) {
-				throw new DeserializeException(lineNumber, e);
-			} catch (UnsupportedCharsetException e) {
-				throw new DeserializeException(lineNumber, "UTF-32 is not supported on your system", e);
+				if (!index.addRecord(recordNumber, oid, object.eClass())) {
+					throw new DeserializeException(getLineNumber(), "Record #" + recordNumber + " is defined more than once");
+				}
+			} catch (IOException e) {
+				throw new DeserializeException(getLineNumber(), e);
 			}
 		}
-		// Replace all \\ with \
-		while (result.contains("\\\\")) {
-			int index = result.indexOf("\\\\");
-			result = result.substring(0, index) + "\\" + result.substring(index + 2);
-		}
-		return result;
-	}
 
-	private Object convert(EClassifier classifier, String value) throws DeserializeException, MetaDataException {
-		if (classifier != null) {
-			if (classifier instanceof EClassImpl) {
-				if (null != ((EClassImpl) classifier).getEStructuralFeature(WRAPPED_VALUE)) {
-					IdEObject newObject = (IdEObject) getPackageMetaData().create((EClass) classifier);
-					Class<?> instanceClass = newObject.eClass().getEStructuralFeature(WRAPPED_VALUE).getEType().getInstanceClass();
-					if (value.equals("")) {
+		@Override
+		protected void addInline(IdEObject object) {
+		}
 
-					} else {
-						if (instanceClass == Integer.class || instanceClass == int.class) {
-							try {
-								newObject.eSet(newObject.eClass().getEStructuralFeature(WRAPPED_VALUE), Integer.parseInt(value));
-							} catch (NumberFormatException e) {
-								throw new DeserializeException(lineNumber, value + " is not a valid integer value");
-							}
-						} else if (instanceClass == Long.class || instanceClass == long.class) {
-							newObject.eSet(newObject.eClass().getEStructuralFeature(WRAPPED_VALUE), Long.parseLong(value));
-						} else if (instanceClass == Boolean.class || instanceClass == boolean.class) {
-							newObject.eSet(newObject.eClass().getEStructuralFeature(WRAPPED_VALUE), value.equals(".T."));
-						} else if (instanceClass == Double.class || instanceClass == double.class) {
-							try {
-								newObject.eSet(newObject.eClass().getEStructuralFeature(WRAPPED_VALUE), Double.parseDouble(value));
-							} catch (NumberFormatException e) {
-								throw new DeserializeException(lineNumber, value + " is not a valid double floating point number");
-							}
-							newObject.eSet(newObject.eClass().getEStructuralFeature(WRAPPED_VALUE + "AsString"), value);
-						} else if (instanceClass == String.class) {
-							newObject.eSet(newObject.eClass().getEStructuralFeature(WRAPPED_VALUE), readString(value));
-						} else if (instanceClass.getName().equals("Tristate")) {
-							Object tristate = null;
-							if (value.equals(".T.")) {
-								tristate = getPackageMetaData().getEEnumLiteral("Tristate", "TRUE");
-							} else if (value.equals(".F.")) {
-								tristate = getPackageMetaData().getEEnumLiteral("Tristate", "FALSE");
-							} else if (value.equals(".U.")) {
-								tristate = getPackageMetaData().getEEnumLiteral("Tristate", "UNDEFINED");
-							}
-							newObject.eSet(newObject.eClass().getEStructuralFeature(WRAPPED_VALUE), tristate);
-						}
-					}
-					return newObject;
-				} else {
-					return processInline(classifier, value);
-				}
-			} else if (classifier instanceof EDataType) {
-				return convertSimpleValue(classifier.getInstanceClass(), value);
-			}
+		@Override
+		protected IdEObject getRecord(int recordNumber) {
+			return null;
 		}
-		return null;
-	}
 
-	private Object processInline(EClassifier classifier, String value) throws DeserializeException, MetaDataException {
-		if (value.indexOf("(") != -1) {
-			String typeName = value.substring(0, value.indexOf("(")).trim();
-			String v = value.substring(value.indexOf("(") + 1, value.length() - 1);
-			EClassifier eClassifier = getPackageMetaData().getEClassifierCaseInsensitive(typeName);
-			if (eClassifier instanceof EClass) {
-				Object convert = convert(eClassifier, v);
+		@Override
+		protected void setReference(EObject object, EStructuralFeature structuralFeature, int listIndex, int referenceId) throws DeserializeException {
+			if (index.hasInverse(structuralFeature)) {
 				try {
-					model.add(-1, (IdEObject) convert);
-				} catch (IfcModelInterfaceException e) {
-					throw new DeserializeException(lineNumber, e);
+					index.addReference(referenceId, (IdEObject) object, structuralFeature);
+				} catch (IOException e) {
+					throw new DeserializeException(getLineNumber(), e);
 				}
-				return convert;
-			} else {
-				throw new DeserializeException(lineNumber, typeName + " is not an existing IFC entity");
 			}
-		} else {
-			return convertSimpleValue(classifier.getInstanceClass(), value);
 		}
 	}
 
-	private void readEnum(String val, EObject object, EStructuralFeature structuralFeature) throws DeserializeException, MetaDataException {
-		if (val.equals(".T.")) {
-			if (structuralFeature.getEType().getName().equals("Tristate")) {
-				object.eSet(structuralFeature, getPackageMetaData().getEEnumLiteral("Tristate", "TRUE").getInstance());
-			} else if (structuralFeature.getEType().getName().equals("IfcBoolean")) {
-				EClass eClass = getPackageMetaData().getEClass("IfcBoolean");
-				EObject createIfcBoolean = getPackageMetaData().create(eClass);
-				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), getPackageMetaData().getEEnumLiteral("Tristate", "TRUE").getInstance());
-				object.eSet(structuralFeature, createIfcBoolean);
-			} else if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEBoolean()) {
-				object.eSet(structuralFeature, true);
-			} else {
-				EClass eClass = getPackageMetaData().getEClass("IfcLogical");
-				EObject createIfcBoolean = getPackageMetaData().create(eClass);
-				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), getPackageMetaData().getEEnumLiteral("Tristate", "TRUE").getInstance());
-				object.eSet(structuralFeature, createIfcBoolean);
-			}
-		} else if (val.equals(".F.")) {
-			if (structuralFeature.getEType().getName().equals("Tristate")) {
-				object.eSet(structuralFeature, getPackageMetaData().getEEnumLiteral("Tristate", "FALSE").getInstance());
-			} else if (structuralFeature.getEType().getName().equals("IfcBoolean")) {
-				EClass eClass = getPackageMetaData().getEClass("IfcBoolean");
-				EObject createIfcBoolean = getPackageMetaData().create(eClass);
-				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), getPackageMetaData().getEEnumLiteral("Tristate", "FALSE").getInstance());
-				object.eSet(structuralFeature, createIfcBoolean);
-			} else if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEBoolean()) {
-				object.eSet(structuralFeature, false);
-			} else {
-				EClass eClass = getPackageMetaData().getEClass("IfcLogical");
-				EObject createIfcBoolean = getPackageMetaData().create(eClass);
-				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), getPackageMetaData().getEEnumLiteral("Tristate", "FALSE").getInstance());
-				object.eSet(structuralFeature, createIfcBoolean);
-			}
-		} else if (val.equals(".U.")) {
-			if (structuralFeature.getEType().getName().equals("Tristate")) {
-				object.eSet(structuralFeature, getPackageMetaData().getEEnumLiteral("Tristate", "UNDEFINED").getInstance());
-			} else if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEBoolean()) {
-				object.eUnset(structuralFeature);
-			} else {
-				EClass eClass = getPackageMetaData().getEClass("IfcLogical");
-				EObject createIfcBoolean = getPackageMetaData().create(eClass);
-				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), getPackageMetaData().getEEnumLiteral("Tristate", "UNDEFINED").getInstance());
-				object.eSet(structuralFeature, createIfcBoolean);
-			}
-		} else {
-			if (structuralFeature.getEType() instanceof EEnumImpl) {
-				String realEnumValue = val.substring(1, val.length() - 1);
-				EEnumLiteral enumValue = (((EEnumImpl) structuralFeature.getEType()).getEEnumLiteral(realEnumValue));
-				if (enumValue == null) {
-					throw new DeserializeException(lineNumber, "Enum type " + structuralFeature.getEType().getName() + " has no literal value '" + realEnumValue + "'");
-				}
-				object.eSet(structuralFeature, enumValue.getInstance());
-			} else {
-				throw new DeserializeException(lineNumber, "Value " + val + " indicates enum type but " + structuralFeature.getEType().getName() + " expected");
-			}
+	/*
+	 * Hands out every record with its references and inverses set. References to records that are not in the file are left out, like the
+	 * other readers leave them unresolved.
+	 */
+	private class SecondPassRecordParser extends StepRecordParser {
+		private final StreamingDeserializerHandler handler;
+		private final StepStreamingIndex index;
+		private IdEObject object;
+		private int recordNumber;
+
+		SecondPassRecordParser(StreamingDeserializerHandler handler, StepStreamingIndex index) {
+			super(getPackageMetaData(), getStepSchema());
+			this.handler = handler;
+			this.index = index;
 		}
-	}
 
-	private void readReference(String val, EObject object, EStructuralFeature structuralFeature) throws DeserializeException {
-		int referenceId;
-		try {
-			referenceId = Integer.parseInt(val.substring(1));
-		} catch (NumberFormatException e) {
-			throw new DeserializeException(lineNumber, "'" + val + "' is not a valid reference");
+		@Override
+		public void processRecord(byte[] bytes, int start, int end) throws DeserializeException, MetaDataException {
+			super.processRecord(bytes, start, end);
+			index.setInverses(recordNumber, object);
+			IdEObject done = object;
+			object = null;
+			handler.object(done);
 		}
-		if (model.contains(referenceId)) {
-			object.eSet(structuralFeature, model.get(referenceId));
-		} else {
-			waitingList.add(referenceId, new SingleWaitingObject(lineNumber, object, structuralFeature));
+
+		@Override
+		protected void addRecord(int recordNumber, IdEObject object) {
+			((IdEObjectImpl) object).useInverses(false);
+			((IdEObjectImpl) object).setOid(index.getOid(recordNumber));
+			this.recordNumber = recordNumber;
+			this.object = object;
+		}
+
+		@Override
+		protected void addInline(IdEObject object) {
+		}
+
+		@Override
+		protected IdEObject getRecord(int recordNumber) {
+			return null;
+		}
+
+		@Override
+		protected void setReference(EObject object, EStructuralFeature structuralFeature, int listIndex, int referenceId) throws DeserializeException {
+			IdEObject reference = index.createReference(referenceId);
+			if (reference == null) {
+				return;
+			}
+			if (listIndex == -1) {
+				object.eSet(structuralFeature, reference);
+			} else {
+				setListReference(object, structuralFeature, listIndex, reference);
+			}
 		}
 	}
-}
\ No newline at end of file
+}
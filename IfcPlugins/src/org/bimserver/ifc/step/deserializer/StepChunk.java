@@ -0,0 +1,121 @@
+package org.bimserver.ifc.step.deserializer;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.utils.LongObjectHashMap;
+
+/*
+ * A run of DATA records of the parallel deserializer, parsed on a fork/join pool. The objects are kept in the order of the file and only
+ * references to records in the same chunk are set, the others stay in the waiting list of the chunk until all chunks have been parsed.
+ */
+class StepChunk extends RecursiveAction {
+	private static final long serialVersionUID = 6049152313478297406L;
+	private final List<IdEObject> objects = new ArrayList<IdEObject>();
+	private final List<IdEObject> inlineObjects = new ArrayList<IdEObject>();
+	private final LongObjectHashMap<IdEObject> objectsByRecordNumber = new LongObjectHashMap<IdEObject>();
+	private final StepRecordParser recordParser;
+	private final int firstLineNumber;
+	private byte[] bytes;
+	private final int start;
+	private final int end;
+	private DeserializeException exception;
+
+	StepChunk(PackageMetaData packageMetaData, StepSchema stepSchema, byte[] bytes, int start, int end, int firstLineNumber) {
+		this.bytes = bytes;
+		this.start = start;
+		this.end = end;
+		this.firstLineNumber = firstLineNumber;
+		this.recordParser = new StepRecordParser(packageMetaData, stepSchema) {
+			@Override
+			protected void addRecord(int recordNumber, IdEObject object) throws DeserializeException {
+				if (objectsByRecordNumber.get(recordNumber) != null) {
+					throw new DeserializeException(getLineNumber(), "Record #" + recordNumber + " is defined more than once");
+				}
+				objectsByRecordNumber.put(recordNumber, object);
+				objects.add(object);
+			}
+
+			@Override
+			protected void addInline(IdEObject object) {
+				inlineObjects.add(object);
+			}
+
+			@Override
+			protected IdEObject getRecord(int recordNumber) {
+				return objectsByRecordNumber.get(recordNumber);
+			}
+		};
+	}
+
+	@Override
+	protected void compute() {
+		StepRecordSplitter splitter = new StepRecordSplitter(firstLineNumber);
+		int position = start;
+		int recordEnd = -1;
+		try {
+			recordEnd = splitter.next(bytes, position, end);
+			while (recordEnd != -1) {
+				recordParser.setLineNumber(splitter.getLineNumber());
+				if (splitter.getFirstByte() == '#') {
+					// The tokenizer skips comments and line breaks itself, the record is parsed where it is
+					recordParser.processRecord(bytes, position, recordEnd);
+				}
+				splitter.nextRecord();
+				position = recordEnd;
+				recordEnd = splitter.next(bytes, position, end);
+			}
+		} catch (DeserializeException e) {
+			exception = e;
+		} catch (Exception e) {
+			String record = recordEnd == -1 ? null : splitter.getRecord(bytes, position, recordEnd);
+			exception = new DeserializeException(recordParser.getLineNumber(), " (" + e.getMessage() + ") " + record, e);
+		} finally {
+			// The objects are kept until all chunks are done, the text is not needed anymore
+			bytes = null;
+		}
+	}
+
+	/*
+	 * Records in the order of the file, their express ids are set
+	 */
+	public List<IdEObject> getObjects() {
+		return objects;
+	}
+
+	public List<IdEObject> getInlineObjects() {
+		return inlineObjects;
+	}
+
+	public StepRecordParser getRecordParser() {
+		return recordParser;
+	}
+
+	/*
+	 * Null when the chunk was parsed without errors
+	 */
+	public DeserializeException getDeserializeException() {
+		return exception;
+	}
+}
@@ -0,0 +1,481 @@
+package org.bimserver.ifc.step.deserializer;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.emf.MetaDataException;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.ifc.step.deserializer.StepTokenizer.TokenType;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.shared.ListWaitingObject;
+import org.bimserver.shared.SingleWaitingObject;
+import org.bimserver.shared.WaitingList;
+import org.bimserver.utils.TokenizeException;
+import org.eclipse.emf.common.util.AbstractEList;
+import org.eclipse.emf.common.util.EList;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EDataType;
+import org.eclipse.emf.ecore.EEnum;
+import org.eclipse.emf.ecore.EEnumLiteral;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcorePackage;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Turns DATA records into objects. Where the objects go and how references to other records are looked up is left to subclasses: the
+ * sequential deserializer adds them to its model right away, a chunk of the parallel deserializer keeps them to itself until all chunks are parsed.
+ * References to records that are not known yet end up in the waiting list.
+ *
+ * Records are read with a StepTokenizer straight from the bytes, so apart from the objects themselves only the values that are stored as
+ * Strings (strings and the text of doubles) are allocated.
+ */
+abstract class StepRecordParser {
+	private static final String WRAPPED_VALUE = "wrappedValue";
+	private final WaitingList<Integer> waitingList = new WaitingList<Integer>();
+	private final StepTokenizer tokenizer = new StepTokenizer();
+	private final PackageMetaData packageMetaData;
+	private final StepSchema stepSchema;
+	private int lineNumber;
+
+	StepRecordParser(PackageMetaData packageMetaData, StepSchema stepSchema) {
+		this.packageMetaData = packageMetaData;
+		this.stepSchema = stepSchema;
+	}
+
+	protected abstract void addRecord(int recordNumber, IdEObject object) throws DeserializeException;
+
+	protected abstract void addInline(IdEObject object) throws DeserializeException;
+
+	/*
+	 * Returns null when the record has not been parsed (yet)
+	 */
+	protected abstract IdEObject getRecord(int recordNumber);
+
+	public WaitingList<Integer> getWaitingList() {
+		return waitingList;
+	}
+
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	public void setLineNumber(int lineNumber) {
+		this.lineNumber = lineNumber;
+	}
+
+	public void processRecord(String line) throws DeserializeException, MetaDataException {
+		byte[] bytes = line.getBytes(Charsets.UTF_8);
+		processRecord(bytes, 0, bytes.length);
+	}
+
+	/*
+	 * The record from start up to end, which includes the ;
+	 */
+	public void processRecord(byte[] bytes, int start, int end) throws DeserializeException, MetaDataException {
+		tokenizer.reset(bytes, start, end);
+		try {
+			if (tokenizer.next() != TokenType.REFERENCE) {
+				throw new DeserializeException(lineNumber, "Record does not start with a record number");
+			}
+			int recordNumber = getNumber();
+			if (tokenizer.next() != TokenType.EQUALS) {
+				throw new DeserializeException(lineNumber, "No equals sign found in line");
+			}
+			if (tokenizer.next() != TokenType.KEYWORD) {
+				throw new DeserializeException(lineNumber, "No entity name found in line");
+			}
+			StepSchema.Entity entity = stepSchema.getEntity(bytes, tokenizer.getTokenStart(), tokenizer.getTokenEnd());
+			if (entity == null) {
+				throw new DeserializeException(lineNumber, tokenizer.getText() + " is not a known entity");
+			}
+			if (entity.getError() != null) {
+				throw new DeserializeException(lineNumber, entity.getError());
+			}
+			if (tokenizer.next() != TokenType.OPEN) {
+				throw new DeserializeException(lineNumber, "No left parenthesis found in line");
+			}
+			EClass classifier = entity.getEClass();
+			IdEObject object = (IdEObject) packageMetaData.create(classifier);
+			addRecord(recordNumber, object);
+			((IdEObjectImpl) object).setExpressId(recordNumber);
+			EStructuralFeature[] features = entity.getFeatures();
+			TokenType tokenType = tokenizer.next();
+			for (int i = 0; i < features.length; i++) {
+				if (i > 0) {
+					if (tokenType != TokenType.COMMA) {
+						throw new DeserializeException(lineNumber, classifier.getName() + " expects " + features.length + " fields, but less found");
+					}
+					tokenType = tokenizer.next();
+				}
+				if (tokenType == TokenType.CLOSE) {
+					throw new DeserializeException(lineNumber, classifier.getName() + " expects " + features.length + " fields, but less found");
+				}
+				EStructuralFeature structuralFeature = features[i];
+				if (structuralFeature == null) {
+					// Derived
+					tokenizer.skipValue();
+				} else {
+					readValue(object, structuralFeature);
+				}
+				tokenType = tokenizer.next();
+			}
+			// Values beyond the attributes of the entity are ignored
+			while (tokenType == TokenType.COMMA) {
+				tokenizer.next();
+				tokenizer.skipValue();
+				tokenType = tokenizer.next();
+			}
+			if (tokenType != TokenType.CLOSE) {
+				throw new DeserializeException(lineNumber, "No right parenthesis found in line");
+			}
+			if (waitingList.containsKey(recordNumber)) {
+				waitingList.updateNode(recordNumber, classifier, object);
+			}
+		} catch (TokenizeException e) {
+			throw new DeserializeException(lineNumber, e);
+		}
+	}
+
+	private void readValue(IdEObject object, EStructuralFeature structuralFeature) throws DeserializeException, MetaDataException, TokenizeException {
+		boolean isDouble = structuralFeature.getEType() == EcorePackage.eINSTANCE.getEDouble();
+		switch (tokenizer.getTokenType()) {
+		case DOLLAR:
+			object.eUnset(structuralFeature);
+			if (isDouble) {
+				object.eSet(stepSchema.getAsStringFeature(structuralFeature), "$");
+			}
+			break;
+		case REFERENCE:
+			setReference(object, structuralFeature, -1, getNumber());
+			break;
+		case ENUM:
+			readEnum(object, structuralFeature);
+			break;
+		case OPEN:
+			readList(object, structuralFeature);
+			break;
+		case STAR:
+			break;
+		case INTEGER:
+		case REAL:
+		case STRING:
+		case BINARY:
+		case KEYWORD:
+			if (!structuralFeature.isMany()) {
+				String text = isDouble ? tokenizer.getText() : null;
+				object.eSet(structuralFeature, convert(structuralFeature.getEType()));
+				if (isDouble) {
+					object.eSet(stepSchema.getAsStringFeature(structuralFeature), text);
+				}
+			} else {
+				// It's not a list in the file, but it is in the schema??
+				tokenizer.skipValue();
+			}
+			break;
+		default:
+			throw new DeserializeException(lineNumber, "No value found for " + structuralFeature.getEContainingClass().getName() + "." + structuralFeature.getName());
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void readList(EObject object, EStructuralFeature structuralFeature) throws DeserializeException, MetaDataException, TokenizeException {
+		if (!structuralFeature.isMany()) {
+			throw new DeserializeException(lineNumber, "Field " + structuralFeature.getName() + " of " + structuralFeature.getEContainingClass().getName() + " is no aggregation");
+		}
+		AbstractEList list = (AbstractEList) object.eGet(structuralFeature);
+		AbstractEList doubleStringList = null;
+		if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEDouble()) {
+			EStructuralFeature doubleStringFeature = stepSchema.getAsStringFeature(structuralFeature);
+			if (doubleStringFeature == null) {
+				throw new DeserializeException(lineNumber, "Field not found: " + structuralFeature.getName() + "AsString");
+			}
+			doubleStringList = (AbstractEList) object.eGet(doubleStringFeature);
+		}
+		int index = 0;
+		TokenType tokenType = tokenizer.next();
+		if (tokenType == TokenType.CLOSE) {
+			return;
+		}
+		while (true) {
+			if (tokenType == TokenType.REFERENCE) {
+				setReference(object, structuralFeature, index, getNumber());
+			} else if (tokenType == TokenType.OPEN) {
+				// Two dimensional list
+				IdEObject newObject = (IdEObject) packageMetaData.create((EClass) structuralFeature.getEType());
+				readList(newObject, newObject.eClass().getEStructuralFeature("List"));
+				list.addUnique(newObject);
+			} else if (tokenType != TokenType.COMMA && tokenType != TokenType.CLOSE && tokenType != TokenType.DOLLAR && tokenType != TokenType.STAR) {
+				String text = doubleStringList != null ? tokenizer.getText() : null;
+				Object convert = convert(structuralFeature.getEType());
+				if (convert != null) {
+					while (list.size() <= index) {
+						if (doubleStringList != null) {
+							doubleStringList.addUnique(text);
+						}
+						list.addUnique(convert);
+					}
+					if (doubleStringList != null) {
+						doubleStringList.setUnique(index, text);
+					}
+					list.setUnique(index, convert);
+				}
+			}
+			if (tokenType != TokenType.COMMA && tokenType != TokenType.CLOSE) {
+				tokenType = tokenizer.next();
+			}
+			index++;
+			if (tokenType == TokenType.CLOSE) {
+				return;
+			}
+			if (tokenType != TokenType.COMMA) {
+				throw new DeserializeException(lineNumber, "Expected a comma in the list of " + structuralFeature.getName() + " instead of " + tokenizer.getText());
+			}
+			tokenType = tokenizer.next();
+		}
+	}
+
+	/*
+	 * Converts the value that starts with the current token, the current token is the last token of the value afterwards
+	 */
+	private Object convert(EClassifier classifier) throws DeserializeException, MetaDataException, TokenizeException {
+		if (classifier instanceof EClass) {
+			if (tokenizer.getTokenType() == TokenType.KEYWORD) {
+				return readTypedValue();
+			}
+			EStructuralFeature wrappedValueFeature = ((EClass) classifier).getEStructuralFeature(WRAPPED_VALUE);
+			if (wrappedValueFeature != null) {
+				IdEObject newObject = (IdEObject) packageMetaData.create((EClass) classifier);
+				readWrappedValue(newObject, wrappedValueFeature);
+				return newObject;
+			}
+			return convertSimpleValue(classifier.getInstanceClass());
+		} else if (classifier instanceof EDataType) {
+			return convertSimpleValue(classifier.getInstanceClass());
+		}
+		return null;
+	}
+
+	/*
+	 * A value with its type, like IFCLABEL('x') in a select
+	 */
+	private Object readTypedValue() throws DeserializeException, MetaDataException, TokenizeException {
+		EClassifier eClassifier = stepSchema.getClassifier(tokenizer.getBytes(), tokenizer.getTokenStart(), tokenizer.getTokenEnd());
+		if (!(eClassifier instanceof EClass)) {
+			throw new DeserializeException(lineNumber, tokenizer.getText() + " is not an existing IFC entity");
+		}
+		if (tokenizer.next() != TokenType.OPEN) {
+			throw new DeserializeException(lineNumber, "No left parenthesis found after " + eClassifier.getName());
+		}
+		Object convert;
+		if (tokenizer.next() == TokenType.CLOSE) {
+			convert = ((EClass) eClassifier).getEStructuralFeature(WRAPPED_VALUE) != null ? packageMetaData.create((EClass) eClassifier) : null;
+		} else {
+			convert = convert(eClassifier);
+			if (tokenizer.next() != TokenType.CLOSE) {
+				throw new DeserializeException(lineNumber, "No right parenthesis found after the value of " + eClassifier.getName());
+			}
+		}
+		if (convert != null) {
+			addInline((IdEObject) convert);
+		}
+		return convert;
+	}
+
+	private void readWrappedValue(IdEObject newObject, EStructuralFeature wrappedValueFeature) throws DeserializeException, MetaDataException, TokenizeException {
+		Class<?> instanceClass = wrappedValueFeature.getEType().getInstanceClass();
+		TokenType tokenType = tokenizer.getTokenType();
+		if (instanceClass == Integer.class || instanceClass == int.class) {
+			if (tokenType != TokenType.INTEGER || tokenizer.getLong() != (int) tokenizer.getLong()) {
+				throw new DeserializeException(lineNumber, tokenizer.getText() + " is not a valid integer value");
+			}
+			newObject.eSet(wrappedValueFeature, (int) tokenizer.getLong());
+		} else if (instanceClass == Long.class || instanceClass == long.class) {
+			if (tokenType != TokenType.INTEGER) {
+				throw new DeserializeException(lineNumber, tokenizer.getText() + " is not a valid integer value");
+			}
+			newObject.eSet(wrappedValueFeature, tokenizer.getLong());
+		} else if (instanceClass == Boolean.class || instanceClass == boolean.class) {
+			newObject.eSet(wrappedValueFeature, tokenType == TokenType.ENUM && tokenizer.textEquals("T"));
+		} else if (instanceClass == Double.class || instanceClass == double.class) {
+			if (tokenType != TokenType.INTEGER && tokenType != TokenType.REAL) {
+				throw new DeserializeException(lineNumber, tokenizer.getText() + " is not a valid double floating point number");
+			}
+			try {
+				newObject.eSet(wrappedValueFeature, tokenizer.getDouble());
+			} catch (NumberFormatException e) {
+				throw new DeserializeException(lineNumber, tokenizer.getText() + " is not a valid double floating point number");
+			}
+			newObject.eSet(stepSchema.getAsStringFeature(wrappedValueFeature), tokenizer.getText());
+		} else if (instanceClass == String.class) {
+			newObject.eSet(wrappedValueFeature, tokenType == TokenType.STRING ? tokenizer.getString() : tokenizer.getText());
+		} else if (instanceClass.getName().equals("Tristate")) {
+			Object tristate = null;
+			if (tokenizer.textEquals("T")) {
+				tristate = packageMetaData.getEEnumLiteral("Tristate", "TRUE");
+			} else if (tokenizer.textEquals("F")) {
+				tristate = packageMetaData.getEEnumLiteral("Tristate", "FALSE");
+			} else if (tokenizer.textEquals("U")) {
+				tristate = packageMetaData.getEEnumLiteral("Tristate", "UNDEFINED");
+			}
+			newObject.eSet(wrappedValueFeature, tristate);
+		}
+	}
+
+	private Object convertSimpleValue(Class<?> instanceClass) throws DeserializeException, TokenizeException {
+		TokenType tokenType = tokenizer.getTokenType();
+		if (instanceClass == Integer.class || instanceClass == int.class) {
+			if (tokenType != TokenType.INTEGER || tokenizer.getLong() != (int) tokenizer.getLong()) {
+				throw new DeserializeException(lineNumber, tokenizer.getText() + " is not a valid integer value");
+			}
+			return (int) tokenizer.getLong();
+		} else if (instanceClass == Long.class || instanceClass == long.class) {
+			if (tokenType != TokenType.INTEGER) {
+				throw new DeserializeException(lineNumber, tokenizer.getText() + " is not a valid integer value");
+			}
+			return tokenizer.getLong();
+		} else if (instanceClass == Boolean.class || instanceClass == boolean.class) {
+			return tokenizer.textEqualsIgnoreCase("true");
+		} else if (instanceClass == Double.class || instanceClass == double.class) {
+			try {
+				if (tokenType != TokenType.INTEGER && tokenType != TokenType.REAL) {
+					throw new NumberFormatException();
+				}
+				return tokenizer.getDouble();
+			} catch (NumberFormatException e) {
+				throw new DeserializeException(lineNumber, "Incorrect double floating point value: " + tokenizer.getText(), e);
+			}
+		} else if (instanceClass == String.class) {
+			if (tokenType == TokenType.STRING) {
+				return tokenizer.getString();
+			} else {
+				return tokenizer.getText();
+			}
+		}
+		return null;
+	}
+
+	private void readEnum(EObject object, EStructuralFeature structuralFeature) throws DeserializeException, MetaDataException {
+		if (tokenizer.textEquals("T")) {
+			if (structuralFeature.getEType().getName().equals("Tristate")) {
+				object.eSet(structuralFeature, packageMetaData.getEEnumLiteral("Tristate", "TRUE").getInstance());
+			} else if (structuralFeature.getEType().getName().equals("IfcBoolean")) {
+				EClass eClass = packageMetaData.getEClass("IfcBoolean");
+				EObject createIfcBoolean = packageMetaData.create(eClass);
+				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), packageMetaData.getEEnumLiteral("Tristate", "TRUE").getInstance());
+				object.eSet(structuralFeature, createIfcBoolean);
+			} else if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEBoolean()) {
+				object.eSet(structuralFeature, true);
+			} else {
+				EClass eClass = packageMetaData.getEClass("IfcLogical");
+				EObject createIfcBoolean = packageMetaData.create(eClass);
+				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), packageMetaData.getEEnumLiteral("Tristate", "TRUE").getInstance());
+				object.eSet(structuralFeature, createIfcBoolean);
+			}
+		} else if (tokenizer.textEquals("F")) {
+			if (structuralFeature.getEType().getName().equals("Tristate")) {
+				object.eSet(structuralFeature, packageMetaData.getEEnumLiteral("Tristate", "FALSE").getInstance());
+			} else if (structuralFeature.getEType().getName().equals("IfcBoolean")) {
+				EClass eClass = packageMetaData.getEClass("IfcBoolean");
+				EObject createIfcBoolean = packageMetaData.create(eClass);
+				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), packageMetaData.getEEnumLiteral("Tristate", "FALSE").getInstance());
+				object.eSet(structuralFeature, createIfcBoolean);
+			} else if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEBoolean()) {
+				object.eSet(structuralFeature, false);
+			} else {
+				EClass eClass = packageMetaData.getEClass("IfcLogical");
+				EObject createIfcBoolean = packageMetaData.create(eClass);
+				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), packageMetaData.getEEnumLiteral("Tristate", "FALSE").getInstance());
+				object.eSet(structuralFeature, createIfcBoolean);
+			}
+		} else if (tokenizer.textEquals("U")) {
+			if (structuralFeature.getEType().getName().equals("Tristate")) {
+				object.eSet(structuralFeature, packageMetaData.getEEnumLiteral("Tristate", "UNDEFINED").getInstance());
+			} else if (structuralFeature.getEType() == EcorePackage.eINSTANCE.getEBoolean()) {
+				object.eUnset(structuralFeature);
+			} else {
+				EClass eClass = packageMetaData.getEClass("IfcLogical");
+				EObject createIfcBoolean = packageMetaData.create(eClass);
+				createIfcBoolean.eSet(eClass.getEStructuralFeature("WrappedValue"), packageMetaData.getEEnumLiteral("Tristate", "UNDEFINED").getInstance());
+				object.eSet(structuralFeature, createIfcBoolean);
+			}
+		} else {
+			if (structuralFeature.getEType() instanceof EEnum) {
+				EEnumLiteral enumValue = findLiteral((EEnum) structuralFeature.getEType());
+				if (enumValue == null) {
+					throw new DeserializeException(lineNumber, "Enum type " + structuralFeature.getEType().getName() + " has no literal value '" + tokenizer.getText() + "'");
+				}
+				object.eSet(structuralFeature, enumValue.getInstance());
+			} else {
+				throw new DeserializeException(lineNumber, "Value ." + tokenizer.getText() + ". indicates enum type but " + structuralFeature.getEType().getName() + " expected");
+			}
+		}
+	}
+
+	private EEnumLiteral findLiteral(EEnum eEnum) {
+		EList<EEnumLiteral> literals = eEnum.getELiterals();
+		for (int i = 0; i < literals.size(); i++) {
+			if (tokenizer.textEquals(literals.get(i).getName())) {
+				return literals.get(i);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Sets a reference to record referenceId, index is the position in the list for features that are many and -1 otherwise
+	 */
+	protected void setReference(EObject object, EStructuralFeature structuralFeature, int index, int referenceId) throws DeserializeException {
+		IdEObject referencedObject = getRecord(referenceId);
+		if (index == -1) {
+			if (referencedObject != null) {
+				object.eSet(structuralFeature, referencedObject);
+			} else {
+				waitingList.add(referenceId, new SingleWaitingObject(lineNumber, object, structuralFeature));
+			}
+		} else if (referencedObject != null) {
+			setListReference(object, structuralFeature, index, referencedObject);
+		} else {
+			waitingList.add(referenceId, new ListWaitingObject(lineNumber, object, structuralFeature, index));
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected void setListReference(EObject object, EStructuralFeature structuralFeature, int index, IdEObject referencedObject) throws DeserializeException {
+		EClass referenceEClass = referencedObject.eClass();
+		if (!((EClass) structuralFeature.getEType()).isSuperTypeOf(referenceEClass)) {
+			throw new DeserializeException(lineNumber, referenceEClass.getName() + " cannot be stored in " + structuralFeature.getName());
+		}
+		AbstractEList list = (AbstractEList) object.eGet(structuralFeature);
+		while (list.size() <= index) {
+			list.addUnique(referencedObject);
+		}
+		list.setUnique(index, referencedObject);
+	}
+
+	private int getNumber() throws DeserializeException {
+		long number = tokenizer.getLong();
+		if (number > Integer.MAX_VALUE) {
+			throw new DeserializeException(lineNumber, "'#" + number + "' is not a valid reference");
+		}
+		return (int) number;
+	}
+}
@@ -0,0 +1,169 @@
+package org.bimserver.ifc.step.deserializer;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import com.google.common.base.Charsets;
+
+/*
+ * Finds the ends of STEP records, a ; that is not inside a string or a comment, in raw bytes. The bytes of ' ; / * and line breaks never occur
+ * inside a multi byte UTF-8 sequence, so nothing has to be decoded to find them. The state is kept between calls, a record can be split over
+ * several reads.
+ */
+class StepRecordSplitter {
+	private boolean inString;
+	private boolean inComment;
+	// How far a \S\ escape in a string has been read (1 to 3), the byte after it is taken as it is (it can be a quote). \\ is an escaped
+	// backslash, the other escapes (4) end with the next backslash.
+	private int escape;
+	private byte previous;
+	private int lineNumber;
+	private boolean started;
+	private boolean needsCleaning;
+	private byte firstByte;
+
+	StepRecordSplitter(int lineNumber) {
+		this.lineNumber = lineNumber;
+	}
+
+	/*
+	 * Returns the index after the ; that ends the current record, or -1 when the record does not end before end
+	 */
+	public int next(byte[] bytes, int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = bytes[i];
+			if (b == '\n') {
+				lineNumber++;
+			}
+			if (inComment) {
+				if (b == '/' && previous == '*') {
+					inComment = false;
+					b = 0;
+				}
+			} else if (inString) {
+				if (escape == 3) {
+					escape = 0;
+				} else if (b == '\'') {
+					// A quote in a string is written as '', which just leaves and enters the string again
+					escape = 0;
+					inString = false;
+				} else {
+					escape = nextEscape(escape, b);
+				}
+			} else if (b == '\'') {
+				inString = true;
+				start(b);
+			} else if (b == '*' && previous == '/') {
+				inComment = true;
+				needsCleaning = true;
+				b = 0;
+			} else if (b == ';') {
+				previous = b;
+				return i + 1;
+			} else if (b == '\n' || b == '\r') {
+				needsCleaning |= started;
+			} else if (b > ' ' && b != '/') {
+				start(b);
+			}
+			if (inString && (b == '\n' || b == '\r')) {
+				needsCleaning = true;
+			}
+			previous = b;
+		}
+		return -1;
+	}
+
+	/*
+	 * The escape state after c, for a c in a string that is not a quote and does not follow a \S\
+	 */
+	private static int nextEscape(int escape, int c) {
+		if (c == '\\') {
+			return escape == 0 ? 1 : escape == 2 ? 3 : 0;
+		}
+		if (escape == 1) {
+			return c == 'S' ? 2 : 4;
+		}
+		return escape == 2 ? 4 : escape;
+	}
+
+	private void start(byte b) {
+		if (!started) {
+			started = true;
+			firstByte = b;
+		}
+	}
+
+	/*
+	 * The first byte of the current record that is not whitespace or part of a comment, 0 for an empty record
+	 */
+	public byte getFirstByte() {
+		return firstByte;
+	}
+
+	/*
+	 * The line of the last byte that was looked at, counting from 0
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/*
+	 * Has to be called when a record has been taken
+	 */
+	public void nextRecord() {
+		started = false;
+		needsCleaning = false;
+		firstByte = 0;
+	}
+
+	/*
+	 * The record with comments left out and its lines joined, the way the line based parser reads records that span lines
+	 */
+	public String getRecord(byte[] bytes, int start, int end) {
+		String record = new String(bytes, start, end - start, Charsets.UTF_8);
+		if (!needsCleaning) {
+			return record.trim();
+		}
+		StringBuilder stringBuilder = new StringBuilder(record.length());
+		boolean inCleanString = false;
+		int cleanEscape = 0;
+		for (int i = 0; i < record.length(); i++) {
+			char c = record.charAt(i);
+			if (c == '\n' || c == '\r') {
+				continue;
+			}
+			if (inCleanString) {
+				if (cleanEscape == 3) {
+					cleanEscape = 0;
+				} else if (c == '\'') {
+					cleanEscape = 0;
+					inCleanString = false;
+				} else {
+					cleanEscape = nextEscape(cleanEscape, c);
+				}
+			} else if (c == '/' && i + 1 < record.length() && record.charAt(i + 1) == '*') {
+				int endOfComment = record.indexOf("*/", i + 2);
+				i = endOfComment == -1 ? record.length() : endOfComment + 1;
+				continue;
+			} else if (c == '\'') {
+				inCleanString = true;
+			}
+			stringBuilder.append(c);
+		}
+		return stringBuilder.toString().trim();
+	}
+}
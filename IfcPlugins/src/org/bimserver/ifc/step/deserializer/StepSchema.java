@@ -0,0 +1,189 @@
+package org.bimserver.ifc.step.deserializer;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.plugins.schema.Attribute;
+import org.bimserver.plugins.schema.EntityDefinition;
+import org.bimserver.plugins.schema.ExplicitAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.EcorePackage;
+
+/*
+ * What the record parser needs to know about the classes of a schema, looked up once per deserializer: the classifiers by name, found from
+ * the bytes of the name without making a String of it, the features of the explicit attributes of every entity in the order they have in
+ * a record, and the "AsString" feature of every double feature. It is not changed after it has been made, so the chunks of the parallel
+ * deserializer share it.
+ */
+class StepSchema {
+	public static class Entity {
+		private final EClass eClass;
+		// One per explicit attribute, null for a derived attribute
+		private final EStructuralFeature[] features;
+		private final String error;
+
+		private Entity(EClass eClass, EStructuralFeature[] features, String error) {
+			this.eClass = eClass;
+			this.features = features;
+			this.error = error;
+		}
+
+		public EClass getEClass() {
+			return eClass;
+		}
+
+		public EStructuralFeature[] getFeatures() {
+			return features;
+		}
+
+		/*
+		 * Why records of this entity cannot be read, null when they can
+		 */
+		public String getError() {
+			return error;
+		}
+	}
+
+	private final String[] names;
+	private final EClassifier[] classifiers;
+	private final Entity[] entities;
+	private final int mask;
+	private final Map<EStructuralFeature, EStructuralFeature> asStringFeatures = new IdentityHashMap<EStructuralFeature, EStructuralFeature>();
+
+	StepSchema(PackageMetaData packageMetaData) {
+		List<EClassifier> eClassifiers = packageMetaData.getEPackage().getEClassifiers();
+		int capacity = Integer.highestOneBit(eClassifiers.size() * 4);
+		names = new String[capacity];
+		classifiers = new EClassifier[capacity];
+		entities = new Entity[capacity];
+		mask = capacity - 1;
+		for (EClassifier eClassifier : eClassifiers) {
+			String name = eClassifier.getName().toUpperCase();
+			int slot = hash(name) & mask;
+			while (names[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			names[slot] = name;
+			classifiers[slot] = eClassifier;
+			if (eClassifier instanceof EClass) {
+				EClass eClass = (EClass) eClassifier;
+				entities[slot] = createEntity(packageMetaData, eClass);
+				for (EStructuralFeature eStructuralFeature : eClass.getEStructuralFeatures()) {
+					if (eStructuralFeature.getEType() == EcorePackage.eINSTANCE.getEDouble()) {
+						EStructuralFeature asStringFeature = eClass.getEStructuralFeature(eStructuralFeature.getName() + "AsString");
+						if (asStringFeature != null) {
+							asStringFeatures.put(eStructuralFeature, asStringFeature);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private Entity createEntity(PackageMetaData packageMetaData, EClass eClass) {
+		EntityDefinition entityDefinition = packageMetaData.getSchemaDefinition().getEntityBN(eClass.getName());
+		if (entityDefinition == null) {
+			return new Entity(eClass, null, "Unknown entity " + eClass.getName());
+		}
+		int nrExplicit = 0;
+		for (Attribute attribute : entityDefinition.getAttributesCached(true)) {
+			if (attribute instanceof ExplicitAttribute) {
+				nrExplicit++;
+			}
+		}
+		EStructuralFeature[] features = new EStructuralFeature[nrExplicit];
+		int index = 0;
+		for (Attribute attribute : entityDefinition.getAttributesCached(true)) {
+			if (attribute instanceof ExplicitAttribute) {
+				if (!entityDefinition.isDerived(attribute.getName())) {
+					EStructuralFeature structuralFeature = eClass.getEStructuralFeature(attribute.getName());
+					if (structuralFeature == null) {
+						return new Entity(eClass, null, "Unknown feature " + eClass.getName() + "." + attribute.getName());
+					}
+					features[index] = structuralFeature;
+				}
+				index++;
+			}
+		}
+		return new Entity(eClass, features, null);
+	}
+
+	/*
+	 * The entity of a record, the name is compared ignoring case. Returns null when there is no entity with this name.
+	 */
+	public Entity getEntity(byte[] bytes, int start, int end) {
+		int slot = find(bytes, start, end);
+		return slot == -1 ? null : entities[slot];
+	}
+
+	/*
+	 * The class or type of a typed value, the name is compared ignoring case. Returns null when there is none with this name.
+	 */
+	public EClassifier getClassifier(byte[] bytes, int start, int end) {
+		int slot = find(bytes, start, end);
+		return slot == -1 ? null : classifiers[slot];
+	}
+
+	/*
+	 * The feature that keeps the text of the values of a double feature, null when there is none
+	 */
+	public EStructuralFeature getAsStringFeature(EStructuralFeature doubleFeature) {
+		return asStringFeatures.get(doubleFeature);
+	}
+
+	private int find(byte[] bytes, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + StepTokenizer.toUpperCase(bytes[i]);
+		}
+		int slot = hash & mask;
+		while (names[slot] != null) {
+			if (matches(names[slot], bytes, start, end)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean matches(String name, byte[] bytes, int start, int end) {
+		if (name.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != StepTokenizer.toUpperCase(bytes[start + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(String name) {
+		int hash = 0;
+		for (int i = 0; i < name.length(); i++) {
+			hash = 31 * hash + name.charAt(i);
+		}
+		return hash;
+	}
+}
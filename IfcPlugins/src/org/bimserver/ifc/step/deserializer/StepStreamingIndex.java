@@ -0,0 +1,200 @@
+package org.bimserver.ifc.step.deserializer;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.plugins.schema.Attribute;
+import org.bimserver.plugins.schema.EntityDefinition;
+import org.bimserver.plugins.schema.InverseAttribute;
+import org.bimserver.utils.MappedLongArray;
+import org.eclipse.emf.common.util.AbstractEList;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/*
+ * What the streaming deserializer keeps between its two passes, in temporary files so the size of the file does not matter: the oid and
+ * class of every record by record number, and for every record the references to it through features that have an inverse. The references
+ * to a record are a linked list running back from the last one, so they are added without knowing how many there will be.
+ *
+ * The inverses are found in the schema, like Express2EMF does, also for the inverses that have no EMF opposite because their types do
+ * not match exactly. An inverse is set when it is a feature of the referenced class and the referencing class fits in it.
+ */
+class StepStreamingIndex implements Closeable {
+	private final PackageMetaData packageMetaData;
+	private final List<EClass> eClasses = new ArrayList<EClass>();
+	private final Map<EClass, Integer> eClassIndexes = new IdentityHashMap<EClass, Integer>();
+	private final Map<EStructuralFeature, Integer> featureIndexes = new IdentityHashMap<EStructuralFeature, Integer>();
+	private final List<List<EStructuralFeature>> inverses = new ArrayList<List<EStructuralFeature>>();
+	// Two per record number: the oid and the index of the class plus one, 0 for records that are not in the file
+	private final MappedLongArray records;
+	// Per record number: the index plus one of the last reference to it
+	private final MappedLongArray lastReferences;
+	// Three per reference: the oid of the referencing object, the feature index and class index of it, the index plus one of the previous reference
+	private final MappedLongArray references;
+	private long nrReferences;
+	private long[] chain = new long[16];
+
+	StepStreamingIndex(PackageMetaData packageMetaData) throws IOException {
+		this.packageMetaData = packageMetaData;
+		for (EntityDefinition entity : packageMetaData.getSchemaDefinition().getEntities()) {
+			EClass eClass = packageMetaData.getEClass(entity.getName());
+			if (eClass == null) {
+				continue;
+			}
+			for (Attribute attribute : entity.getAttributes(false)) {
+				if (attribute instanceof InverseAttribute) {
+					InverseAttribute inverseAttribute = (InverseAttribute) attribute;
+					EStructuralFeature inverse = eClass.getEStructuralFeature(inverseAttribute.getName());
+					EClass domain = packageMetaData.getEClass(inverseAttribute.getDomain().getName());
+					EStructuralFeature forward = domain == null ? null : domain.getEStructuralFeature(inverseAttribute.getInverted_attr().getName());
+					if (inverse != null && forward != null) {
+						Integer featureIndex = featureIndexes.get(forward);
+						if (featureIndex == null) {
+							featureIndex = inverses.size();
+							featureIndexes.put(forward, featureIndex);
+							inverses.add(new ArrayList<EStructuralFeature>());
+						}
+						inverses.get(featureIndex).add(inverse);
+					}
+				}
+			}
+		}
+		this.records = new MappedLongArray();
+		this.lastReferences = new MappedLongArray();
+		this.references = new MappedLongArray();
+	}
+
+	/*
+	 * Returns false when the record was added before
+	 */
+	public boolean addRecord(int recordNumber, long oid, EClass eClass) throws IOException {
+		if (records.get(recordNumber * 2L) != 0) {
+			return false;
+		}
+		records.set(recordNumber * 2L, oid);
+		records.set(recordNumber * 2L + 1, getEClassIndex(eClass) + 1);
+		return true;
+	}
+
+	/*
+	 * Returns 0 when there is no record with this number
+	 */
+	public long getOid(int recordNumber) {
+		return records.get(recordNumber * 2L);
+	}
+
+	/*
+	 * An object that only has the oid and class of the record, or null when there is no record with this number. Every reference gets its
+	 * own object, the objects are not kept.
+	 */
+	public IdEObject createReference(int recordNumber) {
+		long oid = records.get(recordNumber * 2L);
+		if (oid == 0) {
+			return null;
+		}
+		return createReference(eClasses.get((int) records.get(recordNumber * 2L + 1) - 1), oid);
+	}
+
+	public boolean hasInverse(EStructuralFeature feature) {
+		return featureIndexes.containsKey(feature);
+	}
+
+	public void addReference(int recordNumber, IdEObject from, EStructuralFeature feature) throws IOException {
+		long reference = nrReferences++;
+		references.set(reference * 3, from.getOid());
+		references.set(reference * 3 + 1, ((long) featureIndexes.get(feature) << 32) | getEClassIndex(from.eClass()));
+		references.set(reference * 3 + 2, lastReferences.get(recordNumber));
+		lastReferences.set(recordNumber, reference + 1);
+	}
+
+	/*
+	 * Sets the inverses of the references to the record, in the order of the file
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void setInverses(int recordNumber, IdEObject object) {
+		int length = 0;
+		long reference = lastReferences.get(recordNumber);
+		while (reference != 0) {
+			if (length == chain.length) {
+				chain = Arrays.copyOf(chain, length * 2);
+			}
+			chain[length++] = reference - 1;
+			reference = references.get((reference - 1) * 3 + 2);
+		}
+		long previousOid = 0;
+		long previousFeatureAndClass = 0;
+		for (int i = length - 1; i >= 0; i--) {
+			long oid = references.get(chain[i] * 3);
+			long featureAndClass = references.get(chain[i] * 3 + 1);
+			if (oid == previousOid && featureAndClass == previousFeatureAndClass) {
+				// The same object more than once in a list, the inverse holds it once
+				continue;
+			}
+			previousOid = oid;
+			previousFeatureAndClass = featureAndClass;
+			EClass referencingClass = eClasses.get((int) featureAndClass);
+			IdEObject referencing = null;
+			for (EStructuralFeature inverse : inverses.get((int) (featureAndClass >>> 32))) {
+				if (inverse.getEContainingClass().isSuperTypeOf(object.eClass()) && ((EClass) inverse.getEType()).isSuperTypeOf(referencingClass)) {
+					if (referencing == null) {
+						referencing = createReference(referencingClass, oid);
+					}
+					if (inverse.isMany()) {
+						((AbstractEList) object.eGet(inverse)).addUnique(referencing);
+					} else {
+						object.eSet(inverse, referencing);
+					}
+				}
+			}
+		}
+	}
+
+	private IdEObject createReference(EClass eClass, long oid) {
+		IdEObjectImpl reference = (IdEObjectImpl) packageMetaData.create(eClass);
+		reference.useInverses(false);
+		reference.setOid(oid);
+		return reference;
+	}
+
+	private int getEClassIndex(EClass eClass) {
+		Integer index = eClassIndexes.get(eClass);
+		if (index == null) {
+			index = eClasses.size();
+			eClasses.add(eClass);
+			eClassIndexes.put(eClass, index);
+		}
+		return index;
+	}
+
+	@Override
+	public void close() throws IOException {
+		records.close();
+		lastReferences.close();
+		references.close();
+	}
+}
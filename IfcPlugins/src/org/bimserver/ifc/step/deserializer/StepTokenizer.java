@@ -0,0 +1,577 @@
+package org.bimserver.ifc.step.deserializer;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.utils.TokenizeException;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Reads the tokens of STEP (ISO 10303-21) text from a byte array. A token is a type and a range of the array, numbers are parsed and strings
+ * are decoded from that range when asked for, so going through a record does not create any objects. Only getText and getString return new
+ * Strings, and real numbers with more than 15 significant digits or a large exponent are parsed by Double.parseDouble.
+ *
+ * Whitespace (including line breaks) and comments between tokens are skipped. The text is UTF-8, the special characters of STEP are all
+ * ASCII so the bytes only have to be decoded inside strings.
+ */
+public class StepTokenizer {
+	public enum TokenType {
+		// #12, the number is available through getLong
+		REFERENCE, INTEGER, REAL, STRING, BINARY,
+		// .ENUMVALUE., the range of the token leaves out the dots
+		ENUM,
+		// An entity or type name
+		KEYWORD, OPEN, CLOSE, COMMA, EQUALS, SEMICOLON, DOLLAR, STAR, END
+	}
+
+	private static final int MAX_FAST_DIGITS = 15;
+	private static final double[] POWERS_OF_TEN = new double[23];
+	private byte[] bytes;
+	private int position;
+	private int end;
+	private TokenType tokenType;
+	private int tokenStart;
+	private int tokenEnd;
+	private long longValue;
+	private char[] decoded = new char[256];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	public void reset(byte[] bytes, int start, int end) {
+		this.bytes = bytes;
+		this.position = start;
+		this.end = end;
+		this.tokenType = null;
+	}
+
+	/*
+	 * Reads the next token and returns its type, END when there are no more tokens
+	 */
+	public TokenType next() throws TokenizeException {
+		skipWhitespace();
+		tokenStart = position;
+		if (position >= end) {
+			tokenEnd = position;
+			return tokenType = TokenType.END;
+		}
+		byte b = bytes[position];
+		switch (b) {
+		case '(':
+			return single(TokenType.OPEN);
+		case ')':
+			return single(TokenType.CLOSE);
+		case ',':
+			return single(TokenType.COMMA);
+		case '=':
+			return single(TokenType.EQUALS);
+		case ';':
+			return single(TokenType.SEMICOLON);
+		case '$':
+			return single(TokenType.DOLLAR);
+		case '*':
+			return single(TokenType.STAR);
+		case '#':
+			position++;
+			if (position >= end || !isDigit(bytes[position])) {
+				throw new TokenizeException("Reference without a number");
+			}
+			longValue = readDigits();
+			tokenEnd = position;
+			return tokenType = TokenType.REFERENCE;
+		case '\'':
+			position = endOfString(position + 1);
+			tokenEnd = position;
+			return tokenType = TokenType.STRING;
+		case '"':
+			position++;
+			while (position < end && bytes[position] != '"') {
+				position++;
+			}
+			if (position == end) {
+				throw new TokenizeException("Binary not closed");
+			}
+			position++;
+			tokenEnd = position;
+			return tokenType = TokenType.BINARY;
+		case '.':
+			position++;
+			tokenStart = position;
+			while (position < end && bytes[position] != '.') {
+				position++;
+			}
+			if (position == end) {
+				throw new TokenizeException("Enumeration value not closed");
+			}
+			tokenEnd = position++;
+			return tokenType = TokenType.ENUM;
+		default:
+			if (isDigit(b) || b == '-' || b == '+') {
+				return readNumber();
+			} else if (isKeywordStart(b)) {
+				position++;
+				while (position < end && isKeywordPart(bytes[position])) {
+					position++;
+				}
+				tokenEnd = position;
+				return tokenType = TokenType.KEYWORD;
+			}
+			throw new TokenizeException("Unexpected character '" + (char) b + "'");
+		}
+	}
+
+	public TokenType getTokenType() {
+		return tokenType;
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getTokenStart() {
+		return tokenStart;
+	}
+
+	public int getTokenEnd() {
+		return tokenEnd;
+	}
+
+	/*
+	 * The number of a REFERENCE or the value of an INTEGER
+	 */
+	public long getLong() {
+		return longValue;
+	}
+
+	/*
+	 * The value of an INTEGER or REAL
+	 */
+	public double getDouble() {
+		if (tokenType == TokenType.INTEGER) {
+			return longValue;
+		}
+		int i = tokenStart;
+		boolean negative = false;
+		if (bytes[i] == '-' || bytes[i] == '+') {
+			negative = bytes[i] == '-';
+			i++;
+		}
+		int mantissaStart = i;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		// Zeros after the last other digit are only counted, so 1.50000000000000 still fits
+		int zeros = 0;
+		boolean fraction = false;
+		for (; i < tokenEnd; i++) {
+			byte b = bytes[i];
+			if (isDigit(b)) {
+				if (fraction) {
+					exponent--;
+				}
+				if (b == '0') {
+					if (mantissa != 0) {
+						zeros++;
+					}
+				} else {
+					digits += zeros + 1;
+					if (digits > MAX_FAST_DIGITS) {
+						return parseSlow();
+					}
+					for (; zeros > 0; zeros--) {
+						mantissa *= 10;
+					}
+					mantissa = mantissa * 10 + (b - '0');
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if (i == mantissaStart || (i == mantissaStart + 1 && fraction)) {
+			// No digits at all
+			return parseSlow();
+		}
+		if (i < tokenEnd) {
+			if (bytes[i] != 'E' && bytes[i] != 'e') {
+				return parseSlow();
+			}
+			i++;
+			boolean negativeExponent = false;
+			if (i < tokenEnd && (bytes[i] == '-' || bytes[i] == '+')) {
+				negativeExponent = bytes[i] == '-';
+				i++;
+			}
+			if (i == tokenEnd || tokenEnd - i > 4) {
+				return parseSlow();
+			}
+			int explicitExponent = 0;
+			for (; i < tokenEnd; i++) {
+				if (!isDigit(bytes[i])) {
+					return parseSlow();
+				}
+				explicitExponent = explicitExponent * 10 + (bytes[i] - '0');
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+		exponent += zeros;
+		double value;
+		if (mantissa == 0) {
+			value = 0;
+		} else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+			// Both operands are exact, so the one rounding makes this the correctly rounded value, as Double.parseDouble returns it
+			value = mantissa * POWERS_OF_TEN[exponent];
+		} else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		} else {
+			return parseSlow();
+		}
+		return negative ? -value : value;
+	}
+
+	private double parseSlow() {
+		return Double.parseDouble(getText());
+	}
+
+	/*
+	 * Decodes the STRING token into a buffer that is reused for the next string and returns the number of chars, see getDecoded. Handles
+	 * '', \\, \S\, \X\, \X2\ and \X4\, line breaks in a string are left out.
+	 */
+	public int decodeString() throws TokenizeException {
+		int length = 0;
+		int last = tokenEnd - 1;
+		for (int i = tokenStart + 1; i < last; i++) {
+			if (length + 2 > decoded.length) {
+				char[] newDecoded = new char[decoded.length * 2];
+				System.arraycopy(decoded, 0, newDecoded, 0, length);
+				decoded = newDecoded;
+			}
+			byte b = bytes[i];
+			if (b == '\'') {
+				// '' is a '
+				decoded[length++] = '\'';
+				i++;
+			} else if (b == '\\') {
+				if (i + 1 < last && bytes[i + 1] == '\\') {
+					decoded[length++] = '\\';
+					i++;
+				} else if (startsWith(i, last, "\\S\\") && i + 3 < last) {
+					decoded[length++] = (char) ((bytes[i + 3] + 128) & 0xFF);
+					i += 3;
+				} else if (startsWith(i, last, "\\X\\") && i + 4 < last) {
+					decoded[length++] = (char) ((hex(bytes[i + 3]) << 4) + hex(bytes[i + 4]));
+					i += 4;
+				} else if (startsWith(i, last, "\\X2\\") || startsWith(i, last, "\\X4\\")) {
+					int hexDigits = bytes[i + 2] == '2' ? 4 : 8;
+					int hexStart = i + 4;
+					int hexEnd = hexStart;
+					while (hexEnd < last && bytes[hexEnd] != '\\') {
+						hexEnd++;
+					}
+					if (!startsWith(hexEnd, last, "\\X0\\")) {
+						throw new TokenizeException("\\X" + (char) bytes[i + 2] + "\\ not closed with \\X0\\");
+					}
+					if ((hexEnd - hexStart) % hexDigits != 0) {
+						throw new TokenizeException("Number of hex chars in \\X" + (char) bytes[i + 2] + "\\ definition not divisible by " + hexDigits);
+					}
+					for (int j = hexStart; j < hexEnd; j += hexDigits) {
+						int codePoint = 0;
+						for (int k = j; k < j + hexDigits; k++) {
+							codePoint = (codePoint << 4) + hex(bytes[k]);
+						}
+						if (length + 2 > decoded.length) {
+							char[] newDecoded = new char[decoded.length * 2];
+							System.arraycopy(decoded, 0, newDecoded, 0, length);
+							decoded = newDecoded;
+						}
+						length += Character.toChars(codePoint, decoded, length);
+					}
+					i = hexEnd + 3;
+				} else {
+					decoded[length++] = '\\';
+				}
+			} else if (b == '\n' || b == '\r') {
+				continue;
+			} else if (b >= 0) {
+				decoded[length++] = (char) b;
+			} else {
+				int sequenceLength = utf8SequenceLength(i, last);
+				length += Character.toChars(utf8CodePoint(i, sequenceLength), decoded, length);
+				i += sequenceLength - 1;
+			}
+		}
+		return length;
+	}
+
+	/*
+	 * The length of the multi byte UTF-8 sequence at i, 1 when it is not valid
+	 */
+	private int utf8SequenceLength(int i, int last) {
+		int first = bytes[i] & 0xFF;
+		int length = first >= 0xF8 ? 1 : first >= 0xF0 ? 4 : first >= 0xE0 ? 3 : first >= 0xC0 ? 2 : 1;
+		if (i + length > last) {
+			return 1;
+		}
+		for (int j = i + 1; j < i + length; j++) {
+			if ((bytes[j] & 0xC0) != 0x80) {
+				return 1;
+			}
+		}
+		return length;
+	}
+
+	/*
+	 * Invalid sequences become U+FFFD, as they do with the UTF-8 Reader of the line based parser
+	 */
+	private int utf8CodePoint(int i, int sequenceLength) {
+		if (sequenceLength == 1) {
+			return 0xFFFD;
+		}
+		int codePoint = bytes[i] & (0xFF >> (sequenceLength + 1));
+		for (int j = i + 1; j < i + sequenceLength; j++) {
+			codePoint = (codePoint << 6) | (bytes[j] & 0x3F);
+		}
+		return Character.isValidCodePoint(codePoint) ? codePoint : 0xFFFD;
+	}
+
+	/*
+	 * The chars of the last decodeString
+	 */
+	public char[] getDecoded() {
+		return decoded;
+	}
+
+	/*
+	 * The decoded value of a STRING token
+	 */
+	public String getString() throws TokenizeException {
+		return new String(decoded, 0, decodeString());
+	}
+
+	/*
+	 * The token as it is in the file
+	 */
+	public String getText() {
+		return new String(bytes, tokenStart, tokenEnd - tokenStart, Charsets.UTF_8);
+	}
+
+	/*
+	 * Compares the token with an ASCII String, ignoring case
+	 */
+	public boolean textEqualsIgnoreCase(String text) {
+		if (tokenEnd - tokenStart != text.length()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (toUpperCase(bytes[tokenStart + i]) != Character.toUpperCase(text.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Compares the token with an ASCII String
+	 */
+	public boolean textEquals(String text) {
+		if (tokenEnd - tokenStart != text.length()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (bytes[tokenStart + i] != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Skips the value that starts with the current token: one token, a list or a typed value
+	 */
+	public void skipValue() throws TokenizeException {
+		if (tokenType == TokenType.KEYWORD) {
+			next();
+		}
+		if (tokenType == TokenType.OPEN) {
+			int depth = 1;
+			while (depth > 0) {
+				TokenType type = next();
+				if (type == TokenType.OPEN) {
+					depth++;
+				} else if (type == TokenType.CLOSE) {
+					depth--;
+				} else if (type == TokenType.END) {
+					throw new TokenizeException("List not closed");
+				}
+			}
+		}
+	}
+
+	static int toUpperCase(byte b) {
+		return b >= 'a' && b <= 'z' ? b - 32 : b;
+	}
+
+	private TokenType single(TokenType type) {
+		position++;
+		tokenEnd = position;
+		return tokenType = type;
+	}
+
+	private TokenType readNumber() throws TokenizeException {
+		position++;
+		boolean real = false;
+		while (position < end) {
+			byte b = bytes[position];
+			if (isDigit(b)) {
+				position++;
+			} else if (b == '.') {
+				real = true;
+				position++;
+			} else if (b == 'E' || b == 'e') {
+				real = true;
+				position++;
+				if (position < end && (bytes[position] == '-' || bytes[position] == '+')) {
+					position++;
+				}
+			} else {
+				break;
+			}
+		}
+		tokenEnd = position;
+		if (real) {
+			return tokenType = TokenType.REAL;
+		}
+		int i = tokenStart;
+		boolean negative = bytes[i] == '-';
+		if (bytes[i] == '-' || bytes[i] == '+') {
+			i++;
+		}
+		if (i == tokenEnd) {
+			throw new TokenizeException("Sign without a number");
+		}
+		long value = 0;
+		for (; i < tokenEnd; i++) {
+			long newValue = value * 10 + (bytes[i] - '0');
+			if (newValue < value) {
+				throw new TokenizeException("Integer too large: " + getText());
+			}
+			value = newValue;
+		}
+		longValue = negative ? -value : value;
+		return tokenType = TokenType.INTEGER;
+	}
+
+	private long readDigits() {
+		long value = 0;
+		while (position < end && isDigit(bytes[position])) {
+			value = value * 10 + (bytes[position++] - '0');
+		}
+		return value;
+	}
+
+	/*
+	 * Returns the index after the closing quote. A quote in a string is written as '', and the character after \S\ is taken as it is,
+	 * even when it is a quote. A backslash is written as \\, so \\S\' is a backslash followed by S\ and the end of the string.
+	 */
+	private int endOfString(int i) throws TokenizeException {
+		while (i < end) {
+			byte b = bytes[i];
+			if (b == '\'') {
+				if (i + 1 < end && bytes[i + 1] == '\'') {
+					i += 2;
+				} else {
+					return i + 1;
+				}
+			} else if (b == '\\' && i + 1 < end && bytes[i + 1] == '\\') {
+				// An escaped backslash, the next one starts nothing
+				i += 2;
+			} else if (b == '\\' && i + 3 < end && bytes[i + 1] == 'S' && bytes[i + 2] == '\\') {
+				i += 4;
+			} else if (b == '\\') {
+				// \X\, \X2\, \X0\ and \P.\ end with the next backslash
+				i++;
+				while (i < end && bytes[i] != '\\' && bytes[i] != '\'') {
+					i++;
+				}
+				if (i < end && bytes[i] == '\\') {
+					i++;
+				}
+			} else {
+				i++;
+			}
+		}
+		throw new TokenizeException("String not closed");
+	}
+
+	private void skipWhitespace() {
+		while (position < end) {
+			byte b = bytes[position];
+			if (b <= ' ' && b >= 0) {
+				position++;
+			} else if (b == '/' && position + 1 < end && bytes[position + 1] == '*') {
+				position += 2;
+				while (position < end && !(bytes[position] == '*' && position + 1 < end && bytes[position + 1] == '/')) {
+					position++;
+				}
+				position += 2;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private boolean startsWith(int i, int last, String text) {
+		if (i + text.length() > last) {
+			return false;
+		}
+		for (int j = 0; j < text.length(); j++) {
+			if (bytes[i + j] != text.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int hex(byte b) throws TokenizeException {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		} else if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		} else if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		}
+		throw new TokenizeException("Invalid hex character '" + (char) b + "'");
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isKeywordStart(byte b) {
+		return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || b == '_' || b == '!';
+	}
+
+	private static boolean isKeywordPart(byte b) {
+		return isKeywordStart(b) || isDigit(b) || b == '-';
+	}
+}
@@ -26,8 +26,9 @@ import org.bimserver.models.store.StringType;
 import org.bimserver.plugins.PluginException;
 import org.bimserver.plugins.PluginManager;
 import org.bimserver.plugins.serializers.AbstractSerializerPlugin;
+import org.bimserver.plugins.serializers.StreamingSerializerPlugin;
 
-public abstract class IfcStepSerializerPlugin extends AbstractSerializerPlugin {
+public abstract class IfcStepSerializerPlugin extends AbstractSerializerPlugin implements StreamingSerializerPlugin {
 
 	private boolean initialized = false;
 
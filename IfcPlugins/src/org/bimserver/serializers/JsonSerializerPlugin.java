@@ -26,8 +26,9 @@ import org.bimserver.plugins.PluginException;
 import org.bimserver.plugins.PluginManager;
 import org.bimserver.plugins.serializers.AbstractSerializerPlugin;
 import org.bimserver.plugins.serializers.EmfSerializer;
+import org.bimserver.plugins.serializers.StreamingSerializerPlugin;
 
-public class JsonSerializerPlugin extends AbstractSerializerPlugin {
+public class JsonSerializerPlugin extends AbstractSerializerPlugin implements StreamingSerializerPlugin {
 
 	private boolean initialized = false;
 
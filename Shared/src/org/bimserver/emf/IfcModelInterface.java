@@ -30,7 +30,6 @@ import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EStructuralFeature;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.collect.BiMap;
 
 /**
  * @author Ruben de Laat
@@ -109,9 +108,12 @@ public interface IfcModelInterface extends Iterable<IdEObject>, ObjectFactory {
 	Collection<IdEObject> getValues();
 
 	/**
-	 * @return A BiMap<Long, IdEObject> with all objects in this model
+	 * Unlike the BiMap this used to return, the same object may be stored under more than one oid, and the iterators of the keySet, values
+	 * and entrySet views do not support remove (they throw UnsupportedOperationException), use {@link #remove(IdEObject)} instead.
+	 * 
+	 * @return A Map<Long, IdEObject> with all objects in this model, by oid
 	 */
-	BiMap<Long, IdEObject> getObjects();
+	Map<Long, IdEObject> getObjects();
 
 	/**
 	 * @return All OID's in this model
@@ -0,0 +1,29 @@
+package org.bimserver.plugins.deserializers;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+
+/**
+ * A Deserializer that can also hand out the objects of a file one at a time instead of building a model, so files can be read that do not
+ * fit in memory. Oids are assigned by the handler while reading, references are set as objects that only carry the oid and class of the
+ * referenced object, and inverses are set as well.
+ */
+public interface StreamingDeserializer extends Deserializer {
+	void read(File file, StreamingDeserializerHandler handler, ByteProgressReporter progressReporter) throws DeserializeException;
+}
@@ -0,0 +1,40 @@
+package org.bimserver.plugins.deserializers;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.ModelMetaData;
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * Receives the objects of a StreamingDeserializer. A file is read twice: newOid is called for every object during the first pass, start
+ * when the first pass is done and object for every object during the second pass, in the same order.
+ */
+public interface StreamingDeserializerHandler {
+	long newOid(EClass eClass) throws DeserializeException;
+
+	/**
+	 * @param modelMetaData The header, name and checksum of the file
+	 */
+	void start(ModelMetaData modelMetaData) throws DeserializeException;
+
+	/**
+	 * @param object An object with its oid set, it is not used by the deserializer anymore afterwards
+	 */
+	void object(IdEObject object) throws DeserializeException;
+}
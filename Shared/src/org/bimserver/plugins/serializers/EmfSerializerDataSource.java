@@ -17,6 +17,7 @@ package org.bimserver.plugins.serializers;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
 
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -56,12 +57,21 @@ public class EmfSerializerDataSource implements DataSource {
 		return serializer;
 	}
 
+	/*
+	 * Models that read from the database while they are written (StreamingIfcModel) are closed afterwards, also when the client went away
+	 */
 	public void writeToOutputStream(OutputStream outputStream, ProgressReporter progressReporter) throws SerializerException, IOException {
-		serializer.writeToOutputStream(outputStream, progressReporter);
 		try {
-			outputStream.close();
-		} catch (EOFException e) {
-			// let this one slide
+			serializer.writeToOutputStream(outputStream, progressReporter);
+			try {
+				outputStream.close();
+			} catch (EOFException e) {
+				// let this one slide
+			}
+		} finally {
+			if (serializer.getModel() instanceof Closeable) {
+				((Closeable) serializer.getModel()).close();
+			}
 		}
 	}
 }
\ No newline at end of file
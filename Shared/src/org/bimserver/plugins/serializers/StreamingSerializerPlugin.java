@@ -0,0 +1,26 @@
+package org.bimserver.plugins.serializers;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+/**
+ * A SerializerPlugin whose serializers go through the model once, in the order of IfcModelInterface.iterator, and write references
+ * as ids (express ids or oids) without needing the referenced object to be written first. Models of these serializers can be read
+ * from the database while they are being written.
+ */
+public interface StreamingSerializerPlugin extends SerializerPlugin {
+}
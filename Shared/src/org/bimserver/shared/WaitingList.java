@@ -88,6 +88,13 @@ public class WaitingList<T> {
 	public int size() {
 		return waitingObjects.size();
 	}
+
+	/*
+	 * A copy, so nodes can be updated while going through it
+	 */
+	public List<T> getKeys() {
+		return new ArrayList<T>(waitingObjects.keySet());
+	}
 	
 	public void dumpIfNotEmpty() throws BimServerClientException {
 		if (size() > 0) {
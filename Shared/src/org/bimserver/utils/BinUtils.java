@@ -143,23 +143,22 @@ public class BinUtils {
 	}
 
 	public static int readInt(byte[] bytes, int index) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-		return byteBuffer.getInt(index);
+		return byteArrayToInt(bytes, index);
 	}
 
 	public static short readShort(byte[] value, int index) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(value);
-		return byteBuffer.getShort(index);
+		return (short) (((value[index] & 0xFF) << 8) | (value[index + 1] & 0xFF));
 	}
 
+	/*
+	 * Big endian like ByteBuffer, but without wrapping the array. These are used to decode the key of every record that is read.
+	 */
 	public static int byteArrayToInt(byte[] value, int index) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(value);
-		return byteBuffer.getInt(index);
+		return ((value[index] & 0xFF) << 24) | ((value[index + 1] & 0xFF) << 16) | ((value[index + 2] & 0xFF) << 8) | (value[index + 3] & 0xFF);
 	}
 
 	public static long byteArrayToLong(byte[] value, int index) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(value);
-		return byteBuffer.getLong(index);
+		return ((long) byteArrayToInt(value, index) << 32) | (byteArrayToInt(value, index + 4) & 0xFFFFFFFFL);
 	}
 
 	public static float byteArrayToFloat(byte[] value, int index) {
@@ -0,0 +1,339 @@
+package org.bimserver.utils;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+ * Map from long keys to objects that does not box its keys and has no entry objects: keys and values live in two arrays (open addressing with
+ * linear probing), an entry costs 12 to 16 bytes plus the free slots. A HashMap or HashBiMap costs a Long and one or two entry objects per key.
+ *
+ * The Map methods with Long arguments are there for code that treats it as a Map, the long versions do not allocate. Null values are not
+ * supported, a null from get means there is no entry. The views are read only, their iterators do not support remove.
+ */
+public class LongObjectHashMap<V> extends AbstractMap<Long, V> {
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_CAPACITY = 1 << 30;
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int threshold;
+	private int modCount;
+	private Set<Long> keySet;
+	private Collection<V> valueCollection;
+	private Set<Entry<Long, V>> entrySet;
+
+	public LongObjectHashMap() {
+		this(0);
+	}
+
+	public LongObjectHashMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < MAX_CAPACITY && capacity / 4 * 3 < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		threshold = capacity == MAX_CAPACITY ? Integer.MAX_VALUE : capacity / 4 * 3;
+	}
+
+	/*
+	 * Oids are mostly sequential per class, the low bits alone would fill runs of neighbouring slots
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/*
+	 * The slot of key, or -(free slot) - 1 when it is not in the map
+	 */
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -index - 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int index = indexOf(key);
+		return index >= 0 ? (V) values[index] : null;
+	}
+
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException("Null values are not supported");
+		}
+		int index = indexOf(key);
+		if (index >= 0) {
+			V old = (V) values[index];
+			values[index] = value;
+			return old;
+		}
+		index = -index - 1;
+		keys[index] = key;
+		values[index] = value;
+		modCount++;
+		if (++size > threshold) {
+			rehash(keys.length << 1);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		V old = (V) values[index];
+		removeAt(index);
+		return old;
+	}
+
+	/*
+	 * Shifts the entries after the removed one back when that brings them closer to their own slot, so lookups never need tombstones
+	 */
+	private void removeAt(int index) {
+		int mask = keys.length - 1;
+		int free = index;
+		int next = (index + 1) & mask;
+		while (values[next] != null) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				values[free] = values[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[free] = null;
+		size--;
+		modCount++;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = -indexOf(oldKeys[i]) - 1;
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(values, null);
+			size = 0;
+			modCount++;
+		}
+	}
+
+	@Override
+	public V get(Object key) {
+		return key instanceof Long ? get(((Long) key).longValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Long && containsKey(((Long) key).longValue());
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		if (value == null) {
+			return false;
+		}
+		for (Object object : values) {
+			if (value.equals(object)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public V put(Long key, V value) {
+		return put(key.longValue(), value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return key instanceof Long ? remove(((Long) key).longValue()) : null;
+	}
+
+	private abstract class SlotIterator<T> implements Iterator<T> {
+		private final int expectedModCount = modCount;
+		private int next = -1;
+		protected int current;
+
+		SlotIterator() {
+			advance();
+		}
+
+		private void advance() {
+			next++;
+			while (next < values.length && values[next] == null) {
+				next++;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < values.length;
+		}
+
+		protected int nextIndex() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (next >= values.length) {
+				throw new NoSuchElementException();
+			}
+			current = next;
+			advance();
+			return current;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public Set<Long> keySet() {
+		if (keySet == null) {
+			keySet = new AbstractSet<Long>() {
+				@Override
+				public Iterator<Long> iterator() {
+					return new SlotIterator<Long>() {
+						@Override
+						public Long next() {
+							return keys[nextIndex()];
+						}
+					};
+				}
+
+				@Override
+				public boolean contains(Object key) {
+					return containsKey(key);
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+		return keySet;
+	}
+
+	@Override
+	public Collection<V> values() {
+		if (valueCollection == null) {
+			valueCollection = new AbstractCollection<V>() {
+				@Override
+				public Iterator<V> iterator() {
+					return new SlotIterator<V>() {
+						@SuppressWarnings("unchecked")
+						@Override
+						public V next() {
+							return (V) values[nextIndex()];
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+		return valueCollection;
+	}
+
+	@Override
+	public Set<Entry<Long, V>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Entry<Long, V>>() {
+				@Override
+				public Iterator<Entry<Long, V>> iterator() {
+					return new SlotIterator<Entry<Long, V>>() {
+						@SuppressWarnings("unchecked")
+						@Override
+						public Entry<Long, V> next() {
+							int index = nextIndex();
+							return new SimpleImmutableEntry<Long, V>(keys[index], (V) values[index]);
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+		return entrySet;
+	}
+}
@@ -0,0 +1,93 @@
+package org.bimserver.utils;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/*
+ * Reads a file through memory mapped buffers, so the bytes are copied from the page cache straight into the buffer of the reader. The file
+ * is mapped in segments when reading gets there, files larger than 2 GB need more than one mapping anyway.
+ */
+public class MappedFileInputStream extends InputStream {
+	private static final long SEGMENT_SIZE = 256 * 1024 * 1024;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final long size;
+	private long segmentStart;
+	private MappedByteBuffer segment;
+
+	public MappedFileInputStream(File file) throws IOException {
+		this.randomAccessFile = new RandomAccessFile(file, "r");
+		this.channel = randomAccessFile.getChannel();
+		this.size = channel.size();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!hasRemaining()) {
+			return -1;
+		}
+		return segment.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!hasRemaining()) {
+			return -1;
+		}
+		int read = Math.min(len, segment.remaining());
+		segment.get(b, off, read);
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		long position = segment == null ? segmentStart : segmentStart + segment.position();
+		return (int) Math.min(Integer.MAX_VALUE, size - position);
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The mappings stay valid until they are garbage collected, there is no supported way to unmap them earlier
+		segment = null;
+		randomAccessFile.close();
+	}
+
+	private boolean hasRemaining() throws IOException {
+		while (segment == null || !segment.hasRemaining()) {
+			if (segment != null) {
+				segmentStart += segment.capacity();
+				segment = null;
+			}
+			if (segmentStart >= size) {
+				return false;
+			}
+			segment = channel.map(MapMode.READ_ONLY, segmentStart, Math.min(SEGMENT_SIZE, size - segmentStart));
+		}
+		return true;
+	}
+}
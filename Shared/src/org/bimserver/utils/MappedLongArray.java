@@ -0,0 +1,83 @@
+package org.bimserver.utils;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * An array of longs in a temporary file that grows when values are set beyond its end, values that have not been set are 0. The file is
+ * mapped in segments, so the values do not take heap space and the operating system decides which parts stay in memory. Indexes that are
+ * never set do not take disk space either on file systems with sparse files.
+ */
+public class MappedLongArray implements Closeable {
+	private static final int SEGMENT_SHIFT = 23;
+	private static final int SEGMENT_LENGTH = 1 << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_LENGTH - 1;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final List<LongBuffer> segments = new ArrayList<LongBuffer>();
+
+	public MappedLongArray() throws IOException {
+		this.file = File.createTempFile("longarray", ".tmp");
+		file.deleteOnExit();
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+	}
+
+	public long get(long index) {
+		int segmentIndex = (int) (index >>> SEGMENT_SHIFT);
+		if (segmentIndex >= segments.size() || segments.get(segmentIndex) == null) {
+			return 0;
+		}
+		return segments.get(segmentIndex).get((int) (index & SEGMENT_MASK));
+	}
+
+	public void set(long index, long value) throws IOException {
+		getSegment((int) (index >>> SEGMENT_SHIFT)).put((int) (index & SEGMENT_MASK), value);
+	}
+
+	private LongBuffer getSegment(int segmentIndex) throws IOException {
+		while (segments.size() <= segmentIndex) {
+			segments.add(null);
+		}
+		LongBuffer segment = segments.get(segmentIndex);
+		if (segment == null) {
+			// Mapping beyond the end of the file makes the file larger
+			segment = channel.map(MapMode.READ_WRITE, (long) segmentIndex * SEGMENT_LENGTH * 8, SEGMENT_LENGTH * 8L).asLongBuffer();
+			segments.set(segmentIndex, segment);
+		}
+		return segment;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Like MappedFileInputStream, the mappings themselves are released when they are garbage collected
+		segments.clear();
+		randomAccessFile.close();
+		file.delete();
+	}
+}
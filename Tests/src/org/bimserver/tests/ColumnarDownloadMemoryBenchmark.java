@@ -0,0 +1,173 @@
+package org.bimserver.tests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.actions.DownloadDatabaseAction;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1AuthInterface;
+import org.bimserver.webservices.ServiceMap;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/*
+ * Heap kept by a downloaded revision, read into the normal model and into the columnar model (the columnarDownloads option). Starts an
+ * embedded server, checks in the file and downloads the revision without a serializer, the way DownloadDatabaseAction does for a serializer
+ * that needs no geometry. After the download every feature of every object is read, like a serializer walks the model, and the heap is
+ * measured again while the model is still referenced.
+ *
+ * Run with a fixed heap (-Xms equal to -Xmx) so the numbers are not disturbed by resizing. Arguments (all optional): file runs
+ */
+public class ColumnarDownloadMemoryBenchmark {
+	private BimServer bimServer;
+	private ServiceMap serviceMap;
+
+	public static void main(String[] args) {
+		File file = args.length > 0 ? new File(args[0]) : TestFile.AC11.getFile();
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		new ColumnarDownloadMemoryBenchmark().start(file, runs);
+	}
+
+	private void start(File file, int runs) {
+		BimServerConfig config = new BimServerConfig();
+		File homeDir = new File("home");
+		try {
+			if (homeDir.isDirectory()) {
+				FileUtils.forceDelete(homeDir);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		config.setClassPath(System.getProperty("java.class.path"));
+		config.setHomeDir(homeDir);
+		config.setStartEmbeddedWebServer(false);
+		config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+		bimServer = new BimServer(config);
+		try {
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+			bimServer.start();
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+			String token = bimServer.getService(Bimsie1AuthInterface.class).login("admin@bimserver.org", "admin");
+			serviceMap = bimServer.getServiceFactory().get(token, AccessMethod.INTERNAL);
+			long roid = checkin(file);
+			for (int run = 0; run < runs; run++) {
+				measure("normal", roid, false);
+				measure("columnar", roid, true);
+			}
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServerException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (UserException e) {
+			e.printStackTrace();
+		} finally {
+			bimServer.stop();
+		}
+	}
+
+	private long checkin(File file) throws ServerException, UserException {
+		long poid = serviceMap.getBimsie1ServiceInterface().addProject("Project " + new Random().nextInt(), "ifc2x3tc1").getOid();
+		SDeserializerPluginConfiguration deserializer = serviceMap.getBimsie1ServiceInterface().getSuggestedDeserializerForExtension("ifc", poid);
+		serviceMap.getBimsie1ServiceInterface().checkin(poid, "test", deserializer.getOid(), file.length(), file.getName(), new DataHandler(new FileDataSource(file)), true);
+		return serviceMap.getBimsie1ServiceInterface().getProjectByPoid(poid).getLastRevisionId();
+	}
+
+	private void measure(String name, long roid, boolean columnar) throws BimserverDatabaseException, UserException, ServerException {
+		bimServer.getConfig().setColumnarDownloads(columnar);
+		long before = usedHeap();
+		long start = System.nanoTime();
+		IfcModelInterface model;
+		DatabaseSession session = bimServer.getDatabase().createSession();
+		try {
+			model = session.executeAndCommitAction(new DownloadDatabaseAction(bimServer, session, AccessMethod.INTERNAL, roid, -1, -1, serviceMap.getAuthorization(), null));
+		} finally {
+			session.close();
+		}
+		long downloadNanos = System.nanoTime() - start;
+		long afterDownload = usedHeap() - before;
+		start = System.nanoTime();
+		long nrValues = walk(model);
+		long walkNanos = System.nanoTime() - start;
+		long afterWalk = usedHeap() - before;
+		long nrObjects = model.size();
+		System.out.println(String.format("%-8s %d objects, %.1f bytes/object after download, %.1f bytes/object after walk, download %d ms, walk %d ms (%d values)", name, nrObjects,
+				(double) afterDownload / nrObjects, (double) afterWalk / nrObjects, downloadNanos / 1000000, walkNanos / 1000000, nrValues));
+	}
+
+	/*
+	 * Reads every feature of every object, the objects of lists included
+	 */
+	private static long walk(IfcModelInterface model) {
+		long nrValues = 0;
+		for (IdEObject object : model.getValues()) {
+			for (EStructuralFeature feature : object.eClass().getEAllStructuralFeatures()) {
+				Object value = object.eGet(feature);
+				if (value instanceof List) {
+					for (Object element : (List<?>) value) {
+						if (element != null) {
+							nrValues++;
+						}
+					}
+				} else if (value != null) {
+					nrValues++;
+				}
+			}
+		}
+		return nrValues;
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
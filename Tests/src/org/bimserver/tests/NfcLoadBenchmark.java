@@ -0,0 +1,319 @@
+package org.bimserver.tests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.interfaces.objects.SInterfaceMetric;
+import org.bimserver.interfaces.objects.SMethodMetric;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.PublicInterfaceNotFoundException;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1AuthInterface;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/*
+ * Load test for the NFC methods. Starts an embedded server, registers readers and tags and then drives a mix of scans and queries through
+ * the JsonHandler (the same path the json servlet and websocket take) at a fixed request rate. Latency is measured from the moment a request
+ * was scheduled, not from when a thread got around to sending it, so a server that falls behind shows up in the percentiles.
+ *
+ * Arguments (all optional): readers tags requestsPerSecond durationSeconds threads batchSize
+ */
+public class NfcLoadBenchmark {
+	private static final String INTERFACE_NAME = "handleNfcMethods";
+	private final int nrReaders;
+	private final int nrTags;
+	private final int requestsPerSecond;
+	private final int durationSeconds;
+	private final int nrThreads;
+	private final int batchSize;
+	private final Map<String, Latencies> latencies = new TreeMap<String, Latencies>();
+	private final AtomicLong nrScans = new AtomicLong();
+	private final List<String> readerIds = new ArrayList<String>();
+	private final List<String> readerLocations = new ArrayList<String>();
+	private final List<String> tagIds = new ArrayList<String>();
+	private BimServer bimServer;
+	private String token;
+
+	private static class Latencies {
+		private long[] nanos = new long[1024];
+		private int size;
+		private int errors;
+
+		public synchronized void add(long latency, boolean error) {
+			if (size == nanos.length) {
+				nanos = Arrays.copyOf(nanos, size * 2);
+			}
+			nanos[size++] = latency;
+			if (error) {
+				errors++;
+			}
+		}
+
+		public synchronized long[] sorted() {
+			long[] result = Arrays.copyOf(nanos, size);
+			Arrays.sort(result);
+			return result;
+		}
+
+		public synchronized int getErrors() {
+			return errors;
+		}
+	}
+
+	public NfcLoadBenchmark(int nrReaders, int nrTags, int requestsPerSecond, int durationSeconds, int nrThreads, int batchSize) {
+		this.nrReaders = nrReaders;
+		this.nrTags = nrTags;
+		this.requestsPerSecond = requestsPerSecond;
+		this.durationSeconds = durationSeconds;
+		this.nrThreads = nrThreads;
+		this.batchSize = batchSize;
+	}
+
+	public static void main(String[] args) {
+		new NfcLoadBenchmark(arg(args, 0, 50), arg(args, 1, 5000), arg(args, 2, 1000), arg(args, 3, 60), arg(args, 4, 16), arg(args, 5, 100)).start();
+	}
+
+	private static int arg(String[] args, int index, int defaultValue) {
+		return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+	}
+
+	private void start() {
+		BimServerConfig config = new BimServerConfig();
+		File homeDir = new File("home");
+		try {
+			if (homeDir.isDirectory()) {
+				FileUtils.forceDelete(homeDir);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		config.setClassPath(System.getProperty("java.class.path"));
+		config.setHomeDir(homeDir);
+		config.setPort(8080);
+		config.setStartEmbeddedWebServer(false);
+		config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+		bimServer = new BimServer(config);
+		try {
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+			bimServer.start();
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+			token = bimServer.getServiceFactory().get(AccessMethod.INTERNAL).get(Bimsie1AuthInterface.class).login("admin@bimserver.org", "admin");
+
+			long setupStart = System.nanoTime();
+			register();
+			System.out.println("Registered " + nrReaders + " readers and " + nrTags + " tags in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart) + "ms");
+
+			for (String methodName : new String[] { "saveNfcData", "saveNfcDataBatch", "getNfcTagData", "getNfcTagsByLocation", "getNfcTagHistory", "getNfcTagsSeenByReader" }) {
+				latencies.put(methodName, new Latencies());
+			}
+			long loadStart = System.nanoTime();
+			runLoad();
+			report(System.nanoTime() - loadStart);
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServerException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (UserException e) {
+			e.printStackTrace();
+		} catch (PublicInterfaceNotFoundException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			bimServer.stop();
+		}
+	}
+
+	private void register() throws UserException {
+		for (int i = 0; i < nrReaders; i++) {
+			JsonObject parameters = new JsonObject();
+			parameters.addProperty("readerName", "Reader " + i);
+			parameters.addProperty("readerLocation", "location-" + i);
+			JsonObject result = getResult(call("registerNfcReader", parameters));
+			readerIds.add(result.get("readerId").getAsString());
+			readerLocations.add(result.get("readerLocation").getAsString());
+		}
+		for (int i = 0; i < nrTags; i++) {
+			JsonObject result = getResult(call("registerNfcTag", new JsonObject()));
+			tagIds.add(result.get("nfcTagId").getAsString());
+		}
+	}
+
+	private JsonObject getResult(JsonObject response) throws UserException {
+		if (response.has("exception")) {
+			throw new UserException(response.getAsJsonObject("exception").get("message").getAsString());
+		}
+		return response.getAsJsonObject("result");
+	}
+
+	/*
+	 * Every thread sends its share of the requests on a fixed schedule. A thread that is behind schedule sends immediately,
+	 * the time it was behind is part of the measured latency.
+	 */
+	private void runLoad() throws InterruptedException {
+		final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * nrThreads / requestsPerSecond;
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+		for (int t = 0; t < nrThreads; t++) {
+			final long offset = intervalNanos * t / nrThreads;
+			final Random random = new Random(t);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (long scheduled = start + offset; scheduled < end; scheduled += intervalNanos) {
+						long wait = scheduled - System.nanoTime();
+						if (wait > 0) {
+							try {
+								TimeUnit.NANOSECONDS.sleep(wait);
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						sendRandomRequest(random, scheduled);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(durationSeconds + 3600, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * The mix is dominated by single scans, like a site with readers at doors, with some batched uploads from offline handhelds and some queries
+	 */
+	private void sendRandomRequest(Random random, long scheduled) {
+		int choice = random.nextInt(100);
+		JsonObject parameters = new JsonObject();
+		String methodName;
+		if (choice < 70) {
+			methodName = "saveNfcData";
+			int reader = random.nextInt(readerIds.size());
+			parameters.addProperty("readerId", readerIds.get(reader));
+			parameters.addProperty("readerName", "Reader " + reader);
+			parameters.addProperty("readerLocation", readerLocations.get(reader));
+			parameters.addProperty("nfcTagId", tagIds.get(random.nextInt(tagIds.size())));
+			nrScans.incrementAndGet();
+		} else if (choice < 80) {
+			methodName = "saveNfcDataBatch";
+			JsonArray scans = new JsonArray();
+			for (int i = 0; i < batchSize; i++) {
+				int reader = random.nextInt(readerIds.size());
+				JsonObject scan = new JsonObject();
+				scan.addProperty("readerId", readerIds.get(reader));
+				scan.addProperty("readerLocation", readerLocations.get(reader));
+				scan.addProperty("nfcTagId", tagIds.get(random.nextInt(tagIds.size())));
+				scans.add(scan);
+			}
+			parameters.add("scans", scans);
+			nrScans.addAndGet(batchSize);
+		} else if (choice < 85) {
+			methodName = "getNfcTagData";
+		} else if (choice < 92) {
+			methodName = "getNfcTagsByLocation";
+			parameters.addProperty("location", readerLocations.get(random.nextInt(readerLocations.size())));
+		} else if (choice < 97) {
+			methodName = "getNfcTagHistory";
+			parameters.addProperty("nfcTagId", tagIds.get(random.nextInt(tagIds.size())));
+		} else {
+			methodName = "getNfcTagsSeenByReader";
+			parameters.addProperty("readerId", readerIds.get(random.nextInt(readerIds.size())));
+		}
+		JsonObject response = call(methodName, parameters);
+		latencies.get(methodName).add(System.nanoTime() - scheduled, response.has("exception"));
+	}
+
+	private JsonObject call(String methodName, JsonObject parameters) {
+		JsonObject request = new JsonObject();
+		request.addProperty("interface", INTERFACE_NAME);
+		request.addProperty("method", methodName);
+		request.add("parameters", parameters);
+		JsonObject message = new JsonObject();
+		message.addProperty("token", token);
+		message.add("request", request);
+		StringWriter writer = new StringWriter();
+		bimServer.getJsonHandler().execute(message, null, writer);
+		return new JsonParser().parse(writer.toString()).getAsJsonObject().getAsJsonObject("response");
+	}
+
+	private void report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1000000000.0;
+		long totalRequests = 0;
+		System.out.println(String.format("%-24s %10s %8s %10s %10s %10s %10s", "method", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms"));
+		for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+			long[] sorted = entry.getValue().sorted();
+			totalRequests += sorted.length;
+			if (sorted.length == 0) {
+				continue;
+			}
+			System.out.println(String.format("%-24s %10d %8d %10.1f %10.2f %10.2f %10.2f", entry.getKey(), sorted.length, entry.getValue().getErrors(), sorted.length / seconds,
+					percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1000000.0));
+		}
+		System.out.println(String.format("%d requests (%.1f/s, target %d/s), %d scans (%.1f/s) in %.1fs", totalRequests, totalRequests / seconds, requestsPerSecond, nrScans.get(), nrScans.get() / seconds, seconds));
+
+		System.out.println("Server side metrics:");
+		for (SInterfaceMetric interfaceMetric : bimServer.getMetricsRegistry().getMetrics().getInterfaces()) {
+			if (interfaceMetric.getName().equals(INTERFACE_NAME)) {
+				for (SMethodMetric methodMetric : interfaceMetric.getMethods()) {
+					System.out.println(String.format("%-24s %10d calls, average %dms", methodMetric.getName(), methodMetric.getNrCalls(), methodMetric.getAverageMs()));
+				}
+			}
+		}
+	}
+
+	private double percentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1000000.0;
+	}
+}
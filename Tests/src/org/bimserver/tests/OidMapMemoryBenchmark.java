@@ -0,0 +1,84 @@
+package org.bimserver.tests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.util.Map;
+
+import org.bimserver.utils.LongObjectHashMap;
+
+import com.google.common.collect.HashBiMap;
+
+/*
+ * Heap used per object by the map from oid to object that IfcModel and ObjectCache keep, the HashBiMap they used before against
+ * LongObjectHashMap. The objects themselves are allocated up front and not counted. Oids are handed out per class like the database does,
+ * in runs of consecutive numbers.
+ *
+ * Run with a fixed heap (-Xms equal to -Xmx) so the numbers are not disturbed by resizing. Arguments (all optional): nrObjects
+ */
+public class OidMapMemoryBenchmark {
+	public static void main(String[] args) {
+		int nrObjects = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		Object[] objects = new Object[nrObjects];
+		long[] oids = new long[nrObjects];
+		for (int i = 0; i < nrObjects; i++) {
+			objects[i] = new Object();
+			// 64 classes, oids of a class are consecutive
+			oids[i] = ((long) (i % 64) << 32) + i / 64;
+		}
+		for (int run = 0; run < 3; run++) {
+			long before = usedHeap();
+			HashBiMap<Long, Object> biMap = HashBiMap.create(nrObjects);
+			fill(biMap, oids, objects);
+			report("HashBiMap", usedHeap() - before, nrObjects, biMap);
+			biMap = null;
+
+			before = usedHeap();
+			LongObjectHashMap<Object> longMap = new LongObjectHashMap<Object>(nrObjects);
+			for (int i = 0; i < nrObjects; i++) {
+				longMap.put(oids[i], objects[i]);
+			}
+			report("LongObjectHashMap", usedHeap() - before, nrObjects, longMap);
+			longMap = null;
+		}
+	}
+
+	private static void fill(Map<Long, Object> map, long[] oids, Object[] objects) {
+		for (int i = 0; i < oids.length; i++) {
+			map.put(oids[i], objects[i]);
+		}
+	}
+
+	private static void report(String name, long bytes, int nrObjects, Map<Long, Object> map) {
+		long start = System.nanoTime();
+		int found = 0;
+		for (Object value : map.values()) {
+			if (value != null) {
+				found++;
+			}
+		}
+		System.out.println(String.format("%-18s %6.1f bytes/object, iterated %d in %d ms", name, (double) bytes / nrObjects, found, (System.nanoTime() - start) / 1000000));
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,142 @@
+package org.bimserver.tests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.KeyValueStore;
+import org.bimserver.database.KeyValueStoreType;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.WriteBatch;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.utils.BinUtils;
+
+/*
+ * Measures the bytes allocated per record by a table scan in the way DatabaseSession.getMap reads a revision: iterate the records of a pid,
+ * decode the (pid, oid, -rid) key, skip to the next oid once a visible version is found and only wrap the value of records that are converted.
+ * The table holds a few revisions of every object, so the skipping path is exercised as well.
+ *
+ * Uses the allocation counter of the current thread (HotSpot specific), so the number includes whatever the store allocates internally.
+ *
+ * Arguments (all optional): keyValueStoreType nrObjects nrRevisions iterations
+ */
+public class RecordIteratorAllocationBenchmark {
+	private static final String TABLE_NAME = "benchmark_Object";
+	private static final int PID = 1;
+
+	public static void main(String[] args) throws DatabaseInitException, BimserverDatabaseException, IOException {
+		KeyValueStoreType keyValueStoreType = args.length > 0 ? KeyValueStoreType.valueOf(args[0]) : KeyValueStoreType.BERKELEY;
+		int nrObjects = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int nrRevisions = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		File dataDir = Files.createTempDirectory("recorditerator").toFile();
+		KeyValueStore keyValueStore = keyValueStoreType.create(dataDir);
+		try {
+			fill(keyValueStore, nrObjects, nrRevisions);
+			// The first runs warm up the JIT, escape analysis can take allocations away after that
+			for (int i = 0; i < iterations; i++) {
+				long before = getAllocatedBytes();
+				long start = System.nanoTime();
+				long[] counts = scan(keyValueStore, nrRevisions);
+				long allocated = getAllocatedBytes() - before;
+				System.out.println(String.format("run %d: %d records read, %d converted, %.1f bytes/record, %d ms", i, counts[0], counts[1], (double) allocated / counts[0],
+						(System.nanoTime() - start) / 1000000));
+			}
+		} finally {
+			keyValueStore.close();
+			FileUtils.deleteDirectory(dataDir);
+		}
+	}
+
+	private static void fill(KeyValueStore keyValueStore, int nrObjects, int nrRevisions) throws BimserverDatabaseException {
+		keyValueStore.createTable(TABLE_NAME, null);
+		WriteBatch writeBatch = new WriteBatch();
+		ByteBuffer key = ByteBuffer.allocate(16);
+		ByteBuffer value = ByteBuffer.allocate(64);
+		for (long oid = 1; oid <= nrObjects; oid++) {
+			for (int rid = 1; rid <= nrRevisions; rid++) {
+				key.clear();
+				key.putInt(PID);
+				key.putLong(oid);
+				key.putInt(-rid);
+				value.clear();
+				value.putLong(oid);
+				value.putInt(rid);
+				writeBatch.store(TABLE_NAME, key.array(), value.array());
+				if (writeBatch.isFull()) {
+					keyValueStore.store(writeBatch, null);
+					writeBatch.clear();
+				}
+			}
+		}
+		keyValueStore.store(writeBatch, null);
+	}
+
+	/*
+	 * Reads the revision before the last one, so for every oid the first record is skipped and the second one converted
+	 */
+	private static long[] scan(KeyValueStore keyValueStore, int nrRevisions) throws BimserverDatabaseException {
+		int rid = Math.max(1, nrRevisions - 1);
+		long nrRead = 0;
+		long nrConverted = 0;
+		long checksum = 0;
+		byte[] pid = BinUtils.intToByteArray(PID);
+		SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(TABLE_NAME, pid, pid, null);
+		try {
+			Record record = recordIterator.next();
+			ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
+			while (record != null) {
+				nrRead++;
+				byte[] key = record.getKey();
+				long keyOid = BinUtils.byteArrayToLong(key, 4);
+				int keyRid = -BinUtils.byteArrayToInt(key, 12);
+				if (keyRid <= rid) {
+					byte[] value = record.getValue();
+					if (value.length != 1 || value[0] != -1) {
+						ByteBuffer valueBuffer = ByteBuffer.wrap(value);
+						checksum += valueBuffer.getLong() + valueBuffer.getInt();
+						nrConverted++;
+					}
+					nextKeyStart.position(0);
+					nextKeyStart.putInt(PID);
+					nextKeyStart.putLong(keyOid + 1);
+					record = recordIterator.next(nextKeyStart.array());
+				} else {
+					record = recordIterator.next();
+				}
+			}
+		} finally {
+			recordIterator.close();
+		}
+		if (checksum == 0) {
+			System.out.println("Nothing read");
+		}
+		return new long[] { nrRead, nrConverted };
+	}
+
+	private static long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
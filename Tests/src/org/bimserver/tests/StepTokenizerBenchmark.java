@@ -0,0 +1,121 @@
+package org.bimserver.tests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bimserver.ifc.step.deserializer.StepTokenizer;
+import org.bimserver.ifc.step.deserializer.StepTokenizer.TokenType;
+import org.bimserver.utils.TokenizeException;
+
+/*
+ * Measures the throughput of StepTokenizer and the bytes it allocates per record over the IFC files of TestData. Every token is read
+ * the way the deserializer reads it: numbers and references are converted and strings decoded, without storing anything.
+ *
+ * Uses the allocation counter of the current thread (HotSpot specific). The files are read into memory before measuring.
+ *
+ * Arguments (all optional): directory iterations
+ */
+public class StepTokenizerBenchmark {
+	public static void main(String[] args) throws IOException {
+		File directory = new File(args.length > 0 ? args[0] : "../TestData/data");
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().toLowerCase().endsWith(".ifc");
+			}
+		});
+		if (files == null || files.length == 0) {
+			System.out.println("No IFC files found in " + directory.getAbsolutePath());
+			return;
+		}
+		List<byte[]> contents = new ArrayList<byte[]>();
+		long totalSize = 0;
+		for (File file : files) {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			contents.add(bytes);
+			totalSize += bytes.length;
+		}
+		StepTokenizer tokenizer = new StepTokenizer();
+		// The first runs warm up the JIT, escape analysis can take allocations away after that
+		for (int i = 0; i < iterations; i++) {
+			long before = getAllocatedBytes();
+			long start = System.nanoTime();
+			long nrRecords = 0;
+			long checksum = 0;
+			for (byte[] bytes : contents) {
+				tokenizer.reset(bytes, 0, bytes.length);
+				TokenType tokenType = next(tokenizer);
+				while (tokenType != TokenType.END) {
+					switch (tokenType) {
+					case SEMICOLON:
+						nrRecords++;
+						break;
+					case REFERENCE:
+					case INTEGER:
+						checksum += tokenizer.getLong();
+						break;
+					case REAL:
+						checksum += (long) tokenizer.getDouble();
+						break;
+					case STRING:
+						checksum += decodeString(tokenizer);
+						break;
+					default:
+						break;
+					}
+					tokenType = next(tokenizer);
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			long allocated = getAllocatedBytes() - before;
+			System.out.println(String.format("run %d: %d files, %d records, %.1f MB/s, %.2f bytes/record, %d ms (%d)", i, contents.size(), nrRecords, (totalSize / (1024.0 * 1024.0)) / (nanos / 1000000000.0),
+					(double) allocated / nrRecords, nanos / 1000000, checksum));
+		}
+	}
+
+	/*
+	 * Some of the files in TestData are broken on purpose, the rest of such a file is skipped, as is a string that cannot be decoded
+	 */
+	private static TokenType next(StepTokenizer tokenizer) {
+		try {
+			return tokenizer.next();
+		} catch (TokenizeException e) {
+			return TokenType.END;
+		}
+	}
+
+	private static int decodeString(StepTokenizer tokenizer) {
+		try {
+			return tokenizer.decodeString();
+		} catch (TokenizeException e) {
+			return 0;
+		}
+	}
+
+	private static long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
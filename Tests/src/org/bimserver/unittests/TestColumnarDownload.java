@@ -0,0 +1,210 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.actions.DownloadDatabaseAction;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.database.columnar.ColumnarIfcModel;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1AuthInterface;
+import org.bimserver.tests.TestFile;
+import org.bimserver.webservices.ServiceMap;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Downloads the same revisions with and without the columnar model, the objects handed out by the columnar model should be the same as
+ * the ones of the normal download
+ */
+public class TestColumnarDownload {
+
+	private static BimServer bimServer;
+	private static ServiceMap serviceMap;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+
+			// Convenience, setup the server to make sure it is in RUNNING state
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+			String token = bimServer.getService(Bimsie1AuthInterface.class).login("admin@bimserver.org", "admin");
+			serviceMap = bimServer.getServiceFactory().get(token, AccessMethod.INTERNAL);
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	private long checkin(TestFile testFile) throws ServiceException {
+		long poid = serviceMap.getBimsie1ServiceInterface().addProject("Project " + new Random().nextInt(), "ifc2x3tc1").getOid();
+		SDeserializerPluginConfiguration deserializer = serviceMap.getBimsie1ServiceInterface().getSuggestedDeserializerForExtension("ifc", poid);
+		File file = testFile.getFile();
+		serviceMap.getBimsie1ServiceInterface().checkin(poid, "test", deserializer.getOid(), file.length(), file.getName(), new DataHandler(new FileDataSource(file)), true);
+		return serviceMap.getBimsie1ServiceInterface().getProjectByPoid(poid).getLastRevisionId();
+	}
+
+	/*
+	 * A download without a serializer, the columnar model is used when the option is on. Every download gets a session of its own.
+	 */
+	private IfcModelInterface download(long roid, boolean columnar) throws ServiceException, BimserverDatabaseException {
+		bimServer.getConfig().setColumnarDownloads(columnar);
+		DatabaseSession session = bimServer.getDatabase().createSession();
+		try {
+			return session.executeAndCommitAction(new DownloadDatabaseAction(bimServer, session, AccessMethod.INTERNAL, roid, -1, -1, serviceMap.getAuthorization(), null));
+		} finally {
+			session.close();
+			bimServer.getConfig().setColumnarDownloads(false);
+		}
+	}
+
+	private void compare(TestFile testFile) throws ServiceException, BimserverDatabaseException {
+		long roid = checkin(testFile);
+		IfcModelInterface normal = download(roid, false);
+		IfcModelInterface columnar = download(roid, true);
+		assertTrue(columnar instanceof ColumnarIfcModel);
+		assertTrue(normal.size() > 0);
+		assertEquals(normal.size(), columnar.size());
+		assertEquals(normal.keySet(), columnar.keySet());
+		assertEquals(normal.getModelMetaData().getName(), columnar.getModelMetaData().getName());
+		assertEquals(normal.getModelMetaData().getIfcHeader().getFilename(), columnar.getModelMetaData().getIfcHeader().getFilename());
+		for (EClass eClass : normal.getUsedClasses()) {
+			assertEquals(eClass.getName(), normal.count(eClass), columnar.count(eClass));
+		}
+		for (long oid : normal.keySet()) {
+			IdEObject object = columnar.get(oid);
+			assertNotNull(object);
+			compareObjects(normal, normal.get(oid), columnar, object);
+		}
+	}
+
+	/*
+	 * Objects with an oid are compared on their oid, embedded objects have no oid and are compared on their values
+	 */
+	private void compareObjects(IfcModelInterface expectedModel, IdEObject expected, IfcModelInterface model, IdEObject object) {
+		assertEquals(expected.eClass(), object.eClass());
+		assertEquals(expected.getOid(), object.getOid());
+		for (EAttribute eAttribute : expected.eClass().getEAllAttributes()) {
+			assertEquals(expected.eClass().getName() + "." + eAttribute.getName(), expected.eGet(eAttribute), object.eGet(eAttribute));
+		}
+		for (EReference eReference : expected.eClass().getEAllReferences()) {
+			String name = expected.eClass().getName() + "." + eReference.getName();
+			if (eReference.isMany()) {
+				List<?> expectedList = (List<?>) expected.eGet(eReference);
+				List<?> list = (List<?>) object.eGet(eReference);
+				assertEquals(name, expectedList.size(), list.size());
+				for (int i = 0; i < expectedList.size(); i++) {
+					compareReferences(name, expectedModel, (IdEObject) expectedList.get(i), model, (IdEObject) list.get(i));
+				}
+			} else {
+				compareReferences(name, expectedModel, (IdEObject) expected.eGet(eReference), model, (IdEObject) object.eGet(eReference));
+			}
+		}
+	}
+
+	/*
+	 * The columnar model creates its objects when they are asked for, so references are not compared on identity
+	 */
+	private void compareReferences(String name, IfcModelInterface expectedModel, IdEObject expected, IfcModelInterface model, IdEObject reference) {
+		if (expected == null) {
+			assertEquals(name, null, reference);
+			return;
+		}
+		assertNotNull(name, reference);
+		if (expected.getOid() == -1) {
+			compareObjects(expectedModel, expected, model, reference);
+		} else {
+			assertEquals(name, expected.eClass(), reference.eClass());
+			assertEquals(name, expected.getOid(), reference.getOid());
+			assertTrue(name, model.contains(reference.getOid()));
+		}
+	}
+
+	@Test
+	public void testAc11() throws ServiceException, BimserverDatabaseException {
+		compare(TestFile.AC11);
+	}
+
+	@Test
+	public void testHaus() throws ServiceException, BimserverDatabaseException {
+		compare(TestFile.HAUS_SOURCE_FILE);
+	}
+}
@@ -0,0 +1,290 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.ObjectIdentifier;
+import org.bimserver.database.Query;
+import org.bimserver.database.Query.Deep;
+import org.bimserver.database.actions.AbstractDownloadDatabaseAction;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
+import org.bimserver.ifc.step.deserializer.Ifc2x3tc1StepDeserializer;
+import org.bimserver.ifc.step.deserializer.IfcStepDeserializer;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.models.store.StorePackage;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.shared.interfaces.SettingsInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1AuthInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1ServiceInterface;
+import org.bimserver.tests.TestFile;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/*
+ * Checks in a model and a modified version of it with delta checkins, and reads both revisions back
+ */
+public class TestDeltaCheckin {
+	private static final String SCHEMA = "ifc2x3tc1";
+	private static final String WALL_GUID = "3Ep4r0uuX5ywPYOUG2H2A4";
+	private static final String NEW_WALL_GUID = "1Nb8_tYgLF9eRqZ1Oq3Hd2";
+
+	private static BimServer bimServer;
+	private static Bimsie1ServiceInterface bimsie1ServiceInterface;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			config.setDeltaCheckins(true);
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+
+			// Convenience, setup the server to make sure it is in RUNNING state
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+			bimServer.getService(Bimsie1AuthInterface.class).login("admin@bimserver.org", "admin");
+			// Geometry generation rewrites every product, without it the unchanged objects are not written again
+			bimServer.getService(SettingsInterface.class).setGenerateGeometryOnCheckin(false);
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		bimsie1ServiceInterface = bimServer.getService(Bimsie1ServiceInterface.class);
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	/*
+	 * The wall gets another name, the bounding box representation is removed and a second wall is added
+	 */
+	private static File writeModifiedWallOnly() throws IOException {
+		String data = Files.toString(TestFile.WALL_ONLY.getFile(), Charsets.UTF_8);
+		data = data.replace("'Wall xyz'", "'Wall abc'");
+		data = data.replace("(#52, #81)", "(#52)");
+		data = data.replaceAll("(?m)^#8[123] = .*\n", "");
+		data = data.replace("(#45), #35);", "(#45, #84), #35);");
+		data = data.replace("ENDSEC;\nEND-ISO-10303-21;", "#84 = IFCWALL('" + NEW_WALL_GUID + "', #2, 'Wall new', $, $, $, $, $);\nENDSEC;\nEND-ISO-10303-21;");
+		File file = File.createTempFile("WallOnlyModified", ".ifc");
+		file.deleteOnExit();
+		Files.write(data, file, Charsets.UTF_8);
+		return file;
+	}
+
+	private static IfcModelInterface read(File file) throws DeserializeException {
+		IfcStepDeserializer deserializer = new Ifc2x3tc1StepDeserializer(Schema.IFC2X3TC1);
+		deserializer.init(bimServer.getMetaDataManager().getPackageMetaData(SCHEMA));
+		return deserializer.read(file);
+	}
+
+	private long checkin(long poid, File file) throws ServiceException {
+		SDeserializerPluginConfiguration deserializer = bimsie1ServiceInterface.getSuggestedDeserializerForExtension("ifc", poid);
+		bimsie1ServiceInterface.checkin(poid, "test", deserializer.getOid(), file.length(), file.getName(), new DataHandler(new FileDataSource(file)), true);
+		return bimsie1ServiceInterface.getProjectByPoid(poid).getLastRevisionId();
+	}
+
+	private static ConcreteRevision getConcreteRevision(DatabaseSession session, long roid) throws BimserverDatabaseException {
+		Revision revision = session.get(StorePackage.eINSTANCE.getRevision(), roid, Query.getDefault());
+		return revision.getConcreteRevisions().get(0);
+	}
+
+	/*
+	 * Reads a revision like a download does, from the last clear revision on
+	 */
+	private static IfcModelInterface download(DatabaseSession session, ConcreteRevision concreteRevision) throws BimserverDatabaseException {
+		PackageMetaData packageMetaData = bimServer.getMetaDataManager().getPackageMetaData(SCHEMA);
+		int stopRid = AbstractDownloadDatabaseAction.findHighestStopRid(concreteRevision.getProject(), concreteRevision);
+		Query query = new Query(packageMetaData, concreteRevision.getProject().getId(), concreteRevision.getId(), -1, null, Deep.YES, stopRid);
+		query.updateOidCounters(concreteRevision, session);
+		IfcModelInterface model = session.createModel(query);
+		session.getMap(model, query);
+		return model;
+	}
+
+	private static String getGuid(IdEObject object) {
+		EStructuralFeature globalId = object.eClass().getEStructuralFeature("GlobalId");
+		return globalId == null ? null : (String) object.eGet(globalId);
+	}
+
+	private static Map<String, IdEObject> getObjectsByGuid(IfcModelInterface model) {
+		Map<String, IdEObject> result = new HashMap<String, IdEObject>();
+		for (IdEObject object : model.getValues()) {
+			String guid = getGuid(object);
+			if (guid != null) {
+				result.put(guid, object);
+			}
+		}
+		return result;
+	}
+
+	private static Map<String, Integer> countPerClass(IfcModelInterface model) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (IdEObject object : model.getValues()) {
+			if (object.eClass().getEPackage().getName().equals(SCHEMA)) {
+				Integer count = result.get(object.eClass().getName());
+				result.put(object.eClass().getName(), count == null ? 1 : count + 1);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * The read revision should hold the objects of the file it was checked in from
+	 */
+	private static void compare(IfcModelInterface source, IfcModelInterface revision) {
+		assertEquals(countPerClass(source), countPerClass(revision));
+		Map<String, IdEObject> revisionObjects = getObjectsByGuid(revision);
+		Map<String, IdEObject> sourceObjects = getObjectsByGuid(source);
+		assertEquals(sourceObjects.keySet(), revisionObjects.keySet());
+		for (IdEObject sourceObject : sourceObjects.values()) {
+			IdEObject object = revisionObjects.get(getGuid(sourceObject));
+			assertEquals(sourceObject.eClass().getName(), object.eClass().getName());
+			EStructuralFeature name = sourceObject.eClass().getEStructuralFeature("Name");
+			assertEquals(sourceObject.eGet(name), object.eGet(object.eClass().getEStructuralFeature("Name")));
+		}
+	}
+
+	private static IdEObject getSingle(IfcModelInterface model, String className) {
+		IdEObject result = null;
+		for (IdEObject object : model.getValues()) {
+			if (object.eClass().getName().equals(className)) {
+				assertNull("More than one " + className, result);
+				result = object;
+			}
+		}
+		assertNotNull(result);
+		return result;
+	}
+
+	private static void checkGuidLookups(DatabaseSession session, ConcreteRevision concreteRevision, IfcModelInterface revision) throws BimserverDatabaseException {
+		int pid = concreteRevision.getProject().getId();
+		int stopRid = AbstractDownloadDatabaseAction.findHighestStopRid(concreteRevision.getProject(), concreteRevision);
+		for (Map.Entry<String, IdEObject> entry : getObjectsByGuid(revision).entrySet()) {
+			ObjectIdentifier objectIdentifier = session.getOidOfGuid(SCHEMA, entry.getKey(), pid, concreteRevision.getId(), stopRid);
+			assertNotNull(entry.getKey(), objectIdentifier);
+			assertEquals(entry.getKey(), entry.getValue().getOid(), objectIdentifier.getOid());
+		}
+	}
+
+	@Test
+	public void testDeltaCheckin() throws ServiceException, BimserverDatabaseException, DeserializeException, IOException {
+		File firstFile = TestFile.WALL_ONLY.getFile();
+		File secondFile = writeModifiedWallOnly();
+		long poid = bimsie1ServiceInterface.addProject("Project " + new Random().nextInt(), SCHEMA).getOid();
+		long firstRoid = checkin(poid, firstFile);
+		long secondRoid = checkin(poid, secondFile);
+
+		DatabaseSession session = bimServer.getDatabase().createSession();
+		try {
+			ConcreteRevision first = getConcreteRevision(session, firstRoid);
+			ConcreteRevision second = getConcreteRevision(session, secondRoid);
+			// A delta revision is read on top of the revisions before it
+			assertFalse(second.isClear());
+
+			IfcModelInterface firstRevision = download(session, first);
+			IfcModelInterface secondRevision = download(session, second);
+			compare(read(firstFile), firstRevision);
+			compare(read(secondFile), secondRevision);
+
+			// Objects are matched by guid, unchanged and changed ones keep their oid
+			Map<String, IdEObject> firstObjects = getObjectsByGuid(firstRevision);
+			Map<String, IdEObject> secondObjects = getObjectsByGuid(secondRevision);
+			for (String guid : firstObjects.keySet()) {
+				assertEquals(guid, firstObjects.get(guid).getOid(), secondObjects.get(guid).getOid());
+			}
+			IdEObject wall = secondObjects.get(WALL_GUID);
+			assertEquals("Wall abc", wall.eGet(wall.eClass().getEStructuralFeature("Name")));
+
+			// The removed bounding box is deleted in the second revision, but still there in the first
+			IdEObject boundingBox = getSingle(firstRevision, "IfcBoundingBox");
+			assertTrue(firstRevision.contains(boundingBox.getOid()));
+			assertFalse(secondRevision.contains(boundingBox.getOid()));
+			assertEquals(0, secondRevision.getAll(boundingBox.eClass()).size());
+
+			checkGuidLookups(session, first, firstRevision);
+			checkGuidLookups(session, second, secondRevision);
+			assertNull(session.getOidOfGuid(SCHEMA, NEW_WALL_GUID, first.getProject().getId(), first.getId(),
+					AbstractDownloadDatabaseAction.findHighestStopRid(first.getProject(), first)));
+		} finally {
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.interfaces.objects.SUserType;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.shared.interfaces.AuthInterface;
+import org.bimserver.shared.interfaces.ServiceInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1AuthInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1LowLevelInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1ServiceInterface;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Checks in revisions and resolves their objects through the guid index that is filled when a revision is committed
+ */
+public class TestGuidIndex {
+
+	private static BimServer bimServer;
+	private static Bimsie1ServiceInterface bimsie1ServiceInterface;
+	private static Bimsie1LowLevelInterface bimsie1LowLevelInterface;
+	private static ServiceInterface serviceInterface;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+
+			// Convenience, setup the server to make sure it is in RUNNING state
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		bimsie1ServiceInterface = bimServer.getService(Bimsie1ServiceInterface.class);
+		bimsie1LowLevelInterface = bimServer.getService(Bimsie1LowLevelInterface.class);
+		serviceInterface = bimServer.getService(ServiceInterface.class);
+		createUserAndLogin();
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	private static void createUserAndLogin() {
+		int nextInt = new Random().nextInt();
+		try {
+			String username = "test" + nextInt + "@bimserver.org";
+			long userId = serviceInterface.addUser(username, "User " + nextInt, SUserType.USER, false, "").getOid();
+			bimServer.getService(AuthInterface.class).changePassword(userId, null, "test");
+			bimServer.getService(Bimsie1AuthInterface.class).login(username, "test");
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private long createProject() throws ServiceException {
+		return bimsie1ServiceInterface.addProject("Project " + new Random().nextInt(), "ifc2x3tc1").getOid();
+	}
+
+	@Test
+	public void testResolveGuidOfCheckedInObject() throws ServiceException {
+		long poid = createProject();
+		long tid = bimsie1LowLevelInterface.startTransaction(poid);
+		long wallOid = bimsie1LowLevelInterface.createObject(tid, "IfcWall", true);
+		bimsie1LowLevelInterface.setStringAttribute(tid, wallOid, "GlobalId", "0uNK7kgVr1TOR9nRLKYjr8");
+		bimsie1LowLevelInterface.setStringAttribute(tid, wallOid, "Name", "Wall 1");
+		long windowOid = bimsie1LowLevelInterface.createObject(tid, "IfcWindow", true);
+		bimsie1LowLevelInterface.setStringAttribute(tid, windowOid, "GlobalId", "3cUkl32yn9qRSPvBJVyWYp");
+		long roid = bimsie1LowLevelInterface.commitTransaction(tid, "test");
+
+		assertEquals(wallOid, (long) serviceInterface.getOidByGuid(roid, "0uNK7kgVr1TOR9nRLKYjr8"));
+		assertEquals(windowOid, (long) serviceInterface.getOidByGuid(roid, "3cUkl32yn9qRSPvBJVyWYp"));
+		assertEquals(wallOid, bimsie1LowLevelInterface.getDataObjectByGuid(roid, "0uNK7kgVr1TOR9nRLKYjr8").getOid());
+	}
+
+	@Test
+	public void testUnknownGuid() throws ServiceException {
+		long poid = createProject();
+		long tid = bimsie1LowLevelInterface.startTransaction(poid);
+		long wallOid = bimsie1LowLevelInterface.createObject(tid, "IfcWall", true);
+		bimsie1LowLevelInterface.setStringAttribute(tid, wallOid, "GlobalId", "1kTvXnbbzCWw8lcMd1dR4o");
+		long roid = bimsie1LowLevelInterface.commitTransaction(tid, "test");
+		try {
+			serviceInterface.getOidByGuid(roid, "2O2Fr$t4X7Zf8NOew3FLOH");
+			fail("Guid of another project should not be found");
+		} catch (UserException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testChangedGuid() throws ServiceException {
+		long poid = createProject();
+		long tid = bimsie1LowLevelInterface.startTransaction(poid);
+		long wallOid = bimsie1LowLevelInterface.createObject(tid, "IfcWall", true);
+		bimsie1LowLevelInterface.setStringAttribute(tid, wallOid, "GlobalId", "0M_9kLFBP6ouwzYrTT$Cq1");
+		long firstRoid = bimsie1LowLevelInterface.commitTransaction(tid, "first");
+
+		tid = bimsie1LowLevelInterface.startTransaction(poid);
+		bimsie1LowLevelInterface.setStringAttribute(tid, wallOid, "GlobalId", "0M_9kLFBP6ouwzYrTT$Cq2");
+		long secondRoid = bimsie1LowLevelInterface.commitTransaction(tid, "second");
+
+		// The entry of the first revision stays in the index, it should only resolve in that revision
+		assertEquals(wallOid, (long) serviceInterface.getOidByGuid(firstRoid, "0M_9kLFBP6ouwzYrTT$Cq1"));
+		assertEquals(wallOid, (long) serviceInterface.getOidByGuid(secondRoid, "0M_9kLFBP6ouwzYrTT$Cq2"));
+		try {
+			serviceInterface.getOidByGuid(secondRoid, "0M_9kLFBP6ouwzYrTT$Cq1");
+			fail("Old guid should not resolve in the second revision");
+		} catch (UserException e) {
+			// expected
+		}
+	}
+}
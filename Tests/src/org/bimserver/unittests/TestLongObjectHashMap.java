@@ -0,0 +1,233 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.bimserver.utils.LongObjectHashMap;
+import org.junit.Test;
+
+public class TestLongObjectHashMap {
+
+	/*
+	 * The home slot of a key in a map with the given capacity, the same mixing LongObjectHashMap uses
+	 */
+	private static int home(long key, int capacity) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & (capacity - 1);
+	}
+
+	private static List<Long> keysWithHome(int home, int capacity, int count) {
+		List<Long> keys = new ArrayList<Long>();
+		for (long key = 1; keys.size() < count; key++) {
+			if (home(key, capacity) == home) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	private static void assertSameContents(Map<Long, String> expected, LongObjectHashMap<String> map) {
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, String> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey().longValue()));
+		}
+		Set<Long> keys = new HashSet<Long>();
+		for (Long key : map.keySet()) {
+			assertTrue("Duplicate key " + key, keys.add(key));
+		}
+		assertEquals(expected.keySet(), keys);
+	}
+
+	@Test
+	public void testMissingKeyAndZeroKey() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+		assertNull(map.get(0));
+		assertFalse(map.containsKey(0));
+		assertNull(map.remove(0));
+
+		map.put(0, "zero");
+		map.put(-1, "minus one");
+		map.put(Long.MIN_VALUE, "min");
+		assertEquals("zero", map.get(0));
+		assertEquals("zero", map.get(Long.valueOf(0)));
+		assertTrue(map.containsKey(0));
+		assertTrue(map.keySet().contains(0L));
+		assertEquals("min", map.get(Long.MIN_VALUE));
+		assertEquals(3, map.size());
+
+		assertNull(map.get(1));
+		assertNull(map.get("0"));
+		assertNull(map.remove(1));
+		assertNull(map.remove(Integer.valueOf(0)));
+		assertEquals(3, map.size());
+
+		assertEquals("zero", map.put(0, "zero again"));
+		assertEquals(3, map.size());
+		assertEquals("zero again", map.remove(0));
+		assertNull(map.get(0));
+		assertFalse(map.containsKey(0));
+		assertEquals(2, map.size());
+		try {
+			map.put(1, null);
+			fail("Null values are not supported");
+		} catch (NullPointerException e) {
+			// expected
+		}
+	}
+
+	/*
+	 * Keys that all have the last slot as their home wrap around to the start of the table, removing the first one has to shift the others
+	 * back over the end of the table
+	 */
+	@Test
+	public void testRemoveAcrossWrapAround() {
+		int capacity = 16;
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+		List<Long> lastSlot = keysWithHome(capacity - 1, capacity, 3);
+		List<Long> firstSlot = keysWithHome(0, capacity, 2);
+		Map<Long, String> expected = new HashMap<Long, String>();
+		for (Long key : lastSlot) {
+			expected.put(key, "last " + key);
+			map.put(key.longValue(), "last " + key);
+		}
+		for (Long key : firstSlot) {
+			expected.put(key, "first " + key);
+			map.put(key.longValue(), "first " + key);
+		}
+		assertSameContents(expected, map);
+
+		for (Long key : new Long[] { lastSlot.get(0), firstSlot.get(0), lastSlot.get(2), lastSlot.get(1), firstSlot.get(1) }) {
+			assertEquals(expected.remove(key), map.remove(key.longValue()));
+			assertSameContents(expected, map);
+		}
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void testRehash() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+		Map<Long, String> expected = new HashMap<Long, String>();
+		for (long key = 0; key < 100000; key++) {
+			// Sequential oids, and oids far apart
+			long spreadKey = key * 1000003L + (1L << 40);
+			map.put(key, "s" + key);
+			map.put(spreadKey, "w" + key);
+			expected.put(key, "s" + key);
+			expected.put(spreadKey, "w" + key);
+		}
+		assertSameContents(expected, map);
+		for (long key = 0; key < 100000; key += 2) {
+			assertEquals("s" + key, map.remove(key));
+			expected.remove(key);
+		}
+		assertSameContents(expected, map);
+
+		LongObjectHashMap<String> presized = new LongObjectHashMap<String>(1000);
+		for (long key = 0; key < 5000; key++) {
+			presized.put(key, "v");
+		}
+		assertEquals(5000, presized.size());
+		assertEquals("v", presized.get(4999));
+	}
+
+	@Test
+	public void testAgainstHashMap() {
+		Random random = new Random(42);
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+		Map<Long, String> expected = new HashMap<Long, String>();
+		for (int i = 0; i < 200000; i++) {
+			// Few distinct keys, so the table stays small and removals often have to shift entries
+			long key = random.nextInt(24);
+			if (random.nextBoolean()) {
+				String value = "v" + i;
+				assertEquals(expected.put(key, value), map.put(key, value));
+			} else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			if (i % 1000 == 0) {
+				assertSameContents(expected, map);
+			}
+		}
+		assertSameContents(expected, map);
+	}
+
+	/*
+	 * The contract differs from the HashBiMap IfcModel used before: values do not have to be unique and the views are read only
+	 */
+	@Test
+	public void testContract() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+		map.put(1, "same");
+		map.put(2, "same");
+		assertEquals(2, map.size());
+		assertEquals(2, map.values().size());
+		assertTrue(map.containsValue("same"));
+
+		Iterator<Long> keyIterator = map.keySet().iterator();
+		keyIterator.next();
+		try {
+			keyIterator.remove();
+			fail("keySet iterator should not support remove");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		Iterator<String> valueIterator = map.values().iterator();
+		valueIterator.next();
+		try {
+			valueIterator.remove();
+			fail("values iterator should not support remove");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		Iterator<Map.Entry<Long, String>> entryIterator = map.entrySet().iterator();
+		entryIterator.next();
+		try {
+			entryIterator.remove();
+			fail("entrySet iterator should not support remove");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+
+		Iterator<Long> iterator = map.keySet().iterator();
+		iterator.next();
+		map.put(3, "new");
+		try {
+			iterator.next();
+			fail("Adding a key should fail a running iteration");
+		} catch (ConcurrentModificationException e) {
+			// expected
+		}
+	}
+}
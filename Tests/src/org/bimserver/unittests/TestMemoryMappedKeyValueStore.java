@@ -0,0 +1,344 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Record;
+import org.bimserver.database.RecordIterator;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.database.mmap.MemoryMappedKeyValueStore;
+import org.eclipse.emf.ecore.EPackage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class TestMemoryMappedKeyValueStore {
+
+	private File dataDir;
+	private MemoryMappedKeyValueStore store;
+
+	@Before
+	public void setup() throws IOException, DatabaseInitException {
+		dataDir = File.createTempFile("mmkv", "");
+		dataDir.delete();
+		store = new MemoryMappedKeyValueStore(dataDir);
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		store.close();
+		FileUtils.deleteDirectory(dataDir);
+	}
+
+	private DatabaseSession startSession() throws DatabaseInitException {
+		return new DatabaseSession(new Database(null, new HashSet<EPackage>(), store, null), store.startTransaction());
+	}
+
+	private void reopen() throws DatabaseInitException {
+		store.close();
+		store = new MemoryMappedKeyValueStore(dataDir);
+	}
+
+	private static byte[] bytes(String string) {
+		return string.getBytes(Charsets.UTF_8);
+	}
+
+	private static String string(byte[] bytes) {
+		return bytes == null ? null : new String(bytes, Charsets.UTF_8);
+	}
+
+	/*
+	 * Offset of the first occurrence of marker in the used part of the (only) segment
+	 */
+	private long findInLog(String marker) throws IOException {
+		long size = store.getDatabaseSizeInBytes();
+		File segmentFile = MemoryMappedKeyValueStore.getSegmentFiles(dataDir)[0];
+		byte[] log = new byte[(int) size];
+		RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile, "r");
+		try {
+			randomAccessFile.readFully(log);
+		} finally {
+			randomAccessFile.close();
+		}
+		byte[] needle = bytes(marker);
+		outer: for (int i = 0; i <= log.length - needle.length; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (log[i + j] != needle[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		fail(marker + " not found in log");
+		return -1;
+	}
+
+	@Test
+	public void testTransactionReadsItsStartVersion() throws BimserverDatabaseException, DatabaseInitException {
+		store.createTable("test", null);
+		store.store("test", bytes("a"), bytes("1"), null);
+		DatabaseSession session = startSession();
+		try {
+			// Two commits on the same record, the transaction still has to see the value it started with
+			store.store("test", bytes("a"), bytes("2"), null);
+			store.store("test", bytes("a"), bytes("3"), null);
+			store.store("test", bytes("b"), bytes("1"), null);
+			store.delete("test", bytes("a"), null);
+			assertEquals("1", string(store.get("test", bytes("a"), session)));
+			assertNull(store.get("test", bytes("b"), session));
+
+			DatabaseSession laterSession = startSession();
+			try {
+				assertNull(store.get("test", bytes("a"), laterSession));
+				assertEquals("1", string(store.get("test", bytes("b"), laterSession)));
+			} finally {
+				laterSession.close();
+			}
+		} finally {
+			session.close();
+		}
+		assertNull(store.get("test", bytes("a"), null));
+		assertEquals(1, store.count("test"));
+	}
+
+	@Test
+	public void testFirstCommitterWins() throws BimserverDatabaseException, DatabaseInitException {
+		store.createTable("test", null);
+		store.store("test", bytes("a"), bytes("1"), null);
+		DatabaseSession first = startSession();
+		DatabaseSession second = startSession();
+		try {
+			store.store("test", bytes("a"), bytes("first"), first);
+			store.store("test", bytes("a"), bytes("second"), second);
+			assertEquals("second", string(store.get("test", bytes("a"), second)));
+			first.getBimTransaction().commit();
+			try {
+				second.getBimTransaction().commit();
+				fail("Second commit should conflict");
+			} catch (BimserverConcurrentModificationDatabaseException e) {
+				// expected
+			}
+		} finally {
+			first.close();
+			second.close();
+		}
+		assertEquals("first", string(store.get("test", bytes("a"), null)));
+	}
+
+	@Test
+	public void testNoOverwriteConflict() throws BimserverDatabaseException, DatabaseInitException {
+		store.createTable("test", null);
+		DatabaseSession first = startSession();
+		DatabaseSession second = startSession();
+		try {
+			store.storeNoOverwrite("test", bytes("a"), bytes("first"), first);
+			// The key is not visible to the second transaction yet, the conflict is found when committing
+			store.storeNoOverwrite("test", bytes("a"), bytes("second"), second);
+			first.getBimTransaction().commit();
+			try {
+				second.getBimTransaction().commit();
+				fail("Second commit should find the existing key");
+			} catch (BimserverConcurrentModificationDatabaseException e) {
+				// expected
+			}
+		} finally {
+			first.close();
+			second.close();
+		}
+		try {
+			store.storeNoOverwrite("test", bytes("a"), bytes("third"), null);
+			fail("Key exists");
+		} catch (BimserverConcurrentModificationDatabaseException e) {
+			// expected
+		}
+		assertEquals("first", string(store.get("test", bytes("a"), null)));
+	}
+
+	@Test
+	public void testIndexTable() throws BimserverDatabaseException, DatabaseInitException {
+		store.createIndexTable("index", null);
+		store.store("index", bytes("k"), bytes("b"), null);
+		DatabaseSession first = startSession();
+		DatabaseSession second = startSession();
+		try {
+			store.store("index", bytes("k"), bytes("c"), first);
+			store.store("index", bytes("k"), bytes("a"), second);
+			// Entries are independent of each other, both transactions commit
+			first.getBimTransaction().commit();
+			second.getBimTransaction().commit();
+		} finally {
+			first.close();
+			second.close();
+		}
+		store.store("index", bytes("l"), bytes("a"), null);
+		assertEquals(3, store.getDuplicates("index", bytes("k"), null).size());
+		List<String> values = new ArrayList<String>();
+		for (byte[] value : store.getDuplicates("index", bytes("k"), null)) {
+			values.add(string(value));
+		}
+		assertEquals("[a, b, c]", values.toString());
+
+		store.delete("index", bytes("k"), bytes("b"), null);
+		assertEquals(2, store.getDuplicates("index", bytes("k"), null).size());
+		store.delete("index", bytes("k"), null);
+		assertEquals(0, store.getDuplicates("index", bytes("k"), null).size());
+		assertEquals(1, store.getDuplicates("index", bytes("l"), null).size());
+	}
+
+	@Test
+	public void testCursor() throws BimserverDatabaseException, DatabaseInitException {
+		store.createTable("test", null);
+		store.store("test", new byte[] { 1, 1 }, bytes("11"), null);
+		store.store("test", new byte[] { 1, 2 }, bytes("12"), null);
+		store.store("test", new byte[] { 1, (byte) 0x80 }, bytes("18"), null);
+		store.store("test", new byte[] { 2, 1 }, bytes("21"), null);
+		DatabaseSession session = startSession();
+		try {
+			// Own writes are merged with the committed records, own deletes hide them
+			store.store("test", new byte[] { 1, 3 }, bytes("13"), session);
+			store.delete("test", new byte[] { 1, 2 }, session);
+
+			List<String> values = new ArrayList<String>();
+			RecordIterator recordIterator = store.getRecordIterator("test", session);
+			try {
+				Record record = recordIterator.next();
+				while (record != null) {
+					values.add(string(record.getValue()));
+					record = recordIterator.next();
+				}
+			} finally {
+				recordIterator.close();
+			}
+			// Keys are compared unsigned, 0x80 sorts after 0x03
+			assertEquals("[11, 13, 18, 21]", values.toString());
+
+			SearchingRecordIterator searchingRecordIterator = store.getRecordIterator("test", new byte[] { 1 }, new byte[] { 1, 2 }, session);
+			try {
+				assertEquals("13", string(searchingRecordIterator.next().getValue()));
+				assertEquals("18", string(searchingRecordIterator.next().getValue()));
+				assertNull(searchingRecordIterator.next());
+				assertArrayEquals(new byte[] { 1, 1 }, searchingRecordIterator.next(new byte[] { 1 }).getKey());
+			} finally {
+				searchingRecordIterator.close();
+			}
+
+			RecordIterator lastIterator = store.getRecordIterator("test", session);
+			try {
+				assertEquals("21", string(lastIterator.last().getValue()));
+			} finally {
+				lastIterator.close();
+			}
+			assertEquals("13", string(store.getFirstStartingWith("test", new byte[] { 1, 3 }, session)));
+		} finally {
+			session.close();
+		}
+		// The session was rolled back
+		assertNull(store.get("test", new byte[] { 1, 3 }, null));
+		assertEquals("12", string(store.get("test", new byte[] { 1, 2 }, null)));
+	}
+
+	@Test
+	public void testReplay() throws BimserverDatabaseException, DatabaseInitException {
+		store.createTable("test", null);
+		store.createIndexTable("index", null);
+		store.store("test", bytes("a"), bytes("1"), null);
+		store.store("test", bytes("a"), bytes("2"), null);
+		store.store("test", bytes("b"), bytes("1"), null);
+		store.delete("test", bytes("b"), null);
+		store.store("index", bytes("k"), bytes("x"), null);
+		DatabaseSession rolledBack = startSession();
+		store.store("test", bytes("c"), bytes("1"), rolledBack);
+		rolledBack.close();
+
+		reopen();
+		assertEquals("2", string(store.get("test", bytes("a"), null)));
+		assertNull(store.get("test", bytes("b"), null));
+		assertNull(store.get("test", bytes("c"), null));
+		assertEquals("x", string(store.getDuplicates("index", bytes("k"), null).get(0)));
+		assertEquals(true, store.isIndexTable("index"));
+	}
+
+	@Test
+	public void testReplayCorruptBlock() throws BimserverDatabaseException, DatabaseInitException, IOException {
+		store.createTable("test", null);
+		store.store("test", bytes("a"), bytes("committed"), null);
+		store.store("test", bytes("b"), bytes("corrupted"), null);
+		long offset = findInLog("corrupted");
+		store.close();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(MemoryMappedKeyValueStore.getSegmentFiles(dataDir)[0], "rw");
+		try {
+			randomAccessFile.seek(offset);
+			randomAccessFile.write('C');
+		} finally {
+			randomAccessFile.close();
+		}
+		store = new MemoryMappedKeyValueStore(dataDir);
+		// The checksum of the data block does not match, its commit block has nothing to apply
+		assertEquals("committed", string(store.get("test", bytes("a"), null)));
+		assertNull(store.get("test", bytes("b"), null));
+
+		store.store("test", bytes("c"), bytes("after"), null);
+		reopen();
+		assertEquals("committed", string(store.get("test", bytes("a"), null)));
+		assertEquals("after", string(store.get("test", bytes("c"), null)));
+	}
+
+	@Test
+	public void testReplayTruncatedSegment() throws BimserverDatabaseException, DatabaseInitException, IOException {
+		store.createTable("test", null);
+		store.store("test", bytes("a"), bytes("committed"), null);
+		store.store("test", bytes("b"), bytes("truncated"), null);
+		long offset = findInLog("truncated");
+		store.close();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(MemoryMappedKeyValueStore.getSegmentFiles(dataDir)[0], "rw");
+		try {
+			randomAccessFile.setLength(offset + 4);
+		} finally {
+			randomAccessFile.close();
+		}
+		store = new MemoryMappedKeyValueStore(dataDir);
+		assertEquals("committed", string(store.get("test", bytes("a"), null)));
+		assertNull(store.get("test", bytes("b"), null));
+
+		// New blocks go to a new segment, the log has to be readable again with the cut off block in between
+		store.store("test", bytes("c"), bytes("after"), null);
+		reopen();
+		assertEquals("committed", string(store.get("test", bytes("a"), null)));
+		assertNull(store.get("test", bytes("b"), null));
+		assertEquals("after", string(store.get("test", bytes("c"), null)));
+	}
+}
@@ -0,0 +1,173 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.nfc.NfcIdSequence;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.junit.After;
+import org.junit.Test;
+
+/*
+ * NfcIdSequence hands out every id once, also when the server is restarted in between and when ids are taken from several threads
+ */
+public class TestNfcIdSequence {
+	private static final File HOME = new File("home");
+	private static final String REGISTRY_KEY = "TEST_NFC_SEQUENCE";
+	private BimServer bimServer;
+
+	private void start(boolean clean) throws IOException, PluginException, DatabaseInitException, BimserverDatabaseException, DatabaseRestartRequiredException {
+		if (clean && HOME.isDirectory()) {
+			FileUtils.deleteDirectory(HOME);
+		}
+		BimServerConfig config = new BimServerConfig();
+		config.setHomeDir(HOME);
+		config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+		bimServer = new BimServer(config);
+		LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+		bimServer.start();
+	}
+
+	private void stop() {
+		bimServer.stop();
+		bimServer = null;
+	}
+
+	@After
+	public void shutdown() {
+		if (bimServer != null) {
+			stop();
+		}
+	}
+
+	private NfcIdSequence createSequence(String... existingIds) throws BimserverDatabaseException {
+		NfcIdSequence nfcIdSequence = new NfcIdSequence(bimServer.getDatabase(), "x", REGISTRY_KEY);
+		nfcIdSequence.init(Arrays.asList(existingIds));
+		return nfcIdSequence;
+	}
+
+	private static long number(String id) {
+		return Long.parseLong(id.substring(1));
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+		start(true);
+		Set<String> ids = new HashSet<String>();
+		long highest = 0;
+		NfcIdSequence nfcIdSequence = createSequence();
+		assertEquals("x1", nfcIdSequence.next());
+		// More than one block of reserved numbers
+		for (int i = 0; i < 2500; i++) {
+			String id = nfcIdSequence.next();
+			assertTrue(id, ids.add(id));
+			highest = Math.max(highest, number(id));
+		}
+		stop();
+
+		for (int restart = 0; restart < 2; restart++) {
+			start(false);
+			nfcIdSequence = createSequence();
+			long previousHighest = highest;
+			for (int i = 0; i < 1500; i++) {
+				String id = nfcIdSequence.next();
+				assertTrue(id, ids.add(id));
+				assertTrue(id, number(id) > previousHighest);
+				highest = Math.max(highest, number(id));
+			}
+			stop();
+		}
+	}
+
+	/*
+	 * Ids of older versions were random, numbering continues after the highest one with this prefix
+	 */
+	@Test
+	public void testExistingIds() throws Exception {
+		start(true);
+		NfcIdSequence nfcIdSequence = createSequence("x17", "x5000", "xabc", "y9999", "x", "x12a");
+		assertEquals("x5001", nfcIdSequence.next());
+		assertEquals("x5002", nfcIdSequence.next());
+		stop();
+
+		// The registry is ahead of the existing ids now
+		start(false);
+		nfcIdSequence = createSequence("x17");
+		assertTrue(number(nfcIdSequence.next()) > 5002);
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		start(true);
+		final NfcIdSequence nfcIdSequence = createSequence();
+		final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executorService.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws BimserverDatabaseException {
+						int duplicates = 0;
+						for (int i = 0; i < 2000; i++) {
+							if (!ids.add(nfcIdSequence.next())) {
+								duplicates++;
+							}
+						}
+						return duplicates;
+					}
+				}));
+			}
+			for (Future<Integer> future : futures) {
+				assertEquals(0, (int) future.get());
+			}
+		} finally {
+			executorService.shutdown();
+		}
+		assertEquals(16000, ids.size());
+		// No gaps within one run
+		for (int i = 1; i <= 16000; i++) {
+			assertTrue(ids.contains("x" + i));
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bimserver.nfc.NfcRTree;
+import org.bimserver.nfc.NfcRTree.Entry;
+import org.junit.Test;
+
+/*
+ * The searches of NfcRTree are compared with a search over all entries, for sizes around the node capacity and sizes that need more levels
+ */
+public class TestNfcRTree {
+	private static final int[] SIZES = new int[] { 1, 2, 15, 16, 17, 256, 257, 1000, 5000 };
+
+	private static List<Entry> createEntries(Random random, int size) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int i = 0; i < size; i++) {
+			float x = random.nextFloat() * 100;
+			float y = random.nextFloat() * 100;
+			float z = random.nextFloat() * 10;
+			if (i % 5 == 0) {
+				// A point, like a reader that has been placed on a coordinate
+				entries.add(new Entry("e" + i, new float[] { x, y, z, x, y, z }));
+			} else {
+				entries.add(new Entry("e" + i, new float[] { x, y, z, x + random.nextFloat() * 10, y + random.nextFloat() * 10, z + random.nextFloat() }));
+			}
+		}
+		return entries;
+	}
+
+	private static Set<String> ids(List<Entry> entries) {
+		Set<String> ids = new TreeSet<String>();
+		for (Entry entry : entries) {
+			assertTrue("Entry found twice: " + entry.getId(), ids.add(entry.getId()));
+		}
+		return ids;
+	}
+
+	private static boolean intersects(float[] a, float[] b) {
+		for (int i = 0; i < 3; i++) {
+			if (a[i] > b[i + 3] || b[i] > a[i + 3]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static double distance(float[] box, double x, double y, double z) {
+		double dx = Math.max(0, Math.max(box[0] - x, x - box[3]));
+		double dy = Math.max(0, Math.max(box[1] - y, y - box[4]));
+		double dz = Math.max(0, Math.max(box[2] - z, z - box[5]));
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	@Test
+	public void testEmpty() {
+		NfcRTree tree = NfcRTree.build(Collections.<Entry> emptyList());
+		assertEquals(0, tree.size());
+		assertTrue(tree.search(new float[] { -1000, -1000, -1000, 1000, 1000, 1000 }).isEmpty());
+		assertTrue(tree.searchRadius(0, 0, 0, 1000).isEmpty());
+	}
+
+	@Test
+	public void testSearch() {
+		Random random = new Random(1);
+		for (int size : SIZES) {
+			List<Entry> entries = createEntries(random, size);
+			NfcRTree tree = NfcRTree.build(entries);
+			assertEquals(size, tree.size());
+			// Everything
+			assertEquals(ids(entries), ids(tree.search(new float[] { -1, -1, -1, 200, 200, 200 })));
+			for (int i = 0; i < 200; i++) {
+				float x = random.nextFloat() * 120 - 10;
+				float y = random.nextFloat() * 120 - 10;
+				float z = random.nextFloat() * 12 - 1;
+				float extent = i % 4 == 0 ? 0 : random.nextFloat() * 30;
+				float[] box = new float[] { x, y, z, x + extent, y + extent, z + extent / 10 };
+				List<Entry> expected = new ArrayList<Entry>();
+				for (Entry entry : entries) {
+					if (intersects(entry.getBounds(), box)) {
+						expected.add(entry);
+					}
+				}
+				assertEquals("size " + size + ", query " + i, ids(expected), ids(tree.search(box)));
+			}
+		}
+	}
+
+	@Test
+	public void testSearchRadius() {
+		Random random = new Random(2);
+		for (int size : SIZES) {
+			List<Entry> entries = createEntries(random, size);
+			NfcRTree tree = NfcRTree.build(entries);
+			for (int i = 0; i < 200; i++) {
+				double x = random.nextDouble() * 120 - 10;
+				double y = random.nextDouble() * 120 - 10;
+				double z = random.nextDouble() * 12 - 1;
+				double radius = i % 4 == 0 ? 0 : random.nextDouble() * 25;
+				List<Entry> expected = new ArrayList<Entry>();
+				for (Entry entry : entries) {
+					if (distance(entry.getBounds(), x, y, z) <= radius) {
+						expected.add(entry);
+					}
+				}
+				assertEquals("size " + size + ", query " + i, ids(expected), ids(tree.searchRadius(x, y, z, radius)));
+			}
+		}
+	}
+
+	/*
+	 * Boxes on the edge of the query touch it, they are found
+	 */
+	@Test
+	public void testTouching() {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (int i = 0; i < 100; i++) {
+			entries.add(new Entry("e" + i, new float[] { i, 0, 0, i + 1, 1, 1 }));
+		}
+		NfcRTree tree = NfcRTree.build(entries);
+		assertEquals(ids(entries.subList(9, 12)), ids(tree.search(new float[] { 10, 0, 0, 11, 0, 0 })));
+		assertEquals(ids(entries.subList(49, 51)), ids(tree.searchRadius(50, 2, 0.5, 1)));
+	}
+}
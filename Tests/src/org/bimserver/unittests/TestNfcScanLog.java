@@ -0,0 +1,266 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.nfc.NfcScanEvent;
+import org.bimserver.nfc.NfcScanEventVisitor;
+import org.bimserver.nfc.NfcScanLog;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+/*
+ * Range queries, retention and downsampling of NfcScanLog. Every test uses tags and readers of its own, cleanup() works on all scans.
+ */
+public class TestNfcScanLog {
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+	private static BimServer bimServer;
+	private static NfcScanLog nfcScanLog;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		nfcScanLog = bimServer.getNfcScanLog();
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	private static String newId(String prefix) {
+		return prefix + UUID.randomUUID().toString();
+	}
+
+	private static List<NfcScanEvent> getTagHistory(String nfcTagId, long from, long to) throws BimserverDatabaseException, IOException {
+		final List<NfcScanEvent> result = new ArrayList<NfcScanEvent>();
+		nfcScanLog.getTagHistory(nfcTagId, from, to, new NfcScanEventVisitor() {
+			@Override
+			public void visit(NfcScanEvent nfcScanEvent) {
+				result.add(nfcScanEvent);
+			}
+		});
+		return result;
+	}
+
+	private static List<NfcScanEvent> getReaderHistory(String readerId, long from, long to) throws BimserverDatabaseException, IOException {
+		final List<NfcScanEvent> result = new ArrayList<NfcScanEvent>();
+		nfcScanLog.getReaderHistory(readerId, from, to, new NfcScanEventVisitor() {
+			@Override
+			public void visit(NfcScanEvent nfcScanEvent) {
+				result.add(nfcScanEvent);
+			}
+		});
+		return result;
+	}
+
+	private static List<Long> timestamps(List<NfcScanEvent> events) {
+		List<Long> result = new ArrayList<Long>();
+		for (NfcScanEvent event : events) {
+			result.add(event.getTimestamp());
+		}
+		return result;
+	}
+
+	private static List<Long> list(long... timestamps) {
+		List<Long> result = new ArrayList<Long>();
+		for (long timestamp : timestamps) {
+			result.add(timestamp);
+		}
+		return result;
+	}
+
+	/*
+	 * The start of the interval that is the given number of days ago, plus ten minutes so a few scans fit in the same interval
+	 */
+	private static long intervalDaysAgo(int days) {
+		return ((System.currentTimeMillis() - days * DAY) / HOUR) * HOUR + TimeUnit.MINUTES.toMillis(10);
+	}
+
+	@Test
+	public void testRangeQueries() throws BimserverDatabaseException, IOException {
+		String tag = newId("tag");
+		// Shares its first bytes with the other tag, its scans must not show up
+		String otherTag = tag + "x";
+		String reader1 = newId("reader");
+		String reader2 = newId("reader");
+		long start = System.currentTimeMillis();
+		// Logged out of order, the queries return them oldest first
+		for (int i = 9; i >= 0; i--) {
+			nfcScanLog.log(new NfcScanEvent(tag, i % 2 == 0 ? reader1 : reader2, "Room " + i, start + i * 1000));
+			nfcScanLog.log(new NfcScanEvent(otherTag, reader1, "Room " + i, start + i * 1000));
+		}
+		// Two scans at the same time are both kept
+		nfcScanLog.log(new NfcScanEvent(tag, reader2, "Room 5", start + 5000));
+
+		List<NfcScanEvent> all = getTagHistory(tag, 0, Long.MAX_VALUE);
+		assertEquals(11, all.size());
+		assertEquals(list(start, start + 1000, start + 2000, start + 3000, start + 4000, start + 5000, start + 5000, start + 6000, start + 7000, start + 8000, start + 9000), timestamps(all));
+		for (NfcScanEvent event : all) {
+			assertEquals(tag, event.getNfcTagId());
+		}
+		assertEquals("Room 0", all.get(0).getLocation());
+		assertEquals(reader1, all.get(0).getReaderId());
+
+		// Both ends are included
+		assertEquals(list(start + 2000, start + 3000, start + 4000), timestamps(getTagHistory(tag, start + 2000, start + 4000)));
+		assertEquals(list(start + 9000), timestamps(getTagHistory(tag, start + 8500, start + 100000)));
+		assertEquals(0, getTagHistory(tag, start + 9001, Long.MAX_VALUE).size());
+		assertEquals(0, getTagHistory(newId("tag"), 0, Long.MAX_VALUE).size());
+
+		List<NfcScanEvent> byReader = getReaderHistory(reader1, 0, Long.MAX_VALUE);
+		// Five scans of the tag and ten of the other tag
+		assertEquals(15, byReader.size());
+		assertEquals(list(start, start + 2000, start + 4000, start + 6000, start + 8000), timestamps(filter(byReader, tag)));
+		assertEquals(list(start + 4000, start + 6000), timestamps(filter(getReaderHistory(reader1, start + 3000, start + 7000), tag)));
+		assertEquals(list(start + 1000, start + 3000, start + 5000, start + 5000, start + 7000, start + 9000), timestamps(getReaderHistory(reader2, 0, Long.MAX_VALUE)));
+	}
+
+	private static List<NfcScanEvent> filter(List<NfcScanEvent> events, String nfcTagId) {
+		List<NfcScanEvent> result = new ArrayList<NfcScanEvent>();
+		for (NfcScanEvent event : events) {
+			if (event.getNfcTagId().equals(nfcTagId)) {
+				result.add(event);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testRetention() throws BimserverDatabaseException, IOException {
+		String tag = newId("tag");
+		String reader = newId("reader");
+		long expired = System.currentTimeMillis() - 400 * DAY;
+		long kept = System.currentTimeMillis() - 100 * DAY;
+		long recent = System.currentTimeMillis() - HOUR;
+		nfcScanLog.log(new NfcScanEvent(tag, reader, "Room", expired));
+		nfcScanLog.log(new NfcScanEvent(tag, reader, "Room", kept));
+		nfcScanLog.log(new NfcScanEvent(tag, reader, "Room", recent));
+		nfcScanLog.cleanup();
+		assertEquals(list(kept, recent), timestamps(getTagHistory(tag, 0, Long.MAX_VALUE)));
+		assertEquals(list(kept, recent), timestamps(getReaderHistory(reader, 0, Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testDownsampling() throws BimserverDatabaseException, IOException {
+		String tag = newId("tag");
+		String reader1 = newId("reader");
+		String reader2 = newId("reader");
+		long old = intervalDaysAgo(60);
+		long recent = intervalDaysAgo(1);
+		for (long base : new long[] { old, recent }) {
+			nfcScanLog.log(new NfcScanEvent(tag, reader1, "Room 1", base));
+			nfcScanLog.log(new NfcScanEvent(tag, reader1, "Room 2", base + 1000));
+			nfcScanLog.log(new NfcScanEvent(tag, reader1, "Room 1", base + 2000));
+			nfcScanLog.log(new NfcScanEvent(tag, reader2, "Room 3", base + 3000));
+			// The next interval
+			nfcScanLog.log(new NfcScanEvent(tag, reader1, "Room 1", base + HOUR));
+		}
+		nfcScanLog.cleanup();
+		// Old scans keep the first scan of a tag by a reader per interval, recent scans are all kept
+		assertEquals(list(old, old + 3000, old + HOUR), timestamps(getTagHistory(tag, old - HOUR, old + 2 * HOUR)));
+		assertEquals(list(old, old + HOUR), timestamps(getReaderHistory(reader1, old - HOUR, old + 2 * HOUR)));
+		assertEquals(list(recent, recent + 1000, recent + 2000, recent + 3000, recent + HOUR), timestamps(getTagHistory(tag, recent - HOUR, recent + 2 * HOUR)));
+		// A second cleanup has nothing left to do
+		nfcScanLog.cleanup();
+		assertEquals(list(old, old + 3000, old + HOUR), timestamps(getTagHistory(tag, old - HOUR, old + 2 * HOUR)));
+	}
+
+	@Test
+	public void testLateScans() throws BimserverDatabaseException, IOException {
+		String tag = newId("tag");
+		String reader = newId("reader");
+		long base = intervalDaysAgo(45);
+		nfcScanLog.log(new NfcScanEvent(tag, reader, "Room", base));
+		nfcScanLog.cleanup();
+
+		// Scans that arrive after their interval has been downsampled, one before and one after the scan that was kept
+		nfcScanLog.log(new NfcScanEvent(tag, reader, "Room", base - 1000));
+		nfcScanLog.log(new NfcScanEvent(tag, reader, "Room", base + 1000));
+		assertEquals(list(base - 1000, base, base + 1000), timestamps(getTagHistory(tag, 0, Long.MAX_VALUE)));
+		nfcScanLog.cleanup();
+		// The interval is downsampled again, the first scan in it is kept
+		assertEquals(list(base - 1000), timestamps(getTagHistory(tag, 0, Long.MAX_VALUE)));
+		assertEquals(list(base - 1000), timestamps(getReaderHistory(reader, 0, Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testTooLong() throws BimserverDatabaseException, IOException {
+		String tag = newId("tag");
+		String reader = newId("reader");
+		nfcScanLog.log(new NfcScanEvent(tag, reader, Strings.repeat("a", NfcScanLog.MAX_STRING_LENGTH), 1000));
+		try {
+			nfcScanLog.log(new NfcScanEvent(tag, reader, Strings.repeat("a", NfcScanLog.MAX_STRING_LENGTH + 1), 2000));
+			fail("A location that does not fit in the record should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+		List<NfcScanEvent> history = getTagHistory(tag, 0, Long.MAX_VALUE);
+		assertEquals(1, history.size());
+		assertEquals(NfcScanLog.MAX_STRING_LENGTH, history.get(0).getLocation().length());
+	}
+}
@@ -0,0 +1,196 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.nfc.NfcReader;
+import org.bimserver.nfc.NfcStore;
+import org.bimserver.nfc.NfcTag;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * NfcStore writes tags and readers to their own tables, the csv files of older versions are imported when the tables are created
+ */
+public class TestNfcStore {
+	private static final File HOME = new File("home");
+	private static final File LEGACY_DIR = new File(HOME, "NfcData");
+	private static BimServer bimServer;
+
+	@BeforeClass
+	public static void setup() throws IOException {
+		if (HOME.isDirectory()) {
+			FileUtils.deleteDirectory(HOME);
+		}
+		// The files of older versions, with comments, empty lines and empty fields
+		FileUtils.writeStringToFile(new File(LEGACY_DIR, "nfcReaders.txt"), "//readerId,readerName,readerLocation\nreader1,Reader one,Room 1\n\nreader2,,Room 2\n", "UTF-8");
+		FileUtils.writeStringToFile(new File(LEGACY_DIR, "nfcTags.txt"), "//nfcTagId,ifcNodeId,latestLocation,trackedLocations\ntag1,1234,Room 1,Room 2;Room 1\ntag2,,,\n", "UTF-8");
+		try {
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(HOME);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start, the NFC tables are created and the files imported
+			bimServer.start();
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	private static Map<String, NfcTag> getTags() throws BimserverDatabaseException {
+		Map<String, NfcTag> result = new HashMap<String, NfcTag>();
+		for (NfcTag nfcTag : bimServer.getNfcStore().getAllTags()) {
+			result.put(nfcTag.getNfcTagId(), nfcTag);
+		}
+		return result;
+	}
+
+	private static Map<String, NfcReader> getReaders() throws BimserverDatabaseException {
+		Map<String, NfcReader> result = new HashMap<String, NfcReader>();
+		for (NfcReader nfcReader : bimServer.getNfcStore().getAllReaders()) {
+			result.put(nfcReader.getReaderId(), nfcReader);
+		}
+		return result;
+	}
+
+	@Test
+	public void testLegacyImport() throws BimserverDatabaseException {
+		Map<String, NfcReader> readers = getReaders();
+		NfcReader reader1 = readers.get("reader1");
+		assertNotNull(reader1);
+		assertEquals("Reader one", reader1.getReaderName());
+		assertEquals("Room 1", reader1.getReaderLocation());
+		assertEquals("", reader1.getSpatialNodeId());
+		assertFalse(reader1.hasCoordinate());
+		NfcReader reader2 = readers.get("reader2");
+		assertNotNull(reader2);
+		assertEquals("", reader2.getReaderName());
+		assertEquals("Room 2", reader2.getReaderLocation());
+
+		Map<String, NfcTag> tags = getTags();
+		NfcTag tag1 = tags.get("tag1");
+		assertNotNull(tag1);
+		assertEquals("1234", tag1.getIfcNodeId());
+		assertEquals("Room 1", tag1.getLatestLocation());
+		assertEquals("Room 2;Room 1", tag1.getTrackedLocations());
+		NfcTag tag2 = tags.get("tag2");
+		assertNotNull(tag2);
+		assertEquals("", tag2.getIfcNodeId());
+		assertEquals("", tag2.getLatestLocation());
+		assertEquals("", tag2.getTrackedLocations());
+
+		// Imported once, the files are kept under another name
+		assertFalse(new File(LEGACY_DIR, "nfcReaders.txt").exists());
+		assertFalse(new File(LEGACY_DIR, "nfcTags.txt").exists());
+		assertTrue(new File(LEGACY_DIR, "nfcReaders.txt.imported").exists());
+		assertTrue(new File(LEGACY_DIR, "nfcTags.txt.imported").exists());
+	}
+
+	@Test
+	public void testTagRoundTrip() throws BimserverDatabaseException {
+		NfcStore nfcStore = bimServer.getNfcStore();
+		NfcTag nfcTag = new NfcTag("tag-\u00e9\u20ac");
+		nfcTag.setIfcNodeId("5678");
+		nfcTag.setLatestLocation("K\u00fcche");
+		nfcTag.setTrackedLocations("Hall;K\u00fcche");
+		nfcStore.storeTag(nfcTag);
+
+		NfcTag stored = getTags().get(nfcTag.getNfcTagId());
+		assertNotNull(stored);
+		assertEquals("5678", stored.getIfcNodeId());
+		assertEquals("K\u00fcche", stored.getLatestLocation());
+		assertEquals("Hall;K\u00fcche", stored.getTrackedLocations());
+
+		// A tag is one record, storing it again replaces it
+		int nrTags = nfcStore.getAllTags().size();
+		nfcTag.setLatestLocation("Hall");
+		nfcStore.storeTag(nfcTag);
+		assertEquals(nrTags, nfcStore.getAllTags().size());
+		assertEquals("Hall", getTags().get(nfcTag.getNfcTagId()).getLatestLocation());
+	}
+
+	@Test
+	public void testReaderRoundTrip() throws BimserverDatabaseException {
+		NfcStore nfcStore = bimServer.getNfcStore();
+		NfcReader nfcReader = new NfcReader("reader-placed");
+		nfcReader.setReaderName("Entrance");
+		nfcReader.setReaderLocation("Hall");
+		nfcReader.setSpatialNodeId("2O2Fr$t4X7Zf8NOew3FLOH");
+		nfcReader.setCoordinate(1.5, -2.25, 1e-3);
+		nfcStore.storeReader(nfcReader);
+
+		NfcReader stored = getReaders().get("reader-placed");
+		assertNotNull(stored);
+		assertEquals("Entrance", stored.getReaderName());
+		assertEquals("Hall", stored.getReaderLocation());
+		assertEquals("2O2Fr$t4X7Zf8NOew3FLOH", stored.getSpatialNodeId());
+		assertTrue(stored.hasCoordinate());
+		assertEquals(1.5, stored.getX(), 0);
+		assertEquals(-2.25, stored.getY(), 0);
+		assertEquals(1e-3, stored.getZ(), 0);
+
+		// Readers that have not been placed have no coordinate
+		nfcStore.storeReader(new NfcReader("reader-unplaced"));
+		List<NfcReader> readers = nfcStore.getAllReaders();
+		boolean found = false;
+		for (NfcReader reader : readers) {
+			if (reader.getReaderId().equals("reader-unplaced")) {
+				assertFalse(reader.hasCoordinate());
+				found = true;
+			}
+		}
+		assertTrue(found);
+	}
+}
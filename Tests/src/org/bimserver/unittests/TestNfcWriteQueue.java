@@ -0,0 +1,254 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.nfc.NfcScanEvent;
+import org.bimserver.nfc.NfcScanEventVisitor;
+import org.bimserver.nfc.NfcScanLog;
+import org.bimserver.nfc.NfcTag;
+import org.bimserver.nfc.NfcWriteQueue;
+import org.bimserver.nfc.NfcWriteQueue.PendingWrite;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.plugins.serializers.SerializerException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * NfcWriteQueue commits what is queued in batches, saveNfcDataBatch reports every scan of a batch on its own and close() writes what was
+ * queued before it
+ */
+public class TestNfcWriteQueue {
+	private static BimServer bimServer;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	/*
+	 * A queue of its own on the database of the server, so it can be closed
+	 */
+	private static NfcWriteQueue createWriteQueue() {
+		NfcWriteQueue nfcWriteQueue = new NfcWriteQueue(bimServer.getDatabase(), bimServer.getNfcStore(), bimServer.getNfcScanLog());
+		nfcWriteQueue.start();
+		return nfcWriteQueue;
+	}
+
+	private static int countScans(String nfcTagId) throws BimserverDatabaseException, IOException {
+		final List<NfcScanEvent> result = new ArrayList<NfcScanEvent>();
+		bimServer.getNfcScanLog().getTagHistory(nfcTagId, 0, Long.MAX_VALUE, new NfcScanEventVisitor() {
+			@Override
+			public void visit(NfcScanEvent nfcScanEvent) {
+				result.add(nfcScanEvent);
+			}
+		});
+		return result.size();
+	}
+
+	private static NfcTag getStoredTag(String nfcTagId) throws BimserverDatabaseException {
+		for (NfcTag nfcTag : bimServer.getNfcStore().getAllTags()) {
+			if (nfcTag.getNfcTagId().equals(nfcTagId)) {
+				return nfcTag;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testWritesInOrder() throws BimserverDatabaseException, IOException {
+		NfcWriteQueue nfcWriteQueue = createWriteQueue();
+		try {
+			String nfcTagId = "tag" + UUID.randomUUID();
+			NfcTag nfcTag = new NfcTag(nfcTagId);
+			List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>();
+			for (int i = 0; i < 1000; i++) {
+				nfcTag.setLatestLocation("Room " + i);
+				pendingWrites.add(nfcWriteQueue.storeTag(nfcTag));
+				pendingWrites.add(nfcWriteQueue.logScan(new NfcScanEvent(nfcTagId, "reader", "Room " + i, System.currentTimeMillis())));
+			}
+			// The queue keeps a copy, changing the tag afterwards is not written
+			nfcTag.setLatestLocation("Changed after queueing");
+			for (PendingWrite pendingWrite : pendingWrites) {
+				pendingWrite.await();
+				assertTrue(pendingWrite.isCommitted());
+			}
+			assertEquals("Room 999", getStoredTag(nfcTagId).getLatestLocation());
+			assertEquals(1000, countScans(nfcTagId));
+		} finally {
+			nfcWriteQueue.close();
+		}
+	}
+
+	@Test
+	public void testClose() throws BimserverDatabaseException, IOException {
+		NfcWriteQueue nfcWriteQueue = createWriteQueue();
+		String nfcTagId = "tag" + UUID.randomUUID();
+		List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>();
+		for (int i = 0; i < 5000; i++) {
+			pendingWrites.add(nfcWriteQueue.logScan(new NfcScanEvent(nfcTagId, "reader", "Room", System.currentTimeMillis())));
+		}
+		nfcWriteQueue.close();
+		// Everything queued before close() has been committed when it returns
+		for (PendingWrite pendingWrite : pendingWrites) {
+			assertTrue(pendingWrite.isCommitted());
+		}
+		assertEquals(5000, countScans(nfcTagId));
+		try {
+			nfcWriteQueue.logScan(new NfcScanEvent(nfcTagId, "reader", "Room", System.currentTimeMillis()));
+			fail("A closed queue should not accept writes");
+		} catch (BimserverDatabaseException e) {
+		}
+		assertEquals(5000, countScans(nfcTagId));
+	}
+
+	@Test
+	public void testFailedBatch() throws BimserverDatabaseException {
+		NfcWriteQueue nfcWriteQueue = createWriteQueue();
+		try {
+			// Too long for the scan log, the transaction it ends up in is not committed and every write in it gets the error
+			PendingWrite pendingWrite = nfcWriteQueue.logScan(new NfcScanEvent("tag" + UUID.randomUUID(), "reader", Strings.repeat("a", NfcScanLog.MAX_STRING_LENGTH + 1), 0));
+			try {
+				pendingWrite.await();
+				fail("The write should have failed");
+			} catch (BimserverDatabaseException e) {
+			}
+			assertFalse(pendingWrite.isCommitted());
+			assertNotNull(pendingWrite.getException());
+			// The queue keeps working
+			PendingWrite next = nfcWriteQueue.logScan(new NfcScanEvent("tag" + UUID.randomUUID(), "reader", "Room", 0));
+			next.await();
+			assertTrue(next.isCommitted());
+		} finally {
+			nfcWriteQueue.close();
+		}
+	}
+
+	private static JsonObject createScan(String readerId, String readerLocation, String nfcTagId) {
+		JsonObject scan = new JsonObject();
+		scan.addProperty("readerId", readerId);
+		scan.addProperty("readerLocation", readerLocation);
+		if (nfcTagId != null) {
+			scan.addProperty("nfcTagId", nfcTagId);
+		}
+		return scan;
+	}
+
+	@Test
+	public void testBatchAcceptance() throws IOException, SerializerException, BimserverDatabaseException, UserException, ServerException {
+		String nfcTagId = "tag" + UUID.randomUUID();
+		String readerId = "reader" + UUID.randomUUID();
+		JsonArray scans = new JsonArray();
+		scans.add(createScan(readerId, "Room 1", nfcTagId));
+		scans.add(createScan(readerId, "Room 2", null));
+		scans.add(new JsonPrimitive(42));
+		scans.add(createScan(readerId, Strings.repeat("a", NfcScanLog.MAX_STRING_LENGTH + 1), nfcTagId));
+		JsonObject last = createScan(readerId, "Room 3", nfcTagId);
+		last.addProperty("timestamp", System.currentTimeMillis() + 1000);
+		scans.add(last);
+		JsonObject parameters = new JsonObject();
+		parameters.add("scans", scans);
+		JsonObject request = new JsonObject();
+		request.addProperty("method", "saveNfcDataBatch");
+		request.add("parameters", parameters);
+
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		bimServer.getNfcHandler().handleNfcMethods(request, null, null, writer);
+		writer.flush();
+
+		JsonObject result = new JsonParser().parse(out.toString()).getAsJsonObject().getAsJsonObject("result");
+		assertEquals(2, result.get("accepted").getAsInt());
+		assertEquals(3, result.get("rejected").getAsInt());
+		JsonArray scanResults = result.getAsJsonArray("scans");
+		boolean[] expected = new boolean[] { true, false, false, false, true };
+		assertEquals(expected.length, scanResults.size());
+		for (int i = 0; i < expected.length; i++) {
+			JsonObject scanResult = scanResults.get(i).getAsJsonObject();
+			assertEquals(i, scanResult.get("index").getAsInt());
+			assertEquals("scan " + i, expected[i], scanResult.get("accepted").getAsBoolean());
+			assertEquals("scan " + i, !expected[i], scanResult.has("error"));
+		}
+		// The rejected scans changed nothing, the accepted ones are committed when the response is written
+		assertEquals(2, countScans(nfcTagId));
+		assertEquals("Room 3", getStoredTag(nfcTagId).getLatestLocation());
+	}
+}
@@ -0,0 +1,236 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.utils.BinUtils;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Commits the same objects in two projects, once serialized on the pool and once on the committing thread, the records of both projects
+ * should be the same apart from the pid in their keys
+ */
+public class TestParallelCommit {
+	private static final String SCHEMA = "ifc2x3tc1";
+
+	private static BimServer bimServer;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+
+			// Convenience, setup the server to make sure it is in RUNNING state
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	private static IdEObject create(PackageMetaData packageMetaData, String className) {
+		return (IdEObject) packageMetaData.getEPackage().getEFactoryInstance().create(packageMetaData.getEClass(className));
+	}
+
+	/*
+	 * GlobalId is either a string or a wrapped value, depending on the version of the schema
+	 */
+	private static void setGlobalId(PackageMetaData packageMetaData, IdEObject object, String guid) {
+		EStructuralFeature globalId = object.eClass().getEStructuralFeature("GlobalId");
+		if (globalId instanceof EAttribute) {
+			object.eSet(globalId, guid);
+		} else {
+			EClass wrapperClass = ((EReference) globalId).getEReferenceType();
+			IdEObject wrapper = (IdEObject) packageMetaData.getEPackage().getEFactoryInstance().create(wrapperClass);
+			wrapper.eSet(wrapperClass.getEStructuralFeature("wrappedValue"), guid);
+			object.eSet(globalId, wrapper);
+		}
+	}
+
+	/*
+	 * Walls and slabs with names and guids for the IfcRoot indexes, the walls reference a chain of placements
+	 */
+	private List<IdEObject> createObjects(PackageMetaData packageMetaData) {
+		List<IdEObject> objects = new ArrayList<IdEObject>();
+		IdEObject previousPlacement = null;
+		int count = DatabaseSession.PARALLEL_COMMIT_THRESHOLD / 3 + 1;
+		for (int i = 0; i < count; i++) {
+			IdEObject placement = create(packageMetaData, "IfcLocalPlacement");
+			if (previousPlacement != null) {
+				placement.eSet(placement.eClass().getEStructuralFeature("PlacementRelTo"), previousPlacement);
+			}
+			previousPlacement = placement;
+			objects.add(placement);
+
+			IdEObject wall = create(packageMetaData, "IfcWall");
+			wall.eSet(wall.eClass().getEStructuralFeature("Name"), "Wall " + i);
+			setGlobalId(packageMetaData, wall, String.format("W%021d", i));
+			wall.eSet(wall.eClass().getEStructuralFeature("ObjectPlacement"), placement);
+			objects.add(wall);
+
+			IdEObject slab = create(packageMetaData, "IfcSlab");
+			slab.eSet(slab.eClass().getEStructuralFeature("Name"), "Slab " + i);
+			setGlobalId(packageMetaData, slab, String.format("S%021d", i));
+			objects.add(slab);
+		}
+		return objects;
+	}
+
+	private void commit(List<IdEObject> objects, int pid, boolean parallel) throws BimserverDatabaseException, ServiceException {
+		DatabaseSession session = bimServer.getDatabase().createSession();
+		try {
+			session.setParallelCommitEnabled(parallel);
+			for (IdEObject object : objects) {
+				session.store(object, pid, 1);
+			}
+			session.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	/*
+	 * The records of a table with keys that start with pid, with the pid cut off the keys
+	 */
+	private List<byte[][]> getRecords(DatabaseSession session, String tableName, int pid) throws BimserverDatabaseException {
+		List<byte[][]> records = new ArrayList<byte[][]>();
+		byte[] pidBytes = BinUtils.intToByteArray(pid);
+		SearchingRecordIterator recordIterator = bimServer.getDatabase().getKeyValueStore().getRecordIterator(tableName, pidBytes, pidBytes, session);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				byte[] key = record.getKey();
+				byte[] keyWithoutPid = new byte[key.length - 4];
+				System.arraycopy(key, 4, keyWithoutPid, 0, keyWithoutPid.length);
+				records.add(new byte[][] { keyWithoutPid, record.getValue() });
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		return records;
+	}
+
+	@Test
+	public void testParallelAndSequentialCommitStoreTheSameRecords() throws BimserverDatabaseException, ServiceException {
+		Database database = (Database) bimServer.getDatabase();
+		Assume.assumeTrue(database.getSerializationPool().getParallelism() > 1);
+		PackageMetaData packageMetaData = bimServer.getMetaDataManager().getPackageMetaData(SCHEMA);
+		List<IdEObject> objects = createObjects(packageMetaData);
+		assertTrue(objects.size() >= DatabaseSession.PARALLEL_COMMIT_THRESHOLD);
+
+		int parallelPid = database.newPid();
+		int sequentialPid = database.newPid();
+		commit(objects, parallelPid, true);
+		commit(objects, sequentialPid, false);
+
+		DatabaseSession session = database.createSession();
+		try {
+			int nrObjectRecords = 0;
+			int nrIndexRecords = 0;
+			for (String tableName : database.getKeyValueStore().getAllTableNames()) {
+				boolean indexTable = tableName.equals(Database.GUID_INDEX_PREFIX + SCHEMA) || tableName.equals(Database.NAME_INDEX_PREFIX + SCHEMA);
+				if (!indexTable && !tableName.startsWith(SCHEMA + "_")) {
+					continue;
+				}
+				List<byte[][]> parallelRecords = getRecords(session, tableName, parallelPid);
+				List<byte[][]> sequentialRecords = getRecords(session, tableName, sequentialPid);
+				assertEquals(tableName, sequentialRecords.size(), parallelRecords.size());
+				for (int i = 0; i < sequentialRecords.size(); i++) {
+					assertArrayEquals(tableName, sequentialRecords.get(i)[0], parallelRecords.get(i)[0]);
+					assertArrayEquals(tableName, sequentialRecords.get(i)[1], parallelRecords.get(i)[1]);
+				}
+				if (indexTable) {
+					nrIndexRecords += sequentialRecords.size();
+				} else {
+					nrObjectRecords += sequentialRecords.size();
+				}
+			}
+			assertTrue(nrObjectRecords >= objects.size());
+			// A guid and a name for every wall and slab
+			assertEquals(objects.size() / 3 * 4, nrIndexRecords);
+		} finally {
+			session.close();
+		}
+	}
+}
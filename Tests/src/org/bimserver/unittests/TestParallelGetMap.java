@@ -0,0 +1,224 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Query;
+import org.bimserver.database.Query.Deep;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.interfaces.objects.SUserType;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.models.store.StorePackage;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.shared.interfaces.AuthInterface;
+import org.bimserver.shared.interfaces.ServiceInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1AuthInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1ServiceInterface;
+import org.bimserver.tests.TestFile;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EReference;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Checks in files and reads their revisions with the parallel and the sequential getMap, the models should be the same
+ */
+public class TestParallelGetMap {
+
+	private static BimServer bimServer;
+	private static Bimsie1ServiceInterface bimsie1ServiceInterface;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+
+			// Convenience, setup the server to make sure it is in RUNNING state
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		bimsie1ServiceInterface = bimServer.getService(Bimsie1ServiceInterface.class);
+		createUserAndLogin();
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	private static void createUserAndLogin() {
+		int nextInt = new Random().nextInt();
+		try {
+			String username = "test" + nextInt + "@bimserver.org";
+			long userId = bimServer.getService(ServiceInterface.class).addUser(username, "User " + nextInt, SUserType.USER, false, "").getOid();
+			bimServer.getService(AuthInterface.class).changePassword(userId, null, "test");
+			bimServer.getService(Bimsie1AuthInterface.class).login(username, "test");
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private long checkin(TestFile testFile) throws ServiceException {
+		long poid = bimsie1ServiceInterface.addProject("Project " + new Random().nextInt(), "ifc2x3tc1").getOid();
+		SDeserializerPluginConfiguration deserializer = bimsie1ServiceInterface.getSuggestedDeserializerForExtension("ifc", poid);
+		File file = testFile.getFile();
+		bimsie1ServiceInterface.checkin(poid, "test", deserializer.getOid(), file.length(), file.getName(), new DataHandler(new FileDataSource(file)), true);
+		return bimsie1ServiceInterface.getProjectByPoid(poid).getLastRevisionId();
+	}
+
+	/*
+	 * Every load gets a session of its own, so it does not find the objects of the other load in the object cache of the session
+	 */
+	private IfcModelInterface getMap(long roid, boolean parallel) throws BimserverDatabaseException {
+		DatabaseSession session = bimServer.getDatabase().createSession();
+		try {
+			Revision revision = session.get(StorePackage.eINSTANCE.getRevision(), roid, Query.getDefault());
+			ConcreteRevision concreteRevision = revision.getConcreteRevisions().get(0);
+			PackageMetaData packageMetaData = bimServer.getMetaDataManager().getPackageMetaData(concreteRevision.getProject().getSchema());
+			Query query = new Query(packageMetaData, concreteRevision.getProject().getId(), concreteRevision.getId(), roid, Deep.YES);
+			query.updateOidCounters(concreteRevision, session);
+			IfcModelInterface model = session.createModel(query);
+			session.getMap(model, query, parallel);
+			return model;
+		} finally {
+			session.close();
+		}
+	}
+
+	private void compare(TestFile testFile) throws ServiceException, BimserverDatabaseException {
+		long roid = checkin(testFile);
+		IfcModelInterface sequential = getMap(roid, false);
+		IfcModelInterface parallel = getMap(roid, true);
+		assertTrue(sequential.size() > 0);
+		assertEquals(sequential.keySet(), parallel.keySet());
+		for (long oid : sequential.keySet()) {
+			compareObjects(sequential, sequential.get(oid), parallel, parallel.get(oid));
+		}
+	}
+
+	/*
+	 * Objects with an oid are compared on their oid, the parallel load has to resolve them to the object in its model. Embedded objects
+	 * have no oid and are compared on their values.
+	 */
+	private void compareObjects(IfcModelInterface expectedModel, IdEObject expected, IfcModelInterface model, IdEObject object) {
+		assertEquals(expected.eClass(), object.eClass());
+		assertEquals(expected.getOid(), object.getOid());
+		for (EAttribute eAttribute : expected.eClass().getEAllAttributes()) {
+			assertEquals(expected.eClass().getName() + "." + eAttribute.getName(), expected.eGet(eAttribute), object.eGet(eAttribute));
+		}
+		for (EReference eReference : expected.eClass().getEAllReferences()) {
+			String name = expected.eClass().getName() + "." + eReference.getName();
+			if (eReference.isMany()) {
+				List<?> expectedList = (List<?>) expected.eGet(eReference);
+				List<?> list = (List<?>) object.eGet(eReference);
+				assertEquals(name, expectedList.size(), list.size());
+				for (int i = 0; i < expectedList.size(); i++) {
+					compareReferences(name, expectedModel, (IdEObject) expectedList.get(i), model, (IdEObject) list.get(i));
+				}
+			} else {
+				compareReferences(name, expectedModel, (IdEObject) expected.eGet(eReference), model, (IdEObject) object.eGet(eReference));
+			}
+		}
+	}
+
+	private void compareReferences(String name, IfcModelInterface expectedModel, IdEObject expected, IfcModelInterface model, IdEObject reference) {
+		if (expected == null) {
+			assertEquals(name, null, reference);
+			return;
+		}
+		assertNotNull(name, reference);
+		if (expected.getOid() == -1) {
+			compareObjects(expectedModel, expected, model, reference);
+		} else {
+			assertEquals(name, expected.getOid(), reference.getOid());
+			assertEquals(name, expectedModel.contains(expected.getOid()), model.contains(reference.getOid()));
+			if (model.contains(reference.getOid())) {
+				assertSame(name, model.get(reference.getOid()), reference);
+			}
+		}
+	}
+
+	@Test
+	public void testAc11() throws ServiceException, BimserverDatabaseException {
+		compare(TestFile.AC11);
+	}
+
+	@Test
+	public void testHaus() throws ServiceException, BimserverDatabaseException {
+		compare(TestFile.HAUS_SOURCE_FILE);
+	}
+}
@@ -0,0 +1,207 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.MetaDataManager;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
+import org.bimserver.ifc.step.deserializer.Ifc2x3tc1StepDeserializer;
+import org.bimserver.ifc.step.deserializer.IfcStepDeserializer;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.plugins.PluginManager;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.tests.TestFile;
+import org.bimserver.tests.TestFileConstants;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/*
+ * The parallel reader of IfcStepDeserializer has to build the same model as the line based reader. Small chunks are used, so records and
+ * references between records are split over many chunks.
+ */
+public class TestParallelIfcStepDeserializer {
+	private static final String HEADER = "ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION (('ViewDefinition [CoordinationView]'), '2;1');\n"
+			+ "FILE_NAME ('test.ifc', '2009-01-26T11:26:35', ('Architect'), ('Office'), 'Test', 'Test', 'Test');\nFILE_SCHEMA (('IFC2X3'));\nENDSEC;\nDATA;\n";
+	private static final String FOOTER = "ENDSEC;\nEND-ISO-10303-21;\n";
+	private static PackageMetaData packageMetaData;
+
+	@BeforeClass
+	public static void setup() throws PluginException {
+		PluginManager pluginManager = LocalDevPluginLoader.createPluginManager(new File("home"));
+		MetaDataManager metaDataManager = new MetaDataManager(pluginManager);
+		metaDataManager.init();
+		packageMetaData = metaDataManager.getPackageMetaData("ifc2x3tc1");
+	}
+
+	private static IfcModelInterface read(File file, boolean parallel, int chunkSize) throws DeserializeException {
+		IfcStepDeserializer deserializer = new Ifc2x3tc1StepDeserializer(Schema.IFC2X3TC1);
+		deserializer.init(packageMetaData);
+		deserializer.setMinParallelFileSize(parallel ? 0 : Long.MAX_VALUE);
+		deserializer.setChunkSize(chunkSize);
+		return deserializer.read(file);
+	}
+
+	private static File write(String data) throws IOException {
+		File file = File.createTempFile("test", ".ifc");
+		file.deleteOnExit();
+		Files.write(HEADER + data + FOOTER, file, Charsets.UTF_8);
+		return file;
+	}
+
+	@Test
+	public void testFiles() throws DeserializeException {
+		File[] files = new File[] { TestFile.AC11.getFile(), TestFile.WALL_ONLY.getFile(), TestFile.ADTHAUS.getFile(), TestFile.JASMIN.getFile(),
+				new File(TestFileConstants.DATA_FOLDER, "AC11-FZK-Haus-IFC.ifc") };
+		for (File file : files) {
+			IfcModelInterface lineBased = read(file, false, 4 * 1024 * 1024);
+			IfcModelInterface parallel = read(file, true, 64 * 1024);
+			assertSameModel(lineBased, parallel);
+		}
+	}
+
+	@Test
+	public void testReferencesBetweenChunks() throws IOException, DeserializeException {
+		Random random = new Random(7);
+		int nrPoints = 2000;
+		StringBuilder data = new StringBuilder();
+		for (int i = 1; i <= nrPoints; i++) {
+			data.append("#").append(i * 2).append("=IFCCARTESIANPOINT((").append(i).append(".,-").append(i).append(".5E-3,0.));\n");
+			// Points before and after the polyline, near and far away
+			data.append("#").append(i * 2 + 1).append("=IFCPOLYLINE((#").append(2 * (1 + random.nextInt(nrPoints))).append(",#").append(2 * (1 + random.nextInt(nrPoints)))
+					.append(",\n#").append(2 * Math.max(1, i - 1)).append(",#").append(2 * Math.min(nrPoints, i + 1)).append("));\n");
+		}
+		File file = write(data.toString());
+		IfcModelInterface lineBased = read(file, false, 4 * 1024 * 1024);
+		for (int chunkSize : new int[] { 64, 100, 1000, 4096 }) {
+			IfcModelInterface parallel = read(file, true, chunkSize);
+			assertEquals(nrPoints * 2, parallel.size());
+			for (int i = 1; i <= nrPoints; i++) {
+				IdEObject polyline = parallel.get(i * 2 + 1);
+				List<?> points = (List<?>) polyline.eGet(polyline.eClass().getEStructuralFeature("Points"));
+				assertEquals(4, points.size());
+				for (Object point : points) {
+					assertNotNull(point);
+					assertEquals("IfcCartesianPoint", ((IdEObject) point).eClass().getName());
+				}
+			}
+			assertSameModel(lineBased, parallel);
+		}
+	}
+
+	@Test
+	public void testStringsAndComments() throws IOException, DeserializeException {
+		String data = "#1=IFCORGANIZATION($,'a;b','it''s; \\S\\d \\S\\'; /* no comment */',$,$);\n"
+				+ "/* ; ' */\n"
+				+ "#2=IFCORGANIZATION('C:\\\\S\\',/* ; ' */'\\X2\\00FC20AC\\X0\\;',$,$,$); /* ' */\n"
+				+ "#3=IFCORGANIZATION($,'multi\nline; ''quoted''',$,$,$);\n"
+				+ "#4=IFCORGANIZATION($,'\\X\\E9t\\X\\E9 \\\\',$,$,$);\n";
+		File file = write(data);
+		IfcModelInterface lineBased = read(file, false, 4 * 1024 * 1024);
+		for (int chunkSize = 16; chunkSize < 256; chunkSize += 7) {
+			IfcModelInterface parallel = read(file, true, chunkSize);
+			assertEquals(4, parallel.size());
+			assertEquals("a;b", getName(parallel, 1));
+			assertEquals("it's; \u00e4 \u00a7; /* no comment */", getString(parallel, 1, "Description"));
+			assertEquals("C:\\S\\", getString(parallel, 2, "Id"));
+			assertEquals("\u00fc\u20ac;", getName(parallel, 2));
+			assertEquals("multiline; 'quoted'", getName(parallel, 3));
+			assertEquals("\u00e9t\u00e9 \\", getName(parallel, 4));
+			assertSameModel(lineBased, parallel);
+		}
+	}
+
+	private static String getName(IfcModelInterface model, long expressId) {
+		return getString(model, expressId, "Name");
+	}
+
+	private static String getString(IfcModelInterface model, long expressId, String featureName) {
+		IdEObject object = model.get(expressId);
+		return (String) object.eGet(object.eClass().getEStructuralFeature(featureName));
+	}
+
+	private static void assertSameModel(IfcModelInterface expected, IfcModelInterface actual) {
+		assertEquals(expected.size(), actual.size());
+		assertArrayEquals(expected.getModelMetaData().getChecksum(), actual.getModelMetaData().getChecksum());
+		assertEquals(expected.getModelMetaData().getIfcHeader().getFilename(), actual.getModelMetaData().getIfcHeader().getFilename());
+		for (Long expressId : expected.getObjects().keySet()) {
+			IdEObject expectedObject = expected.get(expressId);
+			IdEObject actualObject = actual.get(expressId);
+			assertNotNull("#" + expressId, actualObject);
+			assertSameObject(expectedObject, actualObject);
+		}
+	}
+
+	/*
+	 * Attributes have to be equal, references have to point to the same records. Objects that are not records (wrapped values) are compared
+	 * the same way.
+	 */
+	private static void assertSameObject(IdEObject expected, IdEObject actual) {
+		String message = "#" + expected.getExpressId() + " " + expected.eClass().getName();
+		assertEquals(message, expected.eClass(), actual.eClass());
+		assertEquals(message, expected.getExpressId(), actual.getExpressId());
+		for (EStructuralFeature feature : expected.eClass().getEAllStructuralFeatures()) {
+			Object expectedValue = expected.eGet(feature);
+			Object actualValue = actual.eGet(feature);
+			if (feature instanceof EAttribute) {
+				assertEquals(message + "." + feature.getName(), expectedValue, actualValue);
+			} else if (((EReference) feature).isMany()) {
+				List<?> expectedList = (List<?>) expectedValue;
+				List<?> actualList = (List<?>) actualValue;
+				assertEquals(message + "." + feature.getName(), expectedList.size(), actualList.size());
+				for (int i = 0; i < expectedList.size(); i++) {
+					assertSameReference(message + "." + feature.getName(), (IdEObject) expectedList.get(i), (IdEObject) actualList.get(i));
+				}
+			} else {
+				assertSameReference(message + "." + feature.getName(), (IdEObject) expectedValue, (IdEObject) actualValue);
+			}
+		}
+	}
+
+	private static void assertSameReference(String message, IdEObject expected, IdEObject actual) {
+		if (expected == null) {
+			assertEquals(message, null, actual);
+		} else if (expected.getExpressId() == -1) {
+			assertNotNull(message, actual);
+			assertSameObject(expected, actual);
+		} else {
+			assertNotNull(message, actual);
+			assertEquals(message, expected.getExpressId(), actual.getExpressId());
+			assertTrue(message, actual.eClass() == expected.eClass());
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.bimserver.database.RecordCache;
+import org.bimserver.database.WriteBatch;
+import org.junit.Test;
+
+public class TestRecordCache {
+	private static final byte[] VALUE = new byte[] { 1, 2, 3 };
+
+	private static byte[] key(int pid, long oid, int rid) {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putInt(pid);
+		buffer.putLong(oid);
+		buffer.putInt(-rid);
+		return buffer.array();
+	}
+
+	private static RecordCache.Invalidation invalidation(int pid, long oid, int rid) {
+		WriteBatch writeBatch = new WriteBatch();
+		writeBatch.store("ifc2x3tc1_IfcWall", key(pid, oid, rid), VALUE);
+		RecordCache.Invalidation invalidation = new RecordCache.Invalidation();
+		invalidation.add(writeBatch);
+		return invalidation;
+	}
+
+	@Test
+	public void testGetWithinRidRange() {
+		RecordCache recordCache = new RecordCache(RecordCache.DEFAULT_MAX_SIZE_IN_BYTES);
+		recordCache.put(1, 10, 2, 5, VALUE, recordCache.getVersion());
+		assertNull(recordCache.get(1, 10, 1));
+		for (int rid = 2; rid <= 5; rid++) {
+			RecordCache.CachedRecord cachedRecord = recordCache.get(1, 10, rid);
+			assertNotNull(cachedRecord);
+			assertEquals(2, cachedRecord.getRid());
+			assertArrayEquals(VALUE, cachedRecord.getValue());
+		}
+		assertNull(recordCache.get(1, 10, 6));
+		assertNull(recordCache.get(2, 10, 3));
+		assertNull(recordCache.get(1, 11, 3));
+	}
+
+	@Test
+	public void testCommitInvalidatesWrittenObjects() {
+		RecordCache recordCache = new RecordCache(RecordCache.DEFAULT_MAX_SIZE_IN_BYTES);
+		long version = recordCache.getVersion();
+		recordCache.put(1, 10, 2, 5, VALUE, version);
+		recordCache.put(1, 11, 2, 5, VALUE, version);
+		recordCache.invalidate(invalidation(1, 10, 6));
+		assertNull(recordCache.get(1, 10, 5));
+		assertNotNull(recordCache.get(1, 11, 5));
+	}
+
+	@Test
+	public void testNoPutFromSnapshotOlderThanInvalidation() {
+		RecordCache recordCache = new RecordCache(RecordCache.DEFAULT_MAX_SIZE_IN_BYTES);
+		// The transaction of the reader starts before the commit of another session is done, it still sees the old record afterwards
+		long versionAtTransactionStart = recordCache.getVersion();
+		recordCache.invalidate(invalidation(1, 10, 6));
+		recordCache.put(1, 10, 2, 6, VALUE, versionAtTransactionStart);
+		assertNull(recordCache.get(1, 10, 6));
+		assertNull(recordCache.get(1, 10, 2));
+
+		// A transaction started after the commit may put again
+		recordCache.put(1, 10, 6, 6, VALUE, recordCache.getVersion());
+		assertNotNull(recordCache.get(1, 10, 6));
+	}
+
+	@Test
+	public void testNoPutWithoutVersion() {
+		RecordCache recordCache = new RecordCache(RecordCache.DEFAULT_MAX_SIZE_IN_BYTES);
+		recordCache.put(1, 10, 2, 5, VALUE, RecordCache.NO_VERSION);
+		assertNull(recordCache.get(1, 10, 3));
+	}
+
+	@Test
+	public void testInvalidateAll() {
+		RecordCache recordCache = new RecordCache(RecordCache.DEFAULT_MAX_SIZE_IN_BYTES);
+		long version = recordCache.getVersion();
+		recordCache.put(1, 10, 2, 5, VALUE, version);
+		recordCache.invalidateAll();
+		assertNull(recordCache.get(1, 10, 3));
+		recordCache.put(1, 10, 2, 5, VALUE, version);
+		assertNull(recordCache.get(1, 10, 3));
+	}
+
+	@Test
+	public void testDisabled() {
+		RecordCache recordCache = new RecordCache(0);
+		recordCache.put(1, 10, 2, 5, VALUE, recordCache.getVersion());
+		assertNull(recordCache.get(1, 10, 3));
+	}
+}
@@ -0,0 +1,170 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bimserver.ifc.step.deserializer.StepTokenizer;
+import org.bimserver.ifc.step.deserializer.StepTokenizer.TokenType;
+import org.bimserver.utils.TokenizeException;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class TestStepTokenizer {
+
+	private static StepTokenizer tokenize(String text) {
+		byte[] bytes = text.getBytes(Charsets.UTF_8);
+		StepTokenizer tokenizer = new StepTokenizer();
+		tokenizer.reset(bytes, 0, bytes.length);
+		return tokenizer;
+	}
+
+	/*
+	 * The decoded values of the STRING tokens of the text
+	 */
+	private static List<String> strings(String text) throws TokenizeException {
+		StepTokenizer tokenizer = tokenize(text);
+		List<String> strings = new ArrayList<String>();
+		for (TokenType tokenType = tokenizer.next(); tokenType != TokenType.END; tokenType = tokenizer.next()) {
+			if (tokenType == TokenType.STRING) {
+				strings.add(tokenizer.getString());
+			}
+		}
+		return strings;
+	}
+
+	private static List<TokenType> tokenTypes(String text) throws TokenizeException {
+		StepTokenizer tokenizer = tokenize(text);
+		List<TokenType> tokenTypes = new ArrayList<TokenType>();
+		for (TokenType tokenType = tokenizer.next(); tokenType != TokenType.END; tokenType = tokenizer.next()) {
+			tokenTypes.add(tokenType);
+		}
+		return tokenTypes;
+	}
+
+	@Test
+	public void testRecord() throws TokenizeException {
+		StepTokenizer tokenizer = tokenize("#12= IFCCARTESIANPOINT((0.,-1.5E-2,3));");
+		assertEquals(TokenType.REFERENCE, tokenizer.next());
+		assertEquals(12, tokenizer.getLong());
+		assertEquals(TokenType.EQUALS, tokenizer.next());
+		assertEquals(TokenType.KEYWORD, tokenizer.next());
+		assertTrue(tokenizer.textEquals("IFCCARTESIANPOINT"));
+		assertEquals(TokenType.OPEN, tokenizer.next());
+		assertEquals(TokenType.OPEN, tokenizer.next());
+		assertEquals(TokenType.REAL, tokenizer.next());
+		assertEquals(0.0, tokenizer.getDouble(), 0.0);
+		assertEquals(TokenType.COMMA, tokenizer.next());
+		assertEquals(TokenType.REAL, tokenizer.next());
+		assertEquals(-0.015, tokenizer.getDouble(), 0.0);
+		assertEquals(TokenType.COMMA, tokenizer.next());
+		assertEquals(TokenType.INTEGER, tokenizer.next());
+		assertEquals(3, tokenizer.getLong());
+		assertEquals(TokenType.CLOSE, tokenizer.next());
+		assertEquals(TokenType.CLOSE, tokenizer.next());
+		assertEquals(TokenType.SEMICOLON, tokenizer.next());
+		assertEquals(TokenType.END, tokenizer.next());
+	}
+
+	@Test
+	public void testStringsWithSpecialCharacters() throws TokenizeException {
+		assertEquals(Arrays.asList("a;b", "it's", "''", "", "/* no comment */"), strings("('a;b','it''s','''''','','/* no comment */');"));
+	}
+
+	@Test
+	public void testEscapes() throws TokenizeException {
+		// \S\ adds 128 to the character after it, that can be a quote
+		assertEquals(Arrays.asList("\u00e4", "\u00a7", "x\u00c4y"), strings("('\\S\\d','\\S\\'','x\\X\\C4y');"));
+		assertEquals(Arrays.asList("\u00fc\u20ac", "a\ud83d\ude00b"), strings("('\\X2\\00FC20AC\\X0\\','a\\X4\\0001F600\\X0\\b');"));
+		assertEquals(Arrays.asList("\u00e9t\u00e9"), strings("('\u00e9t\u00e9');"));
+	}
+
+	/*
+	 * An escaped backslash followed by S\' is not a \S\ escape, the quote ends the string
+	 */
+	@Test
+	public void testEscapedBackslash() throws TokenizeException {
+		assertEquals(Arrays.asList("C:\\S\\", "next"), strings("('C:\\\\S\\','next');"));
+		assertEquals(Arrays.asList("\\", "\u00fc\\"), strings("('\\\\','\\X2\\00FC\\X0\\\\\\');"));
+		assertEquals(Arrays.asList(TokenType.OPEN, TokenType.STRING, TokenType.COMMA, TokenType.STRING, TokenType.CLOSE, TokenType.SEMICOLON), tokenTypes("('\\\\S\\',';');"));
+	}
+
+	@Test
+	public void testComments() throws TokenizeException {
+		assertEquals(Arrays.asList(TokenType.REFERENCE, TokenType.EQUALS, TokenType.KEYWORD, TokenType.OPEN, TokenType.STRING, TokenType.CLOSE, TokenType.SEMICOLON),
+				tokenTypes("/* ; ' */#1=/*'*/IFCWALL\r\n(/*(*/'a' /* ) */);/**/"));
+		assertEquals(Arrays.asList("a"), strings("/* 'not a string' */('a');"));
+	}
+
+	@Test
+	public void testDoubles() throws TokenizeException {
+		String[] values = new String[] { "0.", "-0.", "-0.0", "+1.5", "1.50000000000000", "123456789012345.", "1234567890123456.", "0.1234567890123456789", "1.E22", "1.E23", "9.E-22",
+				"1.E-23", "1.7976931348623157E308", "4.9E-324", "1.E-400", "2.5E10000", "0.000000000000000000000000001", "100000000000000000000000.", "9007199254740993.", "3.14159265358979323846",
+				"1.e5", "-12.34E+02", "0.30000000000000004", "1E5" };
+		for (String value : values) {
+			assertDouble(value);
+		}
+	}
+
+	/*
+	 * Numbers around the limits of the fast path, compared with Double.parseDouble
+	 */
+	@Test
+	public void testRandomDoubles() throws TokenizeException {
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			StringBuilder stringBuilder = new StringBuilder();
+			if (random.nextBoolean()) {
+				stringBuilder.append('-');
+			}
+			int digits = 1 + random.nextInt(19);
+			// STEP reals start with a digit
+			int point = 1 + random.nextInt(digits);
+			for (int j = 0; j < digits; j++) {
+				if (j == point) {
+					stringBuilder.append('.');
+				}
+				stringBuilder.append((char) ('0' + random.nextInt(10)));
+			}
+			if (point == digits) {
+				stringBuilder.append('.');
+			}
+			if (random.nextBoolean()) {
+				stringBuilder.append('E').append(random.nextInt(61) - 30);
+			}
+			assertDouble(stringBuilder.toString());
+		}
+	}
+
+	private static void assertDouble(String value) throws TokenizeException {
+		StepTokenizer tokenizer = tokenize(value + ";");
+		assertEquals(value, TokenType.REAL, tokenizer.next());
+		double expected = Double.parseDouble(value);
+		double actual = tokenizer.getDouble();
+		// Compares the bits, so -0.0 is not 0.0
+		assertEquals(value, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+	}
+}
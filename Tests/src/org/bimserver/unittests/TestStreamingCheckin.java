@@ -0,0 +1,230 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimServer;
+import org.bimserver.BimServerConfig;
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Query;
+import org.bimserver.database.Query.Deep;
+import org.bimserver.database.actions.StreamingCheckinDatabaseAction;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.ModelMetaData;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
+import org.bimserver.ifc.step.deserializer.Ifc2x3tc1StepDeserializer;
+import org.bimserver.ifc.step.deserializer.IfcStepDeserializer;
+import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Project;
+import org.bimserver.models.store.ServerState;
+import org.bimserver.models.store.StorePackage;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.plugins.deserializers.ByteProgressReporter;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.plugins.deserializers.StreamingDeserializerHandler;
+import org.bimserver.shared.LocalDevelopmentResourceFetcher;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.shared.interfaces.AdminInterface;
+import org.bimserver.shared.interfaces.bimsie1.Bimsie1AuthInterface;
+import org.bimserver.tests.TestFile;
+import org.bimserver.webservices.ServiceMap;
+import org.eclipse.emf.ecore.EClass;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * A streaming checkin writes objects before the file has been read completely, when reading fails the revision and the objects must not
+ * be committed
+ */
+public class TestStreamingCheckin {
+	private static BimServer bimServer;
+	private static ServiceMap serviceMap;
+
+	@BeforeClass
+	public static void setup() {
+		try {
+			File home = new File("home");
+			if (home.isDirectory()) {
+				FileUtils.deleteDirectory(home);
+			}
+
+			// Create a BIMserver
+			BimServerConfig config = new BimServerConfig();
+			config.setHomeDir(home);
+			config.setResourceFetcher(new LocalDevelopmentResourceFetcher(new File("../")));
+			bimServer = new BimServer(config);
+
+			// Load plugins
+			LocalDevPluginLoader.loadPlugins(bimServer.getPluginManager(), null);
+
+			// Start
+			bimServer.start();
+
+			// Convenience, setup the server to make sure it is in RUNNING state
+			if (bimServer.getServerInfo().getServerState() == ServerState.NOT_SETUP) {
+				bimServer.getService(AdminInterface.class).setup("http://localhost", "localhost", "no-reply@bimserver.org", "Administrator", "admin@bimserver.org", "admin");
+			}
+			String token = bimServer.getService(Bimsie1AuthInterface.class).login("admin@bimserver.org", "admin");
+			serviceMap = bimServer.getServiceFactory().get(token, AccessMethod.INTERNAL);
+		} catch (PluginException e) {
+			e.printStackTrace();
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		} catch (DatabaseInitException e) {
+			e.printStackTrace();
+		} catch (BimserverDatabaseException e) {
+			e.printStackTrace();
+		} catch (DatabaseRestartRequiredException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@AfterClass
+	public static void shutdown() {
+		bimServer.stop();
+	}
+
+	private static PackageMetaData getPackageMetaData() {
+		return bimServer.getMetaDataManager().getPackageMetaData("ifc2x3tc1");
+	}
+
+	/*
+	 * Passes everything on to the checkin, but fails on the last object when fail is set. The objects before it have been written by then.
+	 */
+	private static class FailingDeserializer extends Ifc2x3tc1StepDeserializer {
+		private final boolean fail;
+		private final List<EClass> eClasses = new ArrayList<EClass>();
+		private final List<Long> oids = new ArrayList<Long>();
+		private int nrObjects;
+
+		FailingDeserializer(boolean fail) {
+			super(Schema.IFC2X3TC1);
+			this.fail = fail;
+			init(getPackageMetaData());
+		}
+
+		@Override
+		public void read(File sourceFile, final StreamingDeserializerHandler handler, ByteProgressReporter byteProgressReporter) throws DeserializeException {
+			super.read(sourceFile, new StreamingDeserializerHandler() {
+				@Override
+				public long newOid(EClass eClass) throws DeserializeException {
+					long oid = handler.newOid(eClass);
+					eClasses.add(eClass);
+					oids.add(oid);
+					return oid;
+				}
+
+				@Override
+				public void start(ModelMetaData modelMetaData) throws DeserializeException {
+					handler.start(modelMetaData);
+				}
+
+				@Override
+				public void object(IdEObject object) throws DeserializeException {
+					if (fail && ++nrObjects == oids.size()) {
+						throw new DeserializeException("Failing on the last object");
+					}
+					handler.object(object);
+				}
+			}, byteProgressReporter);
+		}
+	}
+
+	private static StreamingCheckinDatabaseAction checkin(DatabaseSession session, long poid, File file, IfcStepDeserializer deserializer) {
+		return new StreamingCheckinDatabaseAction(bimServer, session, AccessMethod.INTERNAL, poid, serviceMap.getAuthorization(), "test", file.getName(),
+				deserializer, file);
+	}
+
+	@Test
+	public void testDeserializeExceptionRollsBack() throws ServiceException, BimserverDatabaseException {
+		File file = TestFile.AC11.getFile();
+		long poid = serviceMap.getBimsie1ServiceInterface().addProject("Project " + new Random().nextInt(), "ifc2x3tc1").getOid();
+
+		FailingDeserializer failingDeserializer = new FailingDeserializer(true);
+		DatabaseSession session = bimServer.getDatabase().createSession();
+		StreamingCheckinDatabaseAction failingCheckin = checkin(session, poid, file, failingDeserializer);
+		try {
+			session.executeAndCommitAction(failingCheckin);
+			fail("Checkin should have failed");
+		} catch (UserException e) {
+			assertNotNull(failingCheckin.getDeserializeException());
+		} finally {
+			session.close();
+		}
+
+		// Neither the revision created when the first pass was done nor the objects written after it are there
+		session = bimServer.getDatabase().createSession();
+		try {
+			Project project = session.get(StorePackage.eINSTANCE.getProject(), poid, Query.getDefault());
+			assertTrue(project.getConcreteRevisions().isEmpty());
+			assertTrue(project.getRevisions().isEmpty());
+			assertNull(project.getLastRevision());
+			Query query = new Query(getPackageMetaData(), project.getId(), Integer.MAX_VALUE, -1, Deep.NO);
+			for (int i = 0; i < failingDeserializer.oids.size(); i++) {
+				assertNull(session.get(failingDeserializer.eClasses.get(i), failingDeserializer.oids.get(i), query));
+			}
+		} finally {
+			session.close();
+		}
+
+		// The same file can be checked in afterwards, the checksum of the failed revision has not been stored
+		FailingDeserializer deserializer = new FailingDeserializer(false);
+		session = bimServer.getDatabase().createSession();
+		try {
+			ConcreteRevision concreteRevision = session.executeAndCommitAction(checkin(session, poid, file, deserializer));
+			assertNotNull(concreteRevision);
+		} finally {
+			session.close();
+		}
+		session = bimServer.getDatabase().createSession();
+		try {
+			Project project = session.get(StorePackage.eINSTANCE.getProject(), poid, Query.getDefault());
+			assertEquals(1, project.getConcreteRevisions().size());
+			assertEquals(1, project.getRevisions().size());
+			Query query = new Query(getPackageMetaData(), project.getId(), project.getLastConcreteRevision().getId(), -1, Deep.NO);
+			for (int i = 0; i < deserializer.oids.size(); i++) {
+				assertNotNull(session.get(deserializer.eClasses.get(i), deserializer.oids.get(i), query));
+			}
+		} finally {
+			session.close();
+		}
+	}
+}
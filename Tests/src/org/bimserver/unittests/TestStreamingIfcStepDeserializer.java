@@ -0,0 +1,194 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bimserver.LocalDevPluginLoader;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.MetaDataManager;
+import org.bimserver.emf.ModelMetaData;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
+import org.bimserver.ifc.step.deserializer.Ifc2x3tc1StepDeserializer;
+import org.bimserver.ifc.step.deserializer.IfcStepDeserializer;
+import org.bimserver.plugins.PluginException;
+import org.bimserver.plugins.PluginManager;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.bimserver.plugins.deserializers.StreamingDeserializerHandler;
+import org.bimserver.tests.TestFile;
+import org.bimserver.tests.TestFileConstants;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * The two passes of the streaming reader of IfcStepDeserializer have to hand out the same objects as read() followed by
+ * fixInverseMismatches(), with references and inverses pointing to the oids of the same records.
+ */
+public class TestStreamingIfcStepDeserializer {
+	private static PackageMetaData packageMetaData;
+
+	@BeforeClass
+	public static void setup() throws PluginException {
+		PluginManager pluginManager = LocalDevPluginLoader.createPluginManager(new File("home"));
+		MetaDataManager metaDataManager = new MetaDataManager(pluginManager);
+		metaDataManager.init();
+		packageMetaData = metaDataManager.getPackageMetaData("ifc2x3tc1");
+	}
+
+	private static IfcStepDeserializer createDeserializer() {
+		IfcStepDeserializer deserializer = new Ifc2x3tc1StepDeserializer(Schema.IFC2X3TC1);
+		deserializer.init(packageMetaData);
+		return deserializer;
+	}
+
+	/*
+	 * Hands out oids counting from 1 and keeps the objects of the second pass per record number
+	 */
+	private static class CollectingHandler implements StreamingDeserializerHandler {
+		private final List<EClass> eClasses = new ArrayList<EClass>();
+		private final Map<Long, IdEObject> objects = new HashMap<Long, IdEObject>();
+		private ModelMetaData modelMetaData;
+
+		@Override
+		public long newOid(EClass eClass) {
+			assertNull("newOid after start", modelMetaData);
+			eClasses.add(eClass);
+			return eClasses.size();
+		}
+
+		@Override
+		public void start(ModelMetaData modelMetaData) {
+			assertNull("start called twice", this.modelMetaData);
+			this.modelMetaData = modelMetaData;
+		}
+
+		@Override
+		public void object(IdEObject object) {
+			assertNotNull("object before start", modelMetaData);
+			// Same order as the first pass
+			assertEquals(objects.size() + 1, object.getOid());
+			assertEquals(eClasses.get(objects.size()), object.eClass());
+			assertNull("#" + object.getExpressId() + " handed out twice", objects.put((long) object.getExpressId(), object));
+		}
+	}
+
+	@Test
+	public void testFiles() throws DeserializeException {
+		File[] files = new File[] { TestFile.AC11.getFile(), TestFile.WALL_ONLY.getFile(), TestFile.ADTHAUS.getFile(), TestFile.JASMIN.getFile(),
+				new File(TestFileConstants.DATA_FOLDER, "AC11-FZK-Haus-IFC.ifc") };
+		for (File file : files) {
+			IfcModelInterface expected = createDeserializer().read(file);
+			expected.fixInverseMismatches();
+			CollectingHandler handler = new CollectingHandler();
+			createDeserializer().read(file, handler, null);
+			assertSameObjects(file.getName(), expected, handler);
+		}
+	}
+
+	private static void assertSameObjects(String fileName, IfcModelInterface expected, CollectingHandler handler) {
+		assertEquals(fileName, expected.size(), handler.objects.size());
+		assertArrayEquals(fileName, expected.getModelMetaData().getChecksum(), handler.modelMetaData.getChecksum());
+		assertEquals(fileName, expected.getModelMetaData().getIfcHeader().getFilename(), handler.modelMetaData.getIfcHeader().getFilename());
+		for (Long expressId : expected.getObjects().keySet()) {
+			IdEObject actualObject = handler.objects.get(expressId);
+			assertNotNull(fileName + " #" + expressId, actualObject);
+			assertSameObject(fileName, handler, expected.get(expressId), actualObject);
+		}
+	}
+
+	/*
+	 * References to records only carry the oid and class of the record, inverses are compared regardless of their order
+	 */
+	private static void assertSameObject(String fileName, CollectingHandler handler, IdEObject expected, IdEObject actual) {
+		String message = fileName + " #" + expected.getExpressId() + " " + expected.eClass().getName();
+		assertEquals(message, expected.eClass(), actual.eClass());
+		assertEquals(message, expected.getExpressId(), actual.getExpressId());
+		for (EStructuralFeature feature : expected.eClass().getEAllStructuralFeatures()) {
+			String featureMessage = message + "." + feature.getName();
+			Object expectedValue = expected.eGet(feature);
+			Object actualValue = actual.eGet(feature);
+			if (feature instanceof EAttribute) {
+				assertEquals(featureMessage, expectedValue, actualValue);
+			} else if (feature.getEAnnotation("inverse") != null) {
+				assertEquals(featureMessage, getOids(handler, expectedValue, feature.isMany()), getOids(handler, actualValue, feature.isMany()));
+			} else if (((EReference) feature).isMany()) {
+				List<?> expectedList = (List<?>) expectedValue;
+				List<?> actualList = (List<?>) actualValue;
+				assertEquals(featureMessage, expectedList.size(), actualList.size());
+				for (int i = 0; i < expectedList.size(); i++) {
+					assertSameReference(featureMessage, handler, (IdEObject) expectedList.get(i), (IdEObject) actualList.get(i));
+				}
+			} else {
+				assertSameReference(featureMessage, handler, (IdEObject) expectedValue, (IdEObject) actualValue);
+			}
+		}
+	}
+
+	private static void assertSameReference(String message, CollectingHandler handler, IdEObject expected, IdEObject actual) {
+		if (expected == null) {
+			assertNull(message, actual);
+		} else if (expected.getExpressId() == -1) {
+			// Not a record, a wrapped value
+			assertNotNull(message, actual);
+			assertSameObject(message, handler, expected, actual);
+		} else {
+			assertNotNull(message, actual);
+			assertEquals(message, expected.eClass(), actual.eClass());
+			assertEquals(message, getOid(handler, expected), actual.getOid());
+		}
+	}
+
+	/*
+	 * The objects of read() have no oids, the record number tells which oid the streaming reader gave them
+	 */
+	private static long getOid(CollectingHandler handler, IdEObject object) {
+		IdEObject streamed = handler.objects.get((long) object.getExpressId());
+		assertNotNull("#" + object.getExpressId(), streamed);
+		return streamed.getOid();
+	}
+
+	private static List<Long> getOids(CollectingHandler handler, Object value, boolean many) {
+		List<Long> oids = new ArrayList<Long>();
+		if (many) {
+			for (Object object : (List<?>) value) {
+				oids.add(getOid(handler, (IdEObject) object));
+			}
+		} else if (value != null) {
+			oids.add(getOid(handler, (IdEObject) value));
+		}
+		Collections.sort(oids);
+		return oids;
+	}
+}
@@ -0,0 +1,190 @@
+package org.bimserver.unittests;
+
+/******************************************************************************
+ * Copyright (C) 2009-2015  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.BimserverDatabaseException;
+import org.bimserver.database.Record;
+import org.bimserver.database.RecordIterator;
+import org.bimserver.database.WriteBatch;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWriteBatch {
+	private static final String TABLE = "test";
+
+	private File dataDir;
+	private BerkeleyKeyValueStore store;
+
+	@Before
+	public void setup() throws IOException, DatabaseInitException, BimserverDatabaseException {
+		dataDir = File.createTempFile("writebatch", "");
+		dataDir.delete();
+		dataDir.mkdirs();
+		store = new BerkeleyKeyValueStore(dataDir);
+		store.createTable(TABLE, null);
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		store.close();
+		FileUtils.deleteDirectory(dataDir);
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	private List<byte[]> keysInStore() throws BimserverDatabaseException {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		RecordIterator recordIterator = store.getRecordIterator(TABLE, null);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				keys.add(record.getKey());
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		return keys;
+	}
+
+	@Test
+	public void testUnsignedKeyOrder() {
+		WriteBatch writeBatch = new WriteBatch();
+		writeBatch.store(TABLE, bytes(0x80), bytes(1));
+		writeBatch.store(TABLE, bytes(0xFF), bytes(2));
+		writeBatch.store(TABLE, bytes(0x7F), bytes(3));
+		writeBatch.store(TABLE, bytes(0x00, 0x01), bytes(4));
+		writeBatch.store(TABLE, bytes(0x00), bytes(5));
+		writeBatch.store(TABLE, bytes(0x7F, 0xFF), bytes(6));
+		List<WriteBatch.Entry> entries = writeBatch.getSortedEntries(TABLE);
+		byte[][] expected = new byte[][] { bytes(0x00), bytes(0x00, 0x01), bytes(0x7F), bytes(0x7F, 0xFF), bytes(0x80), bytes(0xFF) };
+		assertEquals(expected.length, entries.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertArrayEquals(expected[i], entries.get(i).getKey());
+		}
+	}
+
+	@Test
+	public void testDuplicateKeysKeepTheirOrder() {
+		WriteBatch writeBatch = new WriteBatch();
+		writeBatch.store(TABLE, bytes(2), bytes(1));
+		writeBatch.store(TABLE, bytes(1), bytes(2));
+		writeBatch.store(TABLE, bytes(2), bytes(3));
+		writeBatch.store(TABLE, bytes(2), bytes(4));
+		List<WriteBatch.Entry> entries = writeBatch.getSortedEntries(TABLE);
+		assertArrayEquals(bytes(2), entries.get(0).getValue());
+		assertArrayEquals(bytes(1), entries.get(1).getValue());
+		assertArrayEquals(bytes(3), entries.get(2).getValue());
+		assertArrayEquals(bytes(4), entries.get(3).getValue());
+	}
+
+	@Test
+	public void testKeysAndValuesAreCopied() {
+		WriteBatch writeBatch = new WriteBatch();
+		byte[] key = bytes(1, 2);
+		byte[] value = bytes(9, 3, 4, 9);
+		writeBatch.store(TABLE, key, value, 1, 2);
+		key[0] = 7;
+		value[1] = 7;
+		WriteBatch.Entry entry = writeBatch.getEntries(TABLE).get(0);
+		assertArrayEquals(bytes(1, 2), entry.getKey());
+		assertArrayEquals(bytes(3, 4), entry.getValue());
+		assertEquals(4, writeBatch.getSizeInBytes());
+		assertEquals(1, writeBatch.size());
+	}
+
+	@Test
+	public void testStore() throws BimserverDatabaseException {
+		WriteBatch writeBatch = new WriteBatch();
+		writeBatch.store(TABLE, bytes(0x90), bytes(1));
+		writeBatch.store(TABLE, bytes(0x10), bytes(2));
+		writeBatch.storeNoOverwrite(TABLE, bytes(0x50), bytes(3));
+		store.store(writeBatch, null);
+		List<byte[]> keys = keysInStore();
+		assertEquals(3, keys.size());
+		assertArrayEquals(bytes(0x10), keys.get(0));
+		assertArrayEquals(bytes(0x50), keys.get(1));
+		assertArrayEquals(bytes(0x90), keys.get(2));
+		assertArrayEquals(bytes(3), store.get(TABLE, bytes(0x50), null));
+	}
+
+	@Test
+	public void testLastDuplicateKeyWins() throws BimserverDatabaseException {
+		WriteBatch writeBatch = new WriteBatch();
+		writeBatch.store(TABLE, bytes(1), bytes(1));
+		writeBatch.store(TABLE, bytes(1), bytes(2));
+		store.store(writeBatch, null);
+		assertArrayEquals(bytes(2), store.get(TABLE, bytes(1), null));
+	}
+
+	@Test
+	public void testNoOverwriteConflict() throws BimserverDatabaseException {
+		WriteBatch writeBatch = new WriteBatch();
+		writeBatch.store(TABLE, bytes(5), bytes(1));
+		store.store(writeBatch, null);
+
+		writeBatch.clear();
+		writeBatch.store(TABLE, bytes(1), bytes(2));
+		writeBatch.storeNoOverwrite(TABLE, bytes(5), bytes(3));
+		try {
+			store.store(writeBatch, null);
+			fail("Existing key should not be overwritten");
+		} catch (BimserverConcurrentModificationDatabaseException e) {
+			// expected
+		}
+		// The batch is written in one transaction, nothing of it is kept
+		assertArrayEquals(bytes(1), store.get(TABLE, bytes(5), null));
+		assertNull(store.get(TABLE, bytes(1), null));
+	}
+
+	@Test
+	public void testNoOverwriteDuplicateKeyInOneBatch() throws BimserverDatabaseException {
+		WriteBatch writeBatch = new WriteBatch();
+		writeBatch.storeNoOverwrite(TABLE, bytes(5), bytes(1));
+		writeBatch.storeNoOverwrite(TABLE, bytes(5), bytes(2));
+		try {
+			store.store(writeBatch, null);
+			fail("The second record with the same key should conflict with the first");
+		} catch (BimserverConcurrentModificationDatabaseException e) {
+			// expected
+		}
+		assertNull(store.get(TABLE, bytes(5), null));
+	}
+}